@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.TrustConditions;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.predicate.ComparePredicate;
+import edu.upenn.cis.orchestra.reconciliation.DbException;
+
+/**
+ * The per-update checks of reconciliation: whether two updates conflict,
+ * and the priority the reconciling peer gives a tuple under its trust
+ * conditions.
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConflictBenchmark {
+	private static final int COUNT = 1024;
+	private static final int NUM_PEERS = 8;
+
+	private Update[] updates;
+	private Tuple[] tuples;
+	private AbstractPeerID[] publishers;
+	private TrustConditions tc;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		SyntheticData data = new SyntheticData(NUM_PEERS);
+		Random random = SyntheticData.newRandom();
+		// Draw from few keys, so that some of the updates conflict
+		tuples = data.randomRs(COUNT, COUNT / 4);
+		updates = new Update[COUNT];
+		publishers = new AbstractPeerID[COUNT];
+		for (int i = 0; i < COUNT; ++i) {
+			int kind = random.nextInt(3);
+			if (kind == 0) {
+				updates[i] = new Update(null, tuples[i]);
+			} else if (kind == 1) {
+				updates[i] = new Update(tuples[i], null);
+			} else {
+				Tuple newVal = data.newR(random, (Integer) tuples[i].get("id"));
+				updates[i] = new Update(tuples[i], newVal);
+			}
+			publishers[i] = data.peerIDs.get(1 + random.nextInt(NUM_PEERS - 1));
+		}
+
+		// Peer 0 trusts each other peer, more for small values of val
+		tc = new TrustConditions(data.peerIDs.get(0));
+		for (int i = 1; i < NUM_PEERS; ++i) {
+			AbstractPeerID pid = data.peerIDs.get(i);
+			tc.addTrustCondition(pid, data.schema, "R",
+					ComparePredicate.createColLit(data.r, "val", ComparePredicate.Op.LT, 100 * i), 2);
+			tc.addTrustCondition(pid, data.schema, "R", null, 1);
+		}
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (COUNT - 1);
+		return next;
+	}
+
+	@Benchmark
+	public boolean updateConflicts() throws DbException {
+		int i = nextIndex();
+		return updates[i].conflicts(updates[(i * 7) & (COUNT - 1)]);
+	}
+
+	@Benchmark
+	public int tuplePriority() throws Exception {
+		int i = nextIndex();
+		return tc.getTuplePriority(publishers[i], tuples[i]);
+	}
+}
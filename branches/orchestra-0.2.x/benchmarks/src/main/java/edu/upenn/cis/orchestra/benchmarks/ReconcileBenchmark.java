@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.benchmarks;
+
+import static edu.upenn.cis.orchestra.OrchestraUtil.newHashMap;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.TrustConditions;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.reconciliation.ClientCentricDb;
+import edu.upenn.cis.orchestra.reconciliation.Db;
+import edu.upenn.cis.orchestra.reconciliation.HashTableStore;
+import edu.upenn.cis.orchestra.reconciliation.UpdateStore;
+import edu.upenn.cis.orchestra.reconciliation.bdbstore.BerkeleyDBStoreClient;
+import edu.upenn.cis.orchestra.reconciliation.bdbstore.BerkeleyDBStoreServer;
+
+/**
+ * Reconciliation of a peer over the in-memory state store. Before each
+ * reconciliation a trusted peer publishes a batch of transactions, half of
+ * them inserting new tuples and half modifying tuples it inserted earlier.
+ * The update store is a Berkeley DB store server over a temporary
+ * directory, listening on a free port.
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReconcileBenchmark {
+	private static final int TXNS_PER_RECONCILIATION = 64;
+	private static final int UPDATES_PER_TXN = 4;
+
+	private SyntheticData data;
+	private File envDir;
+	private Environment env;
+	private BerkeleyDBStoreServer server;
+	private Db reconciler;
+	private Db publisher;
+	private Random random;
+	private List<Tuple> published;
+	private int nextKey = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		data = new SyntheticData(2);
+		random = SyntheticData.newRandom();
+		published = new ArrayList<Tuple>();
+
+		envDir = File.createTempFile("reconcile", "bench");
+		envDir.delete();
+		envDir.mkdir();
+		EnvironmentConfig ec = new EnvironmentConfig();
+		ec.setAllowCreate(true);
+		ec.setTransactional(true);
+		env = new Environment(envDir, ec);
+		server = new BerkeleyDBStoreServer(env, 0);
+		Map<AbstractPeerID,Integer> peerMap = newHashMap();
+		for (AbstractPeerID pid : data.peerIDs) {
+			peerMap.put(pid, 0);
+		}
+		server.registerAllSchemas(SyntheticData.SCHEMA_NAME, Collections.singletonList(data.schema), peerMap);
+
+		UpdateStore.Factory usf = new BerkeleyDBStoreClient.Factory(new InetSocketAddress(InetAddress.getLocalHost(), server.getPort()), null);
+		AbstractPeerID reconcilerID = data.peerIDs.get(0);
+		AbstractPeerID publisherID = data.peerIDs.get(1);
+		TrustConditions tc = new TrustConditions(reconcilerID);
+		tc.addTrustCondition(publisherID, data.schema, "R", null, 1);
+		reconciler = new ClientCentricDb(data.binding, data.schema, reconcilerID, tc, usf, HashTableStore.FACTORY);
+		publisher = new ClientCentricDb(data.binding, data.schema, publisherID, usf, HashTableStore.FACTORY);
+	}
+
+	@Setup(Level.Iteration)
+	public void resetPublished() {
+		// Each iteration modifies only the tuples it inserted itself, so
+		// that later iterations do not pick from an ever larger set
+		published.clear();
+	}
+
+	@Setup(Level.Invocation)
+	public void publish() throws Exception {
+		for (int i = 0; i < TXNS_PER_RECONCILIATION; ++i) {
+			List<Update> txn = new ArrayList<Update>(UPDATES_PER_TXN);
+			for (int j = 0; j < UPDATES_PER_TXN; ++j) {
+				if (published.isEmpty() || random.nextBoolean()) {
+					Tuple t = data.newR(random, nextKey++);
+					txn.add(new Update(null, t));
+					published.add(t);
+				} else {
+					// Modify a tuple that no earlier update of this
+					// transaction touches
+					int pos = random.nextInt(published.size());
+					Tuple oldVal = published.get(pos);
+					if (containsKey(txn, oldVal)) {
+						continue;
+					}
+					Tuple newVal = data.newR(random, (Integer) oldVal.get("id"));
+					txn.add(new Update(oldVal, newVal));
+					published.set(pos, newVal);
+				}
+			}
+			publisher.addTransaction(txn);
+		}
+		publisher.publish();
+	}
+
+	private static boolean containsKey(List<Update> txn, Tuple t) {
+		for (Update u : txn) {
+			if (u.getNewVal().sameKey(t)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Benchmark
+	public int reconcile() throws Exception {
+		return reconciler.reconcile();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		reconciler.disconnect();
+		publisher.disconnect();
+		server.quit();
+		env.close();
+		for (File f : envDir.listFiles()) {
+			f.delete();
+		}
+		envDir.delete();
+	}
+}
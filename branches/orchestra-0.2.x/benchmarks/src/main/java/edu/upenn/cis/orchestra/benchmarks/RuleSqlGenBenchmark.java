@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationContext;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.mappings.Rule;
+
+/**
+ * SQL generation for a two-way join rule,
+ * <code>S(i, v, w) :- R(i, n, v, t), S(v, f, w)</code>, as done for every
+ * rule of the update exchange program.
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RuleSqlGenBenchmark {
+	private SyntheticData data;
+	private Atom head;
+	private List<Atom> body;
+	private Rule rule;
+
+	@Setup
+	public void setUp() throws Exception {
+		data = new SyntheticData(1);
+		head = newAtom(data.s, "i", "v", "w");
+		body = new ArrayList<Atom>(2);
+		body.add(newAtom(data.r, "i", "n", "v", "t"));
+		body.add(newAtom(data.s, "v", "f", "w"));
+		rule = newRule();
+	}
+
+	private Atom newAtom(Relation rel, String... vars) {
+		List<AtomArgument> args = new ArrayList<AtomArgument>(vars.length);
+		for (String var : vars) {
+			args.add(new AtomVariable(var));
+		}
+		return new Atom(new RelationContext(rel, data.schema, data.peer, false), args, Atom.AtomType.NONE);
+	}
+
+	private Rule newRule() {
+		return new Rule(head, body, null, new HashMap<String,Schema>());
+	}
+
+	@Benchmark
+	public List<String> toUpdate() {
+		return rule.toUpdate(0);
+	}
+
+	@Benchmark
+	public List<String> newRuleToUpdate() {
+		return newRule().toUpdate(0);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.upenn.cis.orchestra.datamodel.ByteBufferReader;
+import edu.upenn.cis.orchestra.datamodel.ByteBufferWriter;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+
+/**
+ * Serialization of tuples and updates, as done for every entry written to
+ * or read from the state and update stores.
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SerializationBenchmark {
+	private static final int COUNT = 1024;
+
+	private SyntheticData data;
+	private Tuple[] tuples;
+	private byte[][] tupleBytes;
+	private Update[] updates;
+	private byte[][] updateBytes;
+	private ByteBufferWriter writer;
+	private ByteBufferReader reader;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		data = new SyntheticData(2);
+		tuples = data.randomRs(COUNT, Integer.MAX_VALUE);
+		tupleBytes = new byte[COUNT][];
+		updates = new Update[COUNT];
+		updateBytes = new byte[COUNT][];
+		Random random = SyntheticData.newRandom();
+		for (int i = 0; i < COUNT; ++i) {
+			tupleBytes[i] = tuples[i].getBytes();
+			Tuple newVal = data.newR(random, (Integer) tuples[i].get("id"));
+			updates[i] = new Update(tuples[i], newVal);
+			updates[i].addTid(new TxnPeerID(i, data.peerIDs.get(i % 2)));
+			writer = new ByteBufferWriter();
+			writer.addToBuffer(updates[i], Update.SerializationLevel.VALUES_AND_TIDS);
+			updateBytes[i] = writer.getByteArray();
+		}
+		writer = new ByteBufferWriter();
+		reader = new ByteBufferReader(data.binding);
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (COUNT - 1);
+		return next;
+	}
+
+	@Benchmark
+	public byte[] tupleGetBytes() {
+		return tuples[nextIndex()].getBytes();
+	}
+
+	@Benchmark
+	public Tuple tupleFromBytes() {
+		byte[] bytes = tupleBytes[nextIndex()];
+		return new Tuple(data.r, bytes, 0, bytes.length);
+	}
+
+	@Benchmark
+	public byte[] writeUpdate() {
+		writer.clear();
+		writer.addToBuffer(updates[nextIndex()], Update.SerializationLevel.VALUES_AND_TIDS);
+		return writer.getByteArray();
+	}
+
+	@Benchmark
+	public Update readUpdate() {
+		reader.reset(updateBytes[nextIndex()]);
+		return reader.readUpdate();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.upenn.cis.orchestra.datamodel.Subtuple;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+
+/**
+ * Extraction and hashing of key subtuples, which index the in-memory
+ * state and the dirty and conflict records of reconciliation.
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SubtupleBenchmark {
+	private static final int COUNT = 1024;
+
+	private Tuple[] tuples;
+	private Subtuple[] keys;
+	private int[] keyIndices;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		SyntheticData data = new SyntheticData(1);
+		// Draw from few keys, so that some of the keys compared are equal
+		tuples = data.randomRs(COUNT, COUNT / 4);
+		keyIndices = data.rKeyIndices();
+		keys = new Subtuple[COUNT];
+		for (int i = 0; i < COUNT; ++i) {
+			keys[i] = tuples[i].getKeySubtuple();
+		}
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (COUNT - 1);
+		return next;
+	}
+
+	@Benchmark
+	public int keySubtupleHashCode() {
+		return new Subtuple(tuples[nextIndex()], keyIndices).hashCode();
+	}
+
+	@Benchmark
+	public boolean keySubtupleEquals() {
+		int i = nextIndex();
+		return keys[i].equals(keys[(i * 7) & (COUNT - 1)]);
+	}
+}
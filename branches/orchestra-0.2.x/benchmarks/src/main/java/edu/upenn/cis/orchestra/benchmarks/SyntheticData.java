@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.benchmarks;
+
+import static edu.upenn.cis.orchestra.OrchestraUtil.newHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.IntPeerID;
+import edu.upenn.cis.orchestra.datamodel.IntType;
+import edu.upenn.cis.orchestra.datamodel.Peer;
+import edu.upenn.cis.orchestra.datamodel.PrimaryKey;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.StringType;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.reconciliation.ISchemaIDBinding;
+import edu.upenn.cis.orchestra.reconciliation.LocalSchemaIDBinding;
+
+/**
+ * The synthetic schema the benchmarks run over, and the data to fill it
+ * with. Relation <code>R(id, name, val, tag)</code> is keyed on
+ * <code>id</code>, and <code>S(id, ref, weight)</code> on <code>id</code>.
+ * All data comes from generators seeded with {@link #SEED}, so every run
+ * of a benchmark sees the same inputs.
+ * 
+ */
+final class SyntheticData {
+	static final long SEED = 20100615L;
+	static final String SCHEMA_NAME = "bench";
+
+	final Schema schema;
+	final Relation r;
+	final Relation s;
+	final Peer peer;
+	final List<AbstractPeerID> peerIDs;
+	final ISchemaIDBinding binding;
+
+	/**
+	 * Creates the schema, shared by <code>numPeers</code> peers.
+	 * 
+	 * @param numPeers the number of peers
+	 * @throws Exception
+	 */
+	SyntheticData(int numPeers) throws Exception {
+		schema = new Schema(SCHEMA_NAME);
+		r = schema.addRelation("R");
+		r.addCol("id", IntType.INT);
+		r.addCol("name", new StringType(true, true, true, 32));
+		r.addCol("val", IntType.INT);
+		r.addCol("tag", new StringType(true, true, true, 16));
+		r.setPrimaryKey(new PrimaryKey("pk", r, Collections.singleton("id")));
+		s = schema.addRelation("S");
+		s.addCol("id", IntType.INT);
+		s.addCol("ref", IntType.INT);
+		s.addCol("weight", IntType.INT);
+		s.setPrimaryKey(new PrimaryKey("pk", s, Collections.singleton("id")));
+		schema.markFinished();
+
+		peer = new Peer("0", "localhost", "Benchmark peer");
+		peer.addSchema(schema);
+
+		Map<AbstractPeerID, Schema> peerIDToSchema = newHashMap();
+		List<AbstractPeerID> ids = new ArrayList<AbstractPeerID>(numPeers);
+		for (int i = 0; i < numPeers; ++i) {
+			AbstractPeerID pid = new IntPeerID(i);
+			ids.add(pid);
+			peerIDToSchema.put(pid, schema);
+		}
+		peerIDs = Collections.unmodifiableList(ids);
+		binding = new LocalSchemaIDBinding(peerIDToSchema);
+	}
+
+	/**
+	 * @return a generator seeded with {@link #SEED}
+	 */
+	static Random newRandom() {
+		return new Random(SEED);
+	}
+
+	/**
+	 * Creates a read-only tuple of <code>R</code>.
+	 * 
+	 * @param random the generator for the non-key columns
+	 * @param id the key of the tuple
+	 * @return the tuple
+	 * @throws Exception
+	 */
+	Tuple newR(Random random, int id) throws Exception {
+		Tuple t = new Tuple(r);
+		t.set("id", id);
+		t.set("name", randomString(random, 8 + random.nextInt(24)));
+		t.set("val", random.nextInt(1000));
+		t.set("tag", randomString(random, 4));
+		t.setReadOnly();
+		return t;
+	}
+
+	/**
+	 * Creates <code>count</code> tuples of <code>R</code>, with keys drawn
+	 * from <code>[0, keyRange)</code>.
+	 * 
+	 * @param count the number of tuples
+	 * @param keyRange the number of distinct keys to draw from
+	 * @return the tuples
+	 * @throws Exception
+	 */
+	Tuple[] randomRs(int count, int keyRange) throws Exception {
+		Random random = newRandom();
+		Tuple[] tuples = new Tuple[count];
+		for (int i = 0; i < count; ++i) {
+			tuples[i] = newR(random, random.nextInt(keyRange));
+		}
+		return tuples;
+	}
+
+	private static String randomString(Random random, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; ++i) {
+			chars[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * @return the indices of the key columns of <code>R</code>
+	 */
+	int[] rKeyIndices() {
+		int[] indices = new int[r.getKeyCols().size()];
+		int i = 0;
+		for (int col : r.getKeyCols()) {
+			indices[i++] = col;
+		}
+		return indices;
+	}
+}
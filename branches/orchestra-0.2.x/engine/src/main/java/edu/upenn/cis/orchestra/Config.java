@@ -679,6 +679,388 @@ public class Config {
 	public static int getTransactionCutoff() {
 		return getInteger("transactionCutoff");
 	}
+
+	public static void setQueryFetchSize(int queryFetchSize) {
+		setInteger("queryFetchSize", queryFetchSize);
+	}
+
+	/**
+	 * Number of rows to fetch at a time when streaming query results
+	 * 
+	 * @return
+	 */
+	public static int getQueryFetchSize() {
+		return getInteger("queryFetchSize");
+	}
+
+	public static void setParallelQueryThreads(int parallelQueryThreads) {
+		setInteger("parallelQueryThreads", parallelQueryThreads);
+	}
+
+	/**
+	 * Number of unioned sub-queries of a rule set to evaluate concurrently,
+	 * each on its own connection. 1 evaluates them one after another on the
+	 * main connection.
+	 * 
+	 * @return
+	 */
+	public static int getParallelQueryThreads() {
+		return getInteger("parallelQueryThreads");
+	}
+
+	public static void setUnionedQueryRules(int unionedQueryRules) {
+		setInteger("unionedQueryRules", unionedQueryRules);
+	}
+
+	/**
+	 * Maximum number of rules to union in each statement when evaluating
+	 * a query over several rules
+	 * 
+	 * @return
+	 */
+	public static int getUnionedQueryRules() {
+		return getInteger("unionedQueryRules");
+	}
+
+	public static void setCompiledRuleCacheDir(String compiledRuleCacheDir) {
+		setProperty("compiledRuleCacheDir", compiledRuleCacheDir);
+	}
+
+	/**
+	 * Directory to cache delta rules in, keyed by a hash of
+	 * the catalog, or empty to always recompute them
+	 * 
+	 * @return
+	 */
+	public static String getCompiledRuleCacheDir() {
+		return getProperty("compiledRuleCacheDir");
+	}
+
+	public static void setBdbDeferredWrite(boolean bdbDeferredWrite) {
+		setBoolean("bdbDeferredWrite", bdbDeferredWrite);
+	}
+
+	/**
+	 * True to open the BerkeleyDB state store in deferred-write mode when its
+	 * environment is not transactional. Writes are then only durable once a
+	 * reconciliation has been written out, and are lost if the process
+	 * dies before that.
+	 * 
+	 * @return
+	 */
+	public static boolean getBdbDeferredWrite() {
+		return getBoolean("bdbDeferredWrite");
+	}
+
+	public static void setAdaptiveStatistics(boolean adaptiveStatistics) {
+		setBoolean("adaptiveStatistics", adaptiveStatistics);
+	}
+
+	/**
+	 * True to only refresh the statistics of tables which have changed enough
+	 * since they were last refreshed
+	 * 
+	 * @return
+	 */
+	public static boolean getAdaptiveStatistics() {
+		return getBoolean("adaptiveStatistics");
+	}
+
+	public static void setStatisticsChangeFraction(float statisticsChangeFraction) {
+		setFloat("statisticsChangeFraction", statisticsChangeFraction);
+	}
+
+	/**
+	 * Fraction of a table which has to change before its statistics are
+	 * refreshed, with adaptive statistics
+	 * 
+	 * @return
+	 */
+	public static float getStatisticsChangeFraction() {
+		return getFloat("statisticsChangeFraction");
+	}
+
+	public static void setStatisticsMinChangedRows(int statisticsMinChangedRows) {
+		setInteger("statisticsMinChangedRows", statisticsMinChangedRows);
+	}
+
+	/**
+	 * Number of rows of a table which have to change before its statistics
+	 * are refreshed, with adaptive statistics
+	 * 
+	 * @return
+	 */
+	public static int getStatisticsMinChangedRows() {
+		return getInteger("statisticsMinChangedRows");
+	}
+
+	public static void setBackgroundStatistics(boolean backgroundStatistics) {
+		setBoolean("backgroundStatistics", backgroundStatistics);
+	}
+
+	/**
+	 * True to refresh statistics on a separate connection without waiting for
+	 * them, with adaptive statistics
+	 * 
+	 * @return
+	 */
+	public static boolean getBackgroundStatistics() {
+		return getBoolean("backgroundStatistics");
+	}
+
+	public static void setCostBasedJoinOrder(boolean costBasedJoinOrder) {
+		setBoolean("costBasedJoinOrder", costBasedJoinOrder);
+	}
+
+	/**
+	 * True to order the joins of generated SQL by the catalog statistics of
+	 * the tables, rather than by the order of the rule body. Databases that
+	 * choose their own join order are told to follow it by a hint
+	 * 
+	 * @return
+	 */
+	public static boolean getCostBasedJoinOrder() {
+		return getBoolean("costBasedJoinOrder");
+	}
+
+	public static void setAnnotationCacheSize(int annotationCacheSize) {
+		setInteger("annotationCacheSize", annotationCacheSize);
+	}
+
+	/**
+	 * Number of evaluated rule sets to keep the combined value provenance
+	 * annotations of, or 0 to always recompute them
+	 * 
+	 * @return
+	 */
+	public static int getAnnotationCacheSize() {
+		return getInteger("annotationCacheSize");
+	}
+
+	public static void setAnnotationCacheTuples(int annotationCacheTuples) {
+		setInteger("annotationCacheTuples", annotationCacheTuples);
+	}
+
+	/**
+	 * Maximum number of tuples to keep the annotations of for one query;
+	 * the annotations of larger results are not cached
+	 * 
+	 * @return
+	 */
+	public static int getAnnotationCacheTuples() {
+		return getInteger("annotationCacheTuples");
+	}
+
+	public static void setStateSnapshotInterval(int stateSnapshotInterval) {
+		setInteger("stateSnapshotInterval", stateSnapshotInterval);
+	}
+
+	/**
+	 * Number of reconciliations between snapshots of a peer's state store,
+	 * or 0 to never take them
+	 * 
+	 * @return
+	 */
+	public static int getStateSnapshotInterval() {
+		return getInteger("stateSnapshotInterval");
+	}
+
+	public static void setStateSnapshotDir(String stateSnapshotDir) {
+		setProperty("stateSnapshotDir", stateSnapshotDir);
+	}
+
+	/**
+	 * Directory to keep state store snapshots in, or empty to never take
+	 * them
+	 * 
+	 * @return
+	 */
+	public static String getStateSnapshotDir() {
+		return getProperty("stateSnapshotDir");
+	}
+
+	public static void setReadViews(boolean readViews) {
+		setBoolean("readViews", readViews);
+	}
+
+	/**
+	 * Whether reads of a peer's state during a reconciliation are served
+	 * from the state as of its start, read from an earlier reconciliation in
+	 * the state store and the changes since it, rather than waiting for it
+	 * 
+	 * @return
+	 */
+	public static boolean getReadViews() {
+		return getBoolean("readViews");
+	}
+
+	public static void setExchangeReadAhead(int exchangeReadAhead) {
+		setInteger("exchangeReadAhead", exchangeReadAhead);
+	}
+
+	/**
+	 * Number of published transactions update exchange may read ahead of
+	 * those it is inserting, or 0 to read each one when it is inserted
+	 * 
+	 * @return
+	 */
+	public static int getExchangeReadAhead() {
+		return getInteger("exchangeReadAhead");
+	}
+
+	public static void setExchangeKeptUpdates(int exchangeKeptUpdates) {
+		setInteger("exchangeKeptUpdates", exchangeKeptUpdates);
+	}
+
+	/**
+	 * Number of fetched updates update exchange keeps in memory to accept
+	 * into the peer's state afterwards; the others are read from the update
+	 * store again
+	 * 
+	 * @return
+	 */
+	public static int getExchangeKeptUpdates() {
+		return getInteger("exchangeKeptUpdates");
+	}
+
+	public static void setMetricsJmx(boolean metricsJmx) {
+		setBoolean("metricsJmx", metricsJmx);
+	}
+
+	/**
+	 * Whether the engine's metrics are exported as JMX MBeans
+	 * 
+	 * @return
+	 */
+	public static boolean getMetricsJmx() {
+		return getBoolean("metricsJmx");
+	}
+
+	public static void setMetricsLogInterval(int metricsLogInterval) {
+		setInteger("metricsLogInterval", metricsLogInterval);
+	}
+
+	/**
+	 * Number of seconds between snapshots of the engine's metrics written to
+	 * the log, or 0 to not log them
+	 * 
+	 * @return
+	 */
+	public static int getMetricsLogInterval() {
+		return getInteger("metricsLogInterval");
+	}
+
+	public static void setAdviseIndexes(boolean adviseIndexes) {
+		setBoolean("adviseIndexes", adviseIndexes);
+	}
+
+	/**
+	 * Whether the indexes recommended for the join and filter columns of the
+	 * delta rules are logged when the tables are created
+	 * 
+	 * @return
+	 */
+	public static boolean getAdviseIndexes() {
+		return getBoolean("adviseIndexes");
+	}
+
+	public static void setCreateAdvisedIndexes(boolean createAdvisedIndexes) {
+		setBoolean("createAdvisedIndexes", createAdvisedIndexes);
+	}
+
+	/**
+	 * Whether the indexes recommended for the delta rules are also created
+	 * along with the tables, if {@link #getAdviseIndexes()}
+	 * 
+	 * @return
+	 */
+	public static boolean getCreateAdvisedIndexes() {
+		return getBoolean("createAdvisedIndexes");
+	}
+
+	public static void setSharedJoins(boolean sharedJoins) {
+		setBoolean("sharedJoins", sharedJoins);
+	}
+
+	/**
+	 * Whether joins of two tables appearing in several rules of a
+	 * non-recursive program are computed once before the program runs
+	 * 
+	 * @return
+	 */
+	public static boolean getSharedJoins() {
+		return getBoolean("sharedJoins");
+	}
+
+	public static void setCountingDeletion(boolean countingDeletion) {
+		setBoolean("countingDeletion", countingDeletion);
+	}
+
+	/**
+	 * Whether new engines propagate deletions by counting the derivations
+	 * left for the affected tuples, when the mappings are not recursive
+	 * 
+	 * @return
+	 */
+	public static boolean getCountingDeletion() {
+		return getBoolean("countingDeletion");
+	}
+
+	public static void setRuleProfileSize(int ruleProfileSize) {
+		setInteger("ruleProfileSize", ruleProfileSize);
+	}
+
+	/**
+	 * Number of recent executions of delta rules kept for the console's rule
+	 * profile, or 0 to not profile rules
+	 * 
+	 * @return
+	 */
+	public static int getRuleProfileSize() {
+		return getInteger("ruleProfileSize");
+	}
+
+	public static void setSlowRuleMillis(int slowRuleMillis) {
+		setInteger("slowRuleMillis", slowRuleMillis);
+	}
+
+	/**
+	 * Number of milliseconds after which a delta rule is written to the slow
+	 * rule log with its plan, or 0 to not log slow rules
+	 * 
+	 * @return
+	 */
+	public static int getSlowRuleMillis() {
+		return getInteger("slowRuleMillis");
+	}
+
+	public static void setExplainSlowRules(boolean explainSlowRules) {
+		setBoolean("explainSlowRules", explainSlowRules);
+	}
+
+	/**
+	 * Whether the slow rule log includes the plan of each statement, which
+	 * the database is asked for on a separate connection
+	 * 
+	 * @return
+	 */
+	public static boolean getExplainSlowRules() {
+		return getBoolean("explainSlowRules");
+	}
+
+	public static void setQueryResultLimit(int queryResultLimit) {
+		setInteger("queryResultLimit", queryResultLimit);
+	}
+
+	/**
+	 * Maximum number of results to display for an interactive query, or 0
+	 * for all of them
+	 * 
+	 * @return
+	 */
+	public static int getQueryResultLimit() {
+		return getInteger("queryResultLimit");
+	}
 	
 	public static void setRejectionTables(boolean rejectionTables) {
 		setBoolean("rejectionTables", rejectionTables);
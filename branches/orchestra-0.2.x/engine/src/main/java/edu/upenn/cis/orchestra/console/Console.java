@@ -24,7 +24,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.sql.SQLException;
@@ -58,16 +57,19 @@ import edu.upenn.cis.orchestra.datamodel.exceptions.RelationNotFoundException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.UnsupportedTypeException;
 import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
-import edu.upenn.cis.orchestra.datamodel.iterators.ResultSetIterator;
 import edu.upenn.cis.orchestra.dbms.IDb;
+import edu.upenn.cis.orchestra.dbms.RuleProfiler;
+import edu.upenn.cis.orchestra.dbms.sql.generation.IndexAdvisor;
 import edu.upenn.cis.orchestra.exchange.BasicEngine;
 import edu.upenn.cis.orchestra.exchange.flatfile.FileDb;
+import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
 import edu.upenn.cis.orchestra.mappings.Rule;
 import edu.upenn.cis.orchestra.provenance.ProvenanceRelation.ProvRelType;
 import edu.upenn.cis.orchestra.reconciliation.Db;
 import edu.upenn.cis.orchestra.reconciliation.DbException;
 import edu.upenn.cis.orchestra.reconciliation.Decision;
 import edu.upenn.cis.orchestra.reconciliation.USDump;
+import edu.upenn.cis.orchestra.reconciliation.USDumpReader;
 import edu.upenn.cis.orchestra.repository.dao.RepositorySchemaDAO;
 import edu.upenn.cis.orchestra.repository.dao.flatfile.FlatFileRepositoryDAO;
 
@@ -145,12 +147,18 @@ public class Console {
 
 
 			BasicEngine eng = getCatalog().getMappingEngine();
-			ResultSetIterator<Tuple> result = eng.evalQueryRule(r);
+			ResultIterator<Tuple> result = eng.evalQueryRule(r, Config.getQueryFetchSize(), Config.getQueryResultLimit());
 			int count = 0;
-			while (result != null && result.hasNext()) {
-				Tuple tuple = result.next();
-				m_out.println(tuple.toString());
-				count++;
+			try {
+				while (result != null && result.hasNext()) {
+					Tuple tuple = result.next();
+					m_out.println(tuple.toString());
+					count++;
+				}
+			} finally {
+				if (result != null) {
+					result.close();
+				}
 			}
 			m_out.println(count + " results total");
 		} catch (java.text.ParseException e) {
@@ -460,6 +468,50 @@ public class Console {
 					}
 				}
 			},
+			new BaseCommand("ruleProfile", "count?", "Print the delta rules with the most time in recent executions (\"clear\" to reset)") {
+				public void myExecute(Map<String,String> params) throws CommandException {
+					RuleProfiler profiler = RuleProfiler.getDefault();
+					if (profiler == null) {
+						throw new CommandException("Rule profiling is disabled (set ruleProfileSize)");
+					}
+					String count = params.get("count");
+					if ("clear".equals(count)) {
+						profiler.clear();
+					} else {
+						try {
+							m_out.print(profiler.format(count == null ? 20 : Integer.parseInt(count)));
+						} catch (NumberFormatException e) {
+							throw new CommandException("Invalid count: " + count);
+						}
+					}
+				}
+			},
+			new BaseCommand("indexAdvice", "action?", "Print the indexes recommended for the delta rules (\"create\" to create them, \"verify\" to compare rule times)") {
+				public void myExecute(Map<String,String> params) throws CommandException {
+					BasicEngine engine = getCatalog().getMappingEngine();
+					if (!(engine instanceof SqlEngine)) {
+						throw new CommandException("Index advice requires a SQL engine");
+					}
+					SqlEngine sqlEngine = (SqlEngine) engine;
+					IndexAdvisor advisor = sqlEngine.getIndexAdvisor();
+					String action = params.get("action");
+					if (action == null) {
+						for (String stmt : advisor.getCreateStatements(sqlEngine.getMappingDb(), Config.getAutocommit())) {
+							m_out.println(stmt);
+						}
+					} else if (action.equals("create")) {
+						m_out.println("Created " + advisor.createIndexes(sqlEngine.getMappingDb(), Config.getAutocommit()) + " indexes");
+					} else if (action.equals("verify")) {
+						RuleProfiler profiler = RuleProfiler.getDefault();
+						if (profiler == null) {
+							throw new CommandException("Rule profiling is disabled (set ruleProfileSize)");
+						}
+						m_out.print(advisor.verify(profiler));
+					} else {
+						throw new CommandException("Unknown action: " + action);
+					}
+				}
+			},
 			new BaseCommand("recompute", "", "Recompute delta rules") {
 				public void myExecute(Map<String,String> params) throws CommandException {
 					OrchestraSystem system = getCatalog();
@@ -472,6 +524,16 @@ public class Console {
 					}
 				}
 			},
+			new BaseCommand("recompile", "", "Recompile the rules after mappings changed, keeping unaffected delta rules") {
+				public void myExecute(Map<String,String> params) throws CommandException {
+					BasicEngine engine = getCatalog().getMappingEngine();
+					try {
+						m_out.println("Affected relations: " + engine.recompileMappings());
+					} catch (Exception e) {
+						throw new CommandException(e);
+					}
+				}
+			},
 			new BaseCommand("migrate", "", "Migrate tables to expanded schema") {
 				public void myExecute(Map<String,String> params) throws CommandException {
 					OrchestraSystem system = getCatalog();
@@ -953,12 +1015,7 @@ public class Console {
 					String file = args.get("file");
 
 					try {
-						USDump dump = getCatalog().dump(p);
-						FileOutputStream fos = new FileOutputStream(file);
-						ObjectOutputStream oos = new ObjectOutputStream(fos);
-						oos.writeObject(dump);
-						oos.close();
-						fos.close();
+						getCatalog().dump(p, new FileOutputStream(file));
 					} catch (DbException de) {
 						throw new CommandException(de);
 					} catch (IOException e) {
@@ -973,12 +1030,17 @@ public class Console {
 					Peer p = getCatalog().getPeer(peer);
 					String file = args.get("file");
 					try {
-						FileInputStream fis = new FileInputStream(file);
-						ObjectInputStream ois = new ObjectInputStream(fis);
-						USDump dump = (USDump) ois.readObject();
-						ois.close();
-						fis.close();
-						getCatalog().restore(dump);
+						if (USDumpReader.isDump(new File(file))) {
+							getCatalog().restore(new FileInputStream(file));
+						} else {
+							// Dump written by an older version
+							FileInputStream fis = new FileInputStream(file);
+							ObjectInputStream ois = new ObjectInputStream(fis);
+							USDump dump = (USDump) ois.readObject();
+							ois.close();
+							fis.close();
+							getCatalog().restore(dump);
+						}
 					} catch (IOException e) {
 						throw new CommandException(e);
 					} catch (DbException de) {
@@ -15,13 +15,17 @@
  */
 package edu.upenn.cis.orchestra.datalog;
 
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
 
 import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.Debug;
 import edu.upenn.cis.orchestra.dbms.IDb;
 import edu.upenn.cis.orchestra.dbms.SqlDb;
 import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.metrics.Counter;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 
 /**
  * 
@@ -29,6 +33,9 @@ import edu.upenn.cis.orchestra.mappings.Rule;
  *
  */
 public class DatalogEngine {
+	private static final Timer PROGRAM_TIMER = MetricsRegistry.getDefault().timer("exchange.datalog.program");
+	private static final Counter FIXPOINT_ITERATIONS = MetricsRegistry.getDefault().counter("exchange.datalog.fixpointIterations");
+
 	protected String slowestQuery;
 	protected long slowestQueryTime = 0;
 //	protected int globalIterCnt;
@@ -44,6 +51,7 @@ public class DatalogEngine {
 			IDb database){
 		_sql = database;
 //		globalIterCnt = 0;
+		MetricsRegistry.startFromConfig();
 	}
 	
 	
@@ -133,7 +141,7 @@ public class DatalogEngine {
 			
 			localRet = 0;
 			for (Datalog p: prog.getSequence()) {
-				Calendar before = Calendar.getInstance();
+				long before = System.nanoTime();
 				
 				if (p instanceof DatalogSequence) {
 					if(((DatalogSequence)p).count4fixpoint()){
@@ -144,20 +152,22 @@ public class DatalogEngine {
 					} else
 						evaluatePrograms((DatalogSequence)p, iterCnt, recomputeQueries);
 				} else if (p instanceof DatalogProgram) {
-					if(((DatalogProgram)p).count4fixpoint()) {
-						int num = evaluateProgram((DatalogProgram)p, iterCnt, recomputeQueries);
-						if(prog.isRecursive())
-							Debug.println("Recursive sequence - SUBPROGRAM RETURNED COUNT: " + num);
-						localRet += num;
-					} else
-						evaluateProgram((DatalogProgram)p, iterCnt, recomputeQueries);
+					for (DatalogProgram q : sharedJoinPrograms((DatalogProgram)p)) {
+						if(q.count4fixpoint()) {
+							int num = evaluateProgram(q, iterCnt, recomputeQueries);
+							if(prog.isRecursive())
+								Debug.println("Recursive sequence - SUBPROGRAM RETURNED COUNT: " + num);
+							localRet += num;
+						} else
+							evaluateProgram(q, iterCnt, recomputeQueries);
+					}
+					// Only programs are timed, so nested sequences are not counted twice
+					PROGRAM_TIMER.updateSince(before);
 				} else
 					throw new RuntimeException("Unexpected type in datalog sequence");
 				
-				Calendar after = Calendar.getInstance();
-
 				if(p.measureExecTime()){
-					long time = after.getTimeInMillis() - before.getTimeInMillis();
+					long time = (System.nanoTime() - before) / 1000000;
 					Debug.println("(SUB)PROGRAM EXECUTION TIME: " + time + " msec");
 				}
 				
@@ -174,6 +184,18 @@ public class DatalogEngine {
 	}
 	
 	
+	/**
+	 * @param prog a program of a sequence
+	 * @return the programs to evaluate in its place, which compute the joins
+	 *         its rules have in common once if {@link Config#getSharedJoins()}
+	 */
+	private List<DatalogProgram> sharedJoinPrograms(DatalogProgram prog) {
+		if (Config.getSharedJoins() && prog instanceof NonRecursiveDatalogProgram && _sql instanceof SqlDb) {
+			return ((SqlDb) _sql).getSharedJoinRewriter().rewrite(prog);
+		}
+		return Collections.singletonList(prog);
+	}
+
 	public int evaluateProgram(DatalogProgram prog, int iterCnt){
 		return evaluateProgram(prog, iterCnt, false);
 	}
@@ -218,6 +240,7 @@ public class DatalogEngine {
 		try {
 			do { 
 				iterCnt++;
+				FIXPOINT_ITERATIONS.inc();
 				num = evaluateProgramNoRecursion(prog, iterCnt, recomputeQueries);
 				/*
 				for (Object r : rules) {
@@ -32,6 +32,8 @@ import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.Debug;
 import edu.upenn.cis.orchestra.OrchestraUtil;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
+import edu.upenn.cis.orchestra.dbms.sql.generation.SqlRuleQuery;
+import edu.upenn.cis.orchestra.dbms.sql.generation.TableStatistics;
 import edu.upenn.cis.orchestra.exchange.RuleQuery;
 import edu.upenn.cis.orchestra.mappings.Rule;
 import edu.upenn.cis.orchestra.util.DomUtils;
@@ -47,6 +49,12 @@ public abstract class DatalogProgram extends Datalog {
 	String _queryString;
 	String _desc;
 	boolean preparedFlag = false;
+	/** The statistics the join orders of the statements were chosen with */
+	private int _planGeneration;
+	/** The programs evaluated in its place, see {@link SharedJoinRewriter} */
+	List<DatalogProgram> _sharedJoinPrograms;
+	/** The rewriter owning the tables of its shared joins */
+	SharedJoinRewriter _sharedJoinRewriter;
 
 	public List<Rule> _rules;
 	public Map<Rule, List<String>> _bodyTables;
@@ -244,10 +252,21 @@ public abstract class DatalogProgram extends Datalog {
 	public void initialize(RuleQuery q, int curIterCnt, boolean recomputeQueries) {
 //		For (unprepared) stratified we need to generate 
 //		different SQL queries for every fixpoint iteration
+		TableStatistics statistics = (q instanceof SqlRuleQuery) ? ((SqlRuleQuery) q).getTableStatistics() : null;
+		boolean replan = Config.getCostBasedJoinOrder() && statistics != null
+			&& _planGeneration != statistics.getPlanGeneration();
 		if(!recomputeQueries){
-			if (_stmts != null)
+			if (_stmts != null && !replan)
 				return;
 		}
+		if (_stmts != null && replan) {
+			// The statistics changed enough to choose different join orders
+			_stmts.cleanupPrepared();
+			preparedFlag = false;
+		}
+		if (statistics != null) {
+			_planGeneration = statistics.getPlanGeneration();
+		}
 		
 		StringBuffer qString = new StringBuffer();
 		List<List<Integer>> params = new ArrayList<List<Integer>>();
@@ -255,7 +274,7 @@ public abstract class DatalogProgram extends Datalog {
 		_bodyTables = getRulesBodyTables();
 		_headTables = getRulesHeadTables();
 		
-		List<String> qs = getQuery(curIterCnt, params);
+		List<String> qs = getQuery(curIterCnt, params, statistics);
 		
 		if(qs.size() != params.size()){
 			System.out.println("DIFFERENT NUM QUERIES VS. NUM PARAMS");
@@ -308,7 +327,7 @@ public abstract class DatalogProgram extends Datalog {
 		return result;
 	}
 	
-	public List<String> getQuery(int curIterCnt, List<List<Integer>> params) {
+	public List<String> getQuery(int curIterCnt, List<List<Integer>> params, TableStatistics statistics) {
 		List<String> queries = new ArrayList<String>();
 
 //		Debug.println("Query...");
@@ -327,7 +346,7 @@ public abstract class DatalogProgram extends Datalog {
 //				queries = rule.toUpdate();
 //			} else {
 //				queries = rule.toUpdate(queries, curIterCnt, preparedParams);
-				queries = rule.toUpdate(queries, curIterCnt, params);
+				queries = rule.toUpdate(queries, curIterCnt, params, statistics);
 //			}
 //			last = rule;
 //			params.add(preparedParams);
@@ -0,0 +1,570 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.datalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationContext;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.dbms.BuiltinFunctions;
+import edu.upenn.cis.orchestra.dbms.SqlDb;
+import edu.upenn.cis.orchestra.dbms.UDFunctions;
+import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.provenance.ProvenanceRelation;
+
+/**
+ * Evaluates joins shared by several rules of a non-recursive program only
+ * once. The delta rules of different mappings (and the different delta
+ * versions of a mapping) often join the same two tables on the same
+ * columns. Every join of two body atoms which appears, up to the names of
+ * the variables, in at least two rules of a program is materialized into a
+ * table by a program run just before it, and the rules read that table
+ * instead of joining the two atoms again. The table is cleared and refilled
+ * every time the program runs, so it follows the fixpoint iterations of an
+ * enclosing recursive sequence.
+ * <p>
+ * Only plain joins are shared: atoms which are negated, Skolem, built-in or
+ * UDF functions, which have labeled nulls, or which are written by the
+ * program itself are left alone, and nothing is shared with stratified
+ * evaluation.
+ * <p>
+ * Each database has its own rewriter, see {@link SqlDb#getSharedJoinRewriter()}.
+ * Programs with the same join share its table. A table is dropped once the
+ * last program reading it is {@link #release(DatalogProgram) released},
+ * which happens when the mappings are recompiled.
+ * 
+ */
+public class SharedJoinRewriter {
+	private static final Logger _log = LoggerFactory.getLogger(SharedJoinRewriter.class);
+
+	/** A pair of body atoms of a rule */
+	private static class Occurrence {
+		final int rule;
+		final int first;
+		final int second;
+		/** The variables of the pair in the order of the signature */
+		final List<String> vars;
+		RelationContext table;
+
+		Occurrence(int rule, int first, int second, List<String> vars) {
+			this.rule = rule;
+			this.first = first;
+			this.second = second;
+			this.vars = vars;
+		}
+	}
+
+	/** The table of a shared join, and the programs reading it */
+	private static class SharedTable {
+		final String sig;
+		final RelationContext table;
+		final Set<DatalogProgram> users = Collections.newSetFromMap(new IdentityHashMap<DatalogProgram, Boolean>());
+
+		SharedTable(String sig, RelationContext table) {
+			this.sig = sig;
+			this.table = table;
+		}
+	}
+
+	/** The database the tables of the shared joins are created in */
+	private final SqlDb _db;
+	/** The tables of the shared joins, by name */
+	private final Map<String, SharedTable> _tables = new HashMap<String, SharedTable>();
+
+	/**
+	 * @param db the database the programs run on, where the tables of the
+	 *            shared joins are created
+	 */
+	public SharedJoinRewriter(SqlDb db) {
+		_db = db;
+	}
+
+	/**
+	 * Returns the programs to evaluate in place of a program, rewriting it the
+	 * first time it is asked for.
+	 * 
+	 * @param prog a non-recursive program
+	 * @return a program materializing the shared joins followed by the
+	 *         rewritten program, or just {@code prog} if nothing is shared
+	 */
+	public List<DatalogProgram> rewrite(DatalogProgram prog) {
+		synchronized (prog) {
+			if (prog._sharedJoinPrograms == null) {
+				List<DatalogProgram> progs = null;
+				try {
+					progs = doRewrite(prog);
+				} catch (Exception e) {
+					_log.warn("Could not share the joins of " + prog._desc, e);
+				}
+				prog._sharedJoinPrograms = (progs == null) ? Collections.singletonList(prog) : progs;
+				prog._sharedJoinRewriter = this;
+			}
+			return prog._sharedJoinPrograms;
+		}
+	}
+
+	/**
+	 * @param prog a program
+	 * @return the programs evaluated in place of {@code prog}, or an empty list
+	 *         if it has not been rewritten
+	 */
+	public static List<DatalogProgram> getRewritten(DatalogProgram prog) {
+		synchronized (prog) {
+			if (prog._sharedJoinPrograms == null || prog._sharedJoinPrograms.get(0) == prog) {
+				return Collections.emptyList();
+			}
+			return prog._sharedJoinPrograms;
+		}
+	}
+
+	/**
+	 * Forgets the rewriting of a program which is no longer evaluated, and
+	 * drops the tables of its shared joins that no other program reads.
+	 * 
+	 * @param prog a program
+	 */
+	public static void release(DatalogProgram prog) {
+		SharedJoinRewriter rewriter;
+		synchronized (prog) {
+			rewriter = prog._sharedJoinRewriter;
+			prog._sharedJoinPrograms = null;
+			prog._sharedJoinRewriter = null;
+		}
+		if (rewriter != null) {
+			rewriter.releaseTables(prog);
+		}
+	}
+
+	private void releaseTables(DatalogProgram prog) {
+		List<SharedTable> unused = new ArrayList<SharedTable>();
+		synchronized (_tables) {
+			for (Iterator<SharedTable> it = _tables.values().iterator(); it.hasNext();) {
+				SharedTable t = it.next();
+				if (t.users.remove(prog) && t.users.isEmpty()) {
+					it.remove();
+					unused.add(t);
+				}
+			}
+		}
+		if (Config.getApply()) {
+			for (SharedTable t : unused) {
+				dropTable(t.table.getRelation());
+			}
+		}
+	}
+
+	private void dropTable(Relation rel) {
+		if (!_db.evaluate(_db.getSqlTranslator().dropTable(rel.getFullQualifiedDbId()))) {
+			_log.debug("Could not drop shared join table {}", rel.getFullQualifiedDbId());
+		}
+	}
+
+	private static boolean canShare(Rule r) {
+		return !r.clearNcopy() && !r.getDeleteFromHead() && !r.getHead().isNeg() && !r.getBody().isEmpty();
+	}
+
+	private static boolean canShare(Atom a, Set<String> written) {
+		if (a.isNeg() || a.isSkolem() || a.getDel() || BuiltinFunctions.isBuiltInAtom(a)) {
+			return false;
+		}
+		Relation rel = a.getRelation();
+		if (UDFunctions.isUDF(rel.getName()) || UDFunctions.isDependentRelation(rel) != null
+				|| rel.hasLabeledNulls() || rel.getField(ProvenanceRelation.MRULECOLNAME) != null
+				|| written.contains(a.toString3()) || a.getValues().size() != rel.getFields().size()) {
+			return false;
+		}
+		for (AtomArgument arg : a.getValues()) {
+			if (arg instanceof AtomVariable) {
+				AtomVariable v = (AtomVariable) arg;
+				if (v.isSkolem() || "-".equals(v.getName()) || "_".equals(v.getName())) {
+					return false;
+				}
+			} else if (!(arg instanceof AtomConst)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the arguments of an atom as variable names, or constants
+	 *         starting with {@code =}
+	 */
+	private static List<String> argNames(Atom a) {
+		List<String> args = new ArrayList<String>();
+		for (AtomArgument arg : a.getValues()) {
+			args.add((arg instanceof AtomConst) ? "=" + arg.toString() : arg.toString());
+		}
+		return args;
+	}
+
+	private static boolean sharesVariable(List<String> args1, List<String> args2) {
+		for (String a : args1) {
+			if (!a.startsWith("=") && args2.contains(a)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Describes the join of two atoms independently of the names of its
+	 * variables and of the order of the atoms.
+	 * 
+	 * @param table1 the table of the first atom
+	 * @param args1 the arguments of the first atom, variable names or
+	 *            constants starting with {@code =}
+	 * @param table2 the table of the second atom
+	 * @param args2 the arguments of the second atom
+	 * @return the signature of the join, or {@code null} if the atoms do not
+	 *         share a variable
+	 */
+	static String signature(String table1, List<String> args1, String table2, List<String> args2) {
+		if (!sharesVariable(args1, args2)) {
+			return null;
+		}
+		String sig1 = orderedSignature(table1, args1, table2, args2, new ArrayList<String>());
+		String sig2 = orderedSignature(table2, args2, table1, args1, new ArrayList<String>());
+		return (sig1.compareTo(sig2) <= 0) ? sig1 : sig2;
+	}
+
+	/**
+	 * Describes the join of two atoms, in that order, with their variables
+	 * numbered by first appearance.
+	 * 
+	 * @param vars filled with the variables in the order of their numbers
+	 */
+	private static String orderedSignature(String table1, List<String> args1, String table2, List<String> args2,
+			List<String> vars) {
+		StringBuilder sb = new StringBuilder();
+		appendAtom(sb, table1, args1, vars);
+		sb.append(',');
+		appendAtom(sb, table2, args2, vars);
+		return sb.toString();
+	}
+
+	private static void appendAtom(StringBuilder sb, String table, List<String> args, List<String> vars) {
+		sb.append(table).append('(');
+		for (int i = 0; i < args.size(); ++i) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			String a = args.get(i);
+			if (a.startsWith("=")) {
+				sb.append(a);
+			} else {
+				int v = vars.indexOf(a);
+				if (v < 0) {
+					v = vars.size();
+					vars.add(a);
+				}
+				sb.append('$').append(v);
+			}
+		}
+		sb.append(')');
+	}
+
+	/**
+	 * Whether reading the join of two atoms from a table, with every column
+	 * compared, compares the same columns as the rule did. Rules only compare
+	 * the key columns of the tables they read, so a variable which is in no
+	 * key column of the two atoms must not appear in an earlier atom, whose
+	 * column it would now be compared with.
+	 * 
+	 * @param body the body of a rule
+	 * @param i the position of the first atom of the join
+	 * @param j the position of the second atom of the join, after {@code i}
+	 */
+	private static boolean keepsComparisons(List<Atom> body, int i, int j) {
+		Set<String> keyVars = new HashSet<String>();
+		Set<String> vars = new HashSet<String>();
+		for (Atom a : new Atom[] { body.get(i), body.get(j) }) {
+			Relation rel = a.getRelation();
+			for (int k = 0; k < a.getValues().size(); ++k) {
+				AtomArgument arg = a.getValues().get(k);
+				if (arg instanceof AtomVariable) {
+					vars.add(arg.toString());
+					if (rel.getPrimaryKey() != null && rel.getPrimaryKey().getFields().contains(rel.getField(k))) {
+						keyVars.add(arg.toString());
+					}
+				}
+			}
+		}
+		vars.removeAll(keyVars);
+		for (int k = 0; k < i; ++k) {
+			for (AtomArgument arg : body.get(k).getValues()) {
+				if (arg instanceof AtomVariable && vars.contains(arg.toString())) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private List<DatalogProgram> doRewrite(DatalogProgram prog) throws Exception {
+		List<Rule> rules = prog.getRules();
+		if (Config.getStratified() || Config.getEdbbits() || rules.size() < 2) {
+			return null;
+		}
+		Set<String> written = new HashSet<String>();
+		for (Rule r : rules) {
+			written.add(r.getHead().toString3());
+		}
+
+		// The occurrences of every join of two atoms, by signature
+		Map<String, List<Occurrence>> joins = new LinkedHashMap<String, List<Occurrence>>();
+		for (int k = 0; k < rules.size(); ++k) {
+			Rule r = rules.get(k);
+			if (!canShare(r)) {
+				continue;
+			}
+			List<Atom> body = r.getBody();
+			for (int i = 0; i < body.size(); ++i) {
+				if (!canShare(body.get(i), written)) {
+					continue;
+				}
+				String table1 = body.get(i).toString3();
+				List<String> args1 = argNames(body.get(i));
+				for (int j = i + 1; j < body.size(); ++j) {
+					if (!canShare(body.get(j), written)) {
+						continue;
+					}
+					String table2 = body.get(j).toString3();
+					List<String> args2 = argNames(body.get(j));
+					if (!sharesVariable(args1, args2) || !keepsComparisons(body, i, j)) {
+						continue;
+					}
+					List<String> vars12 = new ArrayList<String>();
+					String sig12 = orderedSignature(table1, args1, table2, args2, vars12);
+					List<String> vars21 = new ArrayList<String>();
+					String sig21 = orderedSignature(table2, args2, table1, args1, vars21);
+					String sig = (sig12.compareTo(sig21) <= 0) ? sig12 : sig21;
+					Occurrence o = sig.equals(sig12) ? new Occurrence(k, i, j, vars12) : new Occurrence(k, j, i, vars21);
+					List<Occurrence> occ = joins.get(sig);
+					if (occ == null) {
+						occ = new ArrayList<Occurrence>();
+						joins.put(sig, occ);
+					}
+					occ.add(o);
+				}
+			}
+		}
+
+		// Share the joins appearing in the most rules first, using each atom
+		// in at most one shared join
+		List<Map.Entry<String, List<Occurrence>>> candidates = new ArrayList<Map.Entry<String, List<Occurrence>>>(
+				joins.entrySet());
+		Collections.sort(candidates, new Comparator<Map.Entry<String, List<Occurrence>>>() {
+			@Override
+			public int compare(Map.Entry<String, List<Occurrence>> e1, Map.Entry<String, List<Occurrence>> e2) {
+				return e2.getValue().size() - e1.getValue().size();
+			}
+		});
+		Map<Integer, Set<Integer>> used = new HashMap<Integer, Set<Integer>>();
+		Map<Integer, List<Occurrence>> byRule = new HashMap<Integer, List<Occurrence>>();
+		List<Rule> materialize = new ArrayList<Rule>();
+		for (Map.Entry<String, List<Occurrence>> e : candidates) {
+			List<Occurrence> chosen = new ArrayList<Occurrence>();
+			Set<Integer> chosenRules = new HashSet<Integer>();
+			for (Occurrence o : e.getValue()) {
+				Set<Integer> u = used.get(o.rule);
+				if ((u == null || (!u.contains(o.first) && !u.contains(o.second))) && chosenRules.add(o.rule)) {
+					chosen.add(o);
+				}
+			}
+			if (chosen.size() < 2) {
+				continue;
+			}
+			Occurrence first = chosen.get(0);
+			Rule r = rules.get(first.rule);
+			RelationContext table = createTable(prog, e.getKey(), r.getBody().get(first.first),
+					r.getBody().get(first.second), first.vars);
+			materialize.addAll(materializingRules(table, r, first));
+			for (Occurrence o : chosen) {
+				o.table = table;
+				Set<Integer> u = used.get(o.rule);
+				if (u == null) {
+					u = new HashSet<Integer>();
+					used.put(o.rule, u);
+				}
+				u.add(o.first);
+				u.add(o.second);
+				List<Occurrence> l = byRule.get(o.rule);
+				if (l == null) {
+					l = new ArrayList<Occurrence>();
+					byRule.put(o.rule, l);
+				}
+				l.add(o);
+			}
+		}
+		if (materialize.isEmpty()) {
+			return null;
+		}
+
+		List<Rule> rewritten = new ArrayList<Rule>(rules.size());
+		for (int k = 0; k < rules.size(); ++k) {
+			List<Occurrence> occ = byRule.get(k);
+			rewritten.add((occ == null) ? rules.get(k) : rewriteRule(rules.get(k), occ));
+		}
+		_log.info("Sharing {} joins among the rules of {}", materialize.size() / 2, prog._desc);
+
+		DatalogProgram mat = new NonRecursiveDatalogProgram(materialize, false, prog._desc + " (shared joins)");
+		DatalogProgram p = new NonRecursiveDatalogProgram(rewritten, prog.count4fixpoint(), prog._desc);
+		p.setMeasureExecTime(prog.measureExecTime());
+		List<DatalogProgram> progs = new ArrayList<DatalogProgram>(2);
+		progs.add(mat);
+		progs.add(p);
+		return progs;
+	}
+
+	/**
+	 * Returns the table holding a shared join for a program, creating it if no
+	 * other program reads the same join. It has a column for every variable of
+	 * the join, all of which are in its key, since a join of two tables can
+	 * yield rows that only differ outside their keys. Its name comes from the
+	 * hash of the signature, with a suffix if another join already has that
+	 * name; a table with that name left over from an earlier run is dropped
+	 * first.
+	 */
+	private RelationContext createTable(DatalogProgram prog, String sig, Atom a, Atom b, List<String> vars)
+			throws Exception {
+		synchronized (_tables) {
+			for (SharedTable t : _tables.values()) {
+				if (t.sig.equals(sig)) {
+					t.users.add(prog);
+					return t.table;
+				}
+			}
+			String hash = "SJ" + Integer.toHexString(sig.hashCode()).toUpperCase();
+			String name = hash;
+			for (int n = 1; _tables.containsKey(name); ++n) {
+				name = hash + "_" + n;
+			}
+			RelationContext table = createTable(name, sig, a, b, vars);
+			SharedTable t = new SharedTable(sig, table);
+			t.users.add(prog);
+			_tables.put(name, t);
+			return table;
+		}
+	}
+
+	private RelationContext createTable(String name, String sig, Atom a, Atom b, List<String> vars)
+			throws Exception {
+		Relation base = a.getRelation();
+		List<RelationField> fields = new ArrayList<RelationField>();
+		List<String> key = new ArrayList<String>();
+		for (int v = 0; v < vars.size(); ++v) {
+			RelationField field = null;
+			for (Atom x : new Atom[] { a, b }) {
+				List<AtomArgument> args = x.getValues();
+				for (int i = 0; i < args.size() && field == null; ++i) {
+					if (args.get(i) instanceof AtomVariable && vars.get(v).equals(args.get(i).toString())) {
+						field = x.getRelation().getField(i);
+					}
+				}
+			}
+			fields.add(new RelationField("C" + v, "", field.getType()));
+			key.add("C" + v);
+		}
+		Relation rel = new Relation(base.getDbCatalog(), base.getDbSchema(), name, name, "Shared join " + sig,
+				true, false, fields, name + "_PK", key);
+		if (Config.getApply()) {
+			if (_db.tableExists(rel.getDbSchema(), name)) {
+				dropTable(rel);
+			}
+			for (String stmt : _db.createSQLTableCode("", rel, false, true)) {
+				_db.evaluate(stmt);
+			}
+		}
+		return new RelationContext(rel, a.getSchema(), a.getPeer(), false);
+	}
+
+	private static List<AtomArgument> variables(List<String> names) {
+		List<AtomArgument> vars = new ArrayList<AtomArgument>(names.size());
+		for (String n : names) {
+			vars.add(new AtomVariable(n));
+		}
+		return vars;
+	}
+
+	/**
+	 * @return a rule clearing the table of a shared join and a rule filling
+	 *         it, from one of the rules in which the join appears
+	 */
+	private static List<Rule> materializingRules(RelationContext table, Rule r, Occurrence o) {
+		Atom clear = new Atom(table, variables(o.vars));
+		clear.negate();
+		List<Atom> body = new ArrayList<Atom>();
+		body.add(r.getBody().get(o.first));
+		body.add(r.getBody().get(o.second));
+		List<Rule> rules = new ArrayList<Rule>(2);
+		rules.add(new Rule(clear, new ArrayList<Atom>(), null, r.getBuiltInSchemas()));
+		rules.add(new Rule(new Atom(table, variables(o.vars)), body, r.getParentMapping(), r.onlyKeyAndNulls(),
+				r.getBuiltInSchemas()));
+		return rules;
+	}
+
+	/**
+	 * @return a copy of a rule reading the tables of shared joins in place
+	 *         of the joined atoms
+	 */
+	private static Rule rewriteRule(Rule r, List<Occurrence> occ) {
+		Map<Integer, Atom> replacements = new HashMap<Integer, Atom>();
+		Set<Integer> removed = new HashSet<Integer>();
+		for (Occurrence o : occ) {
+			replacements.put(Math.min(o.first, o.second), new Atom(o.table, variables(o.vars)));
+			removed.add(o.first);
+			removed.add(o.second);
+		}
+		List<Atom> body = new ArrayList<Atom>();
+		for (int i = 0; i < r.getBody().size(); ++i) {
+			if (replacements.containsKey(i)) {
+				body.add(replacements.get(i));
+			} else if (!removed.contains(i)) {
+				body.add(r.getBody().get(i));
+			}
+		}
+		Rule res = new Rule(r.getHead(), body, r.getParentMapping(), r.onlyKeyAndNulls(), r.getBuiltInSchemas());
+		if (r.replaceValsWithNullValues()) {
+			res.setReplaceValsWithNullValues();
+		}
+		if (r.isEdb()) {
+			res.setEdb();
+		}
+		res.setDistinct(r.isDistinct());
+		res.setProvenance(r.getProvenance());
+		return res;
+	}
+}
@@ -35,6 +35,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -76,6 +77,11 @@ import edu.upenn.cis.orchestra.datamodel.exceptions.NoLocalPeerException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.RelationNotFoundException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.UnknownRefFieldException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.UnsupportedTypeException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ConcatenatingIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.MappingIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultSetIterator;
 import edu.upenn.cis.orchestra.dbms.IDb;
 import edu.upenn.cis.orchestra.exchange.BasicEngine;
@@ -532,11 +538,12 @@ public class OrchestraSystem {
 		if (db == null) {
 			if (_tcs.get(name) != null
 					&& _tcs.get(name).get(schemaName) != null) {
-				db = new ClientCentricDb(_mapStore, schema, new StringPeerID(
+				db = new ClientCentricDb(getName(), _mapStore, schema, new StringPeerID(
 						name), _tcs.get(name).get(schemaName), _usf, _ssf);
 			} else {
-				db = new ClientCentricDb(_mapStore, schema, new StringPeerID(
-						name), _usf, _ssf);
+				StringPeerID pid = new StringPeerID(name);
+				db = new ClientCentricDb(getName(), _mapStore, schema, pid,
+						new TrustConditions(pid), _usf, _ssf);
 			}
 			_recDbs.put(name, db);
 			return db;
@@ -600,6 +607,36 @@ public class OrchestraSystem {
 		_usf.restoreUpdateStore(dump);
 	}
 
+	/**
+	 * Writes a dump of the update store to {@code out} a chunk at a time, in
+	 * the format of
+	 * {@link edu.upenn.cis.orchestra.reconciliation.USDumpWriter}.
+	 * 
+	 * @param p the peer whose schema to dump the update store with
+	 * @param out the stream to write the dump to, which is closed afterwards
+	 * @throws DbException
+	 */
+	public synchronized void dump(Peer p, OutputStream out) throws DbException {
+		for (Db db : _recDbs.values()) {
+			if (db.isConnected()) {
+				db.disconnect();
+			}
+		}
+
+		_usf.dumpUpdateStore(_mapStore, _schemas.get(p), out);
+	}
+
+	/**
+	 * Replaces the contents of the update store with a dump written by
+	 * {@link #dump(Peer, OutputStream)}, restoring it a chunk at a time.
+	 * 
+	 * @param in the stream to read the dump from, which is closed afterwards
+	 * @throws DbException
+	 */
+	public synchronized void restore(InputStream in) throws DbException {
+		_usf.restoreUpdateStore(_mapStore, in);
+	}
+
 	public synchronized void reset() throws Exception {
 		reset(true);
 	}
@@ -1171,6 +1208,95 @@ public class OrchestraSystem {
 
 	}
 
+	/**
+	 * Parses and unfolds a query like
+	 * {@link #runUnfoldedQuery(BufferedReader, boolean)}, but returns a lazily
+	 * evaluated iterator over its results.
+	 * 
+	 * @param source
+	 * @param provenanceQuery
+	 * @param fetchSize the number of rows to fetch from the database at a
+	 *            time, or <code>0</code> for the driver default
+	 * @param limit the maximum number of results, or <code>0</code> for all
+	 * @return an iterator over the results, which must be closed
+	 * @throws Exception
+	 */
+	public ResultIterator<Tuple> runUnfoldedQueryIterator(BufferedReader source,
+			boolean provenanceQuery, int fetchSize, int limit) throws Exception {
+		List<Rule> rules = unfoldQuery(source);
+
+		return runUnfoldedQueryIterator(rules, false, "", provenanceQuery,
+				fetchSize, limit);
+	}
+
+	/**
+	 * Executes an unfolded query like
+	 * {@link #runUnfoldedQuery(List, boolean, String, boolean, boolean)}, but
+	 * returns a forward-only iterator instead of a list of all results. The
+	 * queries are only evaluated as the results are consumed, and no more
+	 * than <code>limit</code> results are fetched from the database, so the
+	 * first results are available before the whole query has been evaluated.
+	 * 
+	 * @param rules
+	 * @param provenance
+	 * @param semiringName
+	 * @param provenanceQuery
+	 * @param fetchSize the number of rows to fetch from the database at a
+	 *            time, or <code>0</code> for the driver default
+	 * @param limit the maximum number of results, or <code>0</code> for all
+	 * @return an iterator over the results, which must be closed
+	 * @throws Exception
+	 */
+	public ResultIterator<Tuple> runUnfoldedQueryIterator(List<Rule> rules,
+			boolean provenance, String semiringName, boolean provenanceQuery,
+			final int fetchSize, int limit) throws Exception {
+		final BasicEngine eng = getMappingEngine();
+
+		if (!provenance) {
+			final Iterator<Rule> ruleIt = rules.iterator();
+			return new ConcatenatingIterator<Tuple>(limit) {
+				@Override
+				protected ResultIterator<Tuple> openNext(int remaining)
+						throws IteratorException {
+					if (!ruleIt.hasNext()) {
+						return null;
+					}
+					Rule r = ruleIt.next();
+					ResultIterator<Tuple> result;
+					try {
+						result = eng.evalQueryRule(r, fetchSize, remaining);
+					} catch (IteratorException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new IteratorException(e);
+					}
+					return (result == null) ? null : setOrigin(result, r
+							.getHead().getRelationContext());
+				}
+			};
+		} else {
+			ResultIterator<Tuple> result = eng.evalRuleSet(rules, semiringName,
+					provenanceQuery, fetchSize, limit);
+			if (result == null) {
+				return new ListIteratorResultIterator<Tuple>(
+						new ArrayList<Tuple>().listIterator());
+			}
+			return setOrigin(result, rules.get(0).getHead()
+					.getRelationContext());
+		}
+	}
+
+	private static ResultIterator<Tuple> setOrigin(
+			ResultIterator<Tuple> results, final RelationContext origin) {
+		return new MappingIterator<Tuple, Tuple>(results) {
+			@Override
+			protected Tuple convert(Tuple tuple) {
+				tuple.setOrigin(origin);
+				return tuple;
+			}
+		};
+	}
+
 	/**
 	 * Parses and runs a potentially-recursive query
 	 * 
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.datamodel.iterators;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A forward-only iterator over the concatenation of a sequence of
+ * sub-iterators which are only opened once the previous one has been
+ * exhausted. Each sub-iterator is closed as soon as it has been read
+ * completely, so at most one of them holds resources at a time.
+ * <p>
+ * An optional limit stops the iteration after that many elements. The
+ * number of elements still wanted is passed to {@link #openNext(int)} so that
+ * subclasses can push it down to the source, and no further sub-iterators are
+ * opened once it has been reached.
+ * 
+ * @param <T>
+ */
+public abstract class ConcatenatingIterator<T> implements ResultIterator<T> {
+	private final int limit;
+	private int returned = 0;
+	private ResultIterator<? extends T> current = null;
+	private boolean finished = false;
+
+	/**
+	 * @param limit the maximum number of elements to return, or a value
+	 *            <code>&lt;= 0</code> for no limit
+	 */
+	public ConcatenatingIterator(int limit) {
+		this.limit = limit;
+	}
+
+	public ConcatenatingIterator() {
+		this(0);
+	}
+
+	/**
+	 * Opens the next sub-iterator.
+	 * 
+	 * @param remaining the number of elements still wanted, or <code>0</code>
+	 *            if there is no limit
+	 * @return the next sub-iterator, or <code>null</code> if there are no more
+	 * @throws IteratorException
+	 */
+	protected abstract ResultIterator<? extends T> openNext(int remaining)
+			throws IteratorException;
+
+	public boolean hasNext() throws IteratorException {
+		if (finished) {
+			return false;
+		}
+		if (limit > 0 && returned >= limit) {
+			close();
+			return false;
+		}
+		while (current == null || !current.hasNext()) {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+			current = openNext(limit > 0 ? limit - returned : 0);
+			if (current == null) {
+				finished = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public T next() throws IteratorException, NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		++returned;
+		return current.next();
+	}
+
+	public boolean hasPrev() {
+		return false;
+	}
+
+	public T prev() throws NoSuchElementException {
+		throw new NoSuchElementException("Forward-only iterator");
+	}
+
+	/**
+	 * Returns the number of elements returned so far.
+	 * 
+	 * @return the number of elements returned so far
+	 */
+	public int getReturnedCount() {
+		return returned;
+	}
+
+	public void close() throws IteratorException {
+		finished = true;
+		if (current != null) {
+			ResultIterator<? extends T> toClose = current;
+			current = null;
+			toClose.close();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.datamodel.iterators;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.NoSuchElementException;
+
+/**
+ * A forward-only iterator over a JDBC <code>ResultSet</code>. Unlike
+ * {@link ResultSetIterator}, it does not require a scrollable result set, so
+ * the driver is free to stream rows in batches of the statement's fetch size
+ * instead of materializing the whole result on the client. Since rows are
+ * only ever read once, {@link #hasPrev()} is always <code>false</code>.
+ * <p>
+ * If a <code>Statement</code> is supplied, it is owned by the iterator and
+ * closed along with the result set.
+ * 
+ * @param <T>
+ * 
+ * @see ResultSetIterator
+ */
+public abstract class ForwardResultSetIterator<T> implements ResultIterator<T> {
+	protected final ResultSet rs;
+	private final Statement stmt;
+	private boolean advanced = false;
+	private boolean hasRow = false;
+	private boolean closed = false;
+
+	public ForwardResultSetIterator(ResultSet rs, Statement stmt) {
+		this.rs = rs;
+		this.stmt = stmt;
+	}
+
+	public ForwardResultSetIterator(ResultSet rs) {
+		this(rs, null);
+	}
+
+	public void close() throws IteratorException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			rs.close();
+			if (stmt != null) {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			throw new IteratorException("Error closing ResultSet", e);
+		}
+	}
+
+	public boolean hasNext() throws IteratorException {
+		if (closed) {
+			return false;
+		}
+		if (!advanced) {
+			try {
+				hasRow = rs.next();
+			} catch (SQLException e) {
+				throw new IteratorException(e);
+			}
+			advanced = true;
+		}
+		return hasRow;
+	}
+
+	public boolean hasPrev() {
+		return false;
+	}
+
+	public T next() throws IteratorException, NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		advanced = false;
+		return readCurrent();
+	}
+
+	public T prev() throws NoSuchElementException {
+		throw new NoSuchElementException("Forward-only iterator");
+	}
+
+	public abstract T readCurrent() throws IteratorException;
+}
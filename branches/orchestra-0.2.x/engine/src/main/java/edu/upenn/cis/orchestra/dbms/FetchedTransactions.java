@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.reconciliation.Db;
+import edu.upenn.cis.orchestra.reconciliation.UpdateStore.USException;
+
+/**
+ * The transactions fetched by update exchange, in the order they were read,
+ * to accept into the reconciliation state once the exchange has succeeded.
+ * The updates of the first transactions are kept, up to a maximum number of
+ * updates; those of later transactions are read from the update store again
+ * when they are accepted.
+ * 
+ */
+public class FetchedTransactions {
+	private final int _maxUpdates;
+	private final List<TxnPeerID> _txns = new ArrayList<TxnPeerID>();
+	private final Map<TxnPeerID, List<Update>> _updates = new HashMap<TxnPeerID, List<Update>>();
+	private int _kept = 0;
+	private boolean _onlyInsertions = true;
+
+	/**
+	 * @param maxUpdates the maximum number of updates to keep in memory
+	 */
+	public FetchedTransactions(int maxUpdates) {
+		_maxUpdates = maxUpdates;
+	}
+
+	/**
+	 * Records a fetched transaction.
+	 * 
+	 * @param txn the transaction
+	 * @param updates its updates
+	 */
+	void add(TxnPeerID txn, List<Update> updates) {
+		_txns.add(txn);
+		for (Update u : updates) {
+			if (!u.isInsertion()) {
+				_onlyInsertions = false;
+			}
+		}
+		if (_kept + updates.size() <= _maxUpdates) {
+			_updates.put(txn, updates);
+			_kept += updates.size();
+		}
+	}
+
+	/**
+	 * @return the fetched transactions, in the order they were read
+	 */
+	public List<TxnPeerID> getTransactions() {
+		return Collections.unmodifiableList(_txns);
+	}
+
+	/**
+	 * Returns the updates of a fetched transaction.
+	 * 
+	 * @param txn the transaction
+	 * @param db the update store to read them from if they were not kept
+	 * @return the updates
+	 * @throws USException
+	 */
+	public List<Update> getUpdates(TxnPeerID txn, Db db) throws USException {
+		List<Update> updates = _updates.get(txn);
+		return (updates == null) ? db.getTransaction(txn) : updates;
+	}
+
+	/**
+	 * @return true if the fetched transactions only insert tuples
+	 */
+	public boolean onlyInsertions() {
+		return _onlyInsertions;
+	}
+}
@@ -29,6 +29,7 @@ import edu.upenn.cis.orchestra.datamodel.Peer;
 import edu.upenn.cis.orchestra.datamodel.Relation;
 import edu.upenn.cis.orchestra.datamodel.Schema;
 import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultSetIterator;
 import edu.upenn.cis.orchestra.exchange.RuleQuery;
 import edu.upenn.cis.orchestra.mappings.Rule;
@@ -102,8 +103,17 @@ public interface IDb {
 	/** Evaluate a query and return results with iterator */
 	public ResultSetIterator<Tuple> evalQueryRule(Rule r) throws Exception;
 
+	/** Evaluate queries with a common head as unions and return results with a forward-only iterator */
+	public ResultIterator<Tuple> evalQueryRules(List<Rule> r) throws Exception;
+
 	/** Evaluate a query and return results with iterator */
 	public List<ResultSetIterator<Tuple>> evalRuleSet(List<Rule> r, String semiringName, boolean provenanceQuery) throws Exception;
+
+	/** Evaluate a query and return its results with a lazily evaluated, forward-only iterator */
+	public ResultIterator<Tuple> evalQueryRule(Rule r, int fetchSize, int limit) throws Exception;
+
+	/** Evaluate a set of queries and return all of their results with a lazily evaluated, forward-only iterator */
+	public ResultIterator<Tuple> evalRuleSet(List<Rule> r, String semiringName, boolean provenanceQuery, int fetchSize, int limit) throws Exception;
 	
 	/** Evaluate an update (insertion or deletion) and return count of tuples updated */
 	public int evalUpdateRule(Rule rule) throws SQLException;
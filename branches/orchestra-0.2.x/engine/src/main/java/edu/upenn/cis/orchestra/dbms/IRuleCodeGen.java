@@ -17,6 +17,8 @@ package edu.upenn.cis.orchestra.dbms;
 
 import java.util.List;
 
+import edu.upenn.cis.orchestra.dbms.sql.generation.TableStatistics;
+
 /**
  * Basic interface to DB-specific code generation
  * @author zives
@@ -29,5 +31,16 @@ public interface IRuleCodeGen {
 	
     public List<String> getCode(UPDATE_TYPE u, int curIterCnt);
 
-    public List<String> getCode(List<String> existing, UPDATE_TYPE u, int curIterCnt);
+    /**
+     * Adds the code of the rule to existing code, merging statements where
+     * possible.
+     * 
+     * @param existing the existing code
+     * @param u the kind of update
+     * @param curIterCnt the fixpoint iteration
+     * @param statistics the statistics of the database the code runs in,
+     *            by which joins are ordered, or <code>null</code>
+     * @return the combined code
+     */
+    public List<String> getCode(List<String> existing, UPDATE_TYPE u, int curIterCnt, TableStatistics statistics);
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+
+/**
+ * Runs a list of SQL queries over the same relation concurrently, each on a
+ * connection borrowed from a {@link QueryConnectionPool}, and merges their
+ * results into a single forward-only iterator. The worker threads hand over
+ * the decoded tuples through a bounded queue, so they block rather than
+ * buffer unboundedly when the consumer falls behind.
+ * <p>
+ * Results of different queries are interleaved in no particular order.
+ * Closing the iterator cancels the queries which are still running.
+ * 
+ */
+class ParallelQueryIterator implements ResultIterator<Tuple> {
+	private static final Logger _log = LoggerFactory
+			.getLogger(ParallelQueryIterator.class);
+
+	/** Marks the end of the results of one query */
+	private static final Object END = new Object();
+
+	/** Carries the failure of one query to the consumer */
+	private static class Failure {
+		final Exception cause;
+
+		Failure(Exception cause) {
+			this.cause = cause;
+		}
+	}
+
+	private final BlockingQueue<Object> _queue;
+	private final ExecutorService _executor;
+	private final QueryConnectionPool _pool;
+	private final Relation _relation;
+	private final int _fetchSize;
+	private final int _limit;
+	private final Set<Statement> _running = new HashSet<Statement>();
+	private volatile boolean _cancelled = false;
+	private int _pending;
+	private int _returned = 0;
+	private Tuple _next = null;
+
+	/**
+	 * Starts running the queries.
+	 * 
+	 * @param queries the SQL queries, which must all return tuples of
+	 *            <code>rel</code>
+	 * @param rel the relation to decode the results into
+	 * @param pool the pool to take connections from
+	 * @param threads the maximum number of queries to run at a time
+	 * @param queueSize the maximum number of tuples to buffer
+	 * @param fetchSize the JDBC fetch size, or <code>0</code> for the driver
+	 *            default
+	 * @param limit the maximum number of results, or <code>0</code> for all of
+	 *            them
+	 */
+	ParallelQueryIterator(List<String> queries, Relation rel,
+			QueryConnectionPool pool, int threads, int queueSize,
+			int fetchSize, int limit) {
+		_queue = new ArrayBlockingQueue<Object>(Math.max(queueSize, 1));
+		_pool = pool;
+		_relation = rel;
+		_fetchSize = fetchSize;
+		_limit = limit;
+		_pending = queries.size();
+		_executor = Executors.newFixedThreadPool(Math.max(1, Math.min(
+				threads, queries.size())), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ParallelQueryIterator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (final String query : queries) {
+			_executor.execute(new Runnable() {
+				public void run() {
+					runQuery(query);
+				}
+			});
+		}
+		_executor.shutdown();
+	}
+
+	private void runQuery(String query) {
+		Object last = END;
+		Connection con = null;
+		Statement s = null;
+		try {
+			if (_cancelled) {
+				return;
+			}
+			con = _pool.borrow();
+			s = con.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			synchronized (_running) {
+				_running.add(s);
+			}
+			if (Config.isMYSQL())
+				s.setFetchSize(Integer.MIN_VALUE);
+			else if (_fetchSize > 0)
+				s.setFetchSize(_fetchSize);
+			if (_limit > 0)
+				s.setMaxRows(_limit);
+			ResultSet rs = s.executeQuery(query);
+			SqlDb.TupleDecoder decoder = new SqlDb.TupleDecoder(rs, _relation);
+			while (!_cancelled && rs.next()) {
+				_queue.put(decoder.decode(rs));
+			}
+			rs.close();
+		} catch (InterruptedException e) {
+			// Cancelled by close()
+		} catch (Exception e) {
+			if (!_cancelled) {
+				_log.error("Error executing " + query, e);
+			}
+			last = new Failure(e);
+		} finally {
+			if (s != null) {
+				synchronized (_running) {
+					_running.remove(s);
+				}
+				try {
+					s.close();
+				} catch (SQLException e) {
+					_log.warn("Error closing statement", e);
+				}
+			}
+			if (con != null) {
+				_pool.release(con);
+			}
+		}
+		if (!_cancelled) {
+			try {
+				_queue.put(last);
+			} catch (InterruptedException e) {
+				// Cancelled by close()
+			}
+		}
+	}
+
+	public boolean hasNext() throws IteratorException {
+		if (_next != null) {
+			return true;
+		}
+		if (_limit > 0 && _returned >= _limit) {
+			close();
+		}
+		try {
+			while (_pending > 0 && !_cancelled) {
+				Object o = _queue.take();
+				if (o == END) {
+					--_pending;
+				} else if (o instanceof Failure) {
+					close();
+					throw new IteratorException(((Failure) o).cause);
+				} else {
+					_next = (Tuple) o;
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			close();
+			throw new IteratorException(e);
+		}
+		return false;
+	}
+
+	public Tuple next() throws IteratorException, NoSuchElementException {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Tuple t = _next;
+		_next = null;
+		++_returned;
+		return t;
+	}
+
+	public boolean hasPrev() {
+		return false;
+	}
+
+	public Tuple prev() throws NoSuchElementException {
+		throw new NoSuchElementException("Forward-only iterator");
+	}
+
+	public void close() throws IteratorException {
+		if (_cancelled) {
+			return;
+		}
+		_cancelled = true;
+		synchronized (_running) {
+			for (Statement s : _running) {
+				try {
+					s.cancel();
+				} catch (SQLException e) {
+					_log.warn("Error cancelling statement", e);
+				}
+			}
+		}
+		_executor.shutdownNow();
+		_queue.clear();
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.reconciliation.Db;
+import edu.upenn.cis.orchestra.reconciliation.DbException;
+
+/**
+ * Reads the transactions accepted in a range of reconciliations from a
+ * peer's update store, for update exchange. With a nonzero read-ahead
+ * the update store is read on a separate thread, which hands the
+ * transactions over through a bounded queue, so that reading the next
+ * transactions overlaps with inserting the previous ones into the local
+ * instance while the reader never gets more than that many transactions
+ * ahead. Otherwise each transaction is read on the caller's thread when it
+ * is requested.
+ * 
+ */
+class PublishedTransactionReader {
+	private static final Logger _log = LoggerFactory
+			.getLogger(PublishedTransactionReader.class);
+
+	/** A transaction and its updates */
+	static class Transaction {
+		final TxnPeerID txn;
+		final List<Update> updates;
+
+		Transaction(TxnPeerID txn, List<Update> updates) {
+			this.txn = txn;
+			this.updates = updates;
+		}
+	}
+
+	/** Marks the end of the transactions */
+	private static final Object END = new Object();
+
+	/** Carries the failure of the reader thread to the consumer */
+	private static class Failure {
+		final Exception cause;
+
+		Failure(Exception cause) {
+			this.cause = cause;
+		}
+	}
+
+	private final Db _db;
+	private final int _recno;
+	private final BlockingQueue<Object> _queue;
+	private final Thread _thread;
+	private volatile boolean _cancelled = false;
+	private boolean _finished = false;
+	// The next reconciliation to read the transactions of
+	private int _rec;
+	// The transactions of the reconciliation being read, or null
+	private ResultIterator<TxnPeerID> _txns = null;
+
+	/**
+	 * Prepares to read the transactions, and starts the reader thread if
+	 * there is one.
+	 * 
+	 * @param db the reconciliation database of the peer
+	 * @param lastrec the first reconciliation to read the transactions of
+	 * @param recno the last reconciliation to read the transactions of
+	 * @param depth the maximum number of transactions to read ahead, or
+	 *            <code>0</code> to read them on the caller's thread
+	 */
+	PublishedTransactionReader(Db db, int lastrec, int recno, int depth) {
+		_db = db;
+		_rec = lastrec;
+		_recno = recno;
+		if (depth > 0) {
+			_queue = new ArrayBlockingQueue<Object>(depth);
+			_thread = new Thread(new Runnable() {
+				public void run() {
+					readAll();
+				}
+			}, "PublishedTransactionReader");
+			_thread.setDaemon(true);
+			_thread.start();
+		} else {
+			_queue = null;
+			_thread = null;
+		}
+	}
+
+	private void readAll() {
+		Object last = END;
+		try {
+			for (Transaction t = read(); t != null && !_cancelled; t = read()) {
+				_queue.put(t);
+			}
+		} catch (InterruptedException e) {
+			// Cancelled by close()
+		} catch (Exception e) {
+			if (!_cancelled) {
+				_log.error("Error reading published transactions", e);
+			}
+			last = new Failure(e);
+		} finally {
+			try {
+				closeTxns();
+			} catch (IteratorException e) {
+				_log.warn("Error closing transaction iterator", e);
+			}
+		}
+		if (!_cancelled) {
+			try {
+				_queue.put(last);
+			} catch (InterruptedException e) {
+				// Cancelled by close()
+			}
+		}
+	}
+
+	/**
+	 * Reads the next transaction from the update store.
+	 * 
+	 * @return the transaction, or <code>null</code> after the last one
+	 * @throws DbException
+	 * @throws IteratorException
+	 */
+	private Transaction read() throws DbException, IteratorException {
+		while (true) {
+			if (_txns == null) {
+				if (_rec > _recno) {
+					return null;
+				}
+				_txns = _db.getTransactionsForReconciliation(_rec++);
+			}
+			if (_txns.hasNext()) {
+				TxnPeerID txn = _txns.next();
+				return new Transaction(txn, _db.getTransaction(txn));
+			}
+			closeTxns();
+		}
+	}
+
+	private void closeTxns() throws IteratorException {
+		if (_txns != null) {
+			ResultIterator<TxnPeerID> txns = _txns;
+			_txns = null;
+			txns.close();
+		}
+	}
+
+	/**
+	 * Gets the next transaction, waiting for the reader thread if there is
+	 * one.
+	 * 
+	 * @return the transaction, or <code>null</code> after the last one
+	 * @throws DbException
+	 * @throws IteratorException
+	 */
+	Transaction next() throws DbException, IteratorException {
+		if (_queue == null) {
+			return read();
+		}
+		if (_finished) {
+			return null;
+		}
+		Object o;
+		try {
+			o = _queue.take();
+		} catch (InterruptedException e) {
+			close();
+			throw new DbException(
+					"Interrupted while reading published transactions", e);
+		}
+		if (o == END) {
+			_finished = true;
+			return null;
+		} else if (o instanceof Failure) {
+			_finished = true;
+			Exception cause = ((Failure) o).cause;
+			if (cause instanceof DbException) {
+				throw (DbException) cause;
+			} else if (cause instanceof IteratorException) {
+				throw (IteratorException) cause;
+			}
+			throw new DbException("Error reading published transactions",
+					cause);
+		}
+		return (Transaction) o;
+	}
+
+	/**
+	 * Stops reading transactions, discarding any that have been read ahead.
+	 * 
+	 * @throws IteratorException
+	 */
+	void close() throws IteratorException {
+		if (_thread == null) {
+			closeTxns();
+		} else if (!_cancelled) {
+			_cancelled = true;
+			_thread.interrupt();
+			_queue.clear();
+		}
+	}
+}
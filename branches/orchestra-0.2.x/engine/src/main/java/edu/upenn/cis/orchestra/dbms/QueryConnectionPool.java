@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small pool of additional JDBC connections used to run read-only queries
+ * concurrently with each other. Connections are opened lazily and kept until
+ * the pool is closed.
+ * <p>
+ * Note that queries on these connections only see data which has been
+ * committed by the main connection of the owning {@code SqlDb}.
+ * 
+ */
+public class QueryConnectionPool {
+	private static final Logger _log = LoggerFactory
+			.getLogger(QueryConnectionPool.class);
+
+	private final SqlDb _db;
+	private final LinkedList<Connection> _idle = new LinkedList<Connection>();
+	private final List<Connection> _all = new ArrayList<Connection>();
+	private boolean _closed = false;
+
+	/**
+	 * Creates a pool of connections to the same database as {@code db}.
+	 * 
+	 * @param db
+	 */
+	public QueryConnectionPool(SqlDb db) {
+		_db = db;
+	}
+
+	/**
+	 * Returns an idle connection, opening a new one if there is none.
+	 * 
+	 * @return a connection, which must be given back with
+	 *         {@link #release(Connection)}
+	 * @throws SQLException
+	 */
+	public Connection borrow() throws SQLException {
+		synchronized (this) {
+			if (_closed) {
+				throw new SQLException("Connection pool has been closed");
+			}
+			if (!_idle.isEmpty()) {
+				return _idle.removeFirst();
+			}
+		}
+		Connection con = DriverManager.getConnection(_db.getServer(), _db
+				.getUsername(), _db.getPassword());
+		_db.setReadOnlyTransactions(con);
+		synchronized (this) {
+			_all.add(con);
+		}
+		return con;
+	}
+
+	/**
+	 * Gives back a connection obtained from {@link #borrow()}.
+	 * 
+	 * @param con
+	 */
+	public synchronized void release(Connection con) {
+		if (_closed) {
+			closeQuietly(con);
+		} else {
+			_idle.addLast(con);
+		}
+	}
+
+	/**
+	 * Closes all connections of this pool.
+	 */
+	public synchronized void close() {
+		_closed = true;
+		for (Connection con : _all) {
+			closeQuietly(con);
+		}
+		_all.clear();
+		_idle.clear();
+	}
+
+	private static void closeQuietly(Connection con) {
+		try {
+			con.close();
+		} catch (SQLException e) {
+			_log.warn("Error closing pooled connection", e);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.upenn.cis.orchestra.Config;
+
+/**
+ * Keeps a rolling table of the most recent executions of the statements
+ * generated for delta rules, with their time, number of affected rows and
+ * the mapping the rule was derived from, so that the expensive rules of an
+ * update exchange can be found from the console. Executions slower than a
+ * threshold are also written to the {@code RuleProfiler.slow} log, together
+ * with their SQL and, when the database can explain it, their plan.
+ * 
+ */
+public class RuleProfiler {
+	private static final Logger _slowLog = LoggerFactory.getLogger(RuleProfiler.class.getName() + ".slow");
+
+	/**
+	 * One execution of a rule's statement.
+	 */
+	public static class Execution {
+		private final long _time;
+		private final String _mappingId;
+		private final String _sql;
+		private final long _nanos;
+		private final int _rows;
+
+		Execution(long time, String mappingId, String sql, long nanos, int rows) {
+			_time = time;
+			_mappingId = mappingId;
+			_sql = sql;
+			_nanos = nanos;
+			_rows = rows;
+		}
+
+		/**
+		 * @return the time at which the execution finished, in milliseconds
+		 *         since the epoch
+		 */
+		public long getTime() {
+			return _time;
+		}
+
+		/**
+		 * @return the id of the mapping the rule was derived from, or
+		 *         {@code null} if it is not known
+		 */
+		public String getMappingId() {
+			return _mappingId;
+		}
+
+		public String getSql() {
+			return _sql;
+		}
+
+		public long getNanos() {
+			return _nanos;
+		}
+
+		public int getRows() {
+			return _rows;
+		}
+	}
+
+	/**
+	 * The executions of the same statement in the rolling table, added up.
+	 */
+	public static class Summary {
+		private final String _mappingId;
+		private final String _sql;
+		private int _count;
+		private long _totalNanos;
+		private long _maxNanos;
+		private long _rows;
+
+		Summary(String mappingId, String sql) {
+			_mappingId = mappingId;
+			_sql = sql;
+		}
+
+		void add(Execution e) {
+			++_count;
+			_totalNanos += e.getNanos();
+			_maxNanos = Math.max(_maxNanos, e.getNanos());
+			_rows += e.getRows();
+		}
+
+		public String getMappingId() {
+			return _mappingId;
+		}
+
+		public String getSql() {
+			return _sql;
+		}
+
+		public int getCount() {
+			return _count;
+		}
+
+		public long getTotalNanos() {
+			return _totalNanos;
+		}
+
+		public long getMaxNanos() {
+			return _maxNanos;
+		}
+
+		public long getRows() {
+			return _rows;
+		}
+	}
+
+	private static RuleProfiler _default;
+
+	private final int _capacity;
+	private final long _slowNanos;
+	private final LinkedList<Execution> _executions = new LinkedList<Execution>();
+
+	/**
+	 * @param capacity the number of executions kept in the rolling table
+	 * @param slowMillis executions taking at least this many milliseconds are
+	 *            logged as slow, or 0 to not log any
+	 */
+	public RuleProfiler(int capacity, long slowMillis) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		_capacity = capacity;
+		_slowNanos = slowMillis * 1000000L;
+	}
+
+	/**
+	 * Returns the profiler shared by all databases, created the first time
+	 * it is asked for from {@link Config}.
+	 * 
+	 * @return the shared profiler, or {@code null} if rule profiling is
+	 *         disabled
+	 */
+	public static synchronized RuleProfiler getDefault() {
+		if (_default == null && Config.getRuleProfileSize() > 0) {
+			_default = new RuleProfiler(Config.getRuleProfileSize(), Config.getSlowRuleMillis());
+		}
+		return _default;
+	}
+
+	/**
+	 * Records an execution of a rule's statement, dropping the oldest one if
+	 * the table is full.
+	 * 
+	 * @param mappingId the id of the mapping the rule was derived from, or
+	 *            {@code null}
+	 * @param sql the statement
+	 * @param nanos how long it took
+	 * @param rows the number of rows it inserted or deleted
+	 * @return {@code true} if the execution should be logged as slow
+	 */
+	public synchronized boolean record(String mappingId, String sql, long nanos, int rows) {
+		_executions.addLast(new Execution(System.currentTimeMillis(), mappingId, sql, nanos, rows));
+		if (_executions.size() > _capacity) {
+			_executions.removeFirst();
+		}
+		return isSlow(nanos);
+	}
+
+	/**
+	 * @param nanos the time taken by an execution
+	 * @return {@code true} if an execution this long should be logged as slow
+	 */
+	public boolean isSlow(long nanos) {
+		return _slowNanos > 0 && nanos >= _slowNanos;
+	}
+
+	/**
+	 * Writes a slow execution to the slow rule log.
+	 * 
+	 * @param mappingId the id of the mapping the rule was derived from, or
+	 *            {@code null}
+	 * @param sql the statement
+	 * @param nanos how long it took
+	 * @param rows the number of rows it affected
+	 * @param plan the plan of the statement, or {@code null} if the database
+	 *            could not explain it
+	 */
+	public void logSlow(String mappingId, String sql, long nanos, int rows, String plan) {
+		if (plan == null) {
+			_slowLog.warn("Rule from mapping {} took {} ms for {} rows:\n{}",
+					new Object[] { mappingId, nanos / 1000000, rows, sql });
+		} else {
+			_slowLog.warn("Rule from mapping {} took {} ms for {} rows:\n{}\nPlan:\n{}",
+					new Object[] { mappingId, nanos / 1000000, rows, sql, plan });
+		}
+	}
+
+	/**
+	 * @return the executions in the rolling table, oldest first
+	 */
+	public synchronized List<Execution> getExecutions() {
+		return new ArrayList<Execution>(_executions);
+	}
+
+	/**
+	 * Adds up the executions in the rolling table by statement.
+	 * 
+	 * @return a summary of each statement, the one with the largest total
+	 *         time first
+	 */
+	public List<Summary> summarize() {
+		Map<String, Summary> bySql = new HashMap<String, Summary>();
+		for (Execution e : getExecutions()) {
+			Summary s = bySql.get(e.getSql());
+			if (s == null) {
+				s = new Summary(e.getMappingId(), e.getSql());
+				bySql.put(e.getSql(), s);
+			}
+			s.add(e);
+		}
+		List<Summary> summaries = new ArrayList<Summary>(bySql.values());
+		Collections.sort(summaries, new Comparator<Summary>() {
+			@Override
+			public int compare(Summary s1, Summary s2) {
+				if (s1.getTotalNanos() == s2.getTotalNanos()) {
+					return 0;
+				}
+				return s1.getTotalNanos() > s2.getTotalNanos() ? -1 : 1;
+			}
+		});
+		return summaries;
+	}
+
+	/**
+	 * Formats the statements with the largest total time as a table.
+	 * 
+	 * @param limit the maximum number of statements to include
+	 * @return the table, one statement per line
+	 */
+	public String format(int limit) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-16s %6s %10s %10s %10s  %s%n", "mapping", "runs",
+				"total ms", "max ms", "rows", "sql"));
+		int i = 0;
+		for (Summary s : summarize()) {
+			if (i++ >= limit) {
+				break;
+			}
+			sb.append(String.format("%-16s %6d %10d %10d %10d  %s%n", s.getMappingId(), s.getCount(),
+					s.getTotalNanos() / 1000000, s.getMaxNanos() / 1000000, s.getRows(),
+					s.getSql().replaceAll("\\s+", " ")));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Empties the rolling table.
+	 */
+	public synchronized void clear() {
+		_executions.clear();
+	}
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.Atom.AtomType;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.deltaRules.DeltaRuleGen;
+import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.provenance.ProvenanceNode;
+
+/**
+ * Keeps the combined semiring annotations of recently evaluated rule sets,
+ * so that repeating an <code>EVALUATE</code> query does not recompute the
+ * annotation of every tuple from its derivations. Entries are keyed by the
+ * semiring, whether this is a provenance query and the generated SQL, since
+ * semirings with the same addition (e.g., trust and multiplicity) may share
+ * their SQL while combining annotations differently. They are evicted in
+ * least recently used order.
+ * <p>
+ * The results of a rule set are streamed to the caller as they are cached,
+ * and are only kept if they were read completely and have at most
+ * <code>maxTuples</code> tuples. After insertions, the cached annotations
+ * are maintained from the delta relations by
+ * {@link #applyInsertions(DeltaEvaluator)}; after any other update to the
+ * provenance relations {@link #invalidate()} must be called.
+ * 
+ */
+public class SemiringAnnotationCache {
+	/**
+	 * Rules with more body atoms that have delta relations than this are
+	 * not maintained, since each subset of these atoms needs a delta rule.
+	 */
+	static final int MAX_DELTA_ATOMS = 4;
+
+	private static final Logger _logger = LoggerFactory.getLogger(SemiringAnnotationCache.class);
+
+	private final int _maxEntries;
+	private final int _maxTuples;
+	private final Map<List<String>, Entry> _entries;
+	private long _generation = 0;
+	private long _hits = 0;
+	private long _misses = 0;
+
+	private static class Entry {
+		final String semiringName;
+		final boolean provenanceQuery;
+		final List<Rule> rules;
+		final Map<Tuple, String> annotations = new LinkedHashMap<Tuple, String>();
+
+		Entry(String semiringName, boolean provenanceQuery, List<Rule> rules) {
+			this.semiringName = semiringName;
+			this.provenanceQuery = provenanceQuery;
+			this.rules = rules;
+		}
+
+		void add(Tuple t, String annotation) {
+			String old = annotations.get(t);
+			annotations.put(t, (old == null) ? annotation : ProvenanceNode.plus(ProvenanceNode
+					.plusOp(semiringName), old, annotation));
+		}
+	}
+
+	/**
+	 * Evaluates the delta rules of a cached rule set over the delta
+	 * relations, during an exchange.
+	 */
+	public interface DeltaEvaluator {
+		/**
+		 * @param rules the delta rules, with a common head
+		 * @param semiringName the semiring used to annotate the results
+		 * @param provenanceQuery whether this is a provenance query
+		 * @return the new derivations, with their annotations combined per
+		 *         tuple
+		 * @throws Exception
+		 */
+		ResultIterator<Tuple> evaluate(List<Rule> rules, String semiringName,
+				boolean provenanceQuery) throws Exception;
+	}
+
+	/**
+	 * @param maxEntries the maximum number of rule sets to keep annotations
+	 *            for
+	 * @param maxTuples the maximum number of tuples to keep for one rule set
+	 */
+	public SemiringAnnotationCache(final int maxEntries, int maxTuples) {
+		_maxEntries = maxEntries;
+		_maxTuples = maxTuples;
+		_entries = new LinkedHashMap<List<String>, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<String>, Entry> eldest) {
+				return size() > _maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Builds the key of the annotations of a rule set.
+	 * 
+	 * @param semiringName the semiring used to annotate the results
+	 * @param provenanceQuery whether this is a provenance query
+	 * @param queries the SQL queries the rule set is evaluated with
+	 * @return the cache key
+	 */
+	private static List<String> key(String semiringName,
+			boolean provenanceQuery, List<String> queries) {
+		List<String> key = new ArrayList<String>(queries.size() + 2);
+		key.add(semiringName);
+		key.add(Boolean.toString(provenanceQuery));
+		key.addAll(queries);
+		return key;
+	}
+
+	/**
+	 * Returns the cached annotated tuples of a rule set.
+	 * 
+	 * @param semiringName the semiring used to annotate the results
+	 * @param provenanceQuery whether this is a provenance query
+	 * @param queries the SQL queries the rule set is evaluated with
+	 * @param limit the maximum number of results, or <code>0</code> for all
+	 *            of them
+	 * @return an iterator over copies of the cached tuples, or
+	 *         <code>null</code> if they are not cached
+	 */
+	public synchronized ResultIterator<Tuple> get(String semiringName,
+			boolean provenanceQuery, List<String> queries, int limit) {
+		Entry e = _entries.get(key(semiringName, provenanceQuery, queries));
+		if (e == null) {
+			++_misses;
+			return null;
+		}
+		++_hits;
+		int n = (limit > 0) ? Math.min(limit, e.annotations.size()) : e.annotations.size();
+		List<Tuple> copies = new ArrayList<Tuple>(n);
+		for (Map.Entry<Tuple, String> a : e.annotations.entrySet()) {
+			if (copies.size() == n) {
+				break;
+			}
+			Tuple t = a.getKey().duplicate();
+			t.setProvenance(a.getValue());
+			copies.add(t);
+		}
+		return new ListIteratorResultIterator<Tuple>(copies.listIterator());
+	}
+
+	/**
+	 * Streams <code>combined</code> to the caller, caching its tuples and
+	 * their annotations for the rule set evaluated by <code>queries</code>
+	 * once it has been read completely.
+	 * 
+	 * @param semiringName the semiring used to annotate the results
+	 * @param provenanceQuery whether this is a provenance query
+	 * @param queries the SQL queries the rule set is evaluated with
+	 * @param rules the rules of the rule set, to maintain its annotations
+	 * @param combined the annotated tuples, one per distinct tuple and at most
+	 *            <code>limit</code> of them
+	 * @param limit the maximum number of results, or <code>0</code> for all
+	 *            of them
+	 * @return an iterator over the tuples of <code>combined</code>
+	 */
+	public ResultIterator<Tuple> put(String semiringName,
+			boolean provenanceQuery, List<String> queries, List<Rule> rules,
+			ResultIterator<Tuple> combined, int limit) {
+		long generation;
+		synchronized (this) {
+			generation = _generation;
+		}
+		return new CachingIterator(key(semiringName, provenanceQuery, queries),
+				new Entry(semiringName, provenanceQuery, rules), generation, combined, limit);
+	}
+
+	/**
+	 * Adds the derivations of the tuples inserted by an exchange to the
+	 * cached annotations, while the inserted tuples are still in the delta
+	 * relations. Each rule is evaluated with every non-empty subset of its
+	 * body atoms reading the delta relation instead of the relation, which
+	 * finds each new derivation once. Rule sets this cannot be done for are
+	 * discarded: those whose semiring addition is not idempotent, since a
+	 * delta relation may repeat a tuple the relation already has, and those
+	 * with rules of more than {@link #MAX_DELTA_ATOMS} such atoms.
+	 * 
+	 * @param evaluator evaluates the delta rules
+	 */
+	public void applyInsertions(DeltaEvaluator evaluator) {
+		List<Map.Entry<List<String>, Entry>> entries;
+		synchronized (this) {
+			// Results still being read were computed before the insertions
+			++_generation;
+			entries = new ArrayList<Map.Entry<List<String>, Entry>>(_entries.entrySet());
+		}
+		for (Map.Entry<List<String>, Entry> cached : entries) {
+			Entry e = cached.getValue();
+			List<Rule> deltas = "SUM".equals(ProvenanceNode.plusOp(e.semiringName)) ? null
+					: insertionRules(e.rules);
+			Entry added = null;
+			if (deltas != null) {
+				try {
+					added = evaluateDeltas(evaluator, e, deltas);
+				} catch (Exception ex) {
+					_logger.warn("Error maintaining cached annotations, discarding them", ex);
+				}
+			}
+			synchronized (this) {
+				if (added == null) {
+					_entries.remove(cached.getKey());
+					continue;
+				}
+				for (Map.Entry<Tuple, String> a : added.annotations.entrySet()) {
+					e.add(a.getKey(), a.getValue());
+				}
+				if (e.annotations.size() > _maxTuples) {
+					_entries.remove(cached.getKey());
+				}
+			}
+		}
+	}
+
+	private Entry evaluateDeltas(DeltaEvaluator evaluator, Entry e, List<Rule> deltas)
+			throws Exception {
+		Entry added = new Entry(e.semiringName, e.provenanceQuery, e.rules);
+		ResultIterator<Tuple> it = evaluator.evaluate(deltas, e.semiringName, e.provenanceQuery);
+		try {
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				added.add(t.duplicate(), t.getProvenance());
+				if (added.annotations.size() > _maxTuples) {
+					return null;
+				}
+			}
+		} finally {
+			it.close();
+		}
+		return added;
+	}
+
+	/**
+	 * Builds the rules that find the new derivations of a rule set after
+	 * insertions, for each rule one per non-empty subset of the body atoms
+	 * that have delta relations.
+	 * 
+	 * @param rules the rule set
+	 * @return the delta rules, or <code>null</code> if a rule has too many
+	 *         atoms with delta relations
+	 */
+	static List<Rule> insertionRules(List<Rule> rules) {
+		List<Rule> deltas = new ArrayList<Rule>();
+		for (Rule r : rules) {
+			List<Integer> deltaAtoms = new ArrayList<Integer>();
+			for (int i = 0; i < r.getBody().size(); ++i) {
+				Atom a = r.getBody().get(i);
+				if (a.getType() == AtomType.NONE
+						&& DeltaRuleGen.hasDeltaRelationVersion(a, r.getBuiltInSchemas())) {
+					deltaAtoms.add(Integer.valueOf(i));
+				}
+			}
+			if (deltaAtoms.size() > MAX_DELTA_ATOMS) {
+				return null;
+			}
+			for (int subset = 1; subset < (1 << deltaAtoms.size()); ++subset) {
+				Rule delta = r.deepCopy();
+				for (int j = 0; j < deltaAtoms.size(); ++j) {
+					if ((subset & (1 << j)) != 0) {
+						delta.getBody().get(deltaAtoms.get(j).intValue()).setType(AtomType.INS);
+					}
+				}
+				deltas.add(delta);
+			}
+		}
+		return deltas;
+	}
+
+	/**
+	 * Discards all cached annotations, e.g., after updates have been applied
+	 * to the provenance relations.
+	 */
+	public synchronized void invalidate() {
+		++_generation;
+		_entries.clear();
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	/**
+	 * Passes the results of a rule set through, and caches them once they
+	 * have all been read, unless the cache has been invalidated or
+	 * maintained since they were computed.
+	 */
+	private class CachingIterator implements ResultIterator<Tuple> {
+		private final List<String> _key;
+		private final Entry _entry;
+		private final long _started;
+		private final ResultIterator<Tuple> _source;
+		private final int _limit;
+		private int _returned = 0;
+		private boolean _tooLarge = false;
+		private boolean _done = false;
+
+		CachingIterator(List<String> key, Entry entry, long started,
+				ResultIterator<Tuple> source, int limit) {
+			_key = key;
+			_entry = entry;
+			_started = started;
+			_source = source;
+			_limit = limit;
+		}
+
+		public boolean hasNext() throws IteratorException {
+			if (_done) {
+				return false;
+			}
+			if (_source.hasNext()) {
+				return true;
+			}
+			_done = true;
+			// With as many results as the limit, there may have been more
+			if (!_tooLarge && (_limit <= 0 || _returned < _limit)) {
+				synchronized (SemiringAnnotationCache.this) {
+					if (_generation == _started) {
+						_entries.put(_key, _entry);
+					}
+				}
+			}
+			return false;
+		}
+
+		public Tuple next() throws IteratorException, NoSuchElementException {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Tuple t = _source.next();
+			++_returned;
+			if (!_tooLarge) {
+				if (_entry.annotations.size() >= _maxTuples) {
+					_tooLarge = true;
+					_entry.annotations.clear();
+				} else {
+					_entry.add(t.duplicate(), t.getProvenance());
+				}
+			}
+			return t;
+		}
+
+		public boolean hasPrev() {
+			return false;
+		}
+
+		public Tuple prev() throws NoSuchElementException {
+			throw new NoSuchElementException("Forward-only iterator");
+		}
+
+		public void close() throws IteratorException {
+			_done = true;
+			_source.close();
+		}
+	}
+}
@@ -41,6 +41,9 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.sql.DataSource;
 
@@ -52,6 +55,7 @@ import org.w3c.dom.Element;
 
 import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.Debug;
+import edu.upenn.cis.orchestra.datalog.SharedJoinRewriter;
 import edu.upenn.cis.orchestra.datalog.atom.Atom;
 import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
 import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
@@ -74,17 +78,23 @@ import edu.upenn.cis.orchestra.datamodel.exceptions.DuplicateRelationIdException
 import edu.upenn.cis.orchestra.datamodel.exceptions.RelationNotFoundException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.UnsupportedTypeException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.ValueMismatchException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ConcatenatingIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.ForwardResultSetIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultSetIterator;
 import edu.upenn.cis.orchestra.dbms.sql.generation.ISqlStatementGen;
 import edu.upenn.cis.orchestra.dbms.sql.generation.RuleSqlGen;
 import edu.upenn.cis.orchestra.dbms.sql.generation.SqlRuleQuery;
 import edu.upenn.cis.orchestra.dbms.sql.generation.SqlStatementGenFactory;
+import edu.upenn.cis.orchestra.dbms.sql.generation.TableStatistics;
 import edu.upenn.cis.orchestra.exchange.RuleQuery;
 import edu.upenn.cis.orchestra.exchange.flatfile.FileDb;
 import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
 import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 import edu.upenn.cis.orchestra.provenance.ProvenanceNode;
 import edu.upenn.cis.orchestra.provenance.ProvenanceRelation;
 import edu.upenn.cis.orchestra.reconciliation.ClientCentricDb;
@@ -108,6 +118,7 @@ import edu.upenn.cis.orchestra.sql.ISqlExpression.Code;
  * 
  */
 public class SqlDb implements IDb {
+	private static final Timer STATEMENT_TIMER = MetricsRegistry.getDefault().timer("exchange.sql.statement");
 	private static final Method resultSetIsClosed;
 	static {
 		Method temp;
@@ -361,6 +372,16 @@ public class SqlDb implements IDb {
 	protected Connection _con;
 	protected Statement _stmt;
 	private HashMap<Statement, ResultSet> _statementResults;
+	private QueryConnectionPool _queryPool;
+	private SharedJoinRewriter _sharedJoinRewriter;
+	private SemiringAnnotationCache _annotationCache;
+	private StatisticsManager _statsManager;
+	private final TableStatistics _tableStatistics = new TableStatistics();
+	private ExecutorService _statsExecutor;
+	/** Tables to refresh in the background once the main connection commits */
+	private final Set<String> _deferredStats = new HashSet<String>();
+	/** The table modified by each statement of the current batch */
+	private final List<String> _batchStatements = new ArrayList<String>();
 
 	protected Runtime _rt = Runtime.getRuntime();
 
@@ -550,6 +571,7 @@ public class SqlDb implements IDb {
 			runStatsOnAllTables(_system);
 			_con.commit();
 			_ds.getConnection().commit();
+			startDeferredStats();
 			turnOffLoggingAndResetStats();
 		}
 	}
@@ -645,6 +667,17 @@ public class SqlDb implements IDb {
 	}
 
 	public void disconnect() {
+		synchronized (this) {
+			if (_queryPool != null) {
+				_queryPool.close();
+				_queryPool = null;
+			}
+			if (_statsExecutor != null) {
+				_statsExecutor.shutdownNow();
+				_statsExecutor = null;
+			}
+			_annotationCache = null;
+		}
 		if (Config.getApply() && _con != null) {
 			try {
 				_stmt.close();
@@ -691,15 +724,142 @@ public class SqlDb implements IDb {
 
 	public void runStatsOnTables(Collection<String> tables, boolean detailed)
 	{
+		StatisticsManager stats = getStatisticsManager();
+		if (stats != null) {
+			tables = stats.tablesToRefresh(tables);
+			if (tables.isEmpty()) {
+				return;
+			} else if (Config.getBackgroundStatistics()) {
+				deferStats(tables);
+				return;
+			}
+		}
 		try{
 			for(String table : tables){
+				long changes = (stats == null) ? 0 : stats.startRefresh(table);
 				updateTableStatistics(table, detailed);
+				if (stats != null)
+					stats.refreshed(table, changes);
 			}
 		}catch(SQLException e){
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Returns the manager deciding which table statistics need refreshing.
+	 * 
+	 * @return the statistics manager, or <code>null</code> if statistics are
+	 *         always refreshed
+	 */
+	public synchronized StatisticsManager getStatisticsManager() {
+		if (_statsManager == null && Config.getAdaptiveStatistics()) {
+			_statsManager = new StatisticsManager(Config.getStatisticsChangeFraction(),
+					Config.getStatisticsMinChangedRows(), _tableStatistics);
+		}
+		return _statsManager;
+	}
+
+	/**
+	 * Returns the cardinalities and distinct counts of the tables of this
+	 * database, by which the joins of the SQL generated for it are ordered.
+	 * 
+	 * @return the table statistics
+	 */
+	public TableStatistics getTableStatistics() {
+		return _tableStatistics;
+	}
+
+	/**
+	 * Schedules a background refresh of table statistics. The refresh runs
+	 * on a pooled connection, which only sees committed rows, so with
+	 * autocommit off it waits until the main connection has committed (see
+	 * {@link #startDeferredStats()}). This also keeps it from waiting on the
+	 * locks of the uncommitted transaction.
+	 * 
+	 * @param tables the tables to refresh
+	 */
+	private void deferStats(Collection<String> tables) {
+		synchronized (_deferredStats) {
+			_deferredStats.addAll(tables);
+		}
+		if (Config.getAutocommit()) {
+			startDeferredStats();
+		}
+	}
+
+	/**
+	 * Starts refreshing the statistics deferred by {@link #deferStats}, after
+	 * the main connection committed.
+	 */
+	private void startDeferredStats() {
+		List<String> tables;
+		synchronized (_deferredStats) {
+			if (_deferredStats.isEmpty()) {
+				return;
+			}
+			tables = new ArrayList<String>(_deferredStats);
+			_deferredStats.clear();
+		}
+		runStatsInBackground(tables, false);
+	}
+
+	/**
+	 * Refreshes table statistics on a pooled connection, so that update
+	 * exchange does not wait for them.
+	 */
+	private void runStatsInBackground(final Collection<String> tables, final boolean detailed) {
+		final StatisticsManager stats = getStatisticsManager();
+		final QueryConnectionPool pool = getQueryConnectionPool();
+		ExecutorService executor;
+		synchronized (this) {
+			if (_statsExecutor == null) {
+				_statsExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Statistics");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			executor = _statsExecutor;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				Connection con = null;
+				try {
+					con = pool.borrow();
+					Statement stmt = con.createStatement();
+					try {
+						for (String table : tables) {
+							// Changes made while refreshing are kept for the next refresh
+							long changes = stats.startRefresh(table);
+							String statement = getSqlTranslator().runStats(table, AtomType.NONE, detailed);
+							if (statement != null && Config.getApply()) {
+								stmt.execute(statement);
+							}
+							if (ordersJoins()) {
+								collectJoinStatistics(con, table);
+							}
+							stats.refreshed(table, changes);
+						}
+					} finally {
+						stmt.close();
+					}
+					if (!con.getAutoCommit()) {
+						con.commit();
+					}
+				} catch (SQLException e) {
+					Debug.println("Background statistics refresh failed: " + e.getMessage());
+				} finally {
+					if (con != null) {
+						pool.release(con);
+					}
+				}
+			}
+		});
+	}
+
 	public void runStatsOnAllTables(OrchestraSystem catalog)
 	{
 		//		The first misses on _L_*, _R_* ...
@@ -745,6 +905,7 @@ public class SqlDb implements IDb {
 				runStatsOnTables(tables, false);
 				if(!Config.getAutocommit()){ 
 					_con.commit();
+					startDeferredStats();
 					turnOffLoggingAndResetStats();
 				}
 				Calendar after = Calendar.getInstance();
@@ -763,6 +924,7 @@ public class SqlDb implements IDb {
 				runStatsOnAllTables(_system);
 				if(!Config.getAutocommit()){ 
 					_con.commit();
+					startDeferredStats();
 					turnOffLoggingAndResetStats();
 				}
 				Calendar after = Calendar.getInstance();
@@ -785,6 +947,7 @@ public class SqlDb implements IDb {
 				Calendar before = Calendar.getInstance();
 				runStatsOnAllTables(_system);
 				_con.commit();
+				startDeferredStats();
 				turnOffLoggingAndResetStats();
 				Calendar after = Calendar.getInstance();
 				time4CommitLogging += after.getTimeInMillis()
@@ -797,6 +960,19 @@ public class SqlDb implements IDb {
 		return false;
 	}
 
+	/**
+	 * Record the execution time of a statement in the statement timer
+	 * 
+	 * @param before the value of {@link System#nanoTime()} when the
+	 *            statement started
+	 * @return the execution time, in milliseconds
+	 */
+	private static long recordStatementTime(long before) {
+		long time = STATEMENT_TIMER.updateSince(before) / 1000000;
+		Debug.println("QUERY EXECUTION TIME: " + time + " msec");
+		return time;
+	}
+
 	protected void checkIfSlowest(long time, int queryCnt) {
 		if (slowestQueryTime < time) {
 			slowestQueryTime = time;
@@ -843,7 +1019,7 @@ public class SqlDb implements IDb {
 	public int evaluatePrepared(PreparedStatement stmt, int curIterCnt,
 			List<Integer> params) {
 		try {
-			Calendar before = Calendar.getInstance();
+			long before = System.nanoTime();
 
 			if (Config.getStratified()) {
 				if (params != null) {
@@ -857,10 +1033,7 @@ public class SqlDb implements IDb {
 
 			int num = stmt.executeUpdate();
 
-			Calendar after = Calendar.getInstance();
-			long time = after.getTimeInMillis() - before.getTimeInMillis();
-
-			Debug.println("QUERY EXECUTION TIME: " + time + " msec");
+			long time = recordStatementTime(before);
 
 			checkIfSlowest(time, totalQueryCnt);
 
@@ -885,7 +1058,7 @@ public class SqlDb implements IDb {
 	public int evaluateUpdate(String str) throws SQLException {
 		checkConnected();
 
-		Calendar before = Calendar.getInstance();
+		long before = System.nanoTime();
 		int num;
 		try {
 			_log.info(str);
@@ -895,33 +1068,74 @@ public class SqlDb implements IDb {
 			throw ex;
 		}
 
-		Calendar after = Calendar.getInstance();
-		long time = after.getTimeInMillis() - before.getTimeInMillis();
-
-		Debug.println("QUERY EXECUTION TIME: " + time + " msec");
+		long time = recordStatementTime(before);
 
 		checkIfSlowest(time, totalQueryCnt);
 
 		updateCounters(num);
 
+		recordModification(str, num);
+
 		commitIfNecessary();
 
 		return num;
 	}
 
+	/**
+	 * Records the rows modified by a statement, so that the statistics of the
+	 * modified table are refreshed once enough of it changed.
+	 * 
+	 * @param sql the statement
+	 * @param rows the number of rows it modified
+	 */
+	public void recordModification(String sql, int rows) {
+		StatisticsManager stats = getStatisticsManager();
+		if (stats != null) {
+			String table = getModifiedTable(sql);
+			if (table != null)
+				stats.recordChange(table, rows);
+		}
+	}
+
+	/**
+	 * Returns the table modified by an <code>INSERT</code>,
+	 * <code>DELETE</code> or <code>UPDATE</code> statement.
+	 * 
+	 * @param sql the statement
+	 * @return the name of the table, or <code>null</code> if the statement is
+	 *         not one of these
+	 */
+	static String getModifiedTable(String sql) {
+		String[] tokens = sql.trim().split("\\s+", 4);
+		if (tokens.length >= 3 && ("INSERT".equalsIgnoreCase(tokens[0]) && "INTO".equalsIgnoreCase(tokens[1])
+				|| "DELETE".equalsIgnoreCase(tokens[0]) && "FROM".equalsIgnoreCase(tokens[1]))) {
+			return stripColumnList(tokens[2]);
+		} else if (tokens.length >= 2 && "UPDATE".equalsIgnoreCase(tokens[0])) {
+			return tokens[1];
+		}
+		return null;
+	}
+
+	private static String stripColumnList(String table) {
+		int paren = table.indexOf('(');
+		return (paren < 0) ? table : table.substring(0, paren);
+	}
+
 	public void addToBatch(String str) throws Exception {
 		// We need to reset the batch if we have evaluated
 		// and then are adding more
 		if (didUpdate) {
 			_stmt.clearBatch();
+			_batchStatements.clear();
 			didUpdate = false;
 		}
 
 		_stmt.addBatch(str);
+		_batchStatements.add(str);
 	}
 
 	public int evaluateBatch() throws Exception {
-		Calendar before = Calendar.getInstance();
+		long before = System.nanoTime();
 		int num = 0;
 		int[] numbers = _stmt.executeBatch();
 
@@ -930,12 +1144,11 @@ public class SqlDb implements IDb {
 
 		for (int i = 0; i < numbers.length; i++) {
 			num += numbers[i];
+			if (i < _batchStatements.size())
+				recordModification(_batchStatements.get(i), numbers[i]);
 		}
 
-		Calendar after = Calendar.getInstance();
-		long time = after.getTimeInMillis() - before.getTimeInMillis();
-
-		Debug.println("QUERY EXECUTION TIME: " + time + " msec");
+		long time = recordStatementTime(before);
 
 		checkIfSlowest(time, totalQueryCnt);
 
@@ -981,6 +1194,103 @@ public class SqlDb implements IDb {
 		}
 	}
 
+	/**
+	 * @param schema the schema of the table, or {@code null} for any schema
+	 * @param table the name of the table
+	 * @return {@code true} if the table exists
+	 * @throws SQLException
+	 */
+	public boolean tableExists(String schema, String table) throws SQLException {
+		checkConnected();
+		ResultSet rs = _con.getMetaData().getTables(null, (schema == null) ? null : schema.toUpperCase(),
+				table.toUpperCase(), null);
+		try {
+			return rs.next();
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Asks the database for the plan of a statement, for the slow rule log,
+	 * if {@link Config#getExplainSlowRules()} is set. The plan is obtained on
+	 * a pooled connection, so that it is not part of the transaction of the
+	 * rules being run. HSQLDB returns its plan directly. DB2 writes it to the explain tables,
+	 * which must already exist (see {@code EXPLAIN.DDL} in the DB2
+	 * distribution), and it is read back as a list of operators with their
+	 * cost and the tables they read, like the operator section of
+	 * {@code db2exfmt}.
+	 * 
+	 * @param str a single statement
+	 * @return the plan, or {@code null} if plans are not wanted or the
+	 *         database cannot explain it
+	 */
+	public String explain(String str) {
+		if (!Config.getExplainSlowRules() || _con == null || !(Config.isHsql() || Config.isDB2())) {
+			return null;
+		}
+		QueryConnectionPool pool = getQueryConnectionPool();
+		StringBuilder plan = new StringBuilder();
+		Connection con = null;
+		Statement s = null;
+		try {
+			con = pool.borrow();
+			s = con.createStatement();
+			if (Config.isHsql()) {
+				ResultSet rs = s.executeQuery("EXPLAIN PLAN FOR " + str);
+				while (rs.next()) {
+					plan.append(rs.getString(1)).append('\n');
+				}
+				rs.close();
+			} else {
+				s.execute("EXPLAIN PLAN FOR " + str);
+				ResultSet rs = s.executeQuery("SELECT O.OPERATOR_ID, O.OPERATOR_TYPE, O.TOTAL_COST, "
+						+ "S.OBJECT_NAME, S.STREAM_COUNT FROM EXPLAIN_OPERATOR O "
+						+ "LEFT OUTER JOIN EXPLAIN_STREAM S ON S.EXPLAIN_TIME = O.EXPLAIN_TIME "
+						+ "AND S.TARGET_ID = O.OPERATOR_ID AND S.SOURCE_TYPE = 'D' "
+						+ "WHERE O.EXPLAIN_TIME = (SELECT MAX(EXPLAIN_TIME) FROM EXPLAIN_OPERATOR) "
+						+ "ORDER BY O.OPERATOR_ID");
+				while (rs.next()) {
+					plan.append(String.format("%4d %-8s cost=%.1f", rs.getInt(1),
+							rs.getString(2).trim(), rs.getDouble(3)));
+					String table = rs.getString(4);
+					if (table != null) {
+						plan.append(String.format(" %s rows=%.0f", table.trim(), rs.getDouble(5)));
+					}
+					plan.append('\n');
+				}
+				rs.close();
+			}
+			if (!con.getAutoCommit()) {
+				con.commit();
+			}
+		} catch (SQLException e) {
+			_logger.debug("Could not explain " + str, e);
+			if (con != null) {
+				try {
+					if (!con.getAutoCommit()) {
+						con.rollback();
+					}
+				} catch (SQLException e2) {
+					_logger.debug("Could not roll back explain", e2);
+				}
+			}
+			return null;
+		} finally {
+			if (s != null) {
+				try {
+					s.close();
+				} catch (SQLException e) {
+					_logger.debug("Could not close statement", e);
+				}
+			}
+			if (con != null) {
+				pool.release(con);
+			}
+		}
+		return plan.toString();
+	}
+
 	public boolean evaluateFromShell(String str, File dir, boolean createOrLoad) {
 		try {
 			String curDir = System.getProperty("user.dir");
@@ -1281,6 +1591,62 @@ public class SqlDb implements IDb {
 			Debug.println(statement);
 			//			statS.close();
 		}
+		if (ordersJoins()) {
+			collectJoinStatistics(_con, tableName);
+		}
+	}
+
+	/**
+	 * Whether the joins of generated SQL are ordered by table statistics.
+	 */
+	private boolean ordersJoins() {
+		return Config.getCostBasedJoinOrder() && Config.getApply();
+	}
+
+	/**
+	 * Records the cardinality of a table, and the number of distinct values
+	 * of each of its columns where the database keeps them, in
+	 * {@link #getTableStatistics()} for ordering the joins of generated SQL. The
+	 * numbers are read from the catalog statistics of the database rather
+	 * than computed from the table.
+	 * 
+	 * @param con the connection to use
+	 * @param tableName the fully qualified name of the table
+	 */
+	protected void collectJoinStatistics(Connection con, String tableName) {
+		ISqlStatementGen gen = getSqlTranslator();
+		Statement stmt = null;
+		try {
+			stmt = con.createStatement();
+			ResultSet rs = stmt.executeQuery(gen.tableCardinality(tableName));
+			if (rs.next()) {
+				long rows = rs.getLong(1);
+				if (!rs.wasNull() && rows >= 0) {
+					_tableStatistics.setCardinality(tableName, rows);
+				}
+			}
+			rs.close();
+			String columns = gen.columnCardinalities(tableName);
+			if (columns != null) {
+				rs = stmt.executeQuery(columns);
+				while (rs.next()) {
+					long distinct = rs.getLong(2);
+					if (!rs.wasNull() && distinct >= 0) {
+						_tableStatistics.setDistinctCount(tableName, rs.getString(1), distinct);
+					}
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			Debug.println("Unable to collect statistics for " + tableName + ": " + e.getMessage());
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+				}
+			}
+		}
 	}
 
 	public int importRelation(IDb source, Relation baseTable,
@@ -1544,7 +1910,11 @@ public class SqlDb implements IDb {
 		return new SqlDb(server, username, password, tables, schemas, catalog, builtInSchemas);
 	}
 
-	static class Result extends ResultSetIterator<Tuple> {
+	/**
+	 * Decodes the rows of a query result into {@code Tuple}s of a relation,
+	 * including labeled nulls and the provenance column if present.
+	 */
+	static class TupleDecoder {
 		protected Relation m_relation;
 		protected int[] m_labels; // m_labels[i] is index in result of null
 		// label column for i
@@ -1556,9 +1926,8 @@ public class SqlDb implements IDb {
 			return i + 1;
 		}
 
-		public Result(ResultSet rs, /* Abstract */Relation rel/* , Relation r */)
+		public TupleDecoder(ResultSet rs, /* Abstract */Relation rel/* , Relation r */)
 		throws SQLException {
-			super(rs);
 			/*
 			 * edu.upenn.cis.orchestra.datamodel.Schema schema = new
 			 * edu.upenn.cis.orchestra.datamodel.Schema(); try { m_relation =
@@ -1594,7 +1963,7 @@ public class SqlDb implements IDb {
 			m_provType = new StringType(true, true, true, 255);
 		}
 
-		public Tuple readCurrent() throws IteratorException {
+		public Tuple decode(ResultSet rs) throws IteratorException {
 			Tuple tup = new Tuple(m_relation);
 			int count = m_relation.getNumCols();
 			for (int i = 0; i < count; i++) {
@@ -1603,10 +1972,10 @@ public class SqlDb implements IDb {
 					int label = m_labels[i] != -1 ? rs
 							.getInt(oneBased(m_labels[i])) : 1;
 							if (label < 0) {
-								assert (type.getFromResultSet(this.rs, oneBased(i)) == null);
+								assert (type.getFromResultSet(rs, oneBased(i)) == null);
 								tup.setLabeledNull(i, label);
 							} else {
-								Object value = type.getFromResultSet(this.rs,
+								Object value = type.getFromResultSet(rs,
 										oneBased(i));
 								tup.set(i, value);
 							}
@@ -1619,7 +1988,7 @@ public class SqlDb implements IDb {
 			try {
 				if (m_hasProv)
 					tup.setProvenance((String) m_provType.getFromResultSet(
-							this.rs, this.rs.getMetaData().getColumnCount()));
+							rs, rs.getMetaData().getColumnCount()));
 			} catch (SQLException e) {
 				throw new IteratorException(e);
 			}
@@ -1627,6 +1996,37 @@ public class SqlDb implements IDb {
 		}
 	}
 
+	static class Result extends ResultSetIterator<Tuple> {
+		protected final TupleDecoder m_decoder;
+
+		public Result(ResultSet rs, Relation rel) throws SQLException {
+			super(rs);
+			m_decoder = new TupleDecoder(rs, rel);
+		}
+
+		public Tuple readCurrent() throws IteratorException {
+			return m_decoder.decode(this.rs);
+		}
+	}
+
+	/**
+	 * Forward-only counterpart of {@link Result}, which owns its statement so
+	 * that the driver can stream the rows and release them on close.
+	 */
+	static class StreamingResult extends ForwardResultSetIterator<Tuple> {
+		protected final TupleDecoder m_decoder;
+
+		public StreamingResult(ResultSet rs, Statement stmt, Relation rel)
+		throws SQLException {
+			super(rs, stmt);
+			m_decoder = new TupleDecoder(rs, rel);
+		}
+
+		public Tuple readCurrent() throws IteratorException {
+			return m_decoder.decode(this.rs);
+		}
+	}
+
 	protected void checkConnected() throws SQLException {
 		if (_con == null) {
 			throw new SQLException("Not connected to database");
@@ -1646,6 +2046,89 @@ public class SqlDb implements IDb {
 		return null;
 	}
 
+	/**
+	 * Evaluates query rules with a common head as the unions of their
+	 * queries, at most {@link Config#getUnionedQueryRules()} rules per
+	 * statement. The statements are run one after another on a connection
+	 * borrowed from the query connection pool, so that callers on other
+	 * threads do not share the main connection; the connection is returned
+	 * when the iterator is closed.
+	 * 
+	 * @param rules the rules to evaluate
+	 * @return an iterator over the results of all of the rules
+	 * @throws SQLException
+	 */
+	public ResultIterator<Tuple> evalQueryRules(List<Rule> rules)
+	throws SQLException {
+		if (Config.getApply() && !rules.isEmpty()) {
+			final List<String> queries = new ArrayList<String>();
+			int perQuery = Math.max(Config.getUnionedQueryRules(), 1);
+			for (int k = 0; k < rules.size(); k += perQuery) {
+				StringBuffer str = new StringBuffer();
+				for (Rule rule : rules.subList(k, Math.min(k + perQuery, rules.size()))) {
+					RuleSqlGen gen = new RuleSqlGen(rule, _builtins, false, true);
+					if (str.length() > 0)
+						str.append(" UNION ALL ");
+					str.append(gen.toQuery().toString());
+				}
+				queries.add(str.toString());
+			}
+			_log.debug("evalQueryRules: {} rules in {} queries", Integer.valueOf(rules.size()),
+					Integer.valueOf(queries.size()));
+			final Relation rel = rules.get(0).getHead().getRelation();
+			final int fetchSize = Config.getQueryFetchSize();
+			final QueryConnectionPool pool = getQueryConnectionPool();
+			final Iterator<String> queryIt = queries.iterator();
+			return new ConcatenatingIterator<Tuple>() {
+				private Connection con;
+
+				@Override
+				protected ResultIterator<Tuple> openNext(int remaining) throws IteratorException {
+					if (!queryIt.hasNext()) {
+						releaseConnection();
+						return null;
+					}
+					String str = queryIt.next();
+					try {
+						if (con == null) {
+							con = pool.borrow();
+						}
+						return evaluateStreamingQuery(con, str, rel, fetchSize, remaining);
+					} catch (SQLException e) {
+						releaseConnection();
+						throw new IteratorException("Error evaluating " + str, e);
+					}
+				}
+
+				@Override
+				public void close() throws IteratorException {
+					try {
+						super.close();
+					} finally {
+						releaseConnection();
+					}
+				}
+
+				private void releaseConnection() {
+					if (con == null) {
+						return;
+					}
+					try {
+						if (!con.getAutoCommit()) {
+							con.commit();
+						}
+					} catch (SQLException e) {
+						_logger.debug("Could not end query transaction", e);
+					} finally {
+						pool.release(con);
+						con = null;
+					}
+				}
+			};
+		}
+		return null;
+	}
+
 	public List<Rule> eliminateDuplicateRules(List<Rule> inRules){
 		Debug.println("Number of rules: " + inRules.size());
 		List<Rule> rules = new ArrayList<Rule>();
@@ -1678,120 +2161,7 @@ public class SqlDb implements IDb {
 		}
 
 		if (Config.getApply()) {
-
-			ISqlSelect q = null;
-
-			for(int k = 0 ; k < rules.size();){
-				int j = k;
-				String str = "";
-				for(; j < rules.size() && j < k + numUnionedQueries; j++){
-					Rule rule = rules.get(j);
-					Debug.println("Rule has " + rule.getBody().size() + " body atoms");
-//					Debug.println("evalRuleSet: " + rule.toString());
-
-//					RuleSqlGen gen = new RuleSqlGen(rule, _builtins, false, true);
-					RuleSqlGen gen = new RuleSqlGen(rule, _builtins, false, !provenanceQuery);
-					q = gen.toQuery();
-
-					if(str.length() > 0){
-						str = str + " UNION ALL ";
-					}
-					str = str + q.toString();
-				}
-				k = j;
-
-				List<ISqlSelectItem> s = q.getSelect();
-				StringBuffer sel = new StringBuffer();
-				StringBuffer grp = new StringBuffer();
-				int i = 0;
-				boolean firstSel = true;
-				boolean firstGrp = true;
-
-				for(i = 0; i < s.size()-1; i++){
-					if(s.get(i).getTable() != null){
-						//						String attr = s.get(i).getTable() + "." + s.get(i).getColumn();
-						//						String attr = s.get(i).getTable() + "." + s.get(i).getAlias();
-						String attr = "RRR." + s.get(i).getAlias();
-						String alias = s.get(i).getAlias();
-						if(!firstSel){
-							sel.append(", ");
-						}
-						if(!firstGrp){
-							grp.append(", ");
-						}
-
-						firstSel = false;
-						firstGrp = false;
-
-						sel.append(attr + " " + alias);
-						grp.append(attr);
-					}else{
-						//						String attr = s.get(i).getColumn();
-						String attr = "RRR." + s.get(i).getAlias();
-						String alias = s.get(i).getAlias();
-						if(!firstSel){
-							sel.append(", ");
-						}else{
-							firstSel = false;
-
-						}
-						//						Maybe I should skip these altogether?
-						sel.append(attr + " " + alias);
-
-						if(!firstGrp){
-							grp.append(", ");
-						}
-						firstGrp = false;
-
-						grp.append(alias);
-					}
-				}
-				String attr = s.get(i).getTable() + "." + s.get(i).getColumn();
-
-				String alias = s.get(i).getAlias();
-				if(s.get(i) != null && !s.get(i).toString().contains("PROV__")){
-					sel.append(", " + attr + " " + alias);
-					grp.append(", " + attr);
-				}
-				//				if(s.get(i).getTable() != null){
-				//				attr = s.get(i).getTable() + "." + s.get(i).getColumn();
-				//				if(!attr.contains("PROV__")){
-				//				sel.append(", " + attr + " " + alias);
-				//				grp.append(", " + attr);
-				//				}
-				//				}else{
-				//				attr = s.get(i).getColumn();
-				//				if(!attr.contains("PROV__")){
-				//				sel.append(", " + attr + " " + alias);
-				//				}
-				//				}
-				String grouped;
-				if(Config.getValueProvenance()){
-					String plusOp = "";
-					if(ProvenanceNode.TRUST_SEMIRING.equalsIgnoreCase(semiringName) ||
-							ProvenanceNode.TROPICAL_MAX_SEMIRING.equalsIgnoreCase(semiringName))
-						plusOp = "MAX";
-					else if(ProvenanceNode.RANK_SEMIRING.equalsIgnoreCase(semiringName) ||
-							ProvenanceNode.TROPICAL_MIN_SEMIRING.equalsIgnoreCase(semiringName))
-						plusOp = "MIN";
-					else if (ProvenanceNode.BAG_SEMIRING.equalsIgnoreCase(semiringName))
-						plusOp = "SUM";
-					else
-						plusOp = "SUM";
-
-					grouped = "SELECT " + sel + ", " + plusOp + "(PROV__) PROV__" 
-					+ " FROM (" + str+ ") AS RRR GROUP BY " + grp;
-				}else{
-					grouped = str;
-				}
-
-//				Debug.println("evalRuleSet: " + grouped);
-				//				Debug.println("Comparing running times");
-				//				Calendar bef1 = Calendar.getInstance();
-				//				ResultSet rs = evaluateQuery(grouped);
-				//				Calendar aft1 = Calendar.getInstance();
-				//				long time1 = aft1.getTimeInMillis() - bef1.getTimeInMillis();
-				//				Debug.println("TIME WITH AGGREGATE: " + time1);
+			for (String str : getRuleSetQueries(rules, semiringName, provenanceQuery)) {
 				Calendar bef2 = Calendar.getInstance();
 				try{
 					Debug.println("Query size (bytes): " + str.length());
@@ -1814,6 +2184,349 @@ public class SqlDb implements IDb {
 		return null;
 	}
 
+	/**
+	 * Evaluates a set of rules with a common head, like
+	 * {@link #evalRuleSet(List, String, boolean)}, but returns a single
+	 * forward-only iterator over all of their results. The unioned
+	 * sub-queries are only sent to the database once the results of the
+	 * previous one have been consumed, and their rows are fetched in batches
+	 * of <code>fetchSize</code> rather than materialized on the client.
+	 * 
+	 * @param inRules the rules to evaluate
+	 * @param semiringName the semiring used to annotate the results
+	 * @param provenanceQuery whether this is a provenance query
+	 * @param fetchSize the number of rows to fetch from the database at a
+	 *            time, or <code>0</code> for the driver default
+	 * @param limit the maximum number of results to return, or <code>0</code>
+	 *            for all of them
+	 * @return an iterator over the results, which must be closed by the
+	 *         caller
+	 * @throws SQLException
+	 */
+	public ResultIterator<Tuple> evalRuleSet(List<Rule> inRules, String semiringName, boolean provenanceQuery,
+			final int fetchSize, int limit) throws SQLException {
+		if (!Config.getApply()) {
+			return null;
+		}
+		checkConnected();
+		List<Rule> rules = eliminateDuplicateRules(inRules);
+		List<String> queries = getRuleSetQueries(rules, semiringName, provenanceQuery);
+		if (queries.isEmpty()) {
+			return new ListIteratorResultIterator<Tuple>(new ArrayList<Tuple>().listIterator());
+		}
+		final Relation rel = rules.get(0).getHead().getRelation();
+
+		// With value provenance, the single query already combines the
+		// derivations of each tuple. The combined annotations are kept for
+		// later evaluations of the same rules.
+		SemiringAnnotationCache cache = Config.getValueProvenance() ? getAnnotationCache() : null;
+		if (cache != null) {
+			ResultIterator<Tuple> cached = cache.get(semiringName, provenanceQuery, queries, limit);
+			if (cached != null) {
+				return cached;
+			}
+			return cache.put(semiringName, provenanceQuery, queries, rules,
+					buildRuleSetIterator(queries, rel, fetchSize, limit), limit);
+		}
+		return buildRuleSetIterator(queries, rel, fetchSize, limit);
+	}
+
+	/**
+	 * Returns an iterator over the results of the unioned sub-queries of a
+	 * rule set, evaluating them in parallel if configured to do so.
+	 */
+	private ResultIterator<Tuple> buildRuleSetIterator(List<String> queries, final Relation rel,
+			final int fetchSize, int limit) {
+		int threads = Config.getParallelQueryThreads();
+		if (threads > 1 && queries.size() > 1) {
+			Debug.println("Evaluating " + queries.size() + " queries with " + threads + " threads");
+			return new ParallelQueryIterator(queries, rel, getQueryConnectionPool(), threads,
+					threads * Math.max(fetchSize, 1), fetchSize, limit);
+		} else {
+			final Iterator<String> queryIt = queries.iterator();
+			return new ConcatenatingIterator<Tuple>(limit) {
+				@Override
+				protected ResultIterator<Tuple> openNext(int remaining) throws IteratorException {
+					if (!queryIt.hasNext()) {
+						return null;
+					}
+					String str = queryIt.next();
+					try {
+						return evaluateStreamingQuery(str, rel, fetchSize, remaining);
+					} catch (SQLException e) {
+						throw new IteratorException("Error evaluating " + str, e);
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Returns the pool of extra connections used to evaluate queries in
+	 * parallel, creating it if necessary.
+	 * 
+	 * @return the connection pool
+	 */
+	protected synchronized QueryConnectionPool getQueryConnectionPool() {
+		if (_queryPool == null) {
+			_queryPool = new QueryConnectionPool(this);
+		}
+		return _queryPool;
+	}
+
+	/**
+	 * Returns the rewriter sharing the joins of the programs evaluated on
+	 * this database, which keeps track of the tables of the shared joins,
+	 * creating it if necessary.
+	 * 
+	 * @return the shared join rewriter
+	 */
+	public synchronized SharedJoinRewriter getSharedJoinRewriter() {
+		if (_sharedJoinRewriter == null) {
+			_sharedJoinRewriter = new SharedJoinRewriter(this);
+		}
+		return _sharedJoinRewriter;
+	}
+
+	/**
+	 * Returns the cache of combined semiring annotations, creating it if
+	 * necessary.
+	 * 
+	 * @return the annotation cache, or <code>null</code> if annotations are
+	 *         not cached
+	 */
+	protected synchronized SemiringAnnotationCache getAnnotationCache() {
+		if (_annotationCache == null && Config.getAnnotationCacheSize() > 0) {
+			_annotationCache = new SemiringAnnotationCache(Config.getAnnotationCacheSize(),
+					Config.getAnnotationCacheTuples());
+		}
+		return _annotationCache;
+	}
+
+	/**
+	 * Discards the cached semiring annotations of previously evaluated rule
+	 * sets. This must be called whenever the provenance relations are
+	 * updated.
+	 */
+	public synchronized void invalidateAnnotations() {
+		if (_annotationCache != null) {
+			_annotationCache.invalidate();
+		}
+	}
+
+	/**
+	 * Adds the derivations of the tuples inserted by an exchange to the
+	 * cached semiring annotations. This must be called while the inserted
+	 * tuples are still in the delta relations, before they are applied to
+	 * the relations, and only if nothing else has changed.
+	 */
+	public void maintainAnnotations() {
+		SemiringAnnotationCache cache;
+		synchronized (this) {
+			cache = _annotationCache;
+		}
+		if (cache == null) {
+			return;
+		}
+		cache.applyInsertions(new SemiringAnnotationCache.DeltaEvaluator() {
+			public ResultIterator<Tuple> evaluate(List<Rule> rules, String semiringName,
+					boolean provenanceQuery) {
+				List<String> queries = getRuleSetQueries(rules, semiringName, provenanceQuery);
+				return buildRuleSetIterator(queries, rules.get(0).getHead().getRelation(),
+						Config.getQueryFetchSize(), 0);
+			}
+		});
+	}
+
+	/**
+	 * Evaluates a query rule, like {@link #evalQueryRule(Rule)}, but returns a
+	 * forward-only iterator which fetches rows in batches of
+	 * <code>fetchSize</code> and stops after <code>limit</code> results.
+	 * 
+	 * @param rule the rule to evaluate
+	 * @param fetchSize the number of rows to fetch from the database at a
+	 *            time, or <code>0</code> for the driver default
+	 * @param limit the maximum number of results to return, or <code>0</code>
+	 *            for all of them
+	 * @return an iterator over the results, which must be closed by the
+	 *         caller
+	 * @throws SQLException
+	 */
+	public ResultIterator<Tuple> evalQueryRule(Rule rule, int fetchSize, int limit)
+	throws SQLException {
+		if (Config.getApply()) {
+			checkConnected();
+			RuleSqlGen gen = new RuleSqlGen(rule, _builtins, false, true);
+			String str = gen.toQuery().toString();
+			_log.debug("evalQueryRule: {} -> {}", rule, str);
+			return evaluateStreamingQuery(str, rule.getHead().getRelation(), fetchSize, limit);
+		}
+		return null;
+	}
+
+	/**
+	 * Runs a query on a new forward-only statement, which is closed along
+	 * with the returned iterator. A positive <code>maxRows</code> is pushed
+	 * down to the driver so that it can stop producing rows early.
+	 * 
+	 * @param str the SQL query
+	 * @param rel the relation to decode the results into
+	 * @param fetchSize the JDBC fetch size, or <code>0</code> for the driver
+	 *            default
+	 * @param maxRows the maximum number of rows, or <code>0</code> for no
+	 *            limit
+	 * @return an iterator over the results
+	 * @throws SQLException
+	 */
+	protected ResultIterator<Tuple> evaluateStreamingQuery(String str, Relation rel, int fetchSize,
+			int maxRows) throws SQLException {
+		return evaluateStreamingQuery(_con, str, rel, fetchSize, maxRows);
+	}
+
+	/**
+	 * Runs a query as {@link #evaluateStreamingQuery(String, Relation, int, int)}
+	 * does, on the given connection.
+	 */
+	private ResultIterator<Tuple> evaluateStreamingQuery(Connection con, String str, Relation rel,
+			int fetchSize, int maxRows) throws SQLException {
+		_log.debug("Streaming query: {}", str);
+		Statement s = con.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+		try {
+			if (Config.isMYSQL())
+				s.setFetchSize(Integer.MIN_VALUE);
+			else if (fetchSize > 0)
+				s.setFetchSize(fetchSize);
+			if (maxRows > 0)
+				s.setMaxRows(maxRows);
+			ResultSet rs = s.executeQuery(str);
+			return new StreamingResult(rs, s, rel);
+		} catch (SQLException sqle) {
+			_logger.error("SQL Exception evaluating: " + str, sqle);
+			s.close();
+			throw sqle;
+		}
+	}
+
+	/**
+	 * Generates the SQL for a set of rules with a common head, as
+	 * <code>UNION ALL</code> queries of at most {@link #numUnionedQueries}
+	 * rules each. With value provenance, a single query unions all of the
+	 * rules and combines the annotations of the derivations of a tuple with
+	 * the semiring addition, since the derivations of a tuple can come from
+	 * any of them.
+	 * 
+	 * @param rules the rules, without duplicates
+	 * @param semiringName the semiring used to annotate the results
+	 * @param provenanceQuery whether this is a provenance query
+	 * @return the SQL queries, in rule order
+	 */
+	protected List<String> getRuleSetQueries(List<Rule> rules, String semiringName, boolean provenanceQuery) {
+		List<String> queries = new ArrayList<String>();
+
+		ISqlSelect q = null;
+
+		int perQuery = Config.getValueProvenance() ? rules.size() : numUnionedQueries;
+		for(int k = 0 ; k < rules.size();){
+			int j = k;
+			String str = "";
+			for(; j < rules.size() && j < k + perQuery; j++){
+				Rule rule = rules.get(j);
+				Debug.println("Rule has " + rule.getBody().size() + " body atoms");
+//					Debug.println("evalRuleSet: " + rule.toString());
+
+//					RuleSqlGen gen = new RuleSqlGen(rule, _builtins, false, true);
+				RuleSqlGen gen = new RuleSqlGen(rule, _builtins, false, !provenanceQuery);
+				q = gen.toQuery();
+
+				if(str.length() > 0){
+					str = str + " UNION ALL ";
+				}
+				str = str + q.toString();
+			}
+			k = j;
+
+			List<ISqlSelectItem> s = q.getSelect();
+			StringBuffer sel = new StringBuffer();
+			StringBuffer grp = new StringBuffer();
+			int i = 0;
+			boolean firstSel = true;
+			boolean firstGrp = true;
+
+			for(i = 0; i < s.size()-1; i++){
+				if(s.get(i).getTable() != null){
+					//						String attr = s.get(i).getTable() + "." + s.get(i).getColumn();
+					//						String attr = s.get(i).getTable() + "." + s.get(i).getAlias();
+					String attr = "RRR." + s.get(i).getAlias();
+					String alias = s.get(i).getAlias();
+					if(!firstSel){
+						sel.append(", ");
+					}
+					if(!firstGrp){
+						grp.append(", ");
+					}
+
+					firstSel = false;
+					firstGrp = false;
+
+					sel.append(attr + " " + alias);
+					grp.append(attr);
+				}else{
+					//						String attr = s.get(i).getColumn();
+					String attr = "RRR." + s.get(i).getAlias();
+					String alias = s.get(i).getAlias();
+					if(!firstSel){
+						sel.append(", ");
+					}else{
+						firstSel = false;
+
+					}
+					//						Maybe I should skip these altogether?
+					sel.append(attr + " " + alias);
+
+					if(!firstGrp){
+						grp.append(", ");
+					}
+					firstGrp = false;
+
+					grp.append(alias);
+				}
+			}
+			String attr = s.get(i).getTable() + "." + s.get(i).getColumn();
+
+			String alias = s.get(i).getAlias();
+			if(s.get(i) != null && !s.get(i).toString().contains("PROV__")){
+				sel.append(", " + attr + " " + alias);
+				grp.append(", " + attr);
+			}
+			//				if(s.get(i).getTable() != null){
+			//				attr = s.get(i).getTable() + "." + s.get(i).getColumn();
+			//				if(!attr.contains("PROV__")){
+			//				sel.append(", " + attr + " " + alias);
+			//				grp.append(", " + attr);
+			//				}
+			//				}else{
+			//				attr = s.get(i).getColumn();
+			//				if(!attr.contains("PROV__")){
+			//				sel.append(", " + attr + " " + alias);
+			//				}
+			//				}
+			String grouped;
+			if(Config.getValueProvenance()){
+				String plusOp = ProvenanceNode.plusOp(semiringName);
+
+				grouped = "SELECT " + sel + ", " + plusOp + "(PROV__) PROV__" 
+				+ " FROM (" + str+ ") AS RRR GROUP BY " + grp + " ORDER BY " + grp;
+			}else{
+				grouped = str;
+			}
+
+//				Debug.println("evalRuleSet: " + grouped);
+			queries.add(grouped);
+		}
+		return queries;
+	}
+
 	public int evalUpdateRule(Rule rule) throws SQLException {
 		if (Config.getApply()) {
 			RuleSqlGen gen = new RuleSqlGen(rule, _builtins, false, true);
@@ -2264,58 +2977,109 @@ public class SqlDb implements IDb {
 			int recno, Peer reconciler, Db store) throws DbException,
 			IteratorException, SQLException, UnsupportedTypeException,
 			DuplicateRelationIdException {
+		return fetchPublishedTransactions(sys, lastrec, recno, reconciler,
+				store, null);
+	}
+
+	/**
+	 * Takes all data published by a different peer and tries to apply it to
+	 * the update exchange local copy, recording the transactions so that
+	 * {@link #acceptFetchedTransactions} need not look them up in the update
+	 * store again. If {@link Config#getExchangeReadAhead()} is nonzero, the
+	 * update store is read on a separate thread while the data is inserted.
+	 * 
+	 * @param sys
+	 * @param lastrec
+	 * @param recno
+	 * @param reconciler
+	 * @param store
+	 * @param fetched the record to add each transaction and its updates to,
+	 *            or <code>null</code>
+	 * @return
+	 * @throws DbException
+	 * @throws IteratorException
+	 * @throws SQLException
+	 */
+	public int fetchPublishedTransactions(OrchestraSystem sys, int lastrec,
+			int recno, Peer reconciler, Db store,
+			FetchedTransactions fetched) throws DbException,
+			IteratorException, SQLException, UnsupportedTypeException,
+			DuplicateRelationIdException {
 		Db db = sys.getRecDb(reconciler.getId());
 
 		BatchInsert batches = new BatchInsert();
 
-		for (int rec = lastrec; rec <= recno; rec++) {
-			ResultIterator<TxnPeerID> tList = null;
-			try { 
-				tList = db
-				.getTransactionsForReconciliation(rec);
-				while (tList.hasNext()) {
-					TxnPeerID txn = tList.next();
+		PublishedTransactionReader reader = new PublishedTransactionReader(
+				db, lastrec, recno, Config.getExchangeReadAhead());
+		try {
+			for (PublishedTransactionReader.Transaction t = reader.next(); t != null; t = reader.next()) {
+				TxnPeerID txn = t.txn;
 
-					List<Update> ul = db.getTransaction(txn);
+				List<Update> ul = t.updates;
+				if (fetched != null) {
+					fetched.add(txn, ul);
+				}
 
-					String pid = txn.getPeerID().toString();
+				String pid = txn.getPeerID().toString();
 
-					// Convert back to string name
-					if (pid.startsWith("@"))
-						pid = pid.substring(1);
+				// Convert back to string name
+				if (pid.startsWith("@"))
+					pid = pid.substring(1);
 
-					Peer p = sys.getPeer(pid);
+				Peer p = sys.getPeer(pid);
 
-					for (Update u : ul) {
-						boolean found = false;
-						for (Schema s : p.getSchemas()) {
-							try {
-								Relation r = s.getRelation(u.getRelationName());
+				for (Update u : ul) {
+					boolean found = false;
+					for (Schema s : p.getSchemas()) {
+						try {
+							Relation r = s.getRelation(u.getRelationName());
 
-								batches.add(r, u);
-								found = true;
-								break;
-							} catch (RelationNotFoundException rnf) {
+							batches.add(r, u);
+							found = true;
+							break;
+						} catch (RelationNotFoundException rnf) {
 
-							}
 						}
+					}
 
-						if (!found) {
-							throw new DbException(
-									"Relation "
-									+ u.getRelationName()
-									+ " not found in corresponding schema for peer "
-									+ pid + "!");
-						}
+					if (!found) {
+						throw new DbException(
+								"Relation "
+								+ u.getRelationName()
+								+ " not found in corresponding schema for peer "
+								+ pid + "!");
 					}
 				}
-			} finally { 
-				if (null != tList) { tList.close(); }
 			}
+		} finally {
+			reader.close();
 		}
 		return batches.applyAll();
 	}
 
+	/**
+	 * Accepts transactions recorded by
+	 * {@link #fetchPublishedTransactions(OrchestraSystem, int, int, Peer, Db, FetchedTransactions)}
+	 * into the reconciliation state of the peer. This must only be called
+	 * once they have been exchanged successfully.
+	 * 
+	 * @param sys
+	 * @param recno
+	 * @param reconciler
+	 * @param fetched the transactions
+	 * @throws DbException
+	 */
+	public void acceptFetchedTransactions(OrchestraSystem sys, int recno,
+			Peer reconciler, FetchedTransactions fetched)
+			throws DbException {
+		ClientCentricDb db = (ClientCentricDb) sys.getRecDb(reconciler.getId());
+
+		for (TxnPeerID txn : fetched.getTransactions()) {
+			db.applyTransToState(recno, fetched.getUpdates(txn, db));
+		}
+		db.recordAcceptedTrans(recno, fetched.getTransactions());
+	}
+
 	/**
 	 * @deprecated
 	 * 
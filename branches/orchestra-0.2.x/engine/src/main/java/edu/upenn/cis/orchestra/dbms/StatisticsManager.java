@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.upenn.cis.orchestra.Debug;
+import edu.upenn.cis.orchestra.dbms.sql.generation.TableStatistics;
+
+/**
+ * Decides when the statistics of a table are worth refreshing, instead of
+ * refreshing them after every datalog program. It tracks how many rows of
+ * each table have been modified since its statistics were last refreshed,
+ * and asks for a refresh once that exceeds a fraction of the table size (and
+ * a minimum number of rows). A refresh is also requested for the input
+ * tables of a program whose time per row suddenly gets much worse, which
+ * usually means the database picked a bad plan from stale statistics.
+ * <p>
+ * Modified rows are recorded once per statement, for the table the statement
+ * modifies. Rows modified while a refresh is running still count towards the
+ * next refresh.
+ * 
+ */
+public class StatisticsManager {
+	/** A program this many times slower per row than before indicates a bad plan */
+	static final double REGRESSION_FACTOR = 10;
+	/** Programs faster than this are never considered to have regressed */
+	static final long REGRESSION_MIN_MSEC = 100;
+
+	private final float _changeFraction;
+	private final int _minChangedRows;
+	private final Map<String, Long> _modified = new HashMap<String, Long>();
+	private final Map<String, Long> _sizeAtRefresh = new HashMap<String, Long>();
+	private final Set<String> _stale = new HashSet<String>();
+	private final Map<String, Double> _bestTimePerRow = new HashMap<String, Double>();
+	private final TableStatistics _tableStatistics;
+	private long _refreshed = 0;
+	private long _skipped = 0;
+
+	/**
+	 * @param changeFraction the fraction of a table which has to be modified
+	 *            before its statistics are refreshed
+	 * @param minChangedRows the minimum number of modified rows before the
+	 *            statistics of a table are refreshed
+	 */
+	public StatisticsManager(float changeFraction, int minChangedRows) {
+		this(changeFraction, minChangedRows, new TableStatistics());
+	}
+
+	/**
+	 * @param changeFraction the fraction of a table which has to be modified
+	 *            before its statistics are refreshed
+	 * @param minChangedRows the minimum number of modified rows before the
+	 *            statistics of a table are refreshed
+	 * @param tableStatistics the statistics of the database, giving the
+	 *            table sizes after a refresh
+	 */
+	public StatisticsManager(float changeFraction, int minChangedRows,
+			TableStatistics tableStatistics) {
+		_changeFraction = changeFraction;
+		_minChangedRows = minChangedRows;
+		_tableStatistics = tableStatistics;
+	}
+
+	private static String key(String table) {
+		return table.toUpperCase();
+	}
+
+	/**
+	 * Records that rows of a table have been inserted, deleted or updated.
+	 * 
+	 * @param table the fully qualified name of the table
+	 * @param rows the number of modified rows
+	 */
+	public synchronized void recordChange(String table, long rows) {
+		if (rows <= 0) {
+			return;
+		}
+		String k = key(table);
+		Long old = _modified.get(k);
+		_modified.put(k, (old == null) ? rows : old + rows);
+	}
+
+	/**
+	 * Records the execution time of a program, marking the statistics of its
+	 * input tables as stale if it is much slower than before.
+	 * 
+	 * @param program identifies the program, e.g., its SQL
+	 * @param inputTables the tables read by the program
+	 * @param msec the execution time
+	 * @param rows the number of rows produced
+	 */
+	public synchronized void recordExecution(String program,
+			Collection<String> inputTables, long msec, int rows) {
+		double timePerRow = (double) msec / Math.max(rows, 1);
+		Double best = _bestTimePerRow.get(program);
+		if (best == null || timePerRow < best) {
+			_bestTimePerRow.put(program, timePerRow);
+		} else if (msec >= REGRESSION_MIN_MSEC
+				&& timePerRow > REGRESSION_FACTOR * best) {
+			Debug.println("Plan regression suspected (" + msec
+					+ " msec), refreshing statistics on " + inputTables);
+			for (String t : inputTables) {
+				_stale.add(key(t));
+			}
+		}
+	}
+
+	/**
+	 * Selects the tables whose statistics need to be refreshed.
+	 * 
+	 * @param tables the candidate tables
+	 * @return the tables among <code>tables</code> that have never been
+	 *         analyzed, are suspected to have stale statistics, or have been
+	 *         modified enough since their statistics were refreshed
+	 */
+	public synchronized List<String> tablesToRefresh(Collection<String> tables) {
+		List<String> ret = new ArrayList<String>();
+		for (String t : tables) {
+			String k = key(t);
+			Long size = _sizeAtRefresh.get(k);
+			Long modified = _modified.get(k);
+			long changed = (modified == null) ? 0 : modified;
+			if (size == null
+					|| _stale.contains(k)
+					|| (changed >= _minChangedRows && changed >= _changeFraction
+							* size)) {
+				ret.add(t);
+			} else {
+				++_skipped;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Records that the statistics of a table are about to be refreshed.
+	 * 
+	 * @param table the fully qualified name of the table
+	 * @return the number of rows modified so far, to be passed to
+	 *         {@link #refreshed(String, long)}
+	 */
+	public synchronized long startRefresh(String table) {
+		Long modified = _modified.get(key(table));
+		return (modified == null) ? 0 : modified;
+	}
+
+	/**
+	 * Records that the statistics of a table have been refreshed, by a
+	 * refresh during which the table could not be modified.
+	 * 
+	 * @param table the fully qualified name of the table
+	 */
+	public void refreshed(String table) {
+		refreshed(table, startRefresh(table));
+	}
+
+	/**
+	 * Records that the statistics of a table have been refreshed. Only the
+	 * modifications counted when the refresh started are cleared.
+	 * 
+	 * @param table the fully qualified name of the table
+	 * @param changesAtStart the result of {@link #startRefresh(String)}
+	 */
+	public synchronized void refreshed(String table, long changesAtStart) {
+		String k = key(table);
+		long size = _tableStatistics.getCardinality(table);
+		if (size < 0) {
+			// Without a row count, assume the table grew by what was modified
+			Long old = _sizeAtRefresh.get(k);
+			size = ((old == null) ? 0 : old) + changesAtStart;
+		}
+		_sizeAtRefresh.put(k, size);
+		Long modified = _modified.get(k);
+		long remaining = ((modified == null) ? 0 : modified) - changesAtStart;
+		if (remaining > 0) {
+			_modified.put(k, remaining);
+		} else {
+			_modified.remove(k);
+		}
+		_stale.remove(k);
+		++_refreshed;
+	}
+
+	/**
+	 * Forgets everything known about the tables, so that all statistics are
+	 * refreshed the next time they are requested.
+	 */
+	public synchronized void reset() {
+		_modified.clear();
+		_sizeAtRefresh.clear();
+		_stale.clear();
+		_bestTimePerRow.clear();
+	}
+
+	/**
+	 * @return the number of table statistics refreshed so far
+	 */
+	public synchronized long getRefreshedCount() {
+		return _refreshed;
+	}
+
+	/**
+	 * @return the number of table statistics refreshes avoided so far
+	 */
+	public synchronized long getSkippedCount() {
+		return _skipped;
+	}
+}
@@ -153,6 +153,25 @@ public abstract class AbstractSqlStatementGen implements ISqlStatementGen {
 	
 	public String compareTables(String table1, String table2) {return "";}
 
+	/**
+	 * Nested loop joins, e.g., in HSQLDB, follow the order of the
+	 * <code>FROM</code> clause, so this returns the statement unchanged.
+	 */
+	public String hintJoinOrder(String statement, List<String> aliases) {
+		return statement;
+	}
+
+	/**
+	 * Without catalog statistics, the rows are counted.
+	 */
+	public String tableCardinality(String table) {
+		return "SELECT COUNT(*) FROM " + table;
+	}
+
+	public String columnCardinalities(String table) {
+		return null;
+	}
+
 	public String subtractTables(String pos, String neg, String joinAtt) {
 		ISqlDelete d = sqlFactory.newDelete(pos, "R1");
 		ISqlSelect q = sqlFactory.newSelect(sqlFactory.newSelectItem("1"),
@@ -118,4 +118,38 @@ public interface ISqlStatementGen {
 	public String enableConstraints(String table);
 
 	public String reorg(String table);
+
+	/**
+	 * Adds a hint to a generated statement, telling the database to join the
+	 * tables of its query in the order of its <code>FROM</code> clause,
+	 * which generated SQL lists in the order chosen from the table
+	 * statistics.
+	 * 
+	 * @param statement a <code>SELECT</code> or
+	 *            <code>INSERT ... SELECT</code> statement
+	 * @param aliases the aliases of the joined tables, in join order
+	 * @return the statement with the hint, or <code>statement</code> if the
+	 *         database follows the <code>FROM</code> clause anyway
+	 */
+	public String hintJoinOrder(String statement, List<String> aliases);
+
+	/**
+	 * Returns a query for the number of rows of a table, preferably read from
+	 * the statistics the database already maintains.
+	 * 
+	 * @param table the fully qualified name of the table
+	 * @return a query returning the number of rows in its only column, or
+	 *         <code>-1</code> or <code>NULL</code> if unknown
+	 */
+	public String tableCardinality(String table);
+
+	/**
+	 * Returns a query for the number of distinct values of each column of a
+	 * table, as recorded in the statistics the database maintains.
+	 * 
+	 * @param table the fully qualified name of the table
+	 * @return a query returning column names and distinct counts, or
+	 *         <code>null</code> if the database keeps no such statistics
+	 */
+	public String columnCardinalities(String table);
 }
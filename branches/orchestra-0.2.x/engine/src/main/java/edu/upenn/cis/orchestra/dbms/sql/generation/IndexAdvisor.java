@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms.sql.generation;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.upenn.cis.orchestra.datalog.Datalog;
+import edu.upenn.cis.orchestra.datalog.DatalogProgram;
+import edu.upenn.cis.orchestra.datalog.DatalogSequence;
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.dbms.BuiltinFunctions;
+import edu.upenn.cis.orchestra.dbms.RuleProfiler;
+import edu.upenn.cis.orchestra.dbms.SqlDb;
+import edu.upenn.cis.orchestra.dbms.UDFunctions;
+import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.sql.ISqlColumnDef;
+import edu.upenn.cis.orchestra.sql.ISqlFactory;
+import edu.upenn.cis.orchestra.sql.SqlFactories;
+
+/**
+ * Recommends secondary indexes for the tables read by the delta rules. The
+ * auxiliary and provenance tables only get an index on their key, while the
+ * rules join them (and filter them with constants) on other columns. For
+ * every relational body atom of every rule, the columns bound by a constant
+ * or shared with another body atom are candidates for an index, with the
+ * constants first. Candidates already served by the key index are skipped.
+ * <p>
+ * The indexes can be created through the vendor's
+ * {@link ISqlStatementGen#createIndex}, and their benefit checked against
+ * the executions recorded by a {@link RuleProfiler}.
+ * 
+ */
+public class IndexAdvisor {
+	private static final Logger _logger = LoggerFactory.getLogger(IndexAdvisor.class);
+
+	/**
+	 * A string literal, a possibly qualified and quoted identifier, or any
+	 * other single character
+	 */
+	private static final Pattern TOKEN = Pattern.compile(
+			"'(?:[^']|'')*'|(?:\"[^\"]*\"|[A-Za-z_][\\w$#]*)(?:\\s*\\.\\s*(?:\"[^\"]*\"|[A-Za-z_][\\w$#]*))*|\\S");
+
+	/** The keywords which end a list of tables */
+	private static final Set<String> END_OF_FROM = new HashSet<String>(Arrays.asList(
+			"WHERE", "GROUP", "HAVING", "ORDER", "UNION", "EXCEPT", "INTERSECT", "ON",
+			"USING", "SET", "VALUES", "SELECT", "FETCH", "WITH"));
+
+	/**
+	 * An index recommended for one table.
+	 */
+	public static class Recommendation {
+		private final Relation _relation;
+		private final String _suffix;
+		private final List<String> _columns;
+		private final int _number;
+		private int _uses;
+		private long _created = -1;
+
+		Recommendation(Relation relation, String suffix, List<String> columns, int number) {
+			_relation = relation;
+			_suffix = suffix;
+			_columns = columns;
+			_number = number;
+		}
+
+		/**
+		 * @return the qualified name of the table to index
+		 */
+		public String getTable() {
+			return _relation.getQualifiedName(_suffix);
+		}
+
+		/**
+		 * @return the name of the index, unique among the recommendations
+		 */
+		public String getIndexName() {
+			return getTable() + "_AX" + _number;
+		}
+
+		/**
+		 * @return the indexed columns, in index order
+		 */
+		public List<String> getColumns() {
+			return Collections.unmodifiableList(_columns);
+		}
+
+		/**
+		 * @return the number of rule atoms which would use the index
+		 */
+		public int getUses() {
+			return _uses;
+		}
+
+		/**
+		 * @return the time at which the index was created, in milliseconds
+		 *         since the epoch, or -1 if it has not been created
+		 */
+		public long getCreated() {
+			return _created;
+		}
+
+		@Override
+		public String toString() {
+			return getTable() + _columns + " used by " + _uses + " atoms";
+		}
+	}
+
+	private final Map<String, Recommendation> _recommendations = new LinkedHashMap<String, Recommendation>();
+
+	/**
+	 * Finds the indexes which would help a compiled program.
+	 * 
+	 * @param code the compiled delta rules, such as
+	 *            {@link edu.upenn.cis.orchestra.exchange.BasicEngine#getIncrementalInsertionProgram()}
+	 */
+	public synchronized void analyze(List<DatalogSequence> code) {
+		for (DatalogSequence seq : code) {
+			analyze(seq);
+		}
+	}
+
+	private void analyze(Datalog d) {
+		if (d instanceof DatalogSequence) {
+			for (Datalog child : ((DatalogSequence) d).getSequence()) {
+				analyze(child);
+			}
+		} else if (d instanceof DatalogProgram) {
+			for (Rule r : ((DatalogProgram) d).getRules()) {
+				analyze(r);
+			}
+		}
+	}
+
+	private static boolean isRelational(Atom a) {
+		return !a.isSkolem() && !BuiltinFunctions.isBuiltInAtom(a)
+				&& !UDFunctions.isUDF(a.getRelation().getName());
+	}
+
+	private void analyze(Rule r) {
+		// Number of body atoms each variable appears in
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		for (Atom a : r.getBody()) {
+			Set<String> vars = new HashSet<String>();
+			for (AtomArgument arg : a.getValues()) {
+				if (arg instanceof AtomVariable) {
+					vars.add(arg.toString());
+				}
+			}
+			for (String v : vars) {
+				Integer n = occurrences.get(v);
+				occurrences.put(v, (n == null) ? 1 : n + 1);
+			}
+		}
+		for (Atom a : r.getBody()) {
+			if (!isRelational(a)) {
+				continue;
+			}
+			Relation rel = a.getRelation();
+			List<String> columns = new ArrayList<String>();
+			for (int i : columnsToIndex(a.getValues(), occurrences)) {
+				columns.add(rel.getField(i).getName());
+			}
+			List<String> key = new ArrayList<String>();
+			if (rel.getPrimaryKey() != null) {
+				for (RelationField f : rel.getPrimaryKey().getFields()) {
+					key.add(f.getName());
+				}
+			}
+			if (columns.isEmpty() || isCoveredBy(columns, key)) {
+				continue;
+			}
+			if (columns.size() > SqlDb.MAX_INDEX_COLS) {
+				columns = columns.subList(0, SqlDb.MAX_INDEX_COLS);
+			}
+			String suffix = Atom.typeToString(a.getType());
+			String id = rel.getQualifiedName(suffix).toUpperCase() + columns;
+			Recommendation rec = _recommendations.get(id);
+			if (rec == null) {
+				rec = new Recommendation(rel, suffix, columns, _recommendations.size() + 1);
+				_recommendations.put(id, rec);
+			}
+			++rec._uses;
+		}
+	}
+
+	/**
+	 * Chooses the columns of an atom worth indexing.
+	 * 
+	 * @param args the arguments of the atom
+	 * @param occurrences the number of body atoms each variable of the rule
+	 *            appears in
+	 * @return the positions bound to constants, followed by the positions of
+	 *         variables shared with other atoms
+	 */
+	static List<Integer> columnsToIndex(List<AtomArgument> args, Map<String, Integer> occurrences) {
+		List<Integer> constants = new ArrayList<Integer>();
+		List<Integer> joins = new ArrayList<Integer>();
+		Set<String> seen = new HashSet<String>();
+		for (int i = 0; i < args.size(); ++i) {
+			AtomArgument arg = args.get(i);
+			if (arg instanceof AtomConst) {
+				constants.add(i);
+			} else if (arg instanceof AtomVariable) {
+				Integer n = occurrences.get(arg.toString());
+				if (n != null && n > 1 && seen.add(arg.toString())) {
+					joins.add(i);
+				}
+			}
+		}
+		constants.addAll(joins);
+		return constants;
+	}
+
+	/**
+	 * Finds the tables a statement reads, from the lists of tables after its
+	 * {@code FROM} and {@code JOIN} keywords, including those of subqueries.
+	 * 
+	 * @param sql a statement
+	 * @return the names of the tables, in upper case and without quotes
+	 */
+	static Set<String> readTables(String sql) {
+		Set<String> tables = new HashSet<String>();
+		// Whether each enclosing parenthesis is within a list of tables
+		LinkedList<Boolean> enclosing = new LinkedList<Boolean>();
+		boolean inFrom = false;
+		boolean expectTable = false;
+		Matcher m = TOKEN.matcher(sql);
+		while (m.find()) {
+			String token = m.group();
+			char first = token.charAt(0);
+			boolean identifier = first == '"' || first == '_' || Character.isLetter(first);
+			String upper = token.toUpperCase();
+			if (token.equals("(")) {
+				enclosing.addLast(inFrom);
+				inFrom = false;
+				expectTable = false;
+			} else if (token.equals(")")) {
+				inFrom = !enclosing.isEmpty() && enclosing.removeLast();
+				expectTable = false;
+			} else if (upper.equals("FROM") || upper.equals("JOIN")) {
+				inFrom = true;
+				expectTable = true;
+			} else if (!inFrom) {
+				continue;
+			} else if (token.equals(",")) {
+				expectTable = true;
+			} else if (END_OF_FROM.contains(upper)) {
+				inFrom = false;
+			} else if (expectTable && identifier) {
+				tables.add(upper.replace("\"", "").replaceAll("\\s+", ""));
+				expectTable = false;
+			} else {
+				// An alias
+				expectTable = false;
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * @param tables the tables a statement reads, from
+	 *            {@link #readTables(String)}
+	 * @param table the qualified name of a table
+	 * @return {@code true} if one of {@code tables} is {@code table}, with or
+	 *         without its schema
+	 */
+	static boolean readsTable(Set<String> tables, String table) {
+		table = table.toUpperCase();
+		if (tables.contains(table)) {
+			return true;
+		}
+		int dot = table.lastIndexOf('.');
+		return dot >= 0 && tables.contains(table.substring(dot + 1));
+	}
+
+	/**
+	 * @param columns the columns of a lookup
+	 * @param index the columns of an existing index
+	 * @return {@code true} if the lookup can use a prefix of the index
+	 */
+	static boolean isCoveredBy(List<String> columns, List<String> index) {
+		if (columns.size() > index.size()) {
+			return false;
+		}
+		Set<String> prefix = new HashSet<String>();
+		for (String c : index.subList(0, columns.size())) {
+			prefix.add(c.toUpperCase());
+		}
+		for (String c : columns) {
+			if (!prefix.remove(c.toUpperCase())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the recommended indexes, the one used by most atoms first
+	 */
+	public synchronized List<Recommendation> getRecommendations() {
+		List<Recommendation> recs = new ArrayList<Recommendation>(_recommendations.values());
+		Collections.sort(recs, new Comparator<Recommendation>() {
+			@Override
+			public int compare(Recommendation r1, Recommendation r2) {
+				return r2.getUses() - r1.getUses();
+			}
+		});
+		return recs;
+	}
+
+	/**
+	 * Generates the statements creating the recommended indexes which have
+	 * not been created yet, in the dialect of a database.
+	 * 
+	 * @param db the database
+	 * @param withLogging whether index creation should be logged
+	 * @return one statement per recommended index
+	 */
+	public synchronized List<String> getCreateStatements(SqlDb db, boolean withLogging) {
+		ISqlFactory factory = SqlFactories.getSqlFactory();
+		List<String> statements = new ArrayList<String>();
+		for (Recommendation rec : getRecommendations()) {
+			if (rec.getCreated() >= 0) {
+				continue;
+			}
+			Vector<ISqlColumnDef> cols = new Vector<ISqlColumnDef>();
+			for (String c : rec.getColumns()) {
+				cols.add(factory.newColumnDef(c, "", null));
+			}
+			statements.add(db.getSqlTranslator().createIndex(rec.getIndexName(), rec.getTable(), cols,
+					false, !withLogging));
+		}
+		return statements;
+	}
+
+	/**
+	 * Creates the recommended indexes which have not been created yet.
+	 * 
+	 * @param db the database
+	 * @param withLogging whether index creation should be logged
+	 * @return the number of indexes created
+	 */
+	public synchronized int createIndexes(SqlDb db, boolean withLogging) {
+		List<String> statements = getCreateStatements(db, withLogging);
+		int created = 0;
+		int i = 0;
+		for (Recommendation rec : getRecommendations()) {
+			if (rec.getCreated() >= 0) {
+				continue;
+			}
+			String stmt = statements.get(i++);
+			try {
+				db.evaluateUpdate(stmt);
+				rec._created = System.currentTimeMillis();
+				++created;
+			} catch (SQLException e) {
+				_logger.warn("Could not create advised index: " + stmt, e);
+			}
+		}
+		return created;
+	}
+
+	/**
+	 * Compares the time of the rule executions reading the table of each
+	 * created index before and after it was created.
+	 * 
+	 * @param profiler the recorded rule executions
+	 * @return one line per created index, with the mean execution time
+	 *         before and after its creation
+	 */
+	public synchronized String verify(RuleProfiler profiler) {
+		StringBuilder sb = new StringBuilder();
+		List<RuleProfiler.Execution> executions = profiler.getExecutions();
+		Map<String, Set<String>> readTables = new HashMap<String, Set<String>>();
+		for (Recommendation rec : getRecommendations()) {
+			if (rec.getCreated() < 0) {
+				continue;
+			}
+			long beforeNanos = 0;
+			int before = 0;
+			long afterNanos = 0;
+			int after = 0;
+			for (RuleProfiler.Execution e : executions) {
+				Set<String> tables = readTables.get(e.getSql());
+				if (tables == null) {
+					tables = readTables(e.getSql());
+					readTables.put(e.getSql(), tables);
+				}
+				if (!readsTable(tables, rec.getTable())) {
+					continue;
+				}
+				if (e.getTime() < rec.getCreated()) {
+					beforeNanos += e.getNanos();
+					++before;
+				} else {
+					afterNanos += e.getNanos();
+					++after;
+				}
+			}
+			sb.append(rec.getTable()).append(rec.getColumns()).append(": ");
+			if (before == 0 || after == 0) {
+				sb.append("not enough executions to compare\n");
+			} else {
+				sb.append(String.format("%.1f ms before (%d runs), %.1f ms after (%d runs)%n",
+						beforeNanos / 1e6 / before, before, afterNanos / 1e6 / after, after));
+			}
+		}
+		return sb.toString();
+	}
+}
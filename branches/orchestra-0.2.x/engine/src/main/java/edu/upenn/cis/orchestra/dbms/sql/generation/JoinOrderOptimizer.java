@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms.sql.generation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+
+/**
+ * Orders the joins of a rule body using a simple cost model, based on the
+ * {@link TableStatistics} of the joined tables. Starting from the smallest
+ * (estimated) input, it greedily adds the atom which shares a variable with
+ * the atoms joined so far and yields the smallest intermediate result,
+ * estimated as <code>|R| * |S| / max(V(R,x), V(S,x))</code> for every
+ * shared variable <code>x</code>.
+ * <p>
+ * Databases such as HSQLDB evaluate joins as nested loops in the order of
+ * the <code>FROM</code> clause, so this order determines the plan. Others
+ * are told to follow it by a hint, see
+ * {@link ISqlStatementGen#hintJoinOrder(String, List)}.
+ * 
+ */
+class JoinOrderOptimizer {
+	/** Assumed cardinality of tables without statistics */
+	static final double DEFAULT_CARDINALITY = 1000;
+	/** Assumed selectivity of an equality with a constant without statistics */
+	static final double CONSTANT_SELECTIVITY = 0.1;
+
+	private JoinOrderOptimizer() {
+	}
+
+	/**
+	 * Orders a list of atoms for joining.
+	 * 
+	 * @param atoms the positive, relational atoms of a rule body
+	 * @param statistics the statistics of the database the rule runs in
+	 * @return the atoms in join order, which is the original order if there
+	 *         are no statistics for any of them
+	 */
+	static List<Atom> order(List<Atom> atoms, TableStatistics statistics) {
+		if (atoms.size() < 2) {
+			return atoms;
+		}
+		double[] rows = new double[atoms.size()];
+		List<Map<String, Double>> distinct = new ArrayList<Map<String, Double>>(
+				atoms.size());
+		boolean known = false;
+		for (int i = 0; i < atoms.size(); ++i) {
+			Atom a = atoms.get(i);
+			String table = a.toString3();
+			long card = statistics.getCardinality(table);
+			known |= (card >= 0);
+			double r = (card >= 0) ? Math.max(card, 1) : DEFAULT_CARDINALITY;
+			double selected = r;
+			Map<String, Double> vars = new HashMap<String, Double>();
+			List<AtomArgument> args = a.getValues();
+			for (int j = 0; j < args.size(); ++j) {
+				AtomArgument arg = args.get(j);
+				long d = statistics.getDistinctCount(table, a.getRelation()
+						.getField(j).getName());
+				if (arg instanceof AtomConst) {
+					selected *= (d > 0) ? 1.0 / d : CONSTANT_SELECTIVITY;
+				} else if (arg instanceof AtomVariable) {
+					double v = (d > 0) ? d : r;
+					Double old = vars.get(arg.toString());
+					vars.put(arg.toString(), (old == null) ? v : Math.min(old, v));
+				}
+			}
+			rows[i] = Math.max(selected, 1);
+			distinct.add(vars);
+		}
+		if (!known) {
+			return atoms;
+		}
+		int[] order = order(rows, distinct);
+		List<Atom> ordered = new ArrayList<Atom>(atoms.size());
+		for (int i : order) {
+			ordered.add(atoms.get(i));
+		}
+		return ordered;
+	}
+
+	/**
+	 * Computes a greedy join order.
+	 * 
+	 * @param rows the estimated number of rows of each input
+	 * @param distinct for each input, the estimated number of distinct values
+	 *            of each of its variables
+	 * @return the indices of the inputs in join order. Ties are broken in
+	 *         favor of the original order.
+	 */
+	static int[] order(double[] rows, List<Map<String, Double>> distinct) {
+		int n = rows.length;
+		int[] order = new int[n];
+		boolean[] used = new boolean[n];
+
+		int first = 0;
+		for (int i = 1; i < n; ++i) {
+			if (rows[i] < rows[first]) {
+				first = i;
+			}
+		}
+		order[0] = first;
+		used[first] = true;
+		double size = rows[first];
+		Map<String, Double> vars = new HashMap<String, Double>(distinct.get(first));
+
+		for (int k = 1; k < n; ++k) {
+			int best = -1;
+			double bestSize = 0;
+			boolean bestConnected = false;
+			for (int i = 0; i < n; ++i) {
+				if (used[i]) {
+					continue;
+				}
+				double joined = size * rows[i];
+				boolean connected = false;
+				for (Map.Entry<String, Double> v : distinct.get(i).entrySet()) {
+					Double d = vars.get(v.getKey());
+					if (d != null) {
+						connected = true;
+						joined /= Math.max(Math.max(d, v.getValue()), 1);
+					}
+				}
+				if (best < 0 || (connected && !bestConnected)
+						|| (connected == bestConnected && joined < bestSize)) {
+					best = i;
+					bestSize = joined;
+					bestConnected = connected;
+				}
+			}
+			order[k] = best;
+			used[best] = true;
+			size = Math.max(bestSize, 1);
+			for (Map.Entry<String, Double> v : distinct.get(best).entrySet()) {
+				Double d = vars.get(v.getKey());
+				vars.put(v.getKey(), (d == null) ? v.getValue() : Math.min(d, v.getValue()));
+			}
+			for (Map.Entry<String, Double> v : vars.entrySet()) {
+				v.setValue(Math.min(v.getValue(), size));
+			}
+		}
+		return order;
+	}
+}
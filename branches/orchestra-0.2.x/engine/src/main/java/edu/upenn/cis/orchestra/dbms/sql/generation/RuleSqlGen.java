@@ -76,6 +76,8 @@ public class RuleSqlGen implements IRuleCodeGen {
 
 	protected Map<String,ISqlExp> _whereExpressions;
 	protected Set<ISqlExp> _whereRoots;
+	/** Aliases of the joined tables in the order chosen by the statistics, or null if in rule order */
+	protected List<String> m_joinOrder;
 	private final ISqlFactory _sqlFactory = SqlFactories.getSqlFactory();
 	// TO DO:  add info about the Schemas for each item.
 	// If the Schemas have no labeled nulls, we shouldn't add them.
@@ -95,6 +97,20 @@ public class RuleSqlGen implements IRuleCodeGen {
 	}
 
 	public ISqlSelect toQuery(int curIterCnt) 
+	{
+		return toQuery(curIterCnt, null);
+	}
+
+	/**
+	 * Translates the rule to a query, joining its atoms in the order
+	 * estimated to be the cheapest from the statistics of the database.
+	 * 
+	 * @param curIterCnt the fixpoint iteration
+	 * @param statistics the statistics of the database, or <code>null</code>
+	 *            to join the atoms in rule order
+	 * @return the query
+	 */
+	public ISqlSelect toQuery(int curIterCnt, TableStatistics statistics) 
 	{
 		ISqlSelect q =  _sqlFactory.newSelect();
 		_whereExpressions = newHashMap();
@@ -102,7 +118,7 @@ public class RuleSqlGen implements IRuleCodeGen {
 		m_varmap = buildVarMap(m_rule);
 		m_vartype = buildTypeMap(m_rule);
 
-		List<ISqlFromItem> fr = buildFrom();
+		List<ISqlFromItem> fr = buildFrom(statistics);
 		List<ISqlSelectItem> sel = buildSelect(curIterCnt, fr);
 	
 		q.addSelectClause(sel);
@@ -124,6 +140,11 @@ public class RuleSqlGen implements IRuleCodeGen {
 	}
 
 	public ISqlInsert toInsert(int curIterCnt)
+	{
+		return toInsert(curIterCnt, null);
+	}
+
+	public ISqlInsert toInsert(int curIterCnt, TableStatistics statistics)
 	{
 		Atom head = m_rule.getHead();
 		ISqlInsert ins;
@@ -175,7 +196,7 @@ public class RuleSqlGen implements IRuleCodeGen {
 					m_rule.getBody().add(notExists);
 				}
 			}
-			ISqlSelect q1 = this.toQuery(curIterCnt);
+			ISqlSelect q1 = this.toQuery(curIterCnt, statistics);
 			if(Config.getSetSemantics() && this.m_rule.isDistinct())
 				q1.setDistinct(true);
 
@@ -224,6 +245,22 @@ public class RuleSqlGen implements IRuleCodeGen {
 	}
 
 	public List<String> getCode(UPDATE_TYPE u, int curIterCnt) {
+		return getCode(u, curIterCnt, null);
+	}
+
+	/**
+	 * Generates the statements of the rule, joining its atoms in the order
+	 * estimated to be the cheapest from the statistics of the database. If
+	 * the database chooses its own join order, the statements tell it to
+	 * follow this one, see {@link ISqlStatementGen#hintJoinOrder(String, List)}.
+	 * 
+	 * @param u the kind of update
+	 * @param curIterCnt the fixpoint iteration
+	 * @param statistics the statistics of the database, or <code>null</code>
+	 *            to join the atoms in rule order
+	 * @return the statements
+	 */
+	public List<String> getCode(UPDATE_TYPE u, int curIterCnt, TableStatistics statistics) {
 		List<String> ret = new ArrayList<String>();
 		
 		if (u == UPDATE_TYPE.CLEAR_AND_COPY){
@@ -267,7 +304,11 @@ public class RuleSqlGen implements IRuleCodeGen {
 				ISqlDelete del = _sqlFactory.newSqlDelete(m_rule.getHead().toString3());
 				ret.add(del.toString());
 			}else{	
-				ret.add(toInsert(curIterCnt).toString());
+				String ins = toInsert(curIterCnt, statistics).toString();
+				if (m_joinOrder != null) {
+					ins = m_sqlString.hintJoinOrder(ins, m_joinOrder);
+				}
+				ret.add(ins);
 			}
 		}
 		//Integer retsize = new Integer(ret.size());
@@ -280,8 +321,8 @@ public class RuleSqlGen implements IRuleCodeGen {
 	 * we can merge with any, and return the combined list.
 	 *  
 	 */
-	public List<String> getCode(List<String> existing, UPDATE_TYPE u, int curIterCnt) {
-		List<String> newItem = getCode(u, curIterCnt);
+	public List<String> getCode(List<String> existing, UPDATE_TYPE u, int curIterCnt, TableStatistics statistics) {
+		List<String> newItem = getCode(u, curIterCnt, statistics);
 		List<String> ret = new ArrayList<String>();
 	
 		ret.addAll(existing);
@@ -467,16 +508,22 @@ public class RuleSqlGen implements IRuleCodeGen {
 	/**
 	 * Create FROM clauses for all atoms that correspond to relations.
 	 * This excludes negated atoms, Skolemized atoms, and built-in atoms.
+	 * With statistics, plain joins are ordered by {@link JoinOrderOptimizer}
+	 * and the order is kept in {@link #m_joinOrder}.
 	 * 
+	 * @param statistics the statistics of the database, or <code>null</code>
 	 * @return
 	 */
-	protected List<ISqlFromItem> buildFrom() {
+	protected List<ISqlFromItem> buildFrom(TableStatistics statistics) {
+		m_joinOrder = null;
 		List<ISqlFromItem> vf = newArrayList();
+		List<Atom> joined = newArrayList();
 		int i = 0;
 	
 		for (Atom a : m_rule.getBody()) {
 			if(!a.isNeg() && !a.isSkolem() && !BuiltinFunctions.isBuiltIn(a.getSchema().getSchemaId(), a.getRelation().getName()) 
 					&& (!isDependentOnUDF(a.getRelation()))){
+				joined.add(a);
 				vf.add( buildFromItem(a, getPositionOfAtom(a)));}
 			// Added by Marie J., for outer joins when doing UDFS on pairs 
 			else if(UDFunctions.isUDF(a.getRelation().getName()))
@@ -497,6 +544,17 @@ public class RuleSqlGen implements IRuleCodeGen {
 				i++;
 			}
 		}
+		// Only plain joins are reordered, outer joins for UDFs keep their place
+		if (Config.getCostBasedJoinOrder() && statistics != null
+				&& joined.size() == vf.size() && vf.size() > 1) {
+			vf.clear();
+			m_joinOrder = newArrayList();
+			for (Atom a : JoinOrderOptimizer.order(joined, statistics)) {
+				int pos = getPositionOfAtom(a);
+				vf.add(buildFromItem(a, pos));
+				m_joinOrder.add("R" + pos);
+			}
+		}
 		return vf;
 	}
 	private boolean isDependentOnUDF(Relation r)
@@ -18,15 +18,22 @@ package edu.upenn.cis.orchestra.dbms.sql.generation;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.Debug;
+import edu.upenn.cis.orchestra.dbms.RuleProfiler;
 import edu.upenn.cis.orchestra.dbms.SqlDb;
+import edu.upenn.cis.orchestra.dbms.StatisticsManager;
 import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.metrics.Counter;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 import edu.upenn.cis.orchestra.exchange.RuleQuery;
 
 /**
@@ -34,6 +41,9 @@ import edu.upenn.cis.orchestra.exchange.RuleQuery;
  *
  */
 public class SqlRuleQuery extends RuleQuery {
+	private static final Timer QUERY_TIMER = MetricsRegistry.getDefault().timer("exchange.sql.ruleQuery");
+	private static final Counter ROWS_COUNTER = MetricsRegistry.getDefault().counter("exchange.sql.ruleQueryRows");
+
 	List<List<Integer>> _preparedParams;
 
 	public SqlRuleQuery(SqlDb db) {
@@ -50,6 +60,16 @@ public class SqlRuleQuery extends RuleQuery {
 		return (SqlDb)super.getDatabase();
 	}
 
+	/**
+	 * The statistics of the database, by which the joins of the
+	 * statements are ordered
+	 * 
+	 * @return
+	 */
+	public TableStatistics getTableStatistics() {
+		return getDatabase().getTableStatistics();
+	}
+
 	/**
 	 * Add another statement
 	 * 
@@ -67,6 +87,9 @@ public class SqlRuleQuery extends RuleQuery {
 	@Override
 	public int evaluateSelf(String queryString, int curIterCnt, List<Rule> rules, Map<Rule, List<String>> bodyTables, Map<Rule, List<String>> headTables) {
 		int st = 0;
+		long before = System.currentTimeMillis();
+		long beforeNanos = System.nanoTime();
+		RuleProfiler profiler = RuleProfiler.getDefault();
 		try {
 			int num = 0;
 			if (isPrepared() && Config.getApply()) {
@@ -86,6 +109,7 @@ public class SqlRuleQuery extends RuleQuery {
 
 					try{
 						boolean execute = true;
+						Rule rule = rules.get(j);
 						if(!rules.get(j).getDeleteFromHead() && !rules.get(j).clearNcopy()){
 							//SqlEmptyTables empty = new SqlEmptyTables(bodyTables.get(rules.get(j)));
 
@@ -104,10 +128,15 @@ public class SqlRuleQuery extends RuleQuery {
 							j++;
 						}
 						if(execute){
+							long stmtNanos = System.nanoTime();
+							int rows;
 							if(_preparedParams.size() <= k)
-								num += getDatabase().evaluatePrepared(stmt, curIterCnt, null);
+								rows = getDatabase().evaluatePrepared(stmt, curIterCnt, null);
 							else
-								num += getDatabase().evaluatePrepared(stmt, curIterCnt, _preparedParams.get(k));
+								rows = getDatabase().evaluatePrepared(stmt, curIterCnt, _preparedParams.get(k));
+							getDatabase().recordModification(_statements.get(k), rows);
+							num += rows;
+							profile(profiler, getMappingId(rule), Collections.singletonList(_statements.get(k)), stmtNanos, rows);
 						}
 
 					}catch(Exception e){
@@ -122,12 +151,16 @@ public class SqlRuleQuery extends RuleQuery {
 						if(stmt.startsWith("ALTER")){
 							getDatabase().evaluate(stmt);
 						}else{
-							num += getDatabase().evaluateUpdate(stmt);
+							long stmtNanos = System.nanoTime();
+							int rows = getDatabase().evaluateUpdate(stmt);
+							num += rows;
+							profile(profiler, getMappingIds(rules), Collections.singletonList(stmt), stmtNanos, rows);
 						}
 					}
 				} else if (Config.getApply()) {
 					if(Config.getBatch()){
 						boolean batchNotEmpty = false;
+						List<String> batch = new ArrayList<String>();
 						for (String stmt : _statements) {
 							if(stmt.startsWith("DROP") || stmt.startsWith("RENAME") || stmt.startsWith("CREATE") || stmt.startsWith("ALTER")){
 								Debug.println("ESCAPE FROM BATCH: " + stmt);
@@ -135,18 +168,27 @@ public class SqlRuleQuery extends RuleQuery {
 							}else{
 								Debug.println("ADD TO BATCH: " + stmt);
 								getDatabase().addToBatch(stmt);
+								batch.add(stmt);
 								batchNotEmpty = true;
 							}
 							st++;
 						}
-						if(batchNotEmpty)
-							num += getDatabase().evaluateBatch();
+						if(batchNotEmpty){
+							long stmtNanos = System.nanoTime();
+							int rows = getDatabase().evaluateBatch();
+							num += rows;
+							profile(profiler, getMappingIds(rules), batch, stmtNanos, rows);
+						}
 					}else{
 						for (String stmt : _statements) {
 							Debug.println("SQL: " + stmt);
 
+							long stmtNanos = System.nanoTime();
 							int foo = getDatabase().evaluateUpdate(stmt);
 							num += foo;
+							profile(profiler, _statements.size() == rules.size() ?
+									getMappingId(rules.get(st)) : getMappingIds(rules),
+									Collections.singletonList(stmt), stmtNanos, foo);
 							st++;
 						}
 					}
@@ -161,7 +203,18 @@ public class SqlRuleQuery extends RuleQuery {
 					if(!headTbls.contains(s))
 						headTbls.add(s);
 			}
+			StatisticsManager stats = getDatabase().getStatisticsManager();
+			if (stats != null) {
+				// Let the manager decide whether the statistics are worth refreshing
+				Set<String> bodyTbls = new HashSet<String>();
+				for(Rule r : rules){
+					bodyTbls.addAll(bodyTables.get(r));
+				}
+				stats.recordExecution(queryString, bodyTbls, System.currentTimeMillis() - before, num);
+			}
 			getDatabase().runstats(headTbls);
+			QUERY_TIMER.updateSince(beforeNanos);
+			ROWS_COUNTER.add(num);
 			return num;
 		} catch (Exception e) {
 			System.err.println("Error with:");
@@ -172,6 +225,85 @@ public class SqlRuleQuery extends RuleQuery {
 		}
 	}
 
+	/**
+	 * Records one execution in the rule profile, and writes it to the slow
+	 * rule log with its plan if it took too long. A batch is recorded as one
+	 * execution, but each of its statements is explained separately.
+	 * 
+	 * @param profiler the rule profile, or {@code null} if rules are not
+	 *            profiled
+	 * @param mappingId the mapping the statements were generated for
+	 * @param statements the statement, or the statements of a batch
+	 * @param beforeNanos when the statements started
+	 * @param rows the number of rows they affected
+	 */
+	private void profile(RuleProfiler profiler, String mappingId, List<String> statements, long beforeNanos, int rows) {
+		if (profiler == null) {
+			return;
+		}
+		long nanos = System.nanoTime() - beforeNanos;
+		StringBuffer sql = new StringBuffer();
+		for (String stmt : statements) {
+			if (sql.length() > 0) {
+				sql.append(";\n");
+			}
+			sql.append(stmt);
+		}
+		if (profiler.record(mappingId, sql.toString(), nanos, rows)) {
+			profiler.logSlow(mappingId, sql.toString(), nanos, rows, explain(statements));
+		}
+	}
+
+	/**
+	 * @param statements the statements to explain
+	 * @return the plan of each statement, or {@code null} if none of them
+	 *         could be explained
+	 */
+	private String explain(List<String> statements) {
+		if (statements.size() == 1) {
+			return getDatabase().explain(statements.get(0));
+		}
+		StringBuffer plans = new StringBuffer();
+		boolean explained = false;
+		for (String stmt : statements) {
+			String plan = getDatabase().explain(stmt);
+			plans.append(stmt).append(":\n");
+			if (plan == null) {
+				plans.append("(no plan)\n");
+			} else {
+				plans.append(plan);
+				explained = true;
+			}
+		}
+		return explained ? plans.toString() : null;
+	}
+
+	private static String getMappingId(Rule rule) {
+		return rule.getParentMapping() == null ? null : rule.getParentMapping().getId();
+	}
+
+	/**
+	 * @param rules the rules of a program
+	 * @return the ids of the mappings of {@code rules}, separated by commas
+	 */
+	private static String getMappingIds(List<Rule> rules) {
+		Set<String> ids = new TreeSet<String>();
+		for (Rule r : rules) {
+			String id = getMappingId(r);
+			if (id != null) {
+				ids.add(id);
+			}
+		}
+		StringBuffer sb = new StringBuffer();
+		for (String id : ids) {
+			if (sb.length() > 0) {
+				sb.append(",");
+			}
+			sb.append(id);
+		}
+		return sb.length() == 0 ? null : sb.toString();
+	}
+
 	/* (non-Javadoc)
 	 * @see edu.upenn.cis.orchestra.engine.RuleQuery#prepare()
 	 */
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms.sql.generation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cardinalities and column distinct counts of the tables of a database, as
+ * last read by {@code SqlDb} from its catalog statistics. These are used to
+ * order the joins of the SQL generated for the database, see
+ * {@link JoinOrderOptimizer}. Each database has its own statistics, see
+ * {@code SqlDb.getTableStatistics()}.
+ * <p>
+ * Whenever the cardinality of a table changes enough to affect join orders,
+ * the plan generation is incremented, so that SQL generated with the old
+ * statistics can be generated and prepared again.
+ * 
+ */
+public class TableStatistics {
+	/** Tables smaller than this never cause joins to be re-planned */
+	static final long MIN_REPLAN_ROWS = 1000;
+	/** Factor by which a cardinality must change to re-plan joins */
+	static final double REPLAN_FACTOR = 2;
+
+	private final Map<String, Long> _cardinalities = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Long> _distinctCounts = new ConcurrentHashMap<String, Long>();
+	private final AtomicInteger _planGeneration = new AtomicInteger();
+
+	private static String columnKey(String table, String column) {
+		return table.toUpperCase() + "." + column.toUpperCase();
+	}
+
+	/**
+	 * Records the number of rows in a table.
+	 * 
+	 * @param table the fully qualified name of the table
+	 * @param rows the number of rows
+	 */
+	public void setCardinality(String table, long rows) {
+		Long old = _cardinalities.put(table.toUpperCase(), rows);
+		if (changesPlans((old == null) ? -1 : old, rows)) {
+			_planGeneration.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Decides whether a change of the cardinality of a table may change the
+	 * join orders chosen for it.
+	 * 
+	 * @param oldRows the previous number of rows, or <code>-1</code> if
+	 *            unknown
+	 * @param newRows the new number of rows
+	 * @return <code>true</code> if joins should be re-planned
+	 */
+	static boolean changesPlans(long oldRows, long newRows) {
+		if (Math.max(oldRows, newRows) < MIN_REPLAN_ROWS) {
+			return false;
+		} else if (oldRows < 0) {
+			return true;
+		}
+		double smaller = Math.max(Math.min(oldRows, newRows), 1);
+		return Math.max(oldRows, newRows) / smaller > REPLAN_FACTOR;
+	}
+
+	/**
+	 * Returns the plan generation, which changes whenever the statistics
+	 * changed enough that generated SQL should be re-planned.
+	 * 
+	 * @return the current plan generation
+	 */
+	public int getPlanGeneration() {
+		return _planGeneration.get();
+	}
+
+	/**
+	 * Records the number of distinct values of a column.
+	 * 
+	 * @param table the fully qualified name of the table
+	 * @param column the column name
+	 * @param distinct the number of distinct values
+	 */
+	public void setDistinctCount(String table, String column,
+			long distinct) {
+		_distinctCounts.put(columnKey(table, column), distinct);
+	}
+
+	/**
+	 * @param table the fully qualified name of the table
+	 * @return the number of rows in the table, or <code>-1</code> if unknown
+	 */
+	public long getCardinality(String table) {
+		Long rows = _cardinalities.get(table.toUpperCase());
+		return (rows == null) ? -1 : rows;
+	}
+
+	/**
+	 * @param table the fully qualified name of the table
+	 * @param column the column name
+	 * @return the number of distinct values of the column, or <code>-1</code>
+	 *         if unknown
+	 */
+	public long getDistinctCount(String table, String column) {
+		Long distinct = _distinctCounts.get(columnKey(table, column));
+		return (distinct == null) ? -1 : distinct;
+	}
+
+	/**
+	 * Forgets all statistics, e.g., when the contents of the tables are replaced.
+	 */
+	public void clear() {
+		_cardinalities.clear();
+		_distinctCounts.clear();
+		_planGeneration.incrementAndGet();
+	}
+}
@@ -50,6 +50,52 @@ public class DB2SqlStatementGen extends AbstractSqlStatementGen {
 		return ("cast(null as " + type + ")");
 	}
 
+	/**
+	 * The DB2 optimizer ignores the order of the <code>FROM</code> clause, so
+	 * the join order is given as an optimization guideline embedded at the
+	 * end of the statement (with DB2 9.1 and 9.5, this needs the
+	 * <code>DB2_OPTPROFILE</code> registry variable). A guideline refers to
+	 * the tables by their aliases, which repeat in the branches of a union,
+	 * so none is added to statements that may be unioned
+	 * ({@link Config#getUnion()}).
+	 */
+	@Override
+	public String hintJoinOrder(String statement, List<String> aliases) {
+		if (Config.getUnion() || aliases.size() < 2) {
+			return statement;
+		}
+		String join = "<ACCESS TABLE='" + aliases.get(0) + "'/>";
+		for (String alias : aliases.subList(1, aliases.size())) {
+			join = "<JOIN>" + join + "<ACCESS TABLE='" + alias + "'/></JOIN>";
+		}
+		return statement + " /* <OPTGUIDELINES>" + join + "</OPTGUIDELINES> */";
+	}
+
+	/**
+	 * Returns the condition selecting a table from the catalog views.
+	 */
+	private static String catalogTable(String table) {
+		int dot = table.lastIndexOf('.');
+		String schema = (dot < 0) ? "CURRENT SCHEMA" : "'" + table.substring(0, dot).toUpperCase() + "'";
+		return "TABSCHEMA = " + schema + " AND TABNAME = '"
+			+ table.substring(dot + 1).toUpperCase() + "'";
+	}
+
+	/**
+	 * The cardinality recorded by <code>RUNSTATS</code>, which is
+	 * <code>-1</code> for volatile tables.
+	 */
+	@Override
+	public String tableCardinality(String table) {
+		return "SELECT CARD FROM SYSCAT.TABLES WHERE " + catalogTable(table);
+	}
+
+	@Override
+	public String columnCardinalities(String table) {
+		return "SELECT COLNAME, COLCARD FROM SYSCAT.COLUMNS WHERE "
+			+ catalogTable(table);
+	}
+
 	@Override
 	public String skolemNullProjection(String type){
 		//		return ("cast(null as " + type + ")");
@@ -17,6 +17,8 @@ package edu.upenn.cis.orchestra.dbms.sql.vendors;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import edu.upenn.cis.orchestra.datalog.atom.Atom.AtomType;
 import edu.upenn.cis.orchestra.dbms.SqlDb;
@@ -33,6 +35,7 @@ import edu.upenn.cis.orchestra.sql.SqlFactories;
  *
  */
 public class OracleSqlStatementGen extends AbstractSqlStatementGen {
+	private static final Pattern SELECT = Pattern.compile("\\bSELECT\\b", Pattern.CASE_INSENSITIVE);
 
 	public List<String> importData(FileDb fdb, List<String> baseTables, SqlDb db){
 		List<String> statements = new ArrayList<String>();
@@ -48,6 +51,44 @@ public class OracleSqlStatementGen extends AbstractSqlStatementGen {
 	public String getLoggingMsg() {
 		return " NOLOGGING";
 	}
+
+	/**
+	 * Adds the <code>ORDERED</code> hint to the outermost query block, which
+	 * makes Oracle join the tables in <code>FROM</code> order. Like any hint
+	 * other than <code>RULE</code>, it has the statement planned by the
+	 * cost-based optimizer even if the rule-based one is active (see
+	 * {@link SqlDb#activateRuleBasedOptimizer()}).
+	 */
+	@Override
+	public String hintJoinOrder(String statement, List<String> aliases) {
+		Matcher m = SELECT.matcher(statement);
+		if (!m.find()) {
+			return statement;
+		}
+		return statement.substring(0, m.end()) + " /*+ ORDERED */"
+			+ statement.substring(m.end());
+	}
+
+	/**
+	 * Returns the condition selecting a table from the dictionary views.
+	 */
+	private static String dictionaryTable(String table) {
+		int dot = table.lastIndexOf('.');
+		String owner = (dot < 0) ? "USER" : "'" + table.substring(0, dot).toUpperCase() + "'";
+		return "OWNER = " + owner + " AND TABLE_NAME = '"
+			+ table.substring(dot + 1).toUpperCase() + "'";
+	}
+
+	@Override
+	public String tableCardinality(String table) {
+		return "SELECT NUM_ROWS FROM ALL_TABLES WHERE " + dictionaryTable(table);
+	}
+
+	@Override
+	public String columnCardinalities(String table) {
+		return "SELECT COLUMN_NAME, NUM_DISTINCT FROM ALL_TAB_COL_STATISTICS WHERE "
+			+ dictionaryTable(table);
+	}
 	
 	private String alterColMsg(String col, String def){
 		return "MODIFY(" + col + " DEFAULT " + def + ")";
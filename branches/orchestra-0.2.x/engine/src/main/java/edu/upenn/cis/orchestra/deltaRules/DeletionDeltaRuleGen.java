@@ -19,6 +19,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
 import edu.upenn.cis.orchestra.Config;
@@ -37,29 +39,69 @@ import edu.upenn.cis.orchestra.datamodel.Mapping;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
 import edu.upenn.cis.orchestra.datamodel.RelationContext;
 import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.mappings.AtomIndex;
 import edu.upenn.cis.orchestra.mappings.MappingsInversionMgt;
 import edu.upenn.cis.orchestra.mappings.Rule;
 import edu.upenn.cis.orchestra.util.XMLParseException;
 
 /**
  * Generator for deletion delta rules
+ * <p>
+ * By default, the tuples affected by a deletion are deleted unless they are
+ * still reachable from the base data, which is tested by a recursive
+ * derivability program. With {@code countDerivations}, tuples are instead
+ * deleted when none of their derivations is left, i.e., when their count of
+ * rows in the provenance relations (and their local contribution) drops to
+ * zero. Since insertions already maintain the provenance relations, those
+ * rows are the derivation counts, and the test is a non-recursive join of the
+ * affected tuples with them. This is only correct when no relation depends on
+ * itself through the mappings, so recursive mappings still use the
+ * reachability test.
  * 
  * @author zives, gkarvoun
  *
  */
 public class DeletionDeltaRuleGen extends DeltaRuleGen {
 	
+	private static final Logger _log = LoggerFactory.getLogger(DeletionDeltaRuleGen.class);
+	
 	/**
 	 * Indicates that there exist bidirectional mappings in the system.
 	 */
 	private boolean bidirectional;
 	
+	/**
+	 * Indicates that deletions are propagated by counting the remaining
+	 * derivations of the affected tuples.
+	 */
+	private boolean countDerivations;
+	
 	public DeletionDeltaRuleGen (OrchestraSystem system, ITranslationRules translationRules, Map<String, Schema> builtInSchemas, boolean containsBidirectionalMappings)
 	{
 		super(system, translationRules, builtInSchemas);
 		bidirectional = containsBidirectionalMappings;
 	}
 
+	/**
+	 * Creates the deletion rules, propagating deletions by counting
+	 * derivations if {@code countDerivations} and the mappings are not
+	 * recursive.
+	 * 
+	 * @param system
+	 * @param translationRules
+	 * @param builtInSchemas
+	 * @param containsBidirectionalMappings
+	 * @param countDerivations
+	 */
+	public DeletionDeltaRuleGen (OrchestraSystem system, ITranslationRules translationRules, Map<String, Schema> builtInSchemas, 
+			boolean containsBidirectionalMappings, boolean countDerivations)
+	{
+		super(system, translationRules, builtInSchemas, false);
+		bidirectional = containsBidirectionalMappings;
+		this.countDerivations = countDerivations;
+		createRules(builtInSchemas);
+	}
+
 	/**
 	 * Creates a new {@code DeletionDeltaRuleGen} from serialized state. Used for testing.
 	 * 
@@ -73,6 +115,24 @@ public class DeletionDeltaRuleGen extends DeltaRuleGen {
 		super(translationStateDoc, builtInSchemasDoc, system);
 		bidirectional = system.isBidirectional();
 	}
+
+	/**
+	 * Creates a new {@code DeletionDeltaRuleGen} counting derivations from
+	 * serialized state. Used for testing.
+	 * 
+	 * @param translationStateDoc
+	 * @param builtInSchemasDoc
+	 * @param system 
+	 * @param countDerivations
+	 * @throws XMLParseException
+	 */
+	DeletionDeltaRuleGen(Document translationStateDoc,
+			Document builtInSchemasDoc, OrchestraSystem system, boolean countDerivations) throws XMLParseException {
+		super(translationStateDoc, builtInSchemasDoc, system, false);
+		bidirectional = system.isBidirectional();
+		this.countDerivations = countDerivations;
+		createRules(getBuiltInSchemas());
+	}
 	
 	
 	private List<DatalogSequence> updatePolicyRules() {
@@ -312,7 +372,10 @@ public class DeletionDeltaRuleGen extends DeltaRuleGen {
 //		why are these always non-zero?
 
 
-		mainLoop.addAll(reachabilityTestingProgram(builtInSchemas));
+		if (countDerivations)
+			mainLoop.add(new NonRecursiveDatalogProgram(remainingDerivationRules(builtInSchemas), false, "RemainingDerivations"));
+		else
+			mainLoop.addAll(reachabilityTestingProgram(builtInSchemas));
 
 		mainLoop.add(new NonRecursiveDatalogProgram(unreachableDeletionApplicationRules(),true, "UnreachableDelApplication"));
 
@@ -622,6 +685,33 @@ public class DeletionDeltaRuleGen extends DeltaRuleGen {
 	}
 
 
+	/*
+	 * Marks as reachable the affected idb tuples with a derivation left, from
+	 * their local contribution or from the provenance relations, once the
+	 * deletions have been applied to them (in their NEW versions)
+	 */
+	private List<Rule> remainingDerivationRules(Map<String, Schema> builtInSchemas){
+		List<Rule> vr = new ArrayList<Rule>();
+		List<Rule> defs = new ArrayList<Rule>();
+		defs.addAll(getLocal2PeerRules());
+		defs.addAll(getProv2TargetRules());
+
+		for(Rule r : defs){
+			Atom head = new Atom(r.getHead(), AtomType.RCH);
+			List<Atom> body = new ArrayList<Atom>();
+			body.add(new Atom(r.getHead(), AtomType.INV));
+
+			for(Atom a : r.getBody()){
+				if(a.isSkolem() || builtInSchemas.containsKey(a.getSchema().getSchemaId()))
+					body.add(new Atom(a, AtomType.NONE));
+				else
+					body.add(new Atom(a, AtomType.NEW));
+			}
+			vr.add(new Rule(head, body, r.getParentMapping(), true, getBuiltInSchemas()));
+		}
+		return vr;
+	}
+
 	private List<Rule> unreachableDeletionApplicationRules() {
 		//protected List<DatalogProgram> unreachableDeletionApplicationRules() {
 		List<Rule> vr = new ArrayList<Rule>();
@@ -1135,6 +1225,7 @@ public class DeletionDeltaRuleGen extends DeltaRuleGen {
 		}
 
 		//		defs.addAll(local2PeerRules);
+		AtomIndex<Rule> defIndex = AtomIndex.byHead(defs);
 
 		for(int j = 0; j < newRules.size(); j++){
 			Rule r = newRules.get(j);
@@ -1144,7 +1235,7 @@ public class DeletionDeltaRuleGen extends DeltaRuleGen {
 			if(i < r.getBody().size()){
 				newRules.remove(j);
 //				try{
-				newRules.addAll(r.substituteAtom(i, defs, true));
+				newRules.addAll(r.substituteAtom(i, defIndex, true));
 //				}catch(UnsupportedDisjunctionException e){
 ////				I think this will never happen here anyway, 
 ////				because I have "cut" the negated clauses above
@@ -1171,6 +1262,10 @@ public class DeletionDeltaRuleGen extends DeltaRuleGen {
 
 			}
 		}
+		if (countDerivations && !RulePrecedenceGraph.isAcyclic(getTranslationRules().getSource2TargetRules())) {
+			_log.info("Mappings are recursive, deletions are propagated by testing reachability");
+			countDerivations = false;
+		}
 		ret.add(preDeletionRules());
 		ret.add(deletionRules(builtInSchemas));
 		ret.add(postDeletionRules(true, true));
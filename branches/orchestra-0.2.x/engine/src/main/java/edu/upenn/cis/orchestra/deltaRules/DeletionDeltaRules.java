@@ -27,7 +27,8 @@ import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.datalog.DatalogEngine;
 import edu.upenn.cis.orchestra.datalog.DatalogSequence;
 import edu.upenn.cis.orchestra.dbms.SqlDb;
-import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 
 /**
  * The rules for incremental deletion during update exchange.
@@ -40,6 +41,8 @@ class DeletionDeltaRules extends DeltaRules {
 	private boolean bidirectional;
 	private static final Logger logger = LoggerFactory
 			.getLogger(DeletionDeltaRules.class);
+	private static final Timer NET_TIME_TIMER = MetricsRegistry
+			.getDefault().timer("exchange.deletion.net");
 
 	/**
 	 * Create executable deletion rules from {@code code}.
@@ -331,7 +334,7 @@ class DeletionDeltaRules extends DeltaRules {
 			logger.debug("EXP: NET DELETION TIME: {} msec", Long.valueOf(time
 					- de.logTime()));
 
-			SqlEngine.delTimes.add(new Long(time - de.logTime()));
+			NET_TIME_TIMER.update((time - de.logTime()) * 1000000);
 			retTime = time - de.logTime();
 
 			de.commitAndReset();
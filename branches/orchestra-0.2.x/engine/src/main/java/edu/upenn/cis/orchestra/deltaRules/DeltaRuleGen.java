@@ -64,12 +64,28 @@ public abstract class DeltaRuleGen implements IDeltaRuleGen {
 	 * 
 	 */
 	public DeltaRuleGen (OrchestraSystem system, ITranslationRules translationRules, Map<String, Schema> builtInSchemas) 
+	{
+		this(system, translationRules, builtInSchemas, true);
+	}
+
+	/**
+	 * Base abstract class for delta rule generation
+	 * @param system 
+	 * @param translationRules 
+	 * @param builtInSchemas
+	 * @param create whether the rules are created right away, or by the
+	 *            subclass once its own fields are set
+	 * 
+	 */
+	protected DeltaRuleGen (OrchestraSystem system, ITranslationRules translationRules, Map<String, Schema> builtInSchemas,
+			boolean create) 
 	{
 		_translationRules = translationRules;
 		_builtInSchemas = builtInSchemas;
 		//_provenancePrep = _dr.getProvenancePrepInfo();
 		_system = system;
-		createRules(_builtInSchemas);
+		if (create)
+			createRules(_builtInSchemas);
 	}
 
 	/**
@@ -82,8 +98,22 @@ public abstract class DeltaRuleGen implements IDeltaRuleGen {
 	 */
 	protected DeltaRuleGen(Document translationRulesDoc,
 			Document builtInSchemasDoc, OrchestraSystem system) throws XMLParseException {
+		this(translationRulesDoc, builtInSchemasDoc, system, true);
+	}
+
+	/**
+	 * Creates a new {@code DeltaRuleGen} from serialized rules. Used for testing.
+	 * 
+	 * @param translationRulesDoc
+	 * @param builtInSchemasDoc
+	 * @param system 
+	 * @param create whether the rules are created right away
+	 * @throws XMLParseException
+	 */
+	protected DeltaRuleGen(Document translationRulesDoc,
+			Document builtInSchemasDoc, OrchestraSystem system, boolean create) throws XMLParseException {
 		this(system, deserializeTranslationState(translationRulesDoc, system), OrchestraSystem
-				.deserializeBuiltInFunctions(builtInSchemasDoc));
+				.deserializeBuiltInFunctions(builtInSchemasDoc), create);
 	}
 	
 	/**
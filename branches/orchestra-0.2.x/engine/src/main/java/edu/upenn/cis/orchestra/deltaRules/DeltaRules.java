@@ -20,7 +20,13 @@ import static edu.upenn.cis.orchestra.util.DomUtils.createDocument;
 import static edu.upenn.cis.orchestra.util.DomUtils.getChildElementsByName;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -33,9 +39,12 @@ import edu.upenn.cis.orchestra.datalog.Datalog;
 import edu.upenn.cis.orchestra.datalog.DatalogEngine;
 import edu.upenn.cis.orchestra.datalog.DatalogProgram;
 import edu.upenn.cis.orchestra.datalog.DatalogSequence;
+import edu.upenn.cis.orchestra.datalog.SharedJoinRewriter;
 import edu.upenn.cis.orchestra.datalog.SingleRuleDatalogProgram;
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
 import edu.upenn.cis.orchestra.exchange.RuleQuery;
+import edu.upenn.cis.orchestra.mappings.Rule;
 import edu.upenn.cis.orchestra.util.XMLParseException;
 
 /**
@@ -75,6 +84,11 @@ public abstract class DeltaRules implements IDeltaRules {
 						RuleQuery rq = dp.statements();
 						if (rq != null)
 							rq.cleanupPrepared();
+						for (DatalogProgram shared : SharedJoinRewriter.getRewritten(dp)) {
+							rq = shared.statements();
+							if (rq != null)
+								rq.cleanupPrepared();
+						}
 					} else if (d instanceof SingleRuleDatalogProgram) {
 						SingleRuleDatalogProgram dp = (SingleRuleDatalogProgram) d;
 						RuleQuery rq = dp.statements();
@@ -87,6 +101,184 @@ public abstract class DeltaRules implements IDeltaRules {
 
 	}
 
+	/**
+	 * Replaces each program of {@code rules} by the program of {@code previous}
+	 * with the same rules, up to the names of their variables, so that the
+	 * statements already prepared for it are kept. The prepared statements of
+	 * the programs of {@code previous} that are not reused are cleaned up,
+	 * and the tables of their shared joins dropped.
+	 * 
+	 * @param rules newly generated delta rules
+	 * @param previous the delta rules they replace, or {@code null}
+	 * @return the number of programs reused from {@code previous}
+	 */
+	public static int reuseUnchanged(IDeltaRules rules, IDeltaRules previous) {
+		return reuseUnaffected(rules, previous, null);
+	}
+
+	/**
+	 * Replaces the programs of {@code rules} by those of {@code previous}, so
+	 * that only the programs reached by a change of the mappings are compiled
+	 * again. A program which reads or writes none of the {@code affected}
+	 * relations is replaced by the previous program at the same position of
+	 * the code, with the same description, which did not either, without
+	 * comparing their rules. Any other program
+	 * is only replaced by a previous program with the same rules, up to the
+	 * names of their variables. The prepared statements of the programs of
+	 * {@code previous} that are not reused are cleaned up, and the tables of
+	 * their shared joins dropped.
+	 * 
+	 * @param rules newly generated delta rules
+	 * @param previous the delta rules they replace, or {@code null}
+	 * @param affected the names of the relations affected by the change, see
+	 *            {@link RulePrecedenceGraph#affectedRelations(List, List)}, or
+	 *            {@code null} to compare the rules of every program
+	 * @return the number of programs reused from {@code previous}
+	 */
+	public static int reuseUnaffected(IDeltaRules rules, IDeltaRules previous, Set<String> affected) {
+		if (previous == null) {
+			return 0;
+		}
+		Map<String, DatalogProgram> programs = new LinkedHashMap<String, DatalogProgram>();
+		List<DatalogSequence> code = previous.getCode();
+		for (int i = 0; i < code.size(); i++) {
+			collectPrograms(code.get(i), String.valueOf(i), programs);
+		}
+		Map<String, List<DatalogProgram>> unchanged = new HashMap<String, List<DatalogProgram>>();
+		Map<String, List<DatalogProgram>> unreached = new HashMap<String, List<DatalogProgram>>();
+		for (Map.Entry<String, DatalogProgram> entry : programs.entrySet()) {
+			DatalogProgram dp = entry.getValue();
+			add(unchanged, canonicalKey(dp), dp);
+			if (affected != null && !reaches(dp, affected)) {
+				add(unreached, entry.getKey() + " " + programKey(dp), dp);
+			}
+		}
+		Set<DatalogProgram> used = Collections.newSetFromMap(new IdentityHashMap<DatalogProgram, Boolean>());
+		int reused = 0;
+		code = rules.getCode();
+		for (int i = 0; i < code.size(); i++) {
+			reused += reusePrograms(code.get(i), String.valueOf(i), affected, unchanged, unreached, used);
+		}
+		for (DatalogProgram dp : programs.values()) {
+			if (!used.contains(dp)) {
+				cleanupPreparedStmts(dp);
+			}
+		}
+		return reused;
+	}
+
+	/**
+	 * Adds the programs of a sequence, keyed by their position: the indexes
+	 * of the nested sequences leading to them, separated by dots.
+	 */
+	private static void collectPrograms(DatalogSequence ds, String position,
+			Map<String, DatalogProgram> programs) {
+		List<Datalog> seq = ds.getSequence();
+		for (int i = 0; i < seq.size(); i++) {
+			Datalog d = seq.get(i);
+			if (d instanceof DatalogSequence) {
+				collectPrograms((DatalogSequence) d, position + "." + i, programs);
+			} else if (d instanceof DatalogProgram) {
+				programs.put(position + "." + i, (DatalogProgram) d);
+			}
+		}
+	}
+
+	private static void add(Map<String, List<DatalogProgram>> programs, String key, DatalogProgram dp) {
+		List<DatalogProgram> progs = programs.get(key);
+		if (progs == null) {
+			progs = new LinkedList<DatalogProgram>();
+			programs.put(key, progs);
+		}
+		progs.add(dp);
+	}
+
+	/**
+	 * @return the first program under {@code key} which is not used yet,
+	 *         marked as used, or {@code null}
+	 */
+	private static DatalogProgram take(Map<String, List<DatalogProgram>> programs, String key,
+			Set<DatalogProgram> used) {
+		List<DatalogProgram> progs = programs.get(key);
+		if (progs != null) {
+			for (DatalogProgram dp : progs) {
+				if (used.add(dp)) {
+					return dp;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static int reusePrograms(DatalogSequence ds, String position, Set<String> affected,
+			Map<String, List<DatalogProgram>> unchanged, Map<String, List<DatalogProgram>> unreached,
+			Set<DatalogProgram> used) {
+		int reused = 0;
+		List<Datalog> seq = ds.getSequence();
+		for (int i = 0; i < seq.size(); i++) {
+			Datalog d = seq.get(i);
+			if (d instanceof DatalogSequence) {
+				reused += reusePrograms((DatalogSequence) d, position + "." + i, affected, unchanged,
+						unreached, used);
+			} else if (d instanceof DatalogProgram) {
+				DatalogProgram dp = (DatalogProgram) d;
+				DatalogProgram prev = null;
+				if (affected != null && !reaches(dp, affected)) {
+					prev = take(unreached, position + "." + i + " " + programKey(dp), used);
+				}
+				if (prev == null) {
+					prev = take(unchanged, canonicalKey(dp), used);
+				}
+				if (prev != null) {
+					seq.set(i, prev);
+					reused++;
+				}
+			}
+		}
+		return reused;
+	}
+
+	/**
+	 * @return whether a rule of the program reads or writes one of the
+	 *         {@code affected} relations
+	 */
+	private static boolean reaches(DatalogProgram dp, Set<String> affected) {
+		for (Rule r : dp.getRules()) {
+			if (affected.contains(r.getHead().getRelationContext().toString()))
+				return true;
+			for (Atom a : r.getBody()) {
+				if (affected.contains(a.getRelationContext().toString()))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static String programKey(DatalogProgram dp) {
+		return dp.getClass().getName() + " " + dp.getDescription() + " " + dp.count4fixpoint()
+				+ " " + dp.measureExecTime();
+	}
+
+	private static String canonicalKey(DatalogProgram dp) {
+		StringBuffer buffer = new StringBuffer(programKey(dp));
+		for (Rule r : dp.getRules()) {
+			buffer.append("\n" + r.toCanonicalString());
+		}
+		return buffer.toString();
+	}
+
+	private static void cleanupPreparedStmts(DatalogProgram dp) {
+		RuleQuery rq = dp.statements();
+		if (rq != null)
+			rq.cleanupPrepared();
+		for (DatalogProgram shared : SharedJoinRewriter.getRewritten(dp)) {
+			rq = shared.statements();
+			if (rq != null)
+				rq.cleanupPrepared();
+		}
+		SharedJoinRewriter.release(dp);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
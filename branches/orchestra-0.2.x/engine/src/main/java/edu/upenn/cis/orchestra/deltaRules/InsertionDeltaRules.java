@@ -26,7 +26,8 @@ import org.w3c.dom.Element;
 import edu.upenn.cis.orchestra.datalog.DatalogEngine;
 import edu.upenn.cis.orchestra.datalog.DatalogSequence;
 import edu.upenn.cis.orchestra.dbms.SqlDb;
-import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 
 /**
  * Rules for incremental insertion during update exchange.
@@ -38,6 +39,8 @@ class InsertionDeltaRules extends DeltaRules {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(InsertionDeltaRules.class);
+	private static final Timer NET_TIME_TIMER = MetricsRegistry
+			.getDefault().timer("exchange.insertion.net");
 
 	/**
 	 * Creates executable insertion rules from {@code code}.
@@ -125,11 +128,16 @@ class InsertionDeltaRules extends DeltaRules {
 			logger.debug("EXP: NET INSERTION TIME: {} msec", Long.valueOf(time
 					- de.logTime()));
 
-			SqlEngine.insTimes.add(new Long(time - de.logTime()));
+			NET_TIME_TIMER.update((time - de.logTime()) * 1000000);
 			retTime = time - de.logTime();
 
 			de.commitAndReset();
 
+			// The inserted tuples are in the delta relations until the post
+			// insertion program applies them
+			if (de._sql instanceof SqlDb)
+				((SqlDb) de._sql).maintainAnnotations();
+
 			before = Calendar.getInstance();
 			de.evaluatePrograms(insProg.get(2));
 			after = Calendar.getInstance();
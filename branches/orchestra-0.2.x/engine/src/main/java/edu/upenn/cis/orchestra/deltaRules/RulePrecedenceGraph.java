@@ -19,8 +19,10 @@ package edu.upenn.cis.orchestra.deltaRules;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 import edu.upenn.cis.orchestra.deltaRules.exceptions.RulesCycleException;
@@ -166,6 +168,65 @@ public class RulePrecedenceGraph {
 		return res;
 	}
 	
+	/**
+	 * Tests whether the relations of a set of rules depend on themselves
+	 * @param rules Rules to test
+	 * @return True if no relation depends on itself through the rules
+	 */
+	public static boolean isAcyclic (List<Rule> rules)
+	{
+		return new RulePrecedenceGraph (rules).dfs();
+	}
+	
+	/**
+	 * Computes the relations affected when a set of rules is replaced by
+	 * another: the heads of the rules that were added or removed, and the
+	 * relations derived from them through the new rules. Rules are compared
+	 * up to the names of their variables.
+	 * @param previous Rules before the change
+	 * @param rules Rules after the change
+	 * @return Names of the affected relations
+	 */
+	public static Set<String> affectedRelations (List<Rule> previous, List<Rule> rules)
+	{
+		Set<String> before = new HashSet<String> ();
+		for (Rule r : previous)
+			before.add(r.toCanonicalString());
+		Set<String> after = new HashSet<String> ();
+		Set<String> affected = new HashSet<String> ();
+		for (Rule r : rules)
+		{
+			String s = r.toCanonicalString();
+			after.add(s);
+			if (!before.contains(s))
+				affected.add(r.getHead().getRelationContext().toString());
+		}
+		for (Rule r : previous)
+			if (!after.contains(r.toCanonicalString()))
+				affected.add(r.getHead().getRelationContext().toString());
+		
+		// Close over the relations derived from affected ones
+		boolean changed = !affected.isEmpty();
+		while (changed)
+		{
+			changed = false;
+			for (Rule r : rules)
+			{
+				String head = r.getHead().getRelationContext().toString();
+				if (affected.contains(head))
+					continue;
+				for (Atom a : r.getBody())
+					if (affected.contains(a.getRelationContext().toString()))
+					{
+						affected.add(head);
+						changed = true;
+						break;
+					}
+			}
+		}
+		return affected;
+	}
+	
 	/**
 	 * Run a topological sort of the graph defined by this list of rules
 	 * If a cycle is detected in this graph, an exception will be raised!
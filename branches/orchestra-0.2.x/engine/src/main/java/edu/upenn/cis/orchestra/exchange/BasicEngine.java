@@ -24,9 +24,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -48,14 +52,17 @@ import edu.upenn.cis.orchestra.datamodel.exceptions.IncompatibleKeysException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.IncompatibleTypesException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.RelationUpdateException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.UnsupportedTypeException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultSetIterator;
 import edu.upenn.cis.orchestra.dbms.DbFactory;
 import edu.upenn.cis.orchestra.dbms.IDb;
 import edu.upenn.cis.orchestra.deltaRules.DeletionDeltaRuleGen;
 import edu.upenn.cis.orchestra.deltaRules.DeltaRuleGen;
+import edu.upenn.cis.orchestra.deltaRules.DeltaRules;
 import edu.upenn.cis.orchestra.deltaRules.IDeltaRuleGen;
 import edu.upenn.cis.orchestra.deltaRules.IDeltaRules;
 import edu.upenn.cis.orchestra.deltaRules.InsertionDeltaRuleGen;
+import edu.upenn.cis.orchestra.deltaRules.RulePrecedenceGraph;
 import edu.upenn.cis.orchestra.exchange.exceptions.MappingNotFoundException;
 import edu.upenn.cis.orchestra.exchange.flatfile.FileDb;
 import edu.upenn.cis.orchestra.mappings.MappingTopologyTest;
@@ -74,6 +81,7 @@ import edu.upenn.cis.orchestra.util.XMLParseException;
  *
  */
 public abstract class BasicEngine implements IEngine {
+	private static final Logger _log = LoggerFactory.getLogger(BasicEngine.class);
 
 	private ITranslationState _state;
 
@@ -86,6 +94,9 @@ public abstract class BasicEngine implements IEngine {
 	/** The delta rules for deletion. */
 	protected IDeltaRules _deletionRules;
 	
+	/** Whether deletions are propagated by counting derivations. */
+	private boolean _countingDeletion = Config.getCountingDeletion();
+	
 //	protected IDb _updateDb;
 
 	public ITranslationState getState(){
@@ -148,20 +159,33 @@ public abstract class BasicEngine implements IEngine {
 		
 		MappingTopologyTest.markLabeledNulls(_system.getAllSystemMappings(true));
 		
-		if (!MappingTopologyTest.isWeaklyAcyclic(_system.getAllSystemMappings(true), true))
+		// The key is computed from the catalog as defined, before any rules
+		CompiledRuleCache cache = CompiledRuleCache.fromConfig();
+		String cacheKey = (cache == null) ? null : CompiledRuleCache.computeKey(_system);
+		
+		// An entry is only stored for a catalog which passed the test
+		if ((cache == null || !cache.contains(cacheKey))
+				&& !MappingTopologyTest.isWeaklyAcyclic(_system.getAllSystemMappings(true), true))
 			throw new RuntimeException("Mappings are not weakly acyclic!");
 		
 		syncTableSchemas(_system);
 		
-		ITranslationRuleGen transRuleGen = TranslationRuleGen.newInstance(_system
-				.getAllSystemMappings(true), _system.getAllUserRelations(),
-				_mappingDb.getBuiltInSchemas(), _system.isBidirectional());
-		transRuleGen.computeTranslationRules(_system.getPeers(), _system.getTrustMapping());
-		_state = transRuleGen.getState();
+		// Always computed, even on a cache hit, since this creates the provenance
+		// relations and labeled null columns which the cached rules refer to
+		_state = computeTranslationState();
 		
 		//DomUtils.write(_state.serialize(_mappingDb.getBuiltInSchemas()), new
 		//FileWriter("expectedTranslationRules.xml"));
-		computeDeltaRules(_state);
+		CompiledRuleCache.Entry cached = (cache == null) ? null : cache.load(cacheKey, _system);
+		if (cached != null) {
+			_insertionRules = cached.insertionRules;
+			_deletionRules = cached.deletionRules;
+		} else {
+			computeDeltaRules(_state);
+			if (cache != null) {
+				cache.store(cacheKey, new CompiledRuleCache.Entry(_insertionRules, _deletionRules));
+			}
+		}
 		//DomUtils.write(_insertionRules.serialize(), new
 		//FileWriter("expectedInsertionRules.xml"));
 		//write(_insertionRules.serializeAsCode(), new FileWriter("expectedInsertionCode.xml"));
@@ -175,6 +199,91 @@ public abstract class BasicEngine implements IEngine {
 		//testMappingSchemas(system);
 	}
 	
+	/**
+	 * Computes the translation rules from copies of the mappings of the
+	 * system, since rule generation renames their variables in place, so that
+	 * every compilation starts from the mappings as they were defined.
+	 */
+	private ITranslationState computeTranslationState() throws Exception {
+		List<Mapping> mappings = new ArrayList<Mapping>();
+		for (Mapping m : _system.getAllSystemMappings(true))
+			mappings.add(m.deepCopy());
+		ITranslationRuleGen transRuleGen = TranslationRuleGen.newInstance(mappings, _system.getAllUserRelations(),
+				_mappingDb.getBuiltInSchemas(), _system.isBidirectional());
+		transRuleGen.computeTranslationRules(_system.getPeers(), _system.getTrustMapping());
+		return transRuleGen.getState();
+	}
+	
+	/**
+	 * Recompiles the rules of this engine after mappings of the system were
+	 * added, changed or removed. The translation rules are recomputed from the
+	 * mappings, and the delta rules regenerated. Only the delta rule programs
+	 * which read or write an affected relation, and whose rules changed, are
+	 * compiled again: the others are replaced by the previous programs, which
+	 * keep their prepared statements. Only the provenance tables of new
+	 * mapping relations are created, and the {@link CompiledRuleCache}, if
+	 * any, is given the new rules.
+	 * 
+	 * @return the names of the relations affected by the change
+	 * @throws Exception
+	 */
+	public synchronized Set<String> recompileMappings() throws Exception {
+		MappingTopologyTest.markLabeledNulls(_system.getAllSystemMappings(true));
+		if (!MappingTopologyTest.isWeaklyAcyclic(_system.getAllSystemMappings(true), true))
+			throw new RuntimeException("Mappings are not weakly acyclic!");
+		CompiledRuleCache cache = CompiledRuleCache.fromConfig();
+		String cacheKey = (cache == null) ? null : CompiledRuleCache.computeKey(_system);
+		
+		ITranslationState previous = _state;
+		IDeltaRules previousInsertion = _insertionRules;
+		IDeltaRules previousDeletion = _deletionRules;
+		
+		_state = computeTranslationState();
+		Set<String> affected = RulePrecedenceGraph.affectedRelations(
+				previous.getSource2TargetRules(), _state.getSource2TargetRules());
+		computeDeltaRules(_state);
+		int reused = DeltaRules.reuseUnaffected(_insertionRules, previousInsertion, affected)
+				+ DeltaRules.reuseUnaffected(_deletionRules, previousDeletion, affected);
+		createNewProvenanceTables(previous);
+		
+		if (cache != null)
+			cache.store(cacheKey, new CompiledRuleCache.Entry(_insertionRules, _deletionRules));
+		
+		_log.info("Recompiled mappings: {} relations affected, {} delta programs reused", 
+				Integer.valueOf(affected.size()), Integer.valueOf(reused));
+		_log.debug("Affected relations: {}", affected);
+		return affected;
+	}
+	
+	/**
+	 * Creates the provenance tables of the mapping relations that were not in
+	 * {@code previous}.
+	 */
+	private void createNewProvenanceTables(ITranslationState previous) throws Exception {
+		Set<String> existing = new HashSet<String>();
+		for (RelationContext rc : provenanceRelations(previous))
+			existing.add(rc.toString());
+		List<RelationContext> added = new ArrayList<RelationContext>();
+		for (RelationContext rc : provenanceRelations(_state))
+			if (!existing.contains(rc.toString()))
+				added.add(rc);
+		
+		for (String s : createProvenanceTables(added)) {
+			if (!s.isEmpty() && Config.getApply())
+				_mappingDb.evaluate(s);
+		}
+	}
+	
+	private static List<RelationContext> provenanceRelations(ITranslationRules state) {
+		List<RelationContext> ret = new ArrayList<RelationContext>();
+		ret.addAll(state.getRealMappingRelations());
+		ret.addAll(state.getInnerJoinRelations());
+		ret.addAll(state.getSimulatedOuterJoinRelations());
+		ret.addAll(state.getRealOuterJoinRelations());
+		ret.addAll(state.getOuterUnionRelations());
+		return ret;
+	}
+	
 	protected abstract void syncTableSchemas(OrchestraSystem system) throws RelationUpdateException;
 	
 	public abstract void repairSchema() throws Exception;
@@ -239,11 +348,50 @@ public abstract class BasicEngine implements IEngine {
 		IDeltaRuleGen insRuleGen = new InsertionDeltaRuleGen(_system, getState(), getMappingDb().getBuiltInSchemas());
 		_insertionRules = insRuleGen.getDeltaRules();
 
-		IDeltaRuleGen delRuleGen = new DeletionDeltaRuleGen(_system, getState(), getMappingDb().getBuiltInSchemas(), _system.isBidirectional());
+		IDeltaRuleGen delRuleGen = deletionRuleGen(getState());
 		_deletionRules = delRuleGen.getDeltaRules();
 
 	}
 	
+	/**
+	 * Creates the generator of the deletion rules, which count derivations
+	 * if {@link #isCountingDeletion()} and the mappings are unidirectional.
+	 */
+	private IDeltaRuleGen deletionRuleGen(ITranslationRules translationRules) {
+		if (_countingDeletion && !_system.isBidirectional())
+			return new DeletionDeltaRuleGen(_system, translationRules, getMappingDb().getBuiltInSchemas(), _system.isBidirectional(), true);
+		return new DeletionDeltaRuleGen(_system, translationRules, getMappingDb().getBuiltInSchemas(), _system.isBidirectional());
+	}
+	
+	/**
+	 * Returns whether this engine propagates deletions by counting the
+	 * derivations left for the affected tuples, rather than by testing their
+	 * reachability.
+	 * 
+	 * @return whether this engine propagates deletions by counting derivations
+	 */
+	public boolean isCountingDeletion() {
+		return _countingDeletion;
+	}
+	
+	/**
+	 * Selects how this engine propagates deletions, regenerating its deletion
+	 * rules if that changes. Counting derivations is only used when the
+	 * mappings are unidirectional and not recursive; otherwise the rules
+	 * still test reachability.
+	 * 
+	 * @param countingDeletion whether deletions are propagated by counting
+	 *            derivations
+	 */
+	public synchronized void setCountingDeletion(boolean countingDeletion) {
+		if (countingDeletion == _countingDeletion)
+			return;
+		_countingDeletion = countingDeletion;
+		if (_deletionRules != null)
+			_deletionRules.cleanupPreparedStmts();
+		_deletionRules = deletionRuleGen(getState()).getDeltaRules();
+	}
+	
 	/**
 	 * Creates the set of delta rules for the system
 	 */
@@ -268,7 +416,7 @@ public abstract class BasicEngine implements IEngine {
 			}
 		}
 
-		IDeltaRuleGen delRuleGen = new DeletionDeltaRuleGen(_system, translationRules, getMappingDb().getBuiltInSchemas(), _system.isBidirectional());
+		IDeltaRuleGen delRuleGen = deletionRuleGen(translationRules);
 		_deletionRules = delRuleGen.getDeltaRules();
 
 		if (Config.getDebug()) {
@@ -661,6 +809,14 @@ public abstract class BasicEngine implements IEngine {
 		return _mappingDb.evalQueryRule(r);
 	}
 
+	/** Evaluate queries with a common head as unions and return results with a forward-only iterator */
+	public ResultIterator<Tuple> evalQueryRules(List<Rule> r) throws Exception {
+		if (!_mappingDb.isConnected()) {
+			_mappingDb.connect();
+		}
+		return _mappingDb.evalQueryRules(r);
+	}
+
 	/** Evaluate a query and return results with iterator */
 	public List<ResultSetIterator<Tuple>> evalRuleSet(List<Rule> r, String semiringName, boolean provenanceQuery) throws Exception {
 		if (!_mappingDb.isConnected()) {
@@ -669,6 +825,23 @@ public abstract class BasicEngine implements IEngine {
 		return _mappingDb.evalRuleSet(r, semiringName, provenanceQuery);
 	}
 
+	/** Evaluate a query and return its results with a lazily evaluated, forward-only iterator */
+	public ResultIterator<Tuple> evalQueryRule(Rule r, int fetchSize, int limit) throws Exception {
+		if (!_mappingDb.isConnected()) {
+			_mappingDb.connect();
+		}
+		return _mappingDb.evalQueryRule(r, fetchSize, limit);
+	}
+
+	/** Evaluate a set of queries and return all of their results with a lazily evaluated, forward-only iterator */
+	public ResultIterator<Tuple> evalRuleSet(List<Rule> r, String semiringName, boolean provenanceQuery,
+			int fetchSize, int limit) throws Exception {
+		if (!_mappingDb.isConnected()) {
+			_mappingDb.connect();
+		}
+		return _mappingDb.evalRuleSet(r, semiringName, provenanceQuery, fetchSize, limit);
+	}
+
 	/** Evaluate an update (insertion or deletion) and return count of tuples updated */
 	public int evalUpdateRule(Rule rule) throws Exception {
 		if (!_mappingDb.isConnected()) {
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.exchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
+import edu.upenn.cis.orchestra.deltaRules.DeltaRules;
+import edu.upenn.cis.orchestra.deltaRules.IDeltaRules;
+import edu.upenn.cis.orchestra.util.DomUtils;
+
+/**
+ * An on-disk cache of the delta rules computed by {@link BasicEngine}, so
+ * that restarting with an unchanged catalog does not recompute them. Entries
+ * are stored in a sub-directory named by a hash of the serialized catalog
+ * (peers, schemas, mappings and trust conditions) and of the configuration,
+ * using the existing XML serialization of {@link DeltaRules}.
+ * <p>
+ * The translation state is not cached. Computing it creates the provenance
+ * relations and the labeled null columns that the delta rules refer to, so
+ * it has to be computed before an entry is loaded.
+ * 
+ */
+public class CompiledRuleCache {
+	private static final Logger _log = LoggerFactory
+			.getLogger(CompiledRuleCache.class);
+
+	/** Changes whenever the serialized form of the cached rules changes */
+	static final int FORMAT_VERSION = 2;
+
+	static final String INSERTION_RULES = "insertionRules.xml";
+	static final String DELETION_RULES = "deletionRules.xml";
+
+	private final File _dir;
+
+	/**
+	 * The cached rules of a catalog.
+	 */
+	public static class Entry {
+		public final IDeltaRules insertionRules;
+		public final IDeltaRules deletionRules;
+
+		public Entry(IDeltaRules insertionRules, IDeltaRules deletionRules) {
+			this.insertionRules = insertionRules;
+			this.deletionRules = deletionRules;
+		}
+	}
+
+	/**
+	 * @param dir the directory holding the cache entries, which is created if
+	 *            necessary
+	 */
+	public CompiledRuleCache(File dir) {
+		_dir = dir;
+	}
+
+	/**
+	 * Returns the cache configured by the <code>compiledRuleCacheDir</code>
+	 * property.
+	 * 
+	 * @return the cache, or <code>null</code> if compiled rules are not
+	 *         cached
+	 */
+	public static CompiledRuleCache fromConfig() {
+		String dir = Config.getCompiledRuleCacheDir();
+		if (dir == null || dir.trim().length() == 0) {
+			return null;
+		}
+		return new CompiledRuleCache(new File(dir.trim()));
+	}
+
+	/**
+	 * Computes the key of the cache entry for a catalog. This is called
+	 * before the rules are computed, so that it only depends on the catalog
+	 * as defined.
+	 * 
+	 * @param system the catalog
+	 * @return the key, a hexadecimal hash
+	 */
+	public static String computeKey(OrchestraSystem system) {
+		ByteArrayOutputStream catalog = new ByteArrayOutputStream();
+		system.serialize(catalog);
+		ByteArrayOutputStream params = new ByteArrayOutputStream();
+		Config.dumpParams(new PrintStream(params));
+		// The order of the dumped parameters is not deterministic
+		String[] lines = params.toString().split("\\r?\\n");
+		Arrays.sort(lines);
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(Integer.toString(FORMAT_VERSION).getBytes("UTF-8"));
+			md.update(catalog.toByteArray());
+			for (String line : lines) {
+				md.update(line.getBytes("UTF-8"));
+			}
+			return toHex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuffer buf = new StringBuffer(2 * bytes.length);
+		for (byte b : bytes) {
+			buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+			buf.append(Character.forDigit(b & 0xf, 16));
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Returns whether there is an entry for a key.
+	 * 
+	 * @param key the key computed by {@link #computeKey(OrchestraSystem)}
+	 * @return <code>true</code> if there is an entry for <code>key</code>
+	 */
+	public boolean contains(String key) {
+		return new File(_dir, key).isDirectory();
+	}
+
+	/**
+	 * Loads the cached rules of a catalog. An entry which cannot be read is
+	 * removed. The mapping relations the rules refer to are looked up in
+	 * <code>system</code>, so its mapping engine has to have computed its
+	 * translation state already.
+	 * 
+	 * @param key the key computed by {@link #computeKey(OrchestraSystem)}
+	 * @param system the catalog
+	 * @return the cached rules, or <code>null</code> if there are none
+	 */
+	public Entry load(String key, OrchestraSystem system) {
+		File entry = new File(_dir, key);
+		if (!entry.isDirectory()) {
+			return null;
+		}
+		try {
+			IDeltaRules ins = DeltaRules.deserialize(read(new File(entry,
+					INSERTION_RULES)), system);
+			IDeltaRules del = DeltaRules.deserialize(read(new File(entry,
+					DELETION_RULES)), system);
+			_log.info("Loaded compiled rules from {}", entry);
+			return new Entry(ins, del);
+		} catch (Exception e) {
+			_log.warn("Discarding unreadable compiled rules in " + entry, e);
+			delete(entry);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the rules of a catalog. Failures are logged but otherwise
+	 * ignored, since the cache is only an optimization.
+	 * 
+	 * @param key the key computed by {@link #computeKey(OrchestraSystem)}
+	 * @param entry the rules to store
+	 */
+	public void store(String key, Entry entry) {
+		File tmp = new File(_dir, key + ".tmp");
+		File target = new File(_dir, key);
+		try {
+			delete(tmp);
+			if (!tmp.mkdirs()) {
+				throw new IOException("Cannot create " + tmp);
+			}
+			write(entry.insertionRules.serialize(), new File(tmp,
+					INSERTION_RULES));
+			write(entry.deletionRules.serialize(), new File(tmp, DELETION_RULES));
+			// Readers never see a partially written entry
+			delete(target);
+			if (!tmp.renameTo(target)) {
+				throw new IOException("Cannot rename " + tmp + " to " + target);
+			}
+			_log.info("Stored compiled rules in {}", target);
+		} catch (IOException e) {
+			_log.warn("Unable to store compiled rules", e);
+			delete(tmp);
+		}
+	}
+
+	private static Document read(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		try {
+			return DomUtils.createDocument(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(Document doc, File f) throws IOException {
+		OutputStream out = new FileOutputStream(f);
+		try {
+			DomUtils.write(doc, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
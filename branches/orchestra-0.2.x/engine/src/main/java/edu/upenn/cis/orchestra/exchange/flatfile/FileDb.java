@@ -37,6 +37,7 @@ import edu.upenn.cis.orchestra.datamodel.Schema;
 import edu.upenn.cis.orchestra.datamodel.Tuple;
 import edu.upenn.cis.orchestra.datamodel.exceptions.DuplicateRelationIdException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.UnsupportedTypeException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultSetIterator;
 import edu.upenn.cis.orchestra.dbms.IDb;
 import edu.upenn.cis.orchestra.dbms.SqlDb;
@@ -328,11 +329,24 @@ public class FileDb implements IDb {
 		return null;
 	}
 	
+	public ResultIterator<Tuple> evalQueryRules(List<Rule> r) {
+		throw new UnsupportedOperationException("Query rules cannot be evaluated over flat files");
+	}
+	
 	public List<ResultSetIterator<Tuple>> evalRuleSet(List<Rule> r, String semiringName, boolean provenanceQuery) {
 		// TODO Auto-generated method stub
 		return null;
 	}
 
+	public ResultIterator<Tuple> evalQueryRule(Rule r, int fetchSize, int limit) {
+		throw new UnsupportedOperationException("Query rules cannot be evaluated over flat files");
+	}
+
+	public ResultIterator<Tuple> evalRuleSet(List<Rule> r, String semiringName, boolean provenanceQuery,
+			int fetchSize, int limit) {
+		throw new UnsupportedOperationException("Rule sets cannot be evaluated over flat files");
+	}
+
 	public int evalUpdateRule(Rule rule) throws SQLException {
 		// TODO Auto-generated method stub
 		return 0;
@@ -54,8 +54,11 @@ import edu.upenn.cis.orchestra.datamodel.exceptions.DuplicateRelationIdException
 import edu.upenn.cis.orchestra.datamodel.exceptions.RelationUpdateException;
 import edu.upenn.cis.orchestra.datamodel.exceptions.UnsupportedTypeException;
 import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.dbms.FetchedTransactions;
 import edu.upenn.cis.orchestra.dbms.IDb;
 import edu.upenn.cis.orchestra.dbms.SqlDb;
+import edu.upenn.cis.orchestra.dbms.StatisticsManager;
+import edu.upenn.cis.orchestra.dbms.sql.generation.IndexAdvisor;
 import edu.upenn.cis.orchestra.dbms.sql.generation.SqlTableManipulation;
 import edu.upenn.cis.orchestra.exchange.BasicEngine;
 import edu.upenn.cis.orchestra.provenance.ProvenanceRelation;
@@ -71,8 +74,6 @@ import edu.upenn.cis.orchestra.util.XMLParseException;
  *
  */
 public class SqlEngine extends BasicEngine {
-	public static List<Long> delTimes = new ArrayList<Long>();
-	public static List<Long> insTimes = new ArrayList<Long>();
 	public static List<Long> progTimes = new ArrayList<Long>();
 	
 	/**
@@ -82,6 +83,8 @@ public class SqlEngine extends BasicEngine {
 	public static final int LABELED_NULL_NONVALUE = 1;
 	private static final Logger logger = LoggerFactory.getLogger(SqlEngine.class);
 
+	private IndexAdvisor _indexAdvisor;
+
 	public SqlEngine(SqlDb d, 
 //			IDb updateDb, 
 			OrchestraSystem system) throws Exception {
@@ -213,6 +216,8 @@ public class SqlEngine extends BasicEngine {
 	 */
 	public void dropAllTables() throws IOException {
 		final ArrayList<String> operations = dropDbTableStatements(_system);
+		getMappingDb().invalidateAnnotations();
+		resetStatistics();
 
 		Debug.println("Database cleanup -- drops all tables");
 		for (final String s: operations) {
@@ -345,8 +350,22 @@ public class SqlEngine extends BasicEngine {
 //		finalize();
 	}
 
+	/**
+	 * Makes sure that the statistics of all tables are refreshed the next time
+	 * they are requested, since their contents are about to be replaced.
+	 */
+	private void resetStatistics() {
+		getMappingDb().getTableStatistics().clear();
+		StatisticsManager stats = getMappingDb().getStatisticsManager();
+		if (stats != null) {
+			stats.reset();
+		}
+	}
+
 	public void clearAllTables() throws IOException {
 		final ArrayList<String> operations = clearDbTableStatements(_system);
+		getMappingDb().invalidateAnnotations();
+		resetStatistics();
 
 		Debug.println("Database cleanup -- clear all tables");
 		for (final String s: operations) {
@@ -621,6 +640,7 @@ public class SqlEngine extends BasicEngine {
 		getMappingDb().finalize();
 		getMappingDb().importData(sourceDb, baseTables);
 		getMappingDb().commit();
+		getMappingDb().invalidateAnnotations();
 	}
 
 	public long evaluateProvenanceQuery(DatalogSequence ds) throws Exception {
@@ -685,65 +705,81 @@ public class SqlEngine extends BasicEngine {
 		// Map all of the updates from the other peers into our Exchange
 		// instance
 //		for (Peer p2 : _system.getPeers()) {
-		((SqlDb)_system.getMappingDb()).fetchPublishedTransactions(_system, lastrec, recno, reconciler, _system.getRecDb(reconciler.getId()));
+		SqlDb sqlDb = (SqlDb)_system.getMappingDb();
+		FetchedTransactions fetched = new FetchedTransactions(Config.getExchangeKeptUpdates());
+		sqlDb.fetchPublishedTransactions(_system, lastrec, recno, reconciler, _system.getRecDb(reconciler.getId()), fetched);
 //		}
-		// Do the non-incremental maintenance, simply by recomputing the
-		// provenance relations
-		logger.debug("EXP: --------------------------------------");
-		if (Config.getNonIncremental()) {
-			// TODO: right now we don't apply the deletions and insertions to the base.
-
-//			List<Rule> rFull = new ArrayList<Rule>(_deltas.getOuterUnionMappingRules().size());
-//			rFull.addAll(_deltas.getOuterUnionMappingRules()); 
-//			RecursiveDatalogProgram p = new RecursiveDatalogProgram(_deltas.getOuterUnionMappingRules());
-//			de.evaluateProgram(p);
+		// The cached annotations are maintained by the insertion rules, but
+		// have to be recomputed after anything else
+		boolean maintainAnnotations = !Config.getNonIncremental() && fetched.onlyInsertions();
+		if (!maintainAnnotations) {
+			getMappingDb().invalidateAnnotations();
+		}
+		boolean failed = true;
+		try {
+			// Do the non-incremental maintenance, simply by recomputing the
+			// provenance relations
+			logger.debug("EXP: --------------------------------------");
+			if (Config.getNonIncremental()) {
+				// TODO: right now we don't apply the deletions and insertions to the base.
 
-			long prepTime = prepareNonIncremental();
-//			logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER PREPARE NON-INCREMENTAL: " + countAllTables());
+//				List<Rule> rFull = new ArrayList<Rule>(_deltas.getOuterUnionMappingRules().size());
+//				rFull.addAll(_deltas.getOuterUnionMappingRules()); 
+//				RecursiveDatalogProgram p = new RecursiveDatalogProgram(_deltas.getOuterUnionMappingRules());
+//				de.evaluateProgram(p);
 
-			long execTime = _insertionRules.execute(de);
+				long prepTime = prepareNonIncremental();
+//				logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER PREPARE NON-INCREMENTAL: " + countAllTables());
 
-			SqlEngine.insTimes.set(SqlEngine.insTimes.size()-1, new Long(prepTime + execTime));
+				long execTime = _insertionRules.execute(de);
+				logger.debug("EXP: NON-INCREMENTAL TIME (INCL PREPARATION): {} msec", Long.valueOf(prepTime + execTime));
 
-			logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER NON-INCREMENTAL: " + countAllTables());
-			logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER NON-INCREMENTAL: " + countBaseTables());
+				logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER NON-INCREMENTAL: " + countAllTables());
+				logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER NON-INCREMENTAL: " + countBaseTables());
 
-			de.resetCounters();
-		} else if (insFirst) {
+				de.resetCounters();
+			} else if (insFirst) {
 
-//			Do incremental insertion
-			_insertionRules.execute(de);
+//				Do incremental insertion
+				_insertionRules.execute(de);
 
-			logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER INSERTIONS: " + countAllTables());
-			logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER INSERTIONS: " + countBaseTables());
-			de.resetCounters();
+				logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER INSERTIONS: " + countAllTables());
+				logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER INSERTIONS: " + countBaseTables());
+				de.resetCounters();
 
-			// Do incremental deletion
+				// Do incremental deletion
 			
-			_deletionRules.execute(de);
+				_deletionRules.execute(de);
 
-			logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER DELETIONS: " + countAllTables());
-			logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER DELETIONS: " + countBaseTables());
-			de.resetCounters();
-		} else {
-			// Do incremental deletion
-			_deletionRules.execute(de);
+				logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER DELETIONS: " + countAllTables());
+				logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER DELETIONS: " + countBaseTables());
+				de.resetCounters();
+			} else {
+				// Do incremental deletion
+				_deletionRules.execute(de);
 
-			logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER DELETIONS: " + countAllTables());
-			logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER DELETIONS: " + countBaseTables());
-			de.resetCounters();
+				logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER DELETIONS: " + countAllTables());
+				logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER DELETIONS: " + countBaseTables());
+				de.resetCounters();
 
-//			Do incremental insertion
-			_insertionRules.execute(de);
+//				Do incremental insertion
+				_insertionRules.execute(de);
 
-			logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER INSERTIONS: " + countAllTables());
-			logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER INSERTIONS: " + countBaseTables());
-			de.resetCounters();
-		}
+				logger.debug("TOTAL NUM OF TUPLES IN BASE AND MAPPING RELATIONS AFTER INSERTIONS: " + countAllTables());
+				logger.debug("TOTAL NUM OF TUPLES IN BASE RELATIONS AFTER INSERTIONS: " + countBaseTables());
+				de.resetCounters();
+			}
 
-		getMappingDb().runStatsOnAllTables(_system);
+			getMappingDb().runStatsOnAllTables(_system);
 
-		finalize();
+			finalize();
+			failed = false;
+		} finally {
+			// Even a failed exchange may have changed the provenance relations
+			if (failed || !maintainAnnotations) {
+				getMappingDb().invalidateAnnotations();
+			}
+		}
 
 //		if (Config.DO_APPLY)
 //		de.commit();
@@ -753,7 +789,9 @@ public class SqlEngine extends BasicEngine {
 		Debug.println("TOTAL DELTA TIME: " + time + " msec");
 
 		// TEMPORARY:  apply everything
-		((SqlDb)_system.getMappingDb()).acceptPublishedTransactions(_system, lastrec, recno, reconciler, _system.getRecDb(reconciler.getId()));
+		// Only now that the exchange has succeeded do the transactions go
+		// into the reconciliation state
+		sqlDb.acceptFetchedTransactions(_system, recno, reconciler, fetched);
 
 		return time;
 	}
@@ -896,6 +934,53 @@ public class SqlEngine extends BasicEngine {
 		Calendar after = Calendar.getInstance();
 		long time = (after.getTimeInMillis() - before.getTimeInMillis());
 		System.out.println("EXP: MIGRATE PROVENANCE RELATIONS TIME: " + time + " msec");
+
+		adviseIndexes();
+	}
+
+	/**
+	 * Returns the indexes recommended for the delta rules, analyzing the
+	 * rules the first time it is called.
+	 * 
+	 * @return the index advisor of this engine
+	 */
+	public synchronized IndexAdvisor getIndexAdvisor() {
+		if (_indexAdvisor == null) {
+			_indexAdvisor = new IndexAdvisor();
+			_indexAdvisor.analyze(getIncrementalInsertionProgram());
+			_indexAdvisor.analyze(getIncrementalDeletionProgram());
+		}
+		return _indexAdvisor;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * The indexes are advised again for the recompiled delta rules.
+	 */
+	@Override
+	public synchronized Set<String> recompileMappings() throws Exception {
+		Set<String> affected = super.recompileMappings();
+		_indexAdvisor = null;
+		adviseIndexes();
+		return affected;
+	}
+
+	/**
+	 * Logs the indexes recommended for the delta rules and, if configured,
+	 * creates them.
+	 */
+	private void adviseIndexes() {
+		if (!Config.getAdviseIndexes() || _insertionRules == null || _deletionRules == null) {
+			return;
+		}
+		IndexAdvisor advisor = getIndexAdvisor();
+		for (IndexAdvisor.Recommendation rec : advisor.getRecommendations()) {
+			logger.info("Advised index: {}", rec);
+		}
+		if (Config.getCreateAdvisedIndexes() && Config.getApply()) {
+			int created = advisor.createIndexes(getMappingDb(), Config.getAutocommit());
+			logger.info("Created {} advised indexes", created);
+		}
 	}
 	
 	public void createInternalSchemaRelations () 
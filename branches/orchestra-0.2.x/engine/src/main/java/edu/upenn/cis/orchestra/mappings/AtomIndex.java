@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.mappings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
+
+/**
+ * Atoms, each with a value, indexed by relation and by their constant
+ * arguments. It finds the atoms a homomorphism could map an atom to, or
+ * which could be unified with it, without comparing it with all of them.
+ * <p>
+ * A lookup only rules out the atoms of other relations and those with a
+ * different constant in a position where the atom has a constant, so
+ * callers still run their own test on the candidates. Candidates are
+ * returned in the order they were added.
+ * 
+ * @param <T> the type of the values
+ */
+public class AtomIndex<T> {
+
+	private static class Entry<T> {
+		final Atom atom;
+		final T value;
+		final int order;
+
+		Entry(Atom atom, T value, int order) {
+			this.atom = atom;
+			this.value = value;
+			this.order = order;
+		}
+	}
+
+	/** The atoms of a relation */
+	private static class Bucket<T> {
+		final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+		/** For every position, the entries by the constant they have there */
+		final List<Map<String, List<Entry<T>>>> byConstant = new ArrayList<Map<String, List<Entry<T>>>>();
+		/** For every position, the entries without a constant there */
+		final List<List<Entry<T>>> withoutConstant = new ArrayList<List<Entry<T>>>();
+
+		Bucket(int arity) {
+			for (int i = 0; i < arity; ++i) {
+				byConstant.add(new HashMap<String, List<Entry<T>>>());
+				withoutConstant.add(new ArrayList<Entry<T>>());
+			}
+		}
+	}
+
+	private final Map<String, Bucket<T>> _buckets = new HashMap<String, Bucket<T>>();
+	private int _size;
+
+	/**
+	 * @param rules some rules
+	 * @return the rules indexed by their heads
+	 */
+	public static AtomIndex<Rule> byHead(List<Rule> rules) {
+		AtomIndex<Rule> index = new AtomIndex<Rule>();
+		for (Rule r : rules) {
+			index.add(r.getHead(), r);
+		}
+		return index;
+	}
+
+	/**
+	 * @param atoms some atoms
+	 * @return the atoms indexed by themselves
+	 */
+	public static AtomIndex<Atom> of(List<Atom> atoms) {
+		AtomIndex<Atom> index = new AtomIndex<Atom>();
+		for (Atom a : atoms) {
+			index.add(a, a);
+		}
+		return index;
+	}
+
+	private static String key(Atom a) {
+		return a.getRelation().getName() + "/" + a.getValues().size();
+	}
+
+	/**
+	 * @return the constant at a position of an atom, or {@code null}
+	 */
+	private static String constant(Atom a, int i) {
+		AtomArgument arg = a.getValues().get(i);
+		return (arg instanceof AtomConst) ? String.valueOf(((AtomConst) arg).getValue()) : null;
+	}
+
+	/**
+	 * Adds an atom.
+	 * 
+	 * @param a the atom
+	 * @param value its value
+	 */
+	public void add(Atom a, T value) {
+		String key = key(a);
+		int arity = a.getValues().size();
+		Bucket<T> bucket = _buckets.get(key);
+		if (bucket == null) {
+			bucket = new Bucket<T>(arity);
+			_buckets.put(key, bucket);
+		}
+		Entry<T> e = new Entry<T>(a, value, _size++);
+		bucket.entries.add(e);
+		for (int i = 0; i < arity; ++i) {
+			String c = constant(a, i);
+			if (c == null) {
+				bucket.withoutConstant.get(i).add(e);
+			} else {
+				List<Entry<T>> l = bucket.byConstant.get(i).get(c);
+				if (l == null) {
+					l = new ArrayList<Entry<T>>();
+					bucket.byConstant.get(i).put(c, l);
+				}
+				l.add(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the values of the atoms of the relation of an atom which have
+	 * no constant different from its constants.
+	 * 
+	 * @param a the atom
+	 * @return the values of the candidate atoms
+	 */
+	public List<T> get(Atom a) {
+		Bucket<T> bucket = _buckets.get(key(a));
+		List<T> res = new ArrayList<T>();
+		if (bucket == null) {
+			return res;
+		}
+		int arity = a.getValues().size();
+		String[] constants = new String[arity];
+		// Start from the constant position with the fewest candidates
+		int best = -1;
+		int bestSize = bucket.entries.size();
+		for (int i = 0; i < arity; ++i) {
+			constants[i] = constant(a, i);
+			if (constants[i] != null) {
+				List<Entry<T>> same = bucket.byConstant.get(i).get(constants[i]);
+				int size = bucket.withoutConstant.get(i).size() + ((same == null) ? 0 : same.size());
+				if (size < bestSize || best < 0) {
+					best = i;
+					bestSize = size;
+				}
+			}
+		}
+		List<Entry<T>> candidates;
+		if (best < 0) {
+			candidates = bucket.entries;
+		} else {
+			List<Entry<T>> same = bucket.byConstant.get(best).get(constants[best]);
+			candidates = merge(bucket.withoutConstant.get(best), (same == null) ? new ArrayList<Entry<T>>() : same);
+		}
+		for (Entry<T> e : candidates) {
+			if (compatible(e.atom, constants)) {
+				res.add(e.value);
+			}
+		}
+		return res;
+	}
+
+	private static boolean compatible(Atom a, String[] constants) {
+		for (int i = 0; i < constants.length; ++i) {
+			if (constants[i] != null) {
+				String c = constant(a, i);
+				if (c != null && !c.equals(constants[i])) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the entries of two lists sorted by order, in order
+	 */
+	private static <T> List<Entry<T>> merge(List<Entry<T>> l1, List<Entry<T>> l2) {
+		List<Entry<T>> res = new ArrayList<Entry<T>>(l1.size() + l2.size());
+		int i = 0;
+		int j = 0;
+		while (i < l1.size() || j < l2.size()) {
+			if (j == l2.size() || (i < l1.size() && l1.get(i).order < l2.get(j).order)) {
+				res.add(l1.get(i++));
+			} else {
+				res.add(l2.get(j++));
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return the number of atoms
+	 */
+	public int size() {
+		return _size;
+	}
+}
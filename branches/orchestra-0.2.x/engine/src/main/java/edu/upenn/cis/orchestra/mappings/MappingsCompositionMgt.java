@@ -16,8 +16,11 @@
 package edu.upenn.cis.orchestra.mappings;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import edu.upenn.cis.orchestra.mappings.exceptions.CompositionException;
 import edu.upenn.cis.orchestra.datalog.atom.Atom;
@@ -92,11 +95,16 @@ public class MappingsCompositionMgt
 		List<Rule> defs = new ArrayList<Rule> ();
 		List<Rule> tgds = new ArrayList<Rule> ();
 		getDefsAndTgds(rel, rules, defs, tgds);
+		AtomIndex<Rule> defIndex = AtomIndex.byHead(defs);
 		
 //		rules.clear();
 		mappings.clear();
+		// The rules of a mapping with several head atoms share their parent
+		// mapping, which only needs to be composed once
+		Set<Mapping> composed = Collections.newSetFromMap(new IdentityHashMap<Mapping, Boolean>());
 		for (Rule rule : tgds)
-			eliminateVirtualRel(rule.getParentMapping(), 0, rel, defs, mappings);
+			if (composed.add(rule.getParentMapping()))
+				eliminateVirtualRel(rule.getParentMapping(), 0, rel, defIndex, mappings);
 //			eliminateVirtualRel(rule, 0, rel, defs, rules);
 	}
 	
@@ -108,13 +116,13 @@ public class MappingsCompositionMgt
 	 * @param r Rule to compose with defs to remove occurences of vRel
 	 * @param indAtom Current indice of the atom in recursion
 	 * @param vRel Virtual relation to remove with composition
-	 * @param defs Definition rules for the relation vRel
+	 * @param defs Definition rules for the relation vRel, indexed by their heads
 	 * @param res Results list to which the composition must be added 
 	 */
 	private static void eliminateVirtualRel (Mapping m, 
 													int indAtom, 
 													AbstractRelation vRel, 
-													List<Rule> defs, 
+													AtomIndex<Rule> defs, 
 													List<Mapping> res)
 	{		
 		// If we've composed all the possible atoms, r is fine and can be sent as a result
@@ -126,9 +134,10 @@ public class MappingsCompositionMgt
 			// then try to compose with all existing definitions
 			if (m.getBody().get(indAtom).getRelation()==vRel)
 			{
-				// Try to compose with all definitions
+				// Try to compose with all definitions, except those with a head
+				// constant different from the atom's, which cannot be composed
 				// Note: If there is no definition, this rule will just be dropped
-				for (Rule def : defs)
+				for (Rule def : defs.get(m.getBody().get(indAtom)))
 				{
 					try
 					{
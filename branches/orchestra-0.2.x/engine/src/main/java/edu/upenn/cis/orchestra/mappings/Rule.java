@@ -50,6 +50,7 @@ import edu.upenn.cis.orchestra.dbms.IRuleCodeGen;
 import edu.upenn.cis.orchestra.dbms.IRuleCodeGen.UPDATE_TYPE;
 import edu.upenn.cis.orchestra.dbms.sql.generation.RuleSqlGen;
 import edu.upenn.cis.orchestra.dbms.sql.generation.SqlTableManipulation;
+import edu.upenn.cis.orchestra.dbms.sql.generation.TableStatistics;
 import edu.upenn.cis.orchestra.provenance.ProvenanceNode;
 import edu.upenn.cis.orchestra.provenance.ProvenanceRelation;
 import edu.upenn.cis.orchestra.util.DomUtils;
@@ -291,6 +292,82 @@ public class Rule extends Mapping
 		return buffer.toString();
 	}
 
+	/**
+	 * Returns a description of this rule in which the variables are numbered
+	 * by order of first appearance, so that rules that only differ by the
+	 * names of their variables have the same description.
+	 * 
+	 * @return the description of this rule
+	 */
+	public String toCanonicalString ()
+	{
+		Map<String,String> vars = new HashMap<String,String>();
+		StringBuffer buffer = new StringBuffer ();
+		appendCanonical(buffer, getHead(), vars);
+		buffer.append (" :- ");
+
+		boolean firstAtom = true;
+		for (Atom atom : getBody())
+		{
+			buffer.append(firstAtom?"":", ");
+			appendCanonical(buffer, atom, vars);
+			firstAtom = false;
+		}
+		for (RuleEqualityAtom eq : getEqAtoms())
+			buffer.append(" " + eq.toString());
+		buffer.append(" [" + clearNcopy() + "," + getDeleteFromHead() + "," + onlyKeyAndNulls() 
+				+ "," + replaceValsWithNullValues() + "," + isEdb() + "," + isDistinct() + "]");
+
+		if (_provenanceTree != null) {
+			buffer.append(" | " + _provenanceTree.toString());
+		}
+
+		return buffer.toString();
+	}
+
+	private static void appendCanonical (StringBuffer buffer, Atom atom, Map<String,String> vars)
+	{
+		if (atom.isNeg())
+			buffer.append("not ");
+		buffer.append(atom.getType() + "_" + atom.getRelationContext());
+		if (atom.allStrata())
+			buffer.append("[*]");
+		buffer.append("(");
+		for (int i = 0; i < atom.getValues().size(); i++) {
+			buffer.append(i == 0 ? "" : ",");
+			appendCanonical(buffer, atom.getValues().get(i), vars);
+			if (atom.isNullable(i))
+				buffer.append("*");
+		}
+		buffer.append(")");
+		if (!atom.getAnnotations().isEmpty())
+			buffer.append(atom.getAnnotations());
+	}
+
+	private static void appendCanonical (StringBuffer buffer, AtomArgument arg, Map<String,String> vars)
+	{
+		if (arg instanceof AtomVariable) {
+			String name = vars.get(arg.toString());
+			if (name == null) {
+				name = "$" + vars.size();
+				vars.put(arg.toString(), name);
+			}
+			buffer.append(name);
+		} else if (arg instanceof AtomSkolem) {
+			AtomSkolem skolem = (AtomSkolem) arg;
+			buffer.append(skolem.getName() + "(");
+			boolean first = true;
+			for (AtomArgument param : skolem.getParams()) {
+				buffer.append(first ? "" : ",");
+				appendCanonical(buffer, param, vars);
+				first = false;
+			}
+			buffer.append(")");
+		} else {
+			buffer.append(arg.toString());
+		}
+	}
+
 	public void printString ()
 	{
 		Debug.print(getHead().toString());
@@ -350,12 +427,13 @@ public class Rule extends Mapping
 		return ret;
 	}
 
-	public List<String> toUpdate(List<String> last, int curIterCnt, List<List<Integer>> preparedParams) {
+	public List<String> toUpdate(List<String> last, int curIterCnt, List<List<Integer>> preparedParams,
+			TableStatistics statistics) {
 		UPDATE_TYPE u = (clearNcopy() ? UPDATE_TYPE.CLEAR_AND_COPY : 
 			(getDeleteFromHead() ? UPDATE_TYPE.DELETE_FROM_HEAD :
 				UPDATE_TYPE.OTHER));
 		_preparedParams.clear();
-		List<String> ret =  _code.getCode(last, u, curIterCnt);
+		List<String> ret =  _code.getCode(last, u, curIterCnt, statistics);
 
 		//		preparedParams.addAll(_preparedParams);
 
@@ -437,6 +515,20 @@ public class Rule extends Mapping
 	 *  composition with atoms whose "definition" is a set of rules
 	 */
 	public List<Rule> substituteAtom(int pos, List<Rule> defs, boolean minimize) {// throws UnsupportedDisjunctionException{
+		return substituteAtom(pos, AtomIndex.byHead(defs), minimize);
+	}
+
+	/**
+	 * Same as {@link #substituteAtom(int, List, boolean)}, with the
+	 * definitions already indexed by their heads, for callers unfolding many
+	 * atoms with the same definitions.
+	 * 
+	 * @param pos the position of the atom to unfold
+	 * @param defs the definitions, indexed by {@link AtomIndex#byHead(List)}
+	 * @param minimize whether the unfolded rules are minimized
+	 * @return the unfolded rules
+	 */
+	public List<Rule> substituteAtom(int pos, AtomIndex<Rule> defs, boolean minimize) {
 		List<Rule> res = new ArrayList<Rule>();
 		Rule common = this.deepCopy();
 
@@ -464,7 +556,9 @@ public class Rule extends Mapping
 		//		}else{
 		Atom a = common.getBody().remove(pos);
 
-		for(Rule def : defs){
+		// Only the definitions of the relation of a, with no constant
+		// conflicting with a, can have a homomorphism to it
+		for(Rule def : defs.get(a)){
 			//			Map<String, ScMappingAtomValue> varmap = a.varHomomorphism(def.getHead());
 			Map<String, AtomArgument> varmap = def.getHead().varHomomorphism(a);
 			//			Map<String, AtomArgument> varmap = a.varHomomorphism(def.getHead());
@@ -812,10 +906,11 @@ public class Rule extends Mapping
 				!isContainedAtom(other.getHead(), this.getHead(), this))
 			return false;
 
+		AtomIndex<Atom> otherIndex = AtomIndex.of(otherBody);
 		boolean containedThis = true;
 		for(Atom a: thisBody){
 			boolean containedAtom = false;
-			for(Atom b: otherBody){
+			for(Atom b: otherIndex.get(a)){
 				if(isContainedAtom(a, b, other)){
 					containedAtom = true;
 					break;
@@ -829,9 +924,10 @@ public class Rule extends Mapping
 
 		boolean containedOther = true;
 		if(containedThis){
+			AtomIndex<Atom> thisIndex = AtomIndex.of(thisBody);
 			for(Atom a: otherBody){
 				boolean containedAtom = false;
-				for(Atom b: thisBody){
+				for(Atom b: thisIndex.get(a)){
 					if(isContainedAtom(a, b, this)){
 						containedAtom = true;
 						break;
@@ -1102,45 +1198,42 @@ public class Rule extends Mapping
 	public void minimize(){
 		_logger.debug("Rule has {} atoms before minimization: {}", getBody().size(), this);
 		
-		List<Atom> newBody = new ArrayList<Atom>();
-		for(int i = 0; i < getBody().size(); i++){
-			boolean discard = false;
-			Atom a = getBody().get(i);
-			for(int j = i+1; j < getBody().size() && !discard; j++){
-				Atom b = getBody().get(j);
-				if(a.equals(b)){
-					discard = true;
-				}
-			}
-			if(!discard)
-				newBody.add(a);
-
-		}
-		this.setBody(newBody);
+		this.setBody(withoutDuplicates(getBody()));
 		_logger.debug("Rule has {} atoms after minimization: {}", getBody().size(), this);
 	}
 	
 	public List<Atom> minimize(List<Atom> discarded){
 		_logger.debug("Rule has {} atoms before minimization: {}", getBody().size(), this);
 		
+		this.setBody(withoutDuplicates(getBody()));
+		List<Atom> ret = mergeComplementaryProvRelAtoms(discarded);
+		_logger.debug("Rule has {} atoms after minimization: {}", getBody().size(), this);
+		return ret;
+	}
+
+	/*
+	 * Keeps the last copy of every atom of a body, comparing each atom only
+	 * with the atoms of the same relation
+	 */
+	private static List<Atom> withoutDuplicates(List<Atom> body){
+		AtomIndex<Integer> index = new AtomIndex<Integer>();
+		for(int i = 0; i < body.size(); i++)
+			index.add(body.get(i), Integer.valueOf(i));
+
 		List<Atom> newBody = new ArrayList<Atom>();
-		for(int i = 0; i < getBody().size(); i++){
+		for(int i = 0; i < body.size(); i++){
 			boolean discard = false;
-			Atom a = getBody().get(i);
-			for(int j = i+1; j < getBody().size() && !discard; j++){
-				Atom b = getBody().get(j);
-				if(a.equals(b)){
+			Atom a = body.get(i);
+			for(Integer j : index.get(a)){
+				if(j.intValue() > i && a.equals(body.get(j.intValue()))){
 					discard = true;
+					break;
 				}
 			}
 			if(!discard)
 				newBody.add(a);
-
 		}
-		this.setBody(newBody);
-		List<Atom> ret = mergeComplementaryProvRelAtoms(discarded);
-		_logger.debug("Rule has {} atoms after minimization: {}", getBody().size(), this);
-		return ret;
+		return newBody;
 	}
 
 	/*
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A metric whose value is read each time the metrics are reported, such as
+ * the size of a queue or cache.
+ * 
+ */
+public abstract class Gauge implements Metric {
+	/**
+	 * @return the current value
+	 */
+	public abstract long getValue();
+
+	public Map<String,Number> getValues() {
+		return Collections.<String,Number>singletonMap("value", getValue());
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.metrics;
+
+import java.util.Map;
+
+/**
+ * A metric kept by a {@link MetricsRegistry}.
+ * 
+ */
+public interface Metric {
+	/**
+	 * Get the current values of this metric, such as a count or a mean,
+	 * by name. These are what is shown in log snapshots and exported as
+	 * JMX attributes.
+	 * 
+	 * @return the values, in display order
+	 */
+	Map<String,Number> getValues();
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Exports the values of a {@link Metric} as read-only JMX attributes.
+ * 
+ */
+class MetricDynamicMBean implements DynamicMBean {
+	private final String name;
+	private final Metric metric;
+
+	MetricDynamicMBean(String name, Metric metric) {
+		this.name = name;
+		this.metric = metric;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = metric.getValues().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String,Number> values = metric.getValues();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Number value = values.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+		for (Map.Entry<String,Number> value : metric.getValues().entrySet()) {
+			attrs.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+					value.getKey(), true, false, false));
+		}
+		return new MBeanInfo(metric.getClass().getName(), name,
+				attrs.toArray(new MBeanAttributeInfo[attrs.size()]), null, new MBeanOperationInfo[0], null);
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException("Metrics have no operations");
+	}
+
+	public void setAttribute(Attribute attribute) {
+		throw new UnsupportedOperationException("Metrics are read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+}
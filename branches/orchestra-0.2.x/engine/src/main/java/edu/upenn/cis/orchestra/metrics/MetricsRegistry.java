@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.upenn.cis.orchestra.Config;
+
+/**
+ * The counters, timers and gauges of a process, by name. Names are dotted
+ * paths, starting with the subsystem the metric belongs to, such as
+ * <code>reconciliation.publish</code>. Metrics can be exported as JMX
+ * MBeans and logged periodically, as set by the <code>metricsJmx</code> and
+ * <code>metricsLogInterval</code> properties.
+ * 
+ */
+public class MetricsRegistry {
+	private static final Logger _log = LoggerFactory.getLogger(MetricsRegistry.class);
+
+	/** The domain of the JMX names of exported metrics */
+	public static final String JMX_DOMAIN = "edu.upenn.cis.orchestra";
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+	private static boolean configured = false;
+
+	private final ConcurrentMap<String,Metric> metrics = new ConcurrentHashMap<String,Metric>();
+	private MBeanServer mbeanServer = null;
+	private Thread reporter = null;
+
+	/**
+	 * @return the registry of the metrics of the engine
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Export the metrics of the default registry through JMX and start
+	 * logging them, if the configuration asks for it. Only the first call
+	 * has any effect.
+	 */
+	public static synchronized void startFromConfig() {
+		if (configured) {
+			return;
+		}
+		configured = true;
+		if (Config.getMetricsJmx()) {
+			DEFAULT.enableJmx(ManagementFactory.getPlatformMBeanServer());
+		}
+		int interval = Config.getMetricsLogInterval();
+		if (interval > 0) {
+			DEFAULT.startReporter(interval * 1000L);
+		}
+	}
+
+	/**
+	 * Get a counter, creating it if it does not exist yet
+	 * 
+	 * @param name		The name of the counter
+	 * @return			The counter
+	 */
+	public Counter counter(String name) {
+		return getOrAdd(name, new Counter(), Counter.class);
+	}
+
+	/**
+	 * Get a timer, creating it if it does not exist yet
+	 * 
+	 * @param name		The name of the timer
+	 * @return			The timer
+	 */
+	public Timer timer(String name) {
+		return getOrAdd(name, new Timer(), Timer.class);
+	}
+
+	/**
+	 * Add a gauge, replacing any metric of the same name
+	 * 
+	 * @param name		The name of the gauge
+	 * @param gauge		The gauge
+	 */
+	public void register(String name, Gauge gauge) {
+		remove(name);
+		add(name, gauge);
+	}
+
+	/**
+	 * Remove a metric
+	 * 
+	 * @param name		The name of the metric
+	 */
+	public void remove(String name) {
+		if (metrics.remove(name) != null) {
+			unexport(name);
+		}
+	}
+
+	private <T extends Metric> T getOrAdd(String name, T metric, Class<T> type) {
+		Metric existing = metrics.get(name);
+		if (existing == null) {
+			existing = add(name, metric);
+		}
+		if (! type.isInstance(existing)) {
+			throw new IllegalArgumentException("Metric " + name + " is a " + existing.getClass().getSimpleName()
+					+ ", not a " + type.getSimpleName());
+		}
+		return type.cast(existing);
+	}
+
+	private Metric add(String name, Metric metric) {
+		Metric existing = metrics.putIfAbsent(name, metric);
+		if (existing != null) {
+			return existing;
+		}
+		export(name, metric);
+		return metric;
+	}
+
+	/**
+	 * @return all of the metrics, sorted by name
+	 */
+	public SortedMap<String,Metric> getMetrics() {
+		return new TreeMap<String,Metric>(metrics);
+	}
+
+	/**
+	 * Describe the current values of all of the metrics, one metric per line
+	 * 
+	 * @return the description
+	 */
+	public String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String,Metric> me : getMetrics().entrySet()) {
+			sb.append(me.getKey());
+			for (Map.Entry<String,Number> value : me.getValue().getValues().entrySet()) {
+				sb.append(' ').append(value.getKey()).append('=').append(value.getValue());
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Export this registry's metrics, and those added later, as MBeans
+	 * 
+	 * @param server	The MBean server to register them with
+	 */
+	public synchronized void enableJmx(MBeanServer server) {
+		mbeanServer = server;
+		for (Map.Entry<String,Metric> me : metrics.entrySet()) {
+			export(me.getKey(), me.getValue());
+		}
+	}
+
+	static ObjectName getObjectName(String name) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+	}
+
+	private synchronized void export(String name, Metric metric) {
+		if (mbeanServer == null) {
+			return;
+		}
+		try {
+			ObjectName on = getObjectName(name);
+			if (! mbeanServer.isRegistered(on)) {
+				mbeanServer.registerMBean(new MetricDynamicMBean(name, metric), on);
+			}
+		} catch (JMException e) {
+			_log.warn("Cannot export metric " + name + " through JMX", e);
+		}
+	}
+
+	private synchronized void unexport(String name) {
+		if (mbeanServer == null) {
+			return;
+		}
+		try {
+			ObjectName on = getObjectName(name);
+			if (mbeanServer.isRegistered(on)) {
+				mbeanServer.unregisterMBean(on);
+			}
+		} catch (JMException e) {
+			_log.warn("Cannot remove metric " + name + " from JMX", e);
+		}
+	}
+
+	/**
+	 * Start logging a snapshot of the metrics periodically, on a daemon
+	 * thread. Does nothing if a reporter is already running.
+	 * 
+	 * @param intervalMillis	The time between snapshots, in milliseconds
+	 */
+	public synchronized void startReporter(final long intervalMillis) {
+		if (reporter != null) {
+			return;
+		}
+		reporter = new Thread("Metrics reporter") {
+			public void run() {
+				try {
+					while (! isInterrupted()) {
+						Thread.sleep(intervalMillis);
+						_log.info("Metrics snapshot:\n{}", snapshot());
+					}
+				} catch (InterruptedException e) {
+					// Stopped
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Stop the periodic logging started by {@link #startReporter(long)}
+	 */
+	public synchronized void stopReporter() {
+		if (reporter != null) {
+			reporter.interrupt();
+			reporter = null;
+		}
+	}
+}
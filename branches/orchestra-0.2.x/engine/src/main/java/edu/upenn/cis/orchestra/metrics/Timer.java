@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The durations of an operation, with a histogram of them from which
+ * percentiles are estimated. Bucket <code>i</code> of the histogram holds
+ * the durations of less than <code>2^i</code> microseconds, so percentiles
+ * are accurate to within a factor of two. Safe for use by several threads
+ * at once.
+ * 
+ */
+public class Timer implements Metric {
+	static final int NUM_BUCKETS = 40;
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+	/**
+	 * Record one execution of the operation
+	 * 
+	 * @param nanos		How long it took, in nanoseconds
+	 */
+	public void update(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+		buckets.incrementAndGet(getBucket(nanos));
+	}
+
+	/**
+	 * Record one execution of the operation that started at
+	 * <code>startNanos</code> and has just finished
+	 * 
+	 * @param startNanos	The value of {@link System#nanoTime()} when
+	 * 						the operation started
+	 * @return				How long it took, in nanoseconds
+	 */
+	public long updateSince(long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		update(nanos);
+		return nanos;
+	}
+
+	static int getBucket(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return Math.min(bucket, NUM_BUCKETS - 1);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Estimate a percentile of the recorded durations
+	 * 
+	 * @param percentile	The percentile, between <code>0</code> and <code>100</code>
+	 * @return				An upper bound on the duration at that percentile,
+	 * 						in nanoseconds, or <code>0</code> if nothing has been
+	 * 						recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = new long[NUM_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				// Never report more than the slowest duration recorded
+				return Math.min((1L << i) * 1000, getMaxNanos());
+			}
+		}
+		return getMaxNanos();
+	}
+
+	public Map<String,Number> getValues() {
+		Map<String,Number> values = new LinkedHashMap<String,Number>();
+		long n = getCount();
+		values.put("count", n);
+		values.put("totalMillis", millis(getTotalNanos()));
+		values.put("meanMillis", n == 0 ? 0.0 : millis(getTotalNanos() / n));
+		values.put("p50Millis", millis(getPercentileNanos(50)));
+		values.put("p90Millis", millis(getPercentileNanos(90)));
+		values.put("p99Millis", millis(getPercentileNanos(99)));
+		values.put("maxMillis", millis(getMaxNanos()));
+		return values;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+}
@@ -32,6 +32,8 @@ import edu.upenn.cis.orchestra.dbms.SqlDb;
 import edu.upenn.cis.orchestra.exchange.flatfile.FileDb;
 import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
 import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 import edu.upenn.cis.orchestra.repository.dao.RepositorySchemaDAO;
 import edu.upenn.cis.orchestra.repository.dao.flatfile.FlatFileRepositoryDAO;
 
@@ -43,6 +45,26 @@ import edu.upenn.cis.orchestra.repository.dao.flatfile.FlatFileRepositoryDAO;
  */
 public class Cleanup {
 	public static String NO_LOGGING;
+
+	private static final Timer INS_TIMER = MetricsRegistry.getDefault().timer("exchange.insertion.net");
+	private static final Timer DEL_TIMER = MetricsRegistry.getDefault().timer("exchange.deletion.net");
+
+	/** Net insertion times in milliseconds, one per call to {@link #timeMapUpdates} */
+	static List<Long> insTimes = new ArrayList<Long>();
+	/** Net deletion times in milliseconds, one per call to {@link #timeMapUpdates} */
+	static List<Long> delTimes = new ArrayList<Long>();
+
+	/**
+	 * Runs {@link SqlEngine#mapUpdates} and adds the net insertion and
+	 * deletion times it recorded to {@link #insTimes} and {@link #delTimes}
+	 */
+	static void timeMapUpdates(SqlEngine tcd, int lastrec, int recno, Peer p, boolean insFirst) throws Exception {
+		long ins = INS_TIMER.getTotalNanos();
+		long del = DEL_TIMER.getTotalNanos();
+		tcd.mapUpdates(lastrec, recno, p, insFirst);
+		insTimes.add((INS_TIMER.getTotalNanos() - ins) / 1000000);
+		delTimes.add((DEL_TIMER.getTotalNanos() - del) / 1000000);
+	}
 	
 	public static void main(String[] args) {
 		Config.parseCommandLine(args);
@@ -193,7 +215,7 @@ public class Cleanup {
 			
 			tcd.importUpdates(new FileDb(Config.getWorkloadPrefix(), Config.getImportExtension()));
 
-			tcd.mapUpdates(recno, ++recno, p, true);
+			timeMapUpdates(tcd, recno, ++recno, p, true);
 
 			if (Config.getReset())
 				tcd.reset();
@@ -210,7 +232,7 @@ public class Cleanup {
 			
 			tcd.importUpdates(new FileDb(Config.getWorkloadPrefix(), Config.getImportExtension()));
 			
-			tcd.mapUpdates(recno, ++recno, p, true);
+			timeMapUpdates(tcd, recno, ++recno, p, true);
 
 			if (Config.getReset())
 				tcd.reset();
@@ -240,14 +262,14 @@ public class Cleanup {
 		int insMax = 1;
 		int delMin = 0;
 		int delMax = 1;
-		insMin = minIndex(SqlEngine.insTimes);
-		insMax = maxIndex(SqlEngine.insTimes);
-		delMin = minIndex(SqlEngine.delTimes);
-		delMax = maxIndex(SqlEngine.delTimes);
+		insMin = minIndex(insTimes);
+		insMax = maxIndex(insTimes);
+		delMin = minIndex(delTimes);
+		delMax = maxIndex(delTimes);
 
 	
-		System.out.println("EXP: AVG INS TIME: " + avg(SqlEngine.insTimes, insMin, insMax) + "msec");						
-		System.out.println("EXP: AVG DEL TIME: " + avg(SqlEngine.delTimes, delMin, delMax) + "msec");	
+		System.out.println("EXP: AVG INS TIME: " + avg(insTimes, insMin, insMax) + "msec");						
+		System.out.println("EXP: AVG DEL TIME: " + avg(delTimes, delMin, delMax) + "msec");	
 	
 		System.out.println("================");
 	}
@@ -303,8 +325,8 @@ public class Cleanup {
 				System.out.println("SCHEMA: " + Config.getWorkloadPrefix());
 				System.out.println("================");
 
-				SqlEngine.insTimes = new ArrayList<Long>();
-				SqlEngine.delTimes = new ArrayList<Long>();
+				insTimes = new ArrayList<Long>();
+				delTimes = new ArrayList<Long>();
 
 				setupDb(system, d, tcd, tables);
 				runNonIncremental(tcd, p, 5);
@@ -317,8 +339,8 @@ public class Cleanup {
 				calcAvgTimes();
 				tcd.cleanKeepConn();
 
-				SqlEngine.insTimes = new ArrayList<Long>();
-				SqlEngine.delTimes = new ArrayList<Long>();
+				insTimes = new ArrayList<Long>();
+				delTimes = new ArrayList<Long>();
 
 				for(int m = 0; m < 5; m++){
 					setupDb(system, d, tcd, tables);
@@ -347,13 +369,13 @@ public class Cleanup {
 				System.out.println("#DELETIONS: " + l);
 				System.out.println("================");
 
-				SqlEngine.insTimes = new ArrayList<Long>();
-				SqlEngine.delTimes = new ArrayList<Long>();
+				insTimes = new ArrayList<Long>();
+				delTimes = new ArrayList<Long>();
 				runNonIncremental(tcd, p, 4);
 				calcAvgTimes();
 
-				SqlEngine.insTimes = new ArrayList<Long>();
-				SqlEngine.delTimes = new ArrayList<Long>();
+				insTimes = new ArrayList<Long>();
+				delTimes = new ArrayList<Long>();
 				runIncremental(tcd, p, 4);
 				calcAvgTimes();
 			}
@@ -367,12 +389,12 @@ public class Cleanup {
 		System.out.println("SCHEMA: " + Config.getWorkloadPrefix());
 		System.out.println("================");
 
-		SqlEngine.insTimes = new ArrayList<Long>();
-		SqlEngine.delTimes = new ArrayList<Long>();
+		insTimes = new ArrayList<Long>();
+		delTimes = new ArrayList<Long>();
 		runNonIncremental(tcd, p, 1);
 
-		SqlEngine.insTimes = new ArrayList<Long>();
-		SqlEngine.delTimes = new ArrayList<Long>();
+		insTimes = new ArrayList<Long>();
+		delTimes = new ArrayList<Long>();
 		runIncremental(tcd, p, 1);
 		calcAvgTimes();
 
@@ -32,6 +32,8 @@ import edu.upenn.cis.orchestra.dbms.SqlDb;
 import edu.upenn.cis.orchestra.exchange.flatfile.FileDb;
 import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
 import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 import edu.upenn.cis.orchestra.repository.dao.RepositorySchemaDAO;
 import edu.upenn.cis.orchestra.repository.dao.flatfile.FlatFileRepositoryDAO;
 
@@ -42,6 +44,26 @@ import edu.upenn.cis.orchestra.repository.dao.flatfile.FlatFileRepositoryDAO;
  *
  */
 public class SqlMap {
+
+	private static final Timer INS_TIMER = MetricsRegistry.getDefault().timer("exchange.insertion.net");
+	private static final Timer DEL_TIMER = MetricsRegistry.getDefault().timer("exchange.deletion.net");
+
+	/** Net insertion times in milliseconds, one per call to {@link #timeMapUpdates} */
+	static List<Long> insTimes = new ArrayList<Long>();
+	/** Net deletion times in milliseconds, one per call to {@link #timeMapUpdates} */
+	static List<Long> delTimes = new ArrayList<Long>();
+
+	/**
+	 * Runs {@link SqlEngine#mapUpdates} and adds the net insertion and
+	 * deletion times it recorded to {@link #insTimes} and {@link #delTimes}
+	 */
+	static void timeMapUpdates(SqlEngine tcd, int lastrec, int recno, Peer p, boolean insFirst) throws Exception {
+		long ins = INS_TIMER.getTotalNanos();
+		long del = DEL_TIMER.getTotalNanos();
+		tcd.mapUpdates(lastrec, recno, p, insFirst);
+		insTimes.add((INS_TIMER.getTotalNanos() - ins) / 1000000);
+		delTimes.add((DEL_TIMER.getTotalNanos() - del) / 1000000);
+	}
 	public static void main(String[] args) {
 		Config.parseCommandLine(args);
 		Config.dumpParams(System.out);
@@ -223,7 +245,7 @@ public class SqlMap {
 			
 			tcd.importUpdates(new FileDb(Config.getWorkloadPrefix(), Config.getImportExtension()));
 
-			tcd.mapUpdates(recno, ++recno, p, true);
+			timeMapUpdates(tcd, recno, ++recno, p, true);
 
 			if (Config.getReset())
 				tcd.reset();
@@ -240,7 +262,7 @@ public class SqlMap {
 			
 			tcd.importUpdates(new FileDb(Config.getWorkloadPrefix(), Config.getImportExtension()));
 			
-			tcd.mapUpdates(recno, ++recno, p, true);
+			timeMapUpdates(tcd, recno, ++recno, p, true);
 
 			if (Config.getReset())
 				tcd.reset();
@@ -270,14 +292,14 @@ public class SqlMap {
 		int insMax = 1;
 		int delMin = 0;
 		int delMax = 1;
-		insMin = minIndex(SqlEngine.insTimes);
-		insMax = maxIndex(SqlEngine.insTimes);
-		delMin = minIndex(SqlEngine.delTimes);
-		delMax = maxIndex(SqlEngine.delTimes);
+		insMin = minIndex(insTimes);
+		insMax = maxIndex(insTimes);
+		delMin = minIndex(delTimes);
+		delMax = maxIndex(delTimes);
 
 	
-		System.out.println("EXP: AVG INS TIME: " + avg(SqlEngine.insTimes, insMin, insMax) + "msec");						
-		System.out.println("EXP: AVG DEL TIME: " + avg(SqlEngine.delTimes, delMin, delMax) + "msec");	
+		System.out.println("EXP: AVG INS TIME: " + avg(insTimes, insMin, insMax) + "msec");						
+		System.out.println("EXP: AVG DEL TIME: " + avg(delTimes, delMin, delMax) + "msec");	
 	
 		System.out.println("================");
 	}
@@ -340,8 +362,8 @@ public class SqlMap {
 				System.out.println("SCHEMA: " + Config.getWorkloadPrefix());
 				System.out.println("================");
 
-				SqlEngine.insTimes = new ArrayList<Long>();
-				SqlEngine.delTimes = new ArrayList<Long>();
+				insTimes = new ArrayList<Long>();
+				delTimes = new ArrayList<Long>();
 
 				setupDb(system, d, tcd, tables);
 				runNonIncremental(tcd, p, 5);
@@ -354,8 +376,8 @@ public class SqlMap {
 				calcAvgTimes();
 				tcd.cleanKeepConn();
 
-				SqlEngine.insTimes = new ArrayList<Long>();
-				SqlEngine.delTimes = new ArrayList<Long>();
+				insTimes = new ArrayList<Long>();
+				delTimes = new ArrayList<Long>();
 
 				for(int m = 0; m < 5; m++){
 					setupDb(system, d, tcd, tables);
@@ -371,15 +393,15 @@ public class SqlMap {
 	public static void runScalabilityInsDel(SqlEngine tcd, SqlDb d, Peer p, int ins, int del) throws Exception {
 		Config.setWorkloadPrefix(Config.getTestSchemaName() + "-" + ins + "i" + del + "d");
 
-		SqlEngine.insTimes = new ArrayList<Long>();
-		SqlEngine.delTimes = new ArrayList<Long>();
+		insTimes = new ArrayList<Long>();
+		delTimes = new ArrayList<Long>();
 
 		for(int i = 0; i < 2; i ++){
 			tcd.computeDeltaRules();
 
 			tcd.importUpdates(new FileDb(Config.getWorkloadPrefix(), Config.getImportExtension()));
 
-			tcd.mapUpdates(recno, ++recno, p, false);
+			timeMapUpdates(tcd, recno, ++recno, p, false);
 			
 			d.resetCounters();
 			tcd.commit();
@@ -399,7 +421,7 @@ public class SqlMap {
 
 		tcd.importUpdates(new FileDb(Config.getWorkloadPrefix(), Config.getImportExtension()));
 
-		tcd.mapUpdates(recno, recno++, p, true);
+		timeMapUpdates(tcd, recno, recno++, p, true);
 
 		d.resetCounters();
 		tcd.commit();
@@ -434,14 +456,14 @@ public class SqlMap {
 			System.out.println("================");
 
 			System.out.println("EXP: NON-INCREMENTAL");
-			SqlEngine.insTimes = new ArrayList<Long>();
-			SqlEngine.delTimes = new ArrayList<Long>();
+			insTimes = new ArrayList<Long>();
+			delTimes = new ArrayList<Long>();
 			runNonIncremental(tcd, p, 3);
 			calcAvgTimes();
 
 			System.out.println("EXP: INCREMENTAL");
-			SqlEngine.insTimes = new ArrayList<Long>();
-			SqlEngine.delTimes = new ArrayList<Long>();
+			insTimes = new ArrayList<Long>();
+			delTimes = new ArrayList<Long>();
 			runIncremental(tcd, p, 3);
 			calcAvgTimes();
 
@@ -473,8 +495,8 @@ public class SqlMap {
 
 			System.out.println("EXP: DRed");
 
-			SqlEngine.insTimes = new ArrayList<Long>();
-			SqlEngine.delTimes = new ArrayList<Long>();
+			insTimes = new ArrayList<Long>();
+			delTimes = new ArrayList<Long>();
 			runIncremental(tcd, p, 3);
 			calcAvgTimes();
 		}
@@ -497,8 +519,8 @@ public class SqlMap {
 		// The delete option was removed
 		//Config.setDelete(false);
 		System.out.println("EXP: INSERTIONS ONLY");
-		SqlEngine.insTimes = new ArrayList<Long>();
-		SqlEngine.delTimes = new ArrayList<Long>();
+		insTimes = new ArrayList<Long>();
+		delTimes = new ArrayList<Long>();
 		runIncremental(tcd, p, 5);
 		calcAvgTimes();
 
@@ -510,12 +532,12 @@ public class SqlMap {
 		System.out.println("SCHEMA: " + Config.getWorkloadPrefix());
 		System.out.println("================");
 
-		SqlEngine.insTimes = new ArrayList<Long>();
-		SqlEngine.delTimes = new ArrayList<Long>();
+		insTimes = new ArrayList<Long>();
+		delTimes = new ArrayList<Long>();
 		runNonIncremental(tcd, p, 1);
 
-		SqlEngine.insTimes = new ArrayList<Long>();
-		SqlEngine.delTimes = new ArrayList<Long>();
+		insTimes = new ArrayList<Long>();
+		delTimes = new ArrayList<Long>();
 		runIncremental(tcd, p, 1);
 		calcAvgTimes();
 
@@ -531,7 +553,7 @@ public class SqlMap {
 		
 		tcd.importUpdates(new FileDb(Config.getWorkloadPrefix(), Config.getImportExtension()));
 	
-		tcd.mapUpdates(recno, ++recno, p, true);
+		timeMapUpdates(tcd, recno, ++recno, p, true);
 		
 		d.resetCounters();
 		tcd.commit();
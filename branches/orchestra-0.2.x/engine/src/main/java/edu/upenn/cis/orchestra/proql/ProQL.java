@@ -17,6 +17,9 @@ import edu.upenn.cis.orchestra.datalog.atom.Atom.AtomType;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
 import edu.upenn.cis.orchestra.datamodel.RelationContext;
 import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.ConcatenatingIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
 import edu.upenn.cis.orchestra.mappings.Rule;
 import edu.upenn.cis.orchestra.provenance.OuterJoinUnfolder;
@@ -29,11 +32,54 @@ public class ProQL {
 	 * @throws Exception
 	 */
 	public static List<Tuple> runProvenanceQuery(String q, boolean printResults, boolean BFS, OrchestraSystem sys) throws Exception {
-		//		String queryString = q.replace('\n', ' ');
-		String queryString = q;
 		List<Tuple> queryResults = new ArrayList<Tuple>();
 
 		Calendar start = Calendar.getInstance();
+		ResultIterator<Tuple> results = runProvenanceQueryIterator(q, BFS, sys, Config.getQueryFetchSize(), 0);
+		int resultSize = 0;
+		try {
+			while (results.hasNext()) {
+				Tuple tuple = results.next();
+				if (printResults)
+					queryResults.add(tuple);
+				resultSize++;
+			}
+		} finally {
+			results.close();
+		}
+		if(printResults)
+			System.out.println("EXP: RESULT SIZE : " + resultSize);
+
+		Calendar end = Calendar.getInstance();
+		long totalTime = end.getTimeInMillis() - start.getTimeInMillis();
+		System.out.println("PROQL EXP: TOTAL PROQL TIME: " + totalTime + " msec");
+
+		System.gc();
+		return queryResults;
+	}
+
+	/**
+	 * Compiles a provenance query and returns a forward-only iterator over
+	 * its results. The unfolded queries for each matching schema subgraph
+	 * are only evaluated as the results are consumed, so callers can display
+	 * the first results right away and close the iterator to stop early.
+	 * 
+	 * @param q the ProQL query
+	 * @param BFS whether to unfold the query breadth-first
+	 * @param sys the system to query
+	 * @param fetchSize the number of rows to fetch from the database at a
+	 *            time, or <code>0</code> for the driver default
+	 * @param limit the maximum number of results, or <code>0</code> for all
+	 * @return an iterator over the results, which must be closed
+	 * @throws Exception
+	 */
+	public static ResultIterator<Tuple> runProvenanceQueryIterator(String q, boolean BFS, final OrchestraSystem sys,
+			final int fetchSize, int limit) throws Exception {
+		//		String queryString = q.replace('\n', ' ');
+		String queryString = q;
+		final List<List<Rule>> programs = new ArrayList<List<Rule>>();
+		final List<Boolean> provenanceQueries = new ArrayList<Boolean>();
+
 		String evalExp = "";
 		String pathExp = queryString;
 		int eval = queryString.indexOf("EVALUATE");
@@ -86,7 +132,7 @@ public class ProQL {
 
 		System.out.println(queryPattern.toString());
 
-		String semiringName = QueryParser.getAnnotationType(evalExp);
+		final String semiringName = QueryParser.getAnnotationType(evalExp);
 		String assgnExpr = QueryParser.getAssignmentExpression(evalExp);
 
 		SchemaGraph g = new SchemaGraph(sys);
@@ -163,22 +209,31 @@ public class ProQL {
 			System.out.println("PROQL EXP: TOTAL QUERY UNFOLDING TIME : " + time + " msec");
 			prov.clear();
 			
-			if(engine.getState().getRealOuterJoinRelations().size() > 0 ||
+			programs.add(programWithAllASRs);
+			provenanceQueries.add(engine.getState().getRealOuterJoinRelations().size() > 0 ||
 			   engine.getState().getSimulatedOuterJoinRelations().size() > 0 || 
-			   engine.getState().getInnerJoinRelations().size() > 0){
-				queryResults.addAll(sys.runUnfoldedQuery(programWithAllASRs, true, semiringName, printResults, true));
-			}else{
-				queryResults.addAll(sys.runUnfoldedQuery(programWithAllASRs, true, semiringName, printResults, false));
-			}
+			   engine.getState().getInnerJoinRelations().size() > 0);
 		}
-		if(printResults)
-			System.out.println("EXP: RESULT SIZE : " + queryResults.size());
 
-		Calendar end = Calendar.getInstance();
-		long totalTime = end.getTimeInMillis() - start.getTimeInMillis();
-		System.out.println("PROQL EXP: TOTAL PROQL TIME: " + totalTime + " msec");
-
-		System.gc();
-		return queryResults;
+		return new ConcatenatingIterator<Tuple>(limit) {
+			private int next = 0;
+
+			@Override
+			protected ResultIterator<Tuple> openNext(int remaining) throws IteratorException {
+				if (next >= programs.size()) {
+					return null;
+				}
+				List<Rule> program = programs.get(next);
+				boolean provenanceQuery = provenanceQueries.get(next);
+				next++;
+				try {
+					return sys.runUnfoldedQueryIterator(program, true, semiringName, provenanceQuery, fetchSize, remaining);
+				} catch (IteratorException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IteratorException(e);
+				}
+			}
+		};
 	}
 }
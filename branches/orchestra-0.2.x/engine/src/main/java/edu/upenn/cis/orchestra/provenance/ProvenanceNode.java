@@ -245,6 +245,64 @@ public abstract class ProvenanceNode {
 		return new String(ret);
 	}
 
+	/**
+	 * The SQL aggregate function that implements the addition of the named
+	 * semiring, i.e., that combines the annotations of alternative
+	 * derivations of the same tuple.
+	 * 
+	 * @param semiringName
+	 * @return <code>MAX</code>, <code>MIN</code> or <code>SUM</code>
+	 */
+	public static String plusOp(String semiringName){
+		if(TRUST_SEMIRING.equalsIgnoreCase(semiringName) || TROPICAL_MAX_SEMIRING.equalsIgnoreCase(semiringName))
+			return "MAX";
+		else if(RANK_SEMIRING.equalsIgnoreCase(semiringName) || TROPICAL_MIN_SEMIRING.equalsIgnoreCase(semiringName))
+			return "MIN";
+		else if (BAG_SEMIRING.equalsIgnoreCase(semiringName))
+			return "SUM";
+		else
+			return "SUM";
+	}
+
+	/**
+	 * Adds two annotations, as the aggregate function {@code plusOp} would,
+	 * keeping integer annotations integral.
+	 * 
+	 * @param plusOp <code>MAX</code>, <code>MIN</code> or <code>SUM</code>
+	 * @param left
+	 * @param right
+	 * @return the sum of the annotations, or <code>null</code> if either is
+	 *         <code>null</code>
+	 */
+	public static String plus(String plusOp, String left, String right) {
+		if (left == null || right == null) {
+			return null;
+		}
+		left = left.trim();
+		right = right.trim();
+		try {
+			long l = Long.parseLong(left);
+			long r = Long.parseLong(right);
+			if ("MAX".equals(plusOp)) {
+				return Long.toString(Math.max(l, r));
+			} else if ("MIN".equals(plusOp)) {
+				return Long.toString(Math.min(l, r));
+			} else {
+				return Long.toString(l + r);
+			}
+		} catch (NumberFormatException e) {
+			double l = Double.parseDouble(left);
+			double r = Double.parseDouble(right);
+			if ("MAX".equals(plusOp)) {
+				return Double.toString(Math.max(l, r));
+			} else if ("MIN".equals(plusOp)) {
+				return Double.toString(Math.min(l, r));
+			} else {
+				return Double.toString(l + r);
+			}
+		}
+	}
+
 	public static String multiOp(String semiringName){
 		if(RANK_SEMIRING.equalsIgnoreCase(semiringName) || TROPICAL_MAX_SEMIRING.equalsIgnoreCase(semiringName) || TROPICAL_MIN_SEMIRING.equalsIgnoreCase(semiringName))
 			return "+";
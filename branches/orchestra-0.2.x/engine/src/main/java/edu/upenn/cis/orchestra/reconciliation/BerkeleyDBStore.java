@@ -17,7 +17,9 @@ package edu.upenn.cis.orchestra.reconciliation;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import org.w3c.dom.Document;
@@ -32,7 +34,13 @@ import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.SecondaryConfig;
+import com.sleepycat.je.SecondaryCursor;
+import com.sleepycat.je.SecondaryDatabase;
+import com.sleepycat.je.SecondaryKeyCreator;
+import com.sleepycat.je.Transaction;
 
+import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
 import edu.upenn.cis.orchestra.datamodel.ByteBufferReader;
 import edu.upenn.cis.orchestra.datamodel.ByteBufferWriter;
@@ -41,6 +49,7 @@ import edu.upenn.cis.orchestra.datamodel.Tuple;
 import edu.upenn.cis.orchestra.datamodel.Update;
 import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.util.ByteArrayWrapper;
 
 public class BerkeleyDBStore extends DiffStore {
 	public static class BDBStateStoreException extends SSException {
@@ -129,9 +138,48 @@ public class BerkeleyDBStore extends DiffStore {
 	// statesDb is a mapping from tuple key column bytes to byteified StoreEntry
 	// (relationId, primary key subtuple) --> StoreEntry
 	private Database stateDb;
-	// updatesDb is a mapping from tuple key column bytes, recno to two updates
-	// (relationId, primary key subtuple, recno) --> (Update, Update)
+	// updatesDb is a mapping from recno, tuple key column bytes to two updates
+	// (recno, relationId, primary key subtuple) --> (Update, Update)
+	// The recno comes first so that each reconciliation's entries are
+	// contiguous, which makes pruning old reconciliations a range delete.
 	private Database updatesDb;
+	// updatesByKeyDb indexes updatesDb by tuple key column bytes, then recno
+	// (relationId, primary key subtuple, recno) --> (Update, Update)
+	// so that the history of a single tuple is a range as well.
+	private SecondaryDatabase updatesByKeyDb;
+	// Store entries from the current reconciliation that have not been
+	// written to stateDb yet, keyed like stateDb. A null value means the
+	// entry is to be deleted.
+	private final Map<ByteArrayWrapper,StoreEntry> pendingState = new HashMap<ByteArrayWrapper,StoreEntry>();
+	// Update list entries from the current reconciliation that have not been
+	// written to updatesDb yet, keyed like updatesDb. An empty list means
+	// the entry is to be deleted.
+	private final Map<ByteArrayWrapper,List<Update>> pendingUpdates = new HashMap<ByteArrayWrapper,List<Update>>();
+	// Whether the pending entries are written in a transaction
+	private final boolean transactional;
+	// Whether the databases of a non-transactional environment are opened in
+	// deferred-write mode and synced after each batch. Entries written since
+	// the last sync are lost if the process dies, so this is only done when
+	// Config.getBdbDeferredWrite() asks for it.
+	private final boolean deferredWrite;
+	// Reused to serialize the pending entries
+	private final ByteBufferWriter writer = new ByteBufferWriter();
+
+	private long entriesWritten = 0;
+	private long bytesWritten = 0;
+	private long batchesWritten = 0;
+	private long writeTime = 0;
+
+	/**
+	 * Suffix of the name of the database holding the recno-ordered update
+	 * lists. Databases named just {@code updatesName} use the old
+	 * (key, recno) layout and are converted when the store is opened.
+	 */
+	static final String RECNO_ORDERED_SUFFIX = "ByRecno";
+	/**
+	 * Suffix of the name of the index of the update lists by tuple key.
+	 */
+	static final String KEY_ORDERED_SUFFIX = "ByKey";
 
 	public BerkeleyDBStore(Environment e, String stateName, String updatesName,
 			AbstractPeerID pid, ISchemaIDBinding schema, int lastTid)
@@ -141,27 +189,121 @@ public class BerkeleyDBStore extends DiffStore {
 		this.e = e;
 		this.stateName = stateName;
 		this.updatesName = updatesName;
-		DatabaseConfig dbc = new DatabaseConfig();
+		transactional = e.getConfig().getTransactional();
+		deferredWrite = !transactional && Config.getBdbDeferredWrite();
+		DatabaseConfig dbc = getDatabaseConfig();
 		dbc.setAllowCreate(true);
 		stateDb = e.openDatabase(null, stateName, dbc);
-		updatesDb = e.openDatabase(null, updatesName, dbc);
+		updatesDb = e.openDatabase(null, updatesName + RECNO_ORDERED_SUFFIX, dbc);
+		updatesByKeyDb = openKeyIndex();
+		convertLegacyUpdates();
+	}
+
+	/**
+	 * Open the index of {@code updatesDb} by tuple key, building it from
+	 * {@code updatesDb} if it does not exist yet.
+	 * 
+	 * @return				The index
+	 * @throws DatabaseException
+	 */
+	private SecondaryDatabase openKeyIndex() throws DatabaseException {
+		SecondaryConfig sc = new SecondaryConfig();
+		sc.setTransactional(transactional);
+		sc.setDeferredWrite(deferredWrite);
+		sc.setAllowCreate(true);
+		sc.setAllowPopulate(true);
+		sc.setKeyCreator(new KeyRecnoCreator());
+		return e.openSecondaryDatabase(null, updatesName + KEY_ORDERED_SUFFIX,
+				updatesDb, sc);
+	}
+
+	/**
+	 * Moves the recno of an update list key after the tuple key.
+	 */
+	private static class KeyRecnoCreator implements SecondaryKeyCreator {
+		public boolean createSecondaryKey(SecondaryDatabase secondary,
+				DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
+			final int bytesPerInt = IntType.bytesPerInt;
+			byte[] bytes = key.getData();
+			int offset = key.getOffset();
+			int keyLength = key.getSize() - bytesPerInt;
+			byte[] indexKey = new byte[key.getSize()];
+			System.arraycopy(bytes, offset + bytesPerInt, indexKey, 0,
+					keyLength);
+			System.arraycopy(bytes, offset, indexKey, keyLength, bytesPerInt);
+			result.setData(indexKey);
+			return true;
+		}
+	}
+
+	private DatabaseConfig getDatabaseConfig() {
+		DatabaseConfig dbc = new DatabaseConfig();
+		dbc.setTransactional(transactional);
+		dbc.setDeferredWrite(deferredWrite);
+		return dbc;
+	}
+
+	/**
+	 * Move the entries of an update list database written with the old
+	 * (key, recno) layout into {@code updatesDb} and remove it.
+	 * 
+	 * @throws DatabaseException
+	 */
+	private void convertLegacyUpdates() throws DatabaseException {
+		if (!e.getDatabaseNames().contains(updatesName)) {
+			return;
+		}
+		Database legacy = e.openDatabase(null, updatesName, null);
+		Cursor c = legacy.openCursor(null, null);
+		try {
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry val = new DatabaseEntry();
+			while (c.getNext(key, val, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+				byte[] bytes = key.getData();
+				final int bytesPerInt = IntType.bytesPerInt;
+				int keyLength = IntType.getValFromBytes(bytes, 0);
+				int recno = IntType.getValFromBytes(bytes, bytesPerInt
+						+ keyLength);
+				byte[] newKey = new byte[bytesPerInt + keyLength];
+				IntType.putBytes(recno, newKey, 0);
+				System.arraycopy(bytes, bytesPerInt, newKey, bytesPerInt,
+						keyLength);
+				updatesDb.put(null, new DatabaseEntry(newKey), val);
+			}
+		} finally {
+			c.close();
+			legacy.close();
+		}
+		// Make sure the converted entries are on disk before the only other
+		// copy of them goes away
+		if (deferredWrite) {
+			syncDatabases();
+		} else if (!transactional) {
+			e.sync();
+		}
+		e.removeDatabase(null, updatesName);
 	}
 
 	public void close() throws BDBStateStoreException {
+		flushPending();
 		try {
 			stateDb.close();
+			updatesByKeyDb.close();
 			updatesDb.close();
 		} catch (DatabaseException de) {
 			throw new BDBStateStoreException(de);
 		}
 		stateDb = null;
+		updatesByKeyDb = null;
 		updatesDb = null;
 	}
 
 	public void reopen() throws BDBStateStoreException {
 		try {
-			stateDb = e.openDatabase(null, stateName, null);
-			updatesDb = e.openDatabase(null, updatesName, null);
+			stateDb = e.openDatabase(null, stateName, getDatabaseConfig());
+			updatesDb = e.openDatabase(null, updatesName + RECNO_ORDERED_SUFFIX,
+					getDatabaseConfig());
+			updatesByKeyDb = openKeyIndex();
 		} catch (DatabaseException de) {
 			throw new BDBStateStoreException(de);
 		}
@@ -169,33 +311,44 @@ public class BerkeleyDBStore extends DiffStore {
 
 	@Override
 	void clearStateBeforeImpl(int recno) throws BDBStateStoreException {
+		flushPending();
 		DatabaseEntry key = new DatabaseEntry();
 		DatabaseEntry val = new DatabaseEntry();
+		// Only the keys are needed to find the entries to delete
+		val.setPartial(0, 0, true);
 
+		Transaction txn = null;
 		try {
-			Cursor c = updatesDb.openCursor(null, null);
-			OperationStatus os = c.getFirst(key, val, LockMode.DEFAULT);
-			while (os != OperationStatus.NOTFOUND) {
-				byte[] bytes = key.getData();
-				final int bytesPerInt = IntType.bytesPerInt;
-				int keyLength = IntType.getValFromBytes(bytes, 0);
-				int recordRecno = IntType.getValFromBytes(bytes, bytesPerInt
-						+ keyLength);
-				if (recordRecno < recno) {
-					os = c.delete();
+			txn = beginBatch();
+			Cursor c = updatesDb.openCursor(txn, null);
+			try {
+				OperationStatus os = c.getFirst(key, val, LockMode.DEFAULT);
+				while (os == OperationStatus.SUCCESS
+						&& IntType.getValFromBytes(key.getData(), 0) < recno) {
+					c.delete();
+					os = c.getNext(key, val, LockMode.DEFAULT);
 				}
-				os = c.getNext(key, val, LockMode.DEFAULT);
+			} finally {
+				c.close();
 			}
-			c.close();
+			commitBatch(txn);
+			txn = null;
 		} catch (DatabaseException de) {
 			throw new BDBStateStoreException(de);
+		} finally {
+			abortBatch(txn);
 		}
 
 	}
 
 	@Override
 	StoreEntry getStoreEntry(Tuple t) throws SSException {
-		DatabaseEntry key = new DatabaseEntry(t.getKeyColumnBytes());
+		byte[] keyBytes = t.getKeyColumnBytes();
+		ByteArrayWrapper keyWrapper = new ByteArrayWrapper(keyBytes);
+		if (pendingState.containsKey(keyWrapper)) {
+			return pendingState.get(keyWrapper);
+		}
+		DatabaseEntry key = new DatabaseEntry(keyBytes);
 		DatabaseEntry val = new DatabaseEntry();
 		try {
 			if (stateDb.get(null, key, val, LockMode.DEFAULT) != OperationStatus.SUCCESS) {
@@ -212,176 +365,361 @@ public class BerkeleyDBStore extends DiffStore {
 
 	@Override
 	void setStoreEntry(Tuple t, StoreEntry se) throws BDBStateStoreException {
-		DatabaseEntry key = new DatabaseEntry(t.getKeyColumnBytes());
+		pendingState.put(new ByteArrayWrapper(t.getKeyColumnBytes()), se);
+	}
+
+	/**
+	 * Build the update list key for a tuple key during a reconciliation.
+	 * 
+	 * @param recno			The reconciliation
+	 * @param keyColumnBytes	The key column bytes of the tuple
+	 * @return				The key in {@code updatesDb}
+	 */
+	private static byte[] updateListKey(int recno, byte[] keyColumnBytes) {
+		byte[] key = new byte[IntType.bytesPerInt + keyColumnBytes.length];
+		IntType.putBytes(recno, key, 0);
+		System.arraycopy(keyColumnBytes, 0, key, IntType.bytesPerInt,
+				keyColumnBytes.length);
+		return key;
+	}
+
+	/**
+	 * Read the (at most two) updates stored under an update list key,
+	 * including any that have not been written to the database yet.
+	 * 
+	 * @param key			The update list key
+	 * @param bbr			A reader to decode the stored updates with
+	 * @return				The updates, which the caller may modify
+	 * @throws BDBStateStoreException
+	 */
+	private List<Update> readUpdates(ByteArrayWrapper key, ByteBufferReader bbr)
+			throws BDBStateStoreException {
+		List<Update> pending = pendingUpdates.get(key);
+		if (pending != null) {
+			return new ArrayList<Update>(pending);
+		}
+		ArrayList<Update> updates = new ArrayList<Update>(2);
+		DatabaseEntry value = new DatabaseEntry();
 		try {
-			if (se == null) {
-				stateDb.delete(null, key);
-			} else {
-				DatabaseEntry val = new DatabaseEntry(se.getBytes());
-				stateDb.put(null, key, val);
+			OperationStatus os = updatesDb.get(null, new DatabaseEntry(
+					key.array), value, LockMode.DEFAULT);
+			if (os != OperationStatus.SUCCESS) {
+				return updates;
+			}
+		} catch (DatabaseException de) {
+			throw new BDBStateStoreException(de);
+		}
+		decodeUpdates(value.getData(), bbr, updates);
+		return updates;
+	}
+
+	/**
+	 * Decode the updates stored under an update list key.
+	 * 
+	 * @param valBytes		The value stored in the database
+	 * @param bbr			A reader to decode the stored updates with
+	 * @param updates		The list to add the updates to
+	 * @throws BDBStateStoreException
+	 */
+	private static void decodeUpdates(byte[] valBytes, ByteBufferReader bbr,
+			List<Update> updates) throws BDBStateStoreException {
+		bbr.reset(valBytes, 0, valBytes.length);
+		Update u1 = bbr.readUpdate();
+		Update u2 = bbr.readUpdate();
+		if (!bbr.hasFinished()) {
+			throw new BDBStateStoreException("Value from database is too long");
+		}
+		if (u1 == null) {
+			throw new BDBStateStoreException(
+					"Entry in updates database should always contain at least one update");
+		}
+		updates.add(u1);
+		if (u2 != null) {
+			updates.add(u2);
+		}
+	}
+
+	/**
+	 * Write the pending state and update list entries to the databases as
+	 * a single batch: one transaction if the environment is transactional,
+	 * deferred writes followed by a sync if those are enabled, and otherwise
+	 * plain writes.
+	 * 
+	 * @throws BDBStateStoreException
+	 */
+	private void flushPending() throws BDBStateStoreException {
+		if (pendingState.isEmpty() && pendingUpdates.isEmpty()) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		long bytes = 0;
+		DatabaseEntry keyEntry = new DatabaseEntry();
+		DatabaseEntry valEntry = new DatabaseEntry();
+		Transaction txn = null;
+		try {
+			txn = beginBatch();
+			for (Map.Entry<ByteArrayWrapper,StoreEntry> me : pendingState.entrySet()) {
+				keyEntry.setData(me.getKey().array);
+				StoreEntry se = me.getValue();
+				if (se == null) {
+					stateDb.delete(txn, keyEntry);
+				} else {
+					writer.clear();
+					se.writeBytes(writer);
+					valEntry.setData(writer.getByteArray());
+					bytes += valEntry.getSize();
+					stateDb.put(txn, keyEntry, valEntry);
+				}
 			}
+			for (Map.Entry<ByteArrayWrapper,List<Update>> me : pendingUpdates.entrySet()) {
+				keyEntry.setData(me.getKey().array);
+				List<Update> updates = me.getValue();
+				if (updates.isEmpty()) {
+					updatesDb.delete(txn, keyEntry);
+				} else {
+					writer.clear();
+					writer.addToBuffer(updates.get(0),
+							Update.SerializationLevel.VALUES_ONLY);
+					writer.addToBuffer(
+							updates.size() == 2 ? updates.get(1) : null,
+							Update.SerializationLevel.VALUES_ONLY);
+					valEntry.setData(writer.getByteArray());
+					bytes += valEntry.getSize();
+					updatesDb.put(txn, keyEntry, valEntry);
+				}
+			}
+			commitBatch(txn);
+			txn = null;
 		} catch (DatabaseException de) {
 			throw new BDBStateStoreException(de);
+		} finally {
+			abortBatch(txn);
+		}
+		entriesWritten += pendingState.size() + pendingUpdates.size();
+		bytesWritten += bytes;
+		++batchesWritten;
+		writeTime += System.currentTimeMillis() - start;
+		pendingState.clear();
+		pendingUpdates.clear();
+	}
+
+	private Transaction beginBatch() throws DatabaseException {
+		return transactional ? e.beginTransaction(null, null) : null;
+	}
+
+	private void commitBatch(Transaction txn) throws DatabaseException {
+		if (txn != null) {
+			txn.commit();
+		} else if (deferredWrite) {
+			syncDatabases();
 		}
+	}
 
+	private void syncDatabases() throws DatabaseException {
+		stateDb.sync();
+		updatesDb.sync();
+		updatesByKeyDb.sync();
+	}
+
+	private void abortBatch(Transaction txn) throws BDBStateStoreException {
+		if (txn != null) {
+			try {
+				txn.abort();
+			} catch (DatabaseException de) {
+				throw new BDBStateStoreException(de);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of state and update list entries written to the
+	 *         databases
+	 */
+	public long getEntriesWritten() {
+		return entriesWritten;
+	}
+
+	/**
+	 * @return the number of bytes of state and update list entries written
+	 *         to the databases
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return the number of batches the entries were written in
+	 */
+	public long getBatchesWritten() {
+		return batchesWritten;
+	}
+
+	/**
+	 * @return the time, in milliseconds, spent writing batches
+	 */
+	public long getWriteTime() {
+		return writeTime;
+	}
+
+	public void resetCounters() {
+		entriesWritten = 0;
+		bytesWritten = 0;
+		batchesWritten = 0;
+		writeTime = 0;
 	}
 
 	@Override
 	void addToUpdateList(int recno, Update u) throws BDBStateStoreException {
-		ByteBufferWriter bbw = new ByteBufferWriter();
 		ArrayList<byte[]> keys = new ArrayList<byte[]>();
 		if (u.isInsertion()) {
-			bbw.addToBuffer(u.getNewVal().getKeyColumnBytes());
-			bbw.addToBuffer(recno);
-			keys.add(bbw.getByteArray());
+			keys.add(updateListKey(recno, u.getNewVal().getKeyColumnBytes()));
 		} else if (u.isDeletion()) {
-			bbw.addToBuffer(u.getOldVal().getKeyColumnBytes());
-			bbw.addToBuffer(recno);
-			keys.add(bbw.getByteArray());
+			keys.add(updateListKey(recno, u.getOldVal().getKeyColumnBytes()));
 		} else if (u.isUpdate()) {
-			bbw.addToBuffer(u.getOldVal().getKeyColumnBytes());
-			bbw.addToBuffer(recno);
-			keys.add(bbw.getByteArray());
+			keys.add(updateListKey(recno, u.getOldVal().getKeyColumnBytes()));
 			if (!u.getOldVal().sameKey(u.getNewVal())) {
-				bbw.clear();
-				bbw.addToBuffer(u.getNewVal().getKeyColumnBytes());
-				bbw.addToBuffer(recno);
-				keys.add(bbw.getByteArray());
+				keys.add(updateListKey(recno, u.getNewVal().getKeyColumnBytes()));
 			}
 		}
 
+		ByteBufferReader bbr = new ByteBufferReader(schMap);
 		for (byte[] key : keys) {
-			ArrayList<Update> updates = new ArrayList<Update>(2);
-
-			ByteBufferReader bbr = new ByteBufferReader(schMap);
-			try {
-				DatabaseEntry keyEntry = new DatabaseEntry(key);
-				DatabaseEntry value = new DatabaseEntry();
-				OperationStatus os = updatesDb.get(null, keyEntry, value,
-						LockMode.DEFAULT);
-				if (os == OperationStatus.NOTFOUND) {
-					updates.add(u);
-				} else {
-					// os == OperationStatus.SUCCESS
-					byte[] valBytes = value.getData();
-					bbr.reset(valBytes, 0, valBytes.length);
-					Update u1 = bbr.readUpdate();
-					Update u2 = bbr.readUpdate();
-					if (!bbr.hasFinished()) {
-						throw new BDBStateStoreException(
-								"Value from database is too long");
-					}
-					if (u1 != null) {
-						updates.add(u1);
-					}
-					if (u2 != null) {
-						updates.add(u2);
-					}
-					// Flatten into existing updates as needed
-					Update lastUpdate = updates.get(updates.size() - 1);
-					if (u.isDeletion()) {
-						updates.remove(updates.size() - 1);
-						if (!lastUpdate.isInsertion()) {
-							updates
-									.add(new Update(lastUpdate.getOldVal(),
-											null));
-						}
-					} else if (u.isUpdate()) {
-						updates.remove(updates.size() - 1);
-						updates.add(new Update(lastUpdate.getOldVal(), u
-								.getNewVal()));
-					} else if (u.isInsertion()) {
-						updates.add(u);
+			ByteArrayWrapper keyWrapper = new ByteArrayWrapper(key);
+			List<Update> updates = readUpdates(keyWrapper, bbr);
+			if (updates.isEmpty()) {
+				updates.add(u);
+			} else {
+				// Flatten into existing updates as needed
+				Update lastUpdate = updates.get(updates.size() - 1);
+				if (u.isDeletion()) {
+					updates.remove(updates.size() - 1);
+					if (!lastUpdate.isInsertion()) {
+						updates.add(new Update(lastUpdate.getOldVal(), null));
 					}
+				} else if (u.isUpdate()) {
+					updates.remove(updates.size() - 1);
+					updates.add(new Update(lastUpdate.getOldVal(), u
+							.getNewVal()));
+				} else if (u.isInsertion()) {
+					updates.add(u);
 				}
+			}
 
-				if (updates.size() > 2) {
-					throw new BDBStateStoreException(
-							"Should never have more than two updates for a given key during a given reconciliation: "
-									+ updates);
-				}
-
-				if (updates.isEmpty()) {
-					updatesDb.delete(null, keyEntry);
-				} else {
-					bbw.clear();
-					bbw.addToBuffer(updates.get(0),
-							Update.SerializationLevel.VALUES_ONLY);
-					bbw.addToBuffer(
-							updates.size() == 2 ? updates.get(1) : null,
-							Update.SerializationLevel.VALUES_ONLY);
-					value.setData(bbw.getByteArray());
-					updatesDb.put(null, keyEntry, value);
-				}
-			} catch (DatabaseException de) {
-				throw new BDBStateStoreException(de);
+			if (updates.size() > 2) {
+				throw new BDBStateStoreException(
+						"Should never have more than two updates for a given key during a given reconciliation: "
+								+ updates);
 			}
+
+			pendingUpdates.put(keyWrapper, updates);
 		}
 	}
 
 	@Override
 	List<Update> getUpdateList(Tuple t, int startRecno)
 			throws BDBStateStoreException {
-		ByteBufferWriter bbw = new ByteBufferWriter();
 		ByteBufferReader bbr = new ByteBufferReader(schMap);
-		bbw.addToBuffer(t.getKeyColumnBytes());
-		bbw.addToBuffer(startRecno);
-		byte[] keyBytes = bbw.getByteArray();
+		byte[] keyColumnBytes = t.getKeyColumnBytes();
+		final int bytesPerInt = IntType.bytesPerInt;
 
 		List<Update> retval = new ArrayList<Update>();
 
-		int recno = startRecno;
-
 		int currRecno = getRecno();
 
-		DatabaseEntry key = new DatabaseEntry();
-		DatabaseEntry value = new DatabaseEntry();
-
-		for (;;) {
-			key.setData(keyBytes);
+		// The lists of earlier reconciliations have all been written out, and
+		// are adjacent in the index by tuple key
+		byte[] indexKey = new byte[keyColumnBytes.length + bytesPerInt];
+		System.arraycopy(keyColumnBytes, 0, indexKey, 0, keyColumnBytes.length);
+		IntType.putBytes(startRecno, indexKey, keyColumnBytes.length);
+		DatabaseEntry key = new DatabaseEntry(indexKey);
+		DatabaseEntry val = new DatabaseEntry();
+		try {
+			SecondaryCursor c = updatesByKeyDb.openSecondaryCursor(null, null);
 			try {
-				OperationStatus os = updatesDb.get(null, key, value,
+				OperationStatus os = c.getSearchKeyRange(key, val,
 						LockMode.DEFAULT);
-				if (os == OperationStatus.SUCCESS) {
-					byte[] valBytes = value.getData();
-					bbr.reset(valBytes, 0, valBytes.length);
-					Update u1 = bbr.readUpdate();
-					Update u2 = bbr.readUpdate();
-					if (u1 == null) {
-						throw new BDBStateStoreException(
-								"Entry in updates database should always contain at least one update");
-					}
-					retval.add(u1);
-					if (u2 != null) {
-						retval.add(u2);
+				while (os == OperationStatus.SUCCESS
+						&& startsWith(key, keyColumnBytes)) {
+					// Skip the lists of tuples whose key extends this one
+					if (key.getSize() == indexKey.length) {
+						int recno = IntType.getValFromBytes(key.getData(),
+								key.getOffset() + keyColumnBytes.length);
+						if (recno >= currRecno) {
+							break;
+						}
+						decodeUpdates(val.getData(), bbr, retval);
 					}
+					os = c.getNext(key, val, LockMode.DEFAULT);
 				}
-			} catch (DatabaseException de) {
-				throw new BDBStateStoreException(de);
+			} finally {
+				c.close();
 			}
+		} catch (DatabaseException de) {
+			throw new BDBStateStoreException(de);
+		}
 
-			if (recno == currRecno) {
-				break;
-			}
-			++recno;
-			// Update keyBytes by changing recno
-			byte[] recnoBytes = IntType.getBytes(recno);
-			for (int i = 0; i < recnoBytes.length; ++i) {
-				keyBytes[keyBytes.length - recnoBytes.length + i] = recnoBytes[i];
+		// The current reconciliation's list may not have been written yet
+		if (startRecno <= currRecno) {
+			retval.addAll(readUpdates(new ByteArrayWrapper(updateListKey(
+					currRecno, keyColumnBytes)), bbr));
+		}
+
+		return retval;
+	}
+
+	private static boolean startsWith(DatabaseEntry entry, byte[] prefix) {
+		if (entry.getSize() < prefix.length) {
+			return false;
+		}
+		byte[] data = entry.getData();
+		int offset = entry.getOffset();
+		for (int i = 0; i < prefix.length; ++i) {
+			if (data[offset + i] != prefix[i]) {
+				return false;
 			}
 		}
+		return true;
+	}
 
+	@Override
+	List<Update> getUpdateLists(int startRecno, int endRecno)
+			throws BDBStateStoreException {
+		flushPending();
+		ByteBufferReader bbr = new ByteBufferReader(schMap);
+		List<Update> retval = new ArrayList<Update>();
+		// Update list keys start with the recno, so the lists of the
+		// requested reconciliations are adjacent
+		DatabaseEntry key = new DatabaseEntry(IntType.getBytes(startRecno));
+		DatabaseEntry val = new DatabaseEntry();
+		try {
+			Cursor c = updatesDb.openCursor(null, null);
+			try {
+				OperationStatus os = c.getSearchKeyRange(key, val,
+						LockMode.DEFAULT);
+				while (os == OperationStatus.SUCCESS
+						&& IntType.getValFromBytes(key.getData(), 0) <= endRecno) {
+					decodeUpdates(val.getData(), bbr, retval);
+					os = c.getNext(key, val, LockMode.DEFAULT);
+				}
+			} finally {
+				c.close();
+			}
+		} catch (DatabaseException de) {
+			throw new BDBStateStoreException(de);
+		}
 		return retval;
 	}
 
 	@Override
-	void recnoHasAdvanced() {
-	// Doesn't need to do anything, since we flatten even the most
-	// recent reconciliation as we go
+	void recnoHasAdvanced() throws BDBStateStoreException {
+		// Update lists are flattened as we go, so all that remains is to
+		// write out the reconciliation that just finished
+		flushPending();
 	}
 
 	public ResultIterator<Tuple> getStateIterator(String relname)
 			throws BDBStateStoreException {
+		flushPending();
 		// final int id = schMap.getIDForName(relname);
 		final int id = schMap.getRelationNamed(relname).getRelationID();
 		final DatabaseEntry key = new DatabaseEntry(IntType.getBytes(id));
@@ -498,10 +836,13 @@ public class BerkeleyDBStore extends DiffStore {
 
 	@Override
 	protected void resetDiffStore() throws SSException {
+		pendingState.clear();
+		pendingUpdates.clear();
 		close();
 		try {
 			e.truncateDatabase(null, stateName, false);
-			e.truncateDatabase(null, updatesName, false);
+			e.truncateDatabase(null, updatesName + RECNO_ORDERED_SUFFIX, false);
+			e.truncateDatabase(null, updatesName + KEY_ORDERED_SUFFIX, false);
 		} catch (DatabaseException dbe) {
 			throw new BDBStateStoreException(dbe);
 		}
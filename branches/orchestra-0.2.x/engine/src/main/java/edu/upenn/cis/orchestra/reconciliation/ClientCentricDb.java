@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.Debug;
 import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
 import edu.upenn.cis.orchestra.datamodel.Schema;
@@ -35,29 +36,48 @@ import edu.upenn.cis.orchestra.datamodel.TupleSet;
 import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
 import edu.upenn.cis.orchestra.datamodel.Update;
 import edu.upenn.cis.orchestra.datamodel.exceptions.CompareMismatch;
+import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.metrics.Counter;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 import edu.upenn.cis.orchestra.reconciliation.ConflictType.ConflictTypeCode;
 import edu.upenn.cis.orchestra.reconciliation.StateStore.SSException;
 import edu.upenn.cis.orchestra.reconciliation.UpdateStore.TransactionSource;
 import edu.upenn.cis.orchestra.reconciliation.UpdateStore.USException;
 
 public class ClientCentricDb extends Db {
+	private static final Timer RECONCILE_TIMER = MetricsRegistry.getDefault().timer("reconciliation.reconcile");
+	private static final Timer PUBLISH_TIMER = MetricsRegistry.getDefault().timer("reconciliation.publish");
+	private static final Timer RESOLVE_TIMER = MetricsRegistry.getDefault().timer("reconciliation.resolveConflicts");
+	private static final Counter PUBLISHED_TXNS = MetricsRegistry.getDefault().counter("reconciliation.publishedTransactions");
+
 	private StateStore state;
 	private UpdateStore.Factory usf;
 	private StateStore.Factory ssf;
+	// Periodic snapshots of state, or null if they are disabled
+	private final StateSnapshots snapshots;
+	// Whether state reads may be served from a read view during reconciliation
+	private final boolean readViews;
+	// The state as of the start of the reconciliation in progress, which
+	// reads use while it is changing the state, or null if there is none
+	private volatile ReadView readView;
 	private UpdateStore updateStore;
 	private List<List<Update>> unpublishedTransactions;
 	// Set of transaction IDs that this peer has added to the database
 	// but not yet published or recorded as accepted during reconciliation
-	private Set<TxnPeerID> unpublishedTids;
+	private final Set<TxnPeerID> unpublishedTids;
 	// Set of transactions IDs that this peer has published
 	// but not yet recorded as accepted during reconciliation
-	private Set<TxnPeerID> publishedTids;
+	private final Set<TxnPeerID> publishedTids;
 	// List (one for each relation) of mapping from key
 	// subtuples to sets of reconciliations where
 	// those keys become dirty
 //	private List<Map<Subtuple,Set<Integer>>> dirty;
 	private Map<Integer,Map<Subtuple,Set<Integer>>> dirty;
+	// The tuples that have been marked dirty, so their keys can be
+	// found without scanning the state
+	private TupleSet dirtyTuples;
 	// Mapping from recno to conflict to option
 	private HashMap<Integer,ArrayList<ArrayList<Update>>> conflicts;
 	// Index by old key values of update conflicts for each recno
@@ -138,6 +158,20 @@ public class ClientCentricDb extends Db {
 	 * @throws SSException
 	 */
 	public ClientCentricDb(ISchemaIDBinding sch, Schema s, AbstractPeerID pid, TrustConditions tc, UpdateStore.Factory usf, StateStore.Factory ssf)
+	throws DbException {
+		this(null, sch, s, pid, tc, usf, ssf);
+	}
+
+	/**
+	 * Create a new object to represent a peer's view of the shared database.
+	 * 
+	 * @param systemName	The name of the system the peer belongs to, which
+	 * 						the state snapshots are kept under
+	 * @param s				The schema for the shared table
+	 * @param peerID		The ID of the viewing peer
+	 * @throws SSException
+	 */
+	public ClientCentricDb(String systemName, ISchemaIDBinding sch, Schema s, AbstractPeerID pid, TrustConditions tc, UpdateStore.Factory usf, StateStore.Factory ssf)
 	throws DbException {
 		super(tc, s);
 
@@ -149,12 +183,14 @@ public class ClientCentricDb extends Db {
 		Debug.println("Initializing " + pid.toString() + " with trust conditions " + tc.toString());
 
 		updateStore = this.usf.getUpdateStore(id, sch, schema, tc);
-		state = this.ssf.getStateStore(id, sch, updateStore.getLargestTidForPeer());
+		// Locked on its own, so that read views need not wait for reconciliation
+		state = new SynchronizedStateStore(this.ssf.getStateStore(id, sch, updateStore.getLargestTidForPeer()));
 		unpublishedTransactions = new ArrayList<List<Update>>();
-		unpublishedTids = new HashSet<TxnPeerID>();
-		publishedTids = new HashSet<TxnPeerID>();
+		unpublishedTids = Collections.synchronizedSet(new HashSet<TxnPeerID>());
+		publishedTids = Collections.synchronizedSet(new HashSet<TxnPeerID>());
 //		dirty = new ArrayList<Map<Subtuple,Set<Integer>>>(numRelations);
 		dirty = new HashMap<Integer,Map<Subtuple,Set<Integer>>>();
+		dirtyTuples = new TupleSet();
 //		for (int i = 0; i < numRelations; ++i) {
 //			dirty.add(new HashMap<Subtuple,Set<Integer>>());
 //		}
@@ -165,6 +201,9 @@ public class ClientCentricDb extends Db {
 		deferred = new HashMap<Integer,HashMap<TxnPeerID,HashSet<ConflictOptionPair>>>();
 		deltas = new HashMap<Integer,ArrayList<Update>>();
 		conflictTxns = new HashMap<Integer,HashMap<ConflictOptionPair,HashSet<TxnPeerID>>>();
+		snapshots = StateSnapshots.fromConfig(systemName, id);
+		readViews = Config.getReadViews();
+		MetricsRegistry.startFromConfig();
 		
 		if (updateStore.getCurrentRecno() != state.getCurrentRecno()) {
 			state.reset();
@@ -271,7 +310,7 @@ public class ClientCentricDb extends Db {
 	 * 				<code>false</code> otherwise
 	 * @throws USException
 	 */
-	public synchronized boolean hasAcceptedTxn(TxnPeerID txn) throws USException {
+	public boolean hasAcceptedTxn(TxnPeerID txn) throws USException {
 		if (unpublishedTids.contains(txn) || publishedTids.contains(txn)) {
 			return true;
 		}
@@ -286,7 +325,7 @@ public class ClientCentricDb extends Db {
 	 * 				<code>false</code> otherwise
 	 * @throws USException
 	 */
-	public synchronized boolean hasRejectedTxn(TxnPeerID txn) throws USException {
+	public boolean hasRejectedTxn(TxnPeerID txn) throws USException {
 		return updateStore.hasRejectedTxn(txn);
 	}
 
@@ -298,8 +337,14 @@ public class ClientCentricDb extends Db {
 	 * 						any reconciliations yet.
 	 * @throws SSException 
 	 */
-	public synchronized int getCurrentRecno() throws SSException {
-		return state.getCurrentRecno();
+	public int getCurrentRecno() throws SSException {
+		ReadView view = readView;
+		if (view != null) {
+			return view.recno;
+		}
+		synchronized (this) {
+			return state.getCurrentRecno();
+		}
 	}
 	
 	private Map<Subtuple,Set<Integer>> getDirtyRecordFor(int relID) {
@@ -331,6 +376,7 @@ public class ClientCentricDb extends Db {
 			recnos = new HashSet<Integer>();
 			t.setReadOnly();
 			dirtyForRelation.put(st,recnos);
+			dirtyTuples.add(t);
 		}
 		recnos.add(recno);
 	}
@@ -414,6 +460,7 @@ public class ClientCentricDb extends Db {
 		}
 		
 		dirty.clear();
+		dirtyTuples.clear();
 
 		deferred.put(recno, new HashMap<TxnPeerID,HashSet<ConflictOptionPair>>());
 		conflictTxns.put(recno, new HashMap<ConflictOptionPair,HashSet<TxnPeerID>>());
@@ -1027,7 +1074,7 @@ public class ClientCentricDb extends Db {
 	 * @throws SSException 
 	 * @throws USException 
 	 */
-	public void applySingleTrans(int recno, TxnPeerID txn, List<Update> updatesToApply) throws SSException, USException {
+	public synchronized void applySingleTrans(int recno, TxnPeerID txn, List<Update> updatesToApply) throws SSException, USException {
 		state.applyTransaction(recno, updatesToApply);
 		
 		Collection<Decision> decisions = new ArrayList<Decision>();
@@ -1036,6 +1083,34 @@ public class ClientCentricDb extends Db {
 		decisions.add(new Decision(txn, recno, true));
 		updateStore.recordTxnDecisions(decisions);
 	}
+
+	/**
+	 * Apply a transaction to the local state without recording it as
+	 * accepted, so that nothing is visible to other peers until
+	 * {@link #recordAcceptedTrans} is called.
+	 * 
+	 * @param recno				The current reconciliation
+	 * @param updatesToApply	The updates of the transaction
+	 * @throws SSException
+	 */
+	public synchronized void applyTransToState(int recno, List<Update> updatesToApply) throws SSException {
+		state.applyTransaction(recno, updatesToApply);
+	}
+
+	/**
+	 * Record transactions applied by {@link #applyTransToState} as accepted.
+	 * 
+	 * @param recno				The current reconciliation
+	 * @param txns				The transactions
+	 * @throws USException
+	 */
+	public synchronized void recordAcceptedTrans(int recno, Collection<TxnPeerID> txns) throws USException {
+		Collection<Decision> decisions = new ArrayList<Decision>(txns.size());
+		for (TxnPeerID txn : txns) {
+			decisions.add(new Decision(txn, recno, true));
+		}
+		updateStore.recordTxnDecisions(decisions);
+	}
 	
 	public synchronized int getRecNo() throws DbException {
 		if (updateStore == null) {
@@ -1048,12 +1123,15 @@ public class ClientCentricDb extends Db {
 			throw new DbException("Update store and state store are not consistent. Update store current recno: " + usCurrentRecno + ", state store current recno: " + ssCurrentRecno + "." );
 		}
 		updateStore.recordReconcile(false);
+		beginReadView(state.getCurrentRecno() - 1);
 		
 		return state.getCurrentRecno();
 	}
 	
 	public synchronized void setRecDone() throws DbException {
 		state.advanceRecno();
+		readView = null;
+		snapshotIfDue();
 		
 		if (updateStore.getCurrentRecno() != state.getCurrentRecno()) {
 			throw new DbException("Update store and state store are not consistent");
@@ -1077,40 +1155,47 @@ public class ClientCentricDb extends Db {
 		}
 		updateStore.recordReconcile(false);
 		final int recno = state.getCurrentRecno();*/
+		final long start = System.nanoTime();
 		final int recno = getRecNo();
 
+		try {
+			ArrayList<Decision> decisions = new ArrayList<Decision>();
+			if (! tc.empty()) {
+				Map<Integer,List<TxnChain>> trustedTxns = new HashMap<Integer,List<TxnChain>>();
+				Set<TxnPeerID> mustReject = new HashSet<TxnPeerID>();
 
-		ArrayList<Decision> decisions = new ArrayList<Decision>();
-		if (! tc.empty()) {
-			Map<Integer,List<TxnChain>> trustedTxns = new HashMap<Integer,List<TxnChain>>();
-			Set<TxnPeerID> mustReject = new HashSet<TxnPeerID>();
+				updateStore.getReconciliationData(recno, new HashSet<TxnPeerID>(publishedTids), trustedTxns, mustReject);
 
-			updateStore.getReconciliationData(recno, new HashSet<TxnPeerID>(publishedTids), trustedTxns, mustReject);
+				// Record that we reject transactions with rejected antecedents
+				for (TxnPeerID tpi : mustReject) {
+					decisions.add(new Decision(tpi, recno, false));
+				}
 
-			// Record that we reject transactions with rejected antecedents
-			for (TxnPeerID tpi : mustReject) {
-				decisions.add(new Decision(tpi, recno, false));
-			}
+				long reconTime = applyReconciliationUpdates(recno, trustedTxns, decisions);
+				if (benchmark != null) {
+					benchmark.reconcile += reconTime;
+				}
 
-			long reconTime = applyReconciliationUpdates(recno, trustedTxns, decisions);
-			if (benchmark != null) {
-				benchmark.reconcile += reconTime;
 			}
+			for (TxnPeerID tpi : publishedTids) {
+				decisions.add(new Decision(tpi, recno, true));
+			}
+			// Record them before forgetting them, so that hasAcceptedTxn,
+			// which does not wait for reconciliation, always finds them
+			updateStore.recordTxnDecisions(decisions);
+			publishedTids.clear();
 
-		}
-		for (TxnPeerID tpi : publishedTids) {
-			decisions.add(new Decision(tpi, recno, true));
-		}
-		publishedTids.clear();
-		updateStore.recordTxnDecisions(decisions);
-
-		/*
-		state.advanceRecno();
+			/*
+			state.advanceRecno();
 
-		if (updateStore.getCurrentRecno() != state.getCurrentRecno()) {
-			throw new DbException("Update store and state store are not consistent");
-		}*/
-		setRecDone();
+			if (updateStore.getCurrentRecno() != state.getCurrentRecno()) {
+				throw new DbException("Update store and state store are not consistent");
+			}*/
+			setRecDone();
+			RECONCILE_TIMER.updateSince(start);
+		} finally {
+			readView = null;
+		}
 
 		return recno;
 	}
@@ -1123,13 +1208,15 @@ public class ClientCentricDb extends Db {
 			throw new IllegalStateException("Attempt to publish without first calling setDoneInitializing");
 		}
 
+		final long start = System.nanoTime();
 
 		updateStore.publish(unpublishedTransactions);
+		PUBLISHED_TXNS.add(unpublishedTransactions.size());
 		unpublishedTransactions.clear();
 		
 		publishedTids.addAll(unpublishedTids);
 		unpublishedTids.clear();
-
+		PUBLISH_TIMER.updateSince(start);
 
 	}
 
@@ -1194,7 +1281,21 @@ public class ClientCentricDb extends Db {
 	 * 					of keys of the current state of that relation.
 	 * @throws SSException
 	 */
-	public synchronized Map<String,TupleSet> getState() throws SSException {
+	public Map<String,TupleSet> getState() throws SSException {
+		ReadView view = readView;
+		if (view != null) {
+			HashMap<String,TupleSet> retval = new HashMap<String,TupleSet>();
+			for (String s : schema.getRelationNames()) {
+				retval.put(s, view.getState(state, s));
+			}
+			return retval;
+		}
+		synchronized (this) {
+			return buildState();
+		}
+	}
+
+	private Map<String,TupleSet> buildState() throws SSException {
 		HashMap<String,TupleSet> retval = new HashMap<String,TupleSet>();
 
 		for (String s : schema.getRelationNames()) {
@@ -1204,6 +1305,82 @@ public class ClientCentricDb extends Db {
 		return retval;
 	}
 
+	/**
+	 * Start a read view of the current state, if read views are enabled, so
+	 * that state reads need not wait for the reconciliation that is about to
+	 * change it. The view is read from an earlier reconciliation that the
+	 * reconciliation leaves alone, together with the changes made since it,
+	 * so only those changes are copied. If that reconciliation is no longer
+	 * kept in the state store (e.g. on the first reconciliation, or right after
+	 * restoring a snapshot) there is no view and reads wait as before.
+	 * 
+	 * @param base		The latest reconciliation that will not be changed
+	 * @throws SSException
+	 */
+	private void beginReadView(int base) throws SSException {
+		if (readViews && base >= state.getFirstRecno()) {
+			final int recno = state.getCurrentRecno();
+			readView = new ReadView(recno, base, state.getChanges(base, recno));
+		}
+	}
+
+	/**
+	 * The state as of the start of a reconciliation, kept as an earlier
+	 * reconciliation of the state store and the changes made since it.
+	 */
+	private static class ReadView {
+		final int recno;
+		final int base;
+		private final List<Update> changes;
+		// Keys changed since base
+		private final TupleSet changedKeys = new TupleSet();
+		// Values of changed keys that are present in the view
+		private final TupleSet changedValues = new TupleSet();
+
+		ReadView(int recno, int base, List<Update> changes) {
+			this.recno = recno;
+			this.base = base;
+			this.changes = changes;
+			for (Update u : changes) {
+				if (u.getOldVal() != null) {
+					u.getOldVal().setReadOnly();
+					changedKeys.add(u.getOldVal());
+				}
+				if (u.getNewVal() != null) {
+					u.getNewVal().setReadOnly();
+					changedKeys.add(u.getNewVal());
+					changedValues.add(u.getNewVal());
+				}
+			}
+		}
+
+		TupleSet getState(StateStore state, String relname) throws SSException {
+			TupleSet retval = state.getState(base, relname);
+			for (Update u : changes) {
+				if (! u.getRelationName().equals(relname)) {
+					continue;
+				}
+				if (u.getOldVal() != null) {
+					retval.remove(u.getOldVal());
+				}
+				if (u.getNewVal() != null) {
+					retval.add(u.getNewVal());
+				}
+			}
+			return retval;
+		}
+
+		Tuple getTupleWithKey(StateStore state, Tuple key) throws SSException {
+			Tuple t = changedValues.get(key);
+			if (t != null) {
+				return t.duplicate();
+			} else if (changedKeys.containsKey(key)) {
+				return null;
+			}
+			return state.getTupleWithKey(base, key);
+		}
+	}
+
 
 	/**
 	 * Get all of the conflicts and the transactions taking part in them currently present
@@ -1256,9 +1433,10 @@ public class ClientCentricDb extends Db {
 	 * @throws DbException
 	 */
 	public synchronized void resolveConflicts(Map<Integer,Map<Integer,Integer>> conflictResolutions) throws DbException {
+		final long start = System.nanoTime();
 
 		// Determine where we need to start re-running applyReconciliationUpdates
-		int maxRecno = getCurrentRecno() - 1;
+		int maxRecno = state.getCurrentRecno() - 1;
 		int minRecno = maxRecno;
 
 		List<Decision> tds = new ArrayList<Decision>();
@@ -1288,29 +1466,38 @@ public class ClientCentricDb extends Db {
 		if (updateStore.getCurrentRecno() != state.getCurrentRecno()) {
 			throw new DbException("Update store and state store are not consistent");
 		}
-		updateStore.recordReconcile(true);
-		updateStore.recordTxnDecisions(tds);
-		state.advanceRecno();
-
-		for (int recno = minRecno; recno <= maxRecno; ++recno) {
-			tds.clear();
-			Map<Integer,List<TxnChain>> trustedTxns = new HashMap<Integer,List<TxnChain>>();
-			Set<TxnPeerID> mustReject = new HashSet<TxnPeerID>();
-			updateStore.getReconciliationData(recno, publishedTids, trustedTxns, mustReject);			
-			for (TxnPeerID tpi : mustReject) {
-				tds.add(new Decision(tpi, recno, false));
-			}
-			long reconTime = applyReconciliationUpdates(recno, trustedTxns, tds);
+		// Re-running from minRecno changes every later reconciliation
+		beginReadView(minRecno - 1);
+		try {
 			updateStore.recordReconcile(true);
 			updateStore.recordTxnDecisions(tds);
 			state.advanceRecno();
-			if (benchmark != null) {
-				benchmark.resolveConflicts += reconTime;
+			snapshotIfDue();
+
+			for (int recno = minRecno; recno <= maxRecno; ++recno) {
+				tds.clear();
+				Map<Integer,List<TxnChain>> trustedTxns = new HashMap<Integer,List<TxnChain>>();
+				Set<TxnPeerID> mustReject = new HashSet<TxnPeerID>();
+				updateStore.getReconciliationData(recno, publishedTids, trustedTxns, mustReject);			
+				for (TxnPeerID tpi : mustReject) {
+					tds.add(new Decision(tpi, recno, false));
+				}
+				long reconTime = applyReconciliationUpdates(recno, trustedTxns, tds);
+				updateStore.recordReconcile(true);
+				updateStore.recordTxnDecisions(tds);
+				state.advanceRecno();
+				snapshotIfDue();
+				if (benchmark != null) {
+					benchmark.resolveConflicts += reconTime;
+				}
 			}
+		} finally {
+			readView = null;
 		}
 		if (updateStore.getCurrentRecno() != state.getCurrentRecno()) {
 			throw new DbException("Update store and state store are not consistent");
 		}
+		RESOLVE_TIMER.updateSince(start);
 	}
 
 	/**
@@ -1320,15 +1507,18 @@ public class ClientCentricDb extends Db {
 	 * @throws SSException
 	 */
 	public synchronized TupleSet getDirtyValues() throws SSException {
-		final int recno = getCurrentRecno();
-		Map<String,TupleSet> state = getState();
+		final int recno = state.getCurrentRecno();
 		
 		TupleSet retval = new TupleSet();
 		
-		for (TupleSet valuesForRelation : state.values()) {
-			for (Tuple st : valuesForRelation) {
-				if (isDirty(recno, st)) {
-					retval.add(st);
+		// Look up the current value of each dirty key, rather than
+		// checking every tuple in the state
+		for (Tuple key : dirtyTuples) {
+			if (isDirty(recno, key)) {
+				Tuple value = state.getTupleWithKey(recno, key);
+				if (value != null) {
+					value.setReadOnly();
+					retval.add(value);
 				}
 			}
 		}
@@ -1336,8 +1526,21 @@ public class ClientCentricDb extends Db {
 		return retval;
 	}
 
-	public synchronized Tuple getValueForKey(int recno, Tuple key) throws StateStore.SSException {
-		return state.getTupleWithKey(recno, key);
+	public synchronized List<Update> getStateChanges(int fromRecno, int toRecno) throws SSException {
+		return state.getChanges(fromRecno, toRecno);
+	}
+
+	public Tuple getValueForKey(int recno, Tuple key) throws StateStore.SSException {
+		ReadView view = readView;
+		if (view != null && view.recno == recno) {
+			return view.getTupleWithKey(state, key);
+		} else if (view != null && recno <= view.base) {
+			// Not changed by the reconciliation in progress
+			return state.getTupleWithKey(recno, key);
+		}
+		synchronized (this) {
+			return state.getTupleWithKey(recno, key);
+		}
 	}
 
 	private Benchmark benchmark = null;
@@ -1356,40 +1559,46 @@ public class ClientCentricDb extends Db {
 
 
 	@Override
-	public synchronized ResultIterator<Decision> getDecisions() throws USException {
+	public ResultIterator<Decision> getDecisions() throws USException {
 		return updateStore.getDecisions();
 	}
 
 	@Override
-	public synchronized List<Decision> getDecisions(int recno) throws USException {
+	public List<Decision> getDecisions(int recno) throws USException {
 		return updateStore.getDecisions(recno);
 	}
 
 	@Override
-	public synchronized ResultIterator<ReconciliationEpoch> getReconciliations() throws USException {
+	public ResultIterator<ReconciliationEpoch> getReconciliations() throws USException {
 		return updateStore.getReconciliations();
 	}
 
 
 	@Override
-	public synchronized ResultIterator<Tuple> getRelationContents(String relation) throws StateStore.SSException {
-		return state.getStateIterator(relation);
+	public ResultIterator<Tuple> getRelationContents(String relation) throws StateStore.SSException {
+		ReadView view = readView;
+		if (view != null) {
+			return new ListIteratorResultIterator<Tuple>(new ArrayList<Tuple>(view.getState(state, relation)).listIterator());
+		}
+		synchronized (this) {
+			return state.getStateIterator(relation);
+		}
 	}
 
 
 	@Override
-	public synchronized ResultIterator<Update> getPublishedUpdatesForRelation(String relname) throws USException {
+	public ResultIterator<Update> getPublishedUpdatesForRelation(String relname) throws USException {
 		return updateStore.getPublishedUpdatesForRelation(relname);
 	}
 
 
 	@Override
-	public synchronized List<Update> getTransaction(TxnPeerID txn) throws USException {
+	public List<Update> getTransaction(TxnPeerID txn) throws USException {
 		return updateStore.getTransaction(txn);
 	}
 
 	@Override
-	public synchronized ResultIterator<TxnPeerID> getTransactionsForReconciliation(int recno) throws USException {
+	public ResultIterator<TxnPeerID> getTransactionsForReconciliation(int recno) throws USException {
 		return updateStore.getTransactionsForReconciliation(recno);
 	}
 
@@ -1401,16 +1610,43 @@ public class ClientCentricDb extends Db {
 	
 	@Override
 	public synchronized void reset(boolean replay) throws DbException{
+		readView = null;
 		state.reset();
 		updateStore.reset();
 		if (replay) {
 			replayPreviousReconciliations();
+		} else if (snapshots != null) {
+			// The state no longer follows the update store's history
+			snapshots.clear();
 		}
 	}
 	
+	/**
+	 * Snapshot the state store if one is due at its current reconciliation.
+	 * 
+	 * @throws SSException
+	 */
+	private void snapshotIfDue() throws SSException {
+		if (snapshots != null && snapshots.isDue(state.getCurrentRecno())) {
+			snapshots.save(state, schema.getRelationNames(), StateSnapshots.historyOf(updateStore));
+		}
+	}
+	
+	/**
+	 * Bring the (reset) state store up to date with the update store, starting
+	 * from the latest snapshot if there is one. Reconciliations before the
+	 * snapshot cannot be queried afterwards, just as if
+	 * {@link StateStore#clearStateBefore(int)} had been called.
+	 * 
+	 * @throws DbException
+	 */
 	private void replayPreviousReconciliations() throws DbException {
 		int lastReconciliation = updateStore.getCurrentRecno() - 1;
-		for (int recno = StateStore.FIRST_RECNO; recno <= lastReconciliation; ++recno) {
+		int firstReconciliation = StateStore.FIRST_RECNO;
+		if (snapshots != null) {
+			firstReconciliation = snapshots.restore(state, lastReconciliation + 1, StateSnapshots.historyOf(updateStore));
+		}
+		for (int recno = firstReconciliation; recno <= lastReconciliation; ++recno) {
 			final Map<TxnPeerID,List<Update>> acceptedTxns = updateStore.getTransactionsAcceptedAtRecno(recno);
 			
 			
@@ -1483,6 +1719,7 @@ public class ClientCentricDb extends Db {
 				throw new DbException("Replaying previous reconciliation gave different result: expected decisions " + recordedDecisionsSet + " but got " + decisions);
 			}
 			state.advanceRecno();
+			snapshotIfDue();
 		}
 	}
 }
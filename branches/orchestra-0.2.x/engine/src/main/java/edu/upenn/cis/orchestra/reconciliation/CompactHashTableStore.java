@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.ByteBufferReader;
+import edu.upenn.cis.orchestra.datamodel.ByteBufferWriter;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.util.ByteArrayMap;
+import edu.upenn.cis.orchestra.util.ByteArraySet;
+import edu.upenn.cis.orchestra.util.IByteArrayMap;
+
+/**
+ * An in-memory state store that keeps its contents serialized, for peers
+ * whose state is too large for {@link HashTableStore}. Entries are keyed by
+ * tuple key column bytes in {@link ByteArrayMap}s, and the antecedents of a
+ * store entry are held as pairs of ints: the transaction ID and the index of
+ * the peer in a table of the peers seen so far.
+ */
+public class CompactHashTableStore extends DiffStore {
+	public static final Factory FACTORY = new Factory();
+
+	public static class Factory implements StateStore.Factory {
+		public StateStore getStateStore(AbstractPeerID pid, ISchemaIDBinding s, int lastTid) {
+			return new CompactHashTableStore(pid, s, lastTid);
+		}
+
+		public void serialize(Document doc, Element store) {
+			store.setAttribute("type", "compact");
+		}
+
+		static public Factory deserialize(Element store) {
+			return new Factory();
+		}
+
+		/**  {@inheritDoc}
+		 * @see edu.upenn.cis.orchestra.reconciliation.StateStore.Factory#shutdown()
+		 */
+		@Override
+		public void shutdown() {}
+	}
+
+	// The current state of each relation, indexed by relation ID.
+	// Mapping from key column bytes to encoded StoreEntry
+	private final Map<Integer,IByteArrayMap> state = new HashMap<Integer,IByteArrayMap>();
+	// The flattened update lists for each reconciliation, indexed by recno.
+	// Mapping from key column bytes to one or two encoded updates
+	private final SortedMap<Integer,ByteArrayMap> updates = new TreeMap<Integer,ByteArrayMap>();
+	// The peers that appear in antecedents, and their indices
+	private final List<AbstractPeerID> peers = new ArrayList<AbstractPeerID>();
+	private final Map<AbstractPeerID,Integer> peerIndices = new HashMap<AbstractPeerID,Integer>();
+
+	private final ByteBufferWriter bbw = new ByteBufferWriter();
+	private final ByteBufferReader bbr;
+
+	private final ByteArraySet.Deserializer<StoreEntry> entryDeserializer = new ByteArraySet.Deserializer<StoreEntry>() {
+		@Override
+		public StoreEntry fromBytes(byte[] data, int offset, int length) {
+			bbr.reset(data, offset, length);
+			StoreEntry se = new StoreEntry(bbr.readTuple());
+			int numTids = bbr.readInt();
+			for (int i = 0; i < numTids; ++i) {
+				int tid = bbr.readInt();
+				se.antecedents.add(new TxnPeerID(tid, peers.get(bbr.readInt())));
+			}
+			return se;
+		}
+	};
+
+	final ByteArraySet.Deserializer<Tuple> valueDeserializer = new ByteArraySet.Deserializer<Tuple>() {
+		@Override
+		public Tuple fromBytes(byte[] data, int offset, int length) {
+			bbr.reset(data, offset, length);
+			return bbr.readTuple();
+		}
+	};
+
+	private final ByteArraySet.Deserializer<List<Update>> updatesDeserializer = new ByteArraySet.Deserializer<List<Update>>() {
+		@Override
+		public List<Update> fromBytes(byte[] data, int offset, int length) {
+			bbr.reset(data, offset, length);
+			List<Update> retval = new ArrayList<Update>(2);
+			retval.add(bbr.readUpdate());
+			Update u2 = bbr.readUpdate();
+			if (u2 != null) {
+				retval.add(u2);
+			}
+			return retval;
+		}
+	};
+
+	public CompactHashTableStore(AbstractPeerID pid, ISchemaIDBinding schema, int lastTid) {
+		super(pid, schema, lastTid);
+		bbr = new ByteBufferReader(schema);
+	}
+
+	/**
+	 * Create the map holding the state of a relation.
+	 * 
+	 * @param relID		The ID of the relation
+	 * @return			An empty map
+	 * @throws SSException
+	 */
+	protected IByteArrayMap newStateMap(int relID) throws SSException {
+		return new ByteArrayMap();
+	}
+
+	private IByteArrayMap getStateFor(int relID) throws SSException {
+		IByteArrayMap ret = state.get(relID);
+		if (ret == null) {
+			ret = newStateMap(relID);
+			state.put(relID, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * @param relID		The ID of a relation
+	 * @return			The map holding the state of the relation, or
+	 * 					<code>null</code> if nothing has been stored for it
+	 */
+	IByteArrayMap getStateMap(int relID) {
+		return state.get(relID);
+	}
+
+	private int getPeerIndex(AbstractPeerID pid) {
+		Integer index = peerIndices.get(pid);
+		if (index == null) {
+			index = peers.size();
+			AbstractPeerID copy = pid.duplicate();
+			peers.add(copy);
+			peerIndices.put(copy, index);
+		}
+		return index;
+	}
+
+	@Override
+	void clearStateBeforeImpl(int recno) {
+		updates.headMap(recno).clear();
+	}
+
+	@Override
+	StoreEntry getStoreEntry(Tuple t) {
+		IByteArrayMap stateForRelation = state.get(t.getRelationID());
+		if (stateForRelation == null) {
+			return null;
+		}
+		return stateForRelation.get(t.getKeyColumnBytes(), entryDeserializer);
+	}
+
+	@Override
+	void setStoreEntry(Tuple t, StoreEntry se) throws SSException {
+		if (se == null) {
+			IByteArrayMap stateForRelation = state.get(t.getRelationID());
+			if (stateForRelation != null) {
+				stateForRelation.remove(t.getKeyColumnBytes());
+			}
+			return;
+		}
+		bbw.clear();
+		bbw.addToBuffer(se.value);
+		bbw.addToBuffer(se.antecedents.size());
+		for (TxnPeerID tpi : se.antecedents) {
+			bbw.addToBuffer(tpi.getTid());
+			bbw.addToBuffer(getPeerIndex(tpi.getPeerID()));
+		}
+		getStateFor(t.getRelationID()).put(t.getKeyColumnBytes(), bbw.getByteArray());
+	}
+
+	@Override
+	void addToUpdateList(int recno, Update u) throws SSException {
+		ArrayList<byte[]> keys = new ArrayList<byte[]>(2);
+		if (u.getOldVal() != null) {
+			keys.add(u.getOldVal().getKeyColumnBytes());
+		}
+		if (u.getNewVal() != null) {
+			if (u.getOldVal() == null || (! u.getNewVal().sameKey(u.getOldVal()))) {
+				keys.add(u.getNewVal().getKeyColumnBytes());
+			}
+		}
+
+		ByteArrayMap updatesForRecno = updates.get(recno);
+		if (updatesForRecno == null) {
+			updatesForRecno = new ByteArrayMap();
+			updates.put(recno, updatesForRecno);
+		}
+
+		// Flatten update into existing updates
+		for (byte[] key : keys) {
+			List<Update> updateList = updatesForRecno.get(key, updatesDeserializer);
+			if (updateList == null) {
+				updateList = new ArrayList<Update>(1);
+				updateList.add(u);
+			} else {
+				Update lastUpdate = updateList.get(updateList.size() - 1);
+				if (u.isDeletion()) {
+					updateList.remove(updateList.size() - 1);
+					if (! lastUpdate.isInsertion()) {
+						updateList.add(new Update(lastUpdate.getOldVal(), null));
+					}
+				} else if (u.isUpdate()) {
+					updateList.remove(updateList.size() - 1);
+					updateList.add(new Update(lastUpdate.getOldVal(), u.getNewVal()));
+				} else if (u.isInsertion()) {
+					updateList.add(u);
+				}
+			}
+
+			if (updateList.size() > 2) {
+				throw new SSException("Should never have more than two updates for a given key during a given reconciliation: " + updateList);
+			}
+
+			if (updateList.isEmpty()) {
+				updatesForRecno.remove(key);
+			} else {
+				bbw.clear();
+				bbw.addToBuffer(updateList.get(0), Update.SerializationLevel.VALUES_ONLY);
+				bbw.addToBuffer(updateList.size() == 2 ? updateList.get(1) : null, Update.SerializationLevel.VALUES_ONLY);
+				updatesForRecno.put(key, bbw.getByteArray());
+			}
+		}
+	}
+
+	@Override
+	List<Update> getUpdateList(Tuple t, int startRecno) {
+		List<Update> retval = new ArrayList<Update>();
+		byte[] key = t.getKeyColumnBytes();
+		for (ByteArrayMap updatesForRecno : updates.subMap(startRecno, getRecno() + 1).values()) {
+			List<Update> updateList = updatesForRecno.get(key, updatesDeserializer);
+			if (updateList != null) {
+				retval.addAll(updateList);
+			}
+		}
+		return retval;
+	}
+
+	@Override
+	List<Update> getUpdateLists(int startRecno, int endRecno) {
+		List<Update> retval = new ArrayList<Update>();
+		for (ByteArrayMap updatesForRecno : updates.subMap(startRecno, endRecno + 1).values()) {
+			Iterator<List<Update>> it = updatesForRecno.iterator(updatesDeserializer);
+			while (it.hasNext()) {
+				retval.addAll(it.next());
+			}
+		}
+		return retval;
+	}
+
+	@Override
+	void recnoHasAdvanced() {
+		// Doesn't need to do anything, since we flatten even the most
+		// recent reconciliation as we go
+	}
+
+	public ResultIterator<Tuple> getStateIterator(String relname) {
+		int relnum = schMap.getRelationNamed(relname).getRelationID();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		IByteArrayMap stateForRelation = state.get(relnum);
+		if (stateForRelation != null) {
+			tuples.ensureCapacity(stateForRelation.size());
+			Iterator<Tuple> it = stateForRelation.iterator(valueDeserializer);
+			while (it.hasNext()) {
+				tuples.add(it.next());
+			}
+		}
+		return new ListIteratorResultIterator<Tuple>(tuples.listIterator());
+	}
+
+	@Override
+	public void close() throws SSException {
+		// Doesn't need to do anything
+	}
+
+	@Override
+	public void reopen() throws SSException {
+	}
+
+	@Override
+	protected void resetDiffStore() throws SSException {
+		state.clear();
+		updates.clear();
+		peers.clear();
+		peerIndices.clear();
+	}
+}
@@ -158,6 +158,21 @@ public abstract class Db {
 	 * @throws SSException
 	 */
 	abstract public Map<String,TupleSet> getState() throws SSException;
+
+	/**
+	 * Get the changes to the state of the viewing peer between two
+	 * reconciliations, so that a caller holding the state after the first
+	 * can bring it up to date without retrieving the whole state again.
+	 * 
+	 * @param fromRecno	The reconciliation whose state the caller holds
+	 * @param toRecno	The reconciliation to bring the state up to
+	 * @return			One update for each key whose value differs between
+	 * 					the two reconciliations. Keys that were added have a
+	 * 					<code>null</code> old value, and keys that were removed
+	 * 					have a <code>null</code> new value.
+	 * @throws SSException
+	 */
+	abstract public List<Update> getStateChanges(int fromRecno, int toRecno) throws SSException;
 	
 	/**
 	 * Get the value associated with a particular key after the specified
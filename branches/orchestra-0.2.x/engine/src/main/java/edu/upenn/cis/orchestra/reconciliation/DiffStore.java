@@ -15,6 +15,11 @@
  */
 package edu.upenn.cis.orchestra.reconciliation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -23,8 +28,10 @@ import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
 import edu.upenn.cis.orchestra.datamodel.ByteBufferReader;
 import edu.upenn.cis.orchestra.datamodel.ByteBufferWriter;
 import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.TupleSet;
 import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
 import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 
 
@@ -71,14 +78,16 @@ public abstract class DiffStore extends StateStore {
 
 		byte[] getBytes() {
 			ByteBufferWriter bbw = new ByteBufferWriter();
+			writeBytes(bbw);
+			return bbw.getByteArray();
+		}
 
+		void writeBytes(ByteBufferWriter bbw) {
 			bbw.addToBuffer(value);
 			bbw.addToBuffer(antecedents.size());
 			for (TxnPeerID tpi : antecedents) {
 				bbw.addToBuffer(tpi);
 			}
-
-			return bbw.getByteArray();
 		}
 
 		static StoreEntry fromBytes(ISchemaIDBinding s, byte[] bytes, int offset, int length) throws SSException {
@@ -235,10 +244,51 @@ public abstract class DiffStore extends StateStore {
 	}
 
 
+	final List<Update> getChanges(int fromRecno, int toRecno) throws SSException {
+		if (fromRecno < firstRecno || fromRecno > currRecno) {
+			throw new BadRecno(fromRecno, currRecno, firstRecno);
+		}
+		if (toRecno < fromRecno || toRecno > currRecno) {
+			throw new BadRecno(toRecno, currRecno, fromRecno);
+		}
+
+		// Only keys with an update after fromRecno can have changed
+		TupleSet keys = new TupleSet();
+		for (Update u : getUpdateLists(fromRecno + 1, toRecno)) {
+			addKey(keys, u.getOldVal());
+			addKey(keys, u.getNewVal());
+		}
+
+		List<Update> retval = new ArrayList<Update>();
+		for (Tuple key : keys) {
+			Tuple before = getTupleWithKey(fromRecno, key);
+			Tuple after = getTupleWithKey(toRecno, key);
+			if (before == null ? after != null : (! before.equals(after))) {
+				retval.add(new Update(before, after));
+			}
+		}
+		return retval;
+	}
+
+	private static void addKey(TupleSet keys, Tuple t) {
+		if (t == null || keys.containsKey(t)) {
+			return;
+		}
+		if (! t.isReadOnly()) {
+			t = t.duplicate();
+			t.setReadOnly();
+		}
+		keys.add(t);
+	}
+
 	final public int getCurrentRecno() {
 		return currRecno;
 	}
 
+	final public int getFirstRecno() {
+		return firstRecno;
+	}
+
 	final public void advanceRecno() throws SSException, Db.InconsistentUpdates {
 		++currRecno;
 		recnoHasAdvanced();
@@ -289,6 +339,19 @@ public abstract class DiffStore extends StateStore {
 	 */
 	abstract List<Update> getUpdateList(Tuple t, int startRecno) throws SSException;
 
+	/**
+	 * Get the update lists for all keys from the specified reconciliations,
+	 * in no particular order. As with {@link #getUpdateList(Tuple, int)},
+	 * the updates for each reconciliation are flattened together and only
+	 * old and new values are retrieved.
+	 * 
+	 * @param startRecno		The first reconciliation of interest
+	 * @param endRecno			The last reconciliation of interest (inclusive)
+	 * @return
+	 * @throws SSException
+	 */
+	abstract List<Update> getUpdateLists(int startRecno, int endRecno) throws SSException;
+
 	/**
 	 * Perform any processing needed after a reconciliation has occurred. It should only be
 	 * called once for each reconciliation.
@@ -297,8 +360,43 @@ public abstract class DiffStore extends StateStore {
 	 */
 	abstract void recnoHasAdvanced() throws SSException;
 
-	public ResultIterator<Tuple> getState(int recno, String relname) throws SSException {
-		return null;
+	void writeSnapshot(Collection<String> relnames, DataOutputStream out) throws SSException, IOException {
+		out.writeInt(currRecno);
+		for (String relname : relnames) {
+			ResultIterator<Tuple> it = getStateIterator(relname);
+			try {
+				while (it.hasNext()) {
+					StoreEntry se = getStoreEntry(it.next());
+					byte[] bytes = se.getBytes();
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			} catch (IteratorException e) {
+				throw new SSException(e.getMessage(), e.getCause());
+			} finally {
+				try {
+					it.close();
+				} catch (IteratorException e) {
+					throw new SSException(e.getMessage(), e.getCause());
+				}
+			}
+		}
+		// Marks the end of the entries
+		out.writeInt(-1);
+	}
+
+	int readSnapshot(DataInputStream in) throws SSException, IOException {
+		resetDiffStore();
+		int recno = in.readInt();
+		for (int length = in.readInt(); length >= 0; length = in.readInt()) {
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			StoreEntry se = StoreEntry.fromBytes(schMap, bytes, 0, length);
+			setStoreEntry(se.value, se);
+		}
+		firstRecno = recno;
+		currRecno = recno;
+		return recno;
 	}
 
 	private void resetLocalState() {
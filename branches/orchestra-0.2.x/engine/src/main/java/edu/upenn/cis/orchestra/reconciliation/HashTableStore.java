@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -74,6 +75,11 @@ public class HashTableStore extends DiffStore {
 //	ArrayList<HashMap<Subtuple,HashMap<Integer,List<Update>>>> updates;
 	private Map<Integer,HashMap<Subtuple,HashMap<Integer,List<Update>>>> updates;
 
+	// The same update lists as in updates, indexed by reconciliation, so that
+	// the changes made by a range of reconciliations can be found without
+	// going through the history of every key
+	private TreeMap<Integer,List<List<Update>>> updatesByRecno;
+
 	// These will be flattened together when advanceRecno is called
 	private ArrayList<Update> currRecnoUpdates;
 
@@ -84,6 +90,7 @@ public class HashTableStore extends DiffStore {
 //		updates = new ArrayList<HashMap<Subtuple,HashMap<Integer,List<Update>>>>(numRel);
 		state = new HashMap<Integer,HashMap<Subtuple,StoreEntry>>();
 		updates = new HashMap<Integer,HashMap<Subtuple,HashMap<Integer,List<Update>>>>();
+		updatesByRecno = new TreeMap<Integer,List<List<Update>>>();
 		
 		
 //		for (int i = 0; i < numRel; ++i) {
@@ -126,6 +133,7 @@ public class HashTableStore extends DiffStore {
 			}
 		}
 		updates.clear();
+		updatesByRecno.clear();
 	}
 
 	void addToUpdateList(int recno, Update u) throws UnknownTable {
@@ -159,6 +167,12 @@ public class HashTableStore extends DiffStore {
 				if (updateList == null) {
 					updateList = new ArrayList<Update>(1);
 					updatesForKey.put(recno,updateList);
+					List<List<Update>> listsForRecno = updatesByRecno.get(recno);
+					if (listsForRecno == null) {
+						listsForRecno = new ArrayList<List<Update>>();
+						updatesByRecno.put(recno, listsForRecno);
+					}
+					listsForRecno.add(updateList);
 					updateList.add(u.duplicate());
 				} else {
 					Update lastUpdate = updateList.get(updateList.size() - 1);
@@ -213,6 +227,34 @@ public class HashTableStore extends DiffStore {
 		return retval;
 	}
 
+	List<Update> getUpdateLists(int startRecno, int endRecno) throws FlattenError {
+		ArrayList<Update> retval = new ArrayList<Update>();
+		final int currRecno = getRecno();
+
+		final int lastRecno = Math.min(endRecno, currRecno - 1);
+		if (startRecno <= lastRecno) {
+			for (List<List<Update>> listsForRecno : updatesByRecno.subMap(startRecno, lastRecno + 1).values()) {
+				for (List<Update> updateList : listsForRecno) {
+					retval.addAll(updateList);
+				}
+			}
+		}
+
+		if (endRecno >= currRecno) {
+			try {
+				for (Update u : Db.flatten(currRecnoUpdates)) {
+					retval.add(u.duplicate());
+				}
+			} catch (Db.InconsistentUpdates iu) {
+				throw new FlattenError(iu);
+			} catch (InvalidUpdate e) {
+				throw new FlattenError(e);
+			}
+		}
+
+		return retval;
+	}
+
 	public ResultIterator<Tuple> getStateIterator(String relname) {
 //		Integer relnum = schema.getIDForName(relname);
 		Integer relnum = schMap.getRelationNamed(relname).getRelationID();
@@ -289,6 +331,7 @@ public class HashTableStore extends DiffStore {
 //		updates = new ArrayList<HashMap<Subtuple,HashMap<Integer,List<Update>>>>(numRel);
 		state.clear();
 		updates.clear();
+		updatesByRecno.clear();
 //		for (int i = 0; i < numRel; ++i) {
 //			state.add(new HashMap<Subtuple,StoreEntry>());
 //			updates.add(new HashMap<Subtuple,HashMap<Integer,List<Update>>>());
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.util.IByteArrayMap;
+import edu.upenn.cis.orchestra.util.MappedByteArrayMap;
+
+/**
+ * A {@link CompactHashTableStore} that keeps the state of each relation in a
+ * {@link MappedByteArrayMap}, so that it lives outside the Java heap. Only
+ * the update lists of the reconciliations that have not been pruned, and the
+ * table of peer IDs, are kept on the heap.
+ * <p>
+ * The files are working storage and are not reloaded: like the hash table
+ * stores, the state is rebuilt from the update store, or from a
+ * {@link StateSnapshots snapshot}, when the peer starts. Closing the store
+ * unmaps the files, and reopening it maps them again.
+ */
+public class MappedFileStore extends CompactHashTableStore {
+	public static class Factory implements StateStore.Factory {
+		private final File dir;
+		private final int segmentSize;
+
+		public Factory(File dir, int segmentSize) {
+			this.dir = dir;
+			this.segmentSize = segmentSize;
+		}
+
+		public StateStore getStateStore(AbstractPeerID pid, ISchemaIDBinding s, int lastTid) {
+			String peerDir = pid.toString().replaceAll("[^A-Za-z0-9_\\-]", "_");
+			return new MappedFileStore(new File(dir, peerDir), segmentSize, pid, s, lastTid);
+		}
+
+		public void serialize(Document doc, Element store) {
+			store.setAttribute("type", "mapped");
+			store.setAttribute("workdir", dir.getPath());
+			store.setAttribute("segmentSize", Integer.toString(segmentSize));
+		}
+
+		static public Factory deserialize(Element store) {
+			String segmentSize = store.getAttribute("segmentSize");
+			return new Factory(new File(store.getAttribute("workdir")),
+					segmentSize.length() == 0 ? MappedByteArrayMap.DEFAULT_SEGMENT_SIZE : Integer.parseInt(segmentSize));
+		}
+
+		/**  {@inheritDoc}
+		 * @see edu.upenn.cis.orchestra.reconciliation.StateStore.Factory#shutdown()
+		 */
+		@Override
+		public void shutdown() {}
+	}
+
+	private final File dir;
+	private final int segmentSize;
+	private final List<MappedByteArrayMap> maps = new ArrayList<MappedByteArrayMap>();
+
+	public MappedFileStore(File dir, int segmentSize, AbstractPeerID pid, ISchemaIDBinding schema, int lastTid) {
+		super(pid, schema, lastTid);
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		dir.mkdirs();
+	}
+
+	@Override
+	protected IByteArrayMap newStateMap(int relID) throws SSException {
+		try {
+			MappedByteArrayMap map = new MappedByteArrayMap(new File(dir, "rel" + relID), segmentSize);
+			maps.add(map);
+			return map;
+		} catch (IOException ioe) {
+			throw new SSException("Could not create state file for relation " + relID + " in " + dir, ioe);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The tuples are decoded straight from the mapped files as the iterator
+	 * advances, so it is forward-only and {@link ResultIterator#hasPrev()}
+	 * is always <code>false</code>. The state must not be modified while it
+	 * is open.
+	 */
+	@Override
+	public ResultIterator<Tuple> getStateIterator(String relname) {
+		IByteArrayMap stateForRelation = getStateMap(schMap.getRelationNamed(relname).getRelationID());
+		final Iterator<Tuple> it;
+		if (stateForRelation == null) {
+			it = new ArrayList<Tuple>().iterator();
+		} else {
+			it = stateForRelation.iterator(valueDeserializer);
+		}
+		return new ResultIterator<Tuple>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public boolean hasPrev() {
+				return false;
+			}
+
+			public Tuple next() throws NoSuchElementException {
+				return it.next();
+			}
+
+			public Tuple prev() throws NoSuchElementException {
+				throw new NoSuchElementException("Forward-only iterator");
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public void close() throws SSException {
+		for (MappedByteArrayMap map : maps) {
+			try {
+				map.release();
+			} catch (IOException ioe) {
+				throw new SSException("Could not close state files in " + dir, ioe);
+			}
+		}
+	}
+
+	@Override
+	public void reopen() throws SSException {
+		for (MappedByteArrayMap map : maps) {
+			try {
+				map.reopen();
+			} catch (IOException ioe) {
+				throw new SSException("Could not reopen state files in " + dir, ioe);
+			}
+		}
+	}
+
+	@Override
+	protected void resetDiffStore() throws SSException {
+		super.resetDiffStore();
+		try {
+			for (MappedByteArrayMap map : maps) {
+				map.close();
+			}
+		} catch (IOException ioe) {
+			throw new SSException("Could not delete state files in " + dir, ioe);
+		} finally {
+			maps.clear();
+		}
+	}
+}
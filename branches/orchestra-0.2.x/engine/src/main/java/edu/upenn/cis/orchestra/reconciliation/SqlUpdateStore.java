@@ -15,6 +15,11 @@
  */
 package edu.upenn.cis.orchestra.reconciliation;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -242,15 +247,110 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 				}
 			}
 		}
-		public void restoreUpdateStore(USDump d) throws USException {
-			Schema s = null;
-			for (Schema ss : d.getSchemas().values()) {
-				if (s == null) {
-					s = ss;
-				} else if (! s.equals(ss)) {
-					throw new USException("SqlUpdateStore does not support multiple schemas");
+		public void dumpUpdateStore(ISchemaIDBinding binding, Schema schema, OutputStream out) throws USException {
+			Connection conn = null;
+			try {
+				Class.forName(Config.getUSJDBCDriver());
+				conn = DriverManager.getConnection(dbUrl, username, password);
+				conn.setAutoCommit(false);
+				conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+				Statement s = conn.createStatement();
+				s.execute("SET PATH = orchestr");
+
+				SQLException err = checkDatabase(schema, s);
+				if (err != null) {
+					throw new USException("SQL database does not have correct schema");
+				}
+
+				Map<AbstractPeerID,Schema> schemas = new HashMap<AbstractPeerID,Schema>();
+				ResultSet rs = s.executeQuery("SELECT DISTINCT peer FROM tids");
+				while (rs.next()) {
+					AbstractPeerID pid = AbstractPeerID.deserialize(rs.getString(1));
+					schemas.put(pid, schema);
+				}
+				rs.close();
+
+				USDumpWriter w = new USDumpWriter(out, schemas);
+
+				// Only the transactions of a single epoch are in memory at once
+				List<Integer> epochs = new ArrayList<Integer>();
+				rs = s.executeQuery("SELECT DISTINCT epoch FROM tids ORDER BY epoch");
+				while (rs.next()) {
+					epochs.add(rs.getInt(1));
+				}
+				rs.close();
+
+				final int numRel = schema.getNumRelations();
+				List<PreparedStatement> getUpdates = new ArrayList<PreparedStatement>(numRel);
+				for (int i = 0; i < numRel; ++i) {
+					getUpdates.add(conn.prepareStatement("SELECT * FROM updates_" + schema.getNameForID(i) + " WHERE epoch = ?"));
+				}
+				PreparedStatement getAntecedents = conn.prepareStatement("SELECT a.peer, a.tid, a.serialno, a.prevpeer, a.prevtid FROM immediateAntecedents a, tids t " +
+						"WHERE a.peer = t.peer AND a.tid = t.tid AND t.epoch = ?");
+
+				for (int epoch : epochs) {
+					Map<TxnPeerID,List<Update>> txns = new HashMap<TxnPeerID,List<Update>>();
+					for (int i = 0; i < numRel; ++i) {
+						PreparedStatement ps = getUpdates.get(i);
+						ps.setInt(1, epoch);
+						rs = ps.executeQuery();
+						parseUpdates(schema.getRelationSchema(i), rs, txns);
+						rs.close();
+					}
+					getAntecedents.setInt(1, epoch);
+					rs = getAntecedents.executeQuery();
+					while (rs.next()) {
+						TxnPeerID tid = new TxnPeerID(rs.getInt(2), AbstractPeerID.deserialize(rs.getString(1)));
+						TxnPeerID prevTid = new TxnPeerID(rs.getInt(5), AbstractPeerID.deserialize(rs.getString(4)));
+						int serialno = rs.getInt(3);
+						txns.get(tid).get(serialno).addPrevTid(prevTid);
+					}
+					rs.close();
+					for (Map.Entry<TxnPeerID,List<Update>> me : txns.entrySet()) {
+						w.addTxn(me.getKey(), epoch, me.getValue());
+					}
+				}
+
+				rs = s.executeQuery("SELECT peer, recno, epoch FROM recnos ORDER BY peer, recno");
+				while (rs.next()) {
+					AbstractPeerID pid = AbstractPeerID.deserialize(rs.getString(1));
+					w.addRecnoEpoch(pid, rs.getInt(2), rs.getInt(3));
+				}
+				rs.close();
+
+				rs = s.executeQuery("SELECT truster, recno, trusted, tid, 1 FROM accepted UNION ALL SELECT truster, recno, trusted, tid, 0 FROM rejected ORDER BY 1, 2");
+				while (rs.next()) {
+					AbstractPeerID truster = AbstractPeerID.deserialize(rs.getString(1));
+					int recno = rs.getInt(2);
+					AbstractPeerID trusted = AbstractPeerID.deserialize(rs.getString(3));
+					int tid = rs.getInt(4);
+					w.addDecision(truster, new Decision(new TxnPeerID(tid,trusted), recno, rs.getInt(5) == 1));
+				}
+				rs.close();
+
+				w.close();
+				s.close();
+			} catch (ClassNotFoundException c) {
+				throw new USException("Error connecting to SQL database", c);
+			} catch (SQLException e) {
+				throw new USException("Error dumping SQL database", e);
+			} catch (PeerIDFormatException e) {
+				throw new USException("Error decoding Peer ID from SQL database", e);
+			} catch (IOException e) {
+				throw new USException("Error writing SQL database dump", e);
+			} finally {
+				try {
+					if (conn != null) {
+						conn.commit();
+						conn.close();
+					}
+				} catch (SQLException e) {
+					throw new USException("Error dumping SQL database", e);
 				}
 			}
+		}
+		public void restoreUpdateStore(USDump d) throws USException {
+			Schema s = getSingleSchema(d.getSchemas());
 			resetStore(s);
 			Connection conn = null;
 			try {
@@ -259,169 +359,94 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 				conn.setAutoCommit(false);
 				conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
 
-				Set<AbstractPeerID> pids = d.getPeers();
-
-				PreparedStatement addRecon = conn.prepareStatement("INSERT INTO recnos VALUES(?,?,?,0)");
-				PreparedStatement addAccept = conn.prepareStatement("INSERT INTO accepted VALUES(?,?,?,?)");
-				PreparedStatement addReject = conn.prepareStatement("INSERT INTO rejected VALUES(?,?,?,?)");
-
-				for (AbstractPeerID pid : pids) {
-					String pidString = pid.serialize();
+				Restorer r = new Restorer(conn, s);
+				for (AbstractPeerID pid : d.getPeers()) {
 					Iterator<Decision> ds = d.getPeerDecisions(pid);
 					while (ds.hasNext()) {
-						Decision dec = ds.next();
-						PreparedStatement ps;
-						if (dec.accepted) {
-							ps = addAccept;
-						} else {
-							ps = addReject;
-						}
-						ps.setString(1, pidString);
-						ps.setInt(2, dec.recno);
-						ps.setString(3, dec.tpi.getPeerID().serialize());
-						ps.setInt(4, dec.tpi.getTid());
-						ps.addBatch();
+						r.decision(pid, ds.next());
 					}
 					Iterator<RecnoEpoch> recnos = d.getPeerRecons(pid);
 					while (recnos.hasNext()) {
 						RecnoEpoch recon = recnos.next();
-						addRecon.setString(1, pidString);
-						addRecon.setInt(2, recon.recno);
-						addRecon.setInt(3, recon.epoch);
-						addRecon.addBatch();
+						r.recnoEpoch(pid, recon.recno, recon.epoch);
 					}
 				}
-
-				addRecon.executeBatch();
-				addAccept.executeBatch();
-				addReject.executeBatch();
-
 				Iterator<TxnPeerID> tids = d.getTids();
-				final int numRel = s.getNumRelations();
-				List<PreparedStatement> insertUpdate = new ArrayList<PreparedStatement>(numRel);
-				for (int i = 0; i < numRel; ++i) {
-					StringBuilder sb = new StringBuilder("INSERT INTO updates_" + s.getNameForID(i) + " VALUES(?,?,?,?");
-					int numCols = s.getRelationSchema(i).getNumCols();
-					while (numCols > 0) {
-						sb.append(",?,?,?,?");
-						--numCols;
-					}
-					sb.append(")");
-					insertUpdate.add(conn.prepareStatement(sb.toString()));
-				}
-
-				PreparedStatement addAntecedent = conn.prepareStatement("INSERT INTO immediateAntecedents VALUES(?,?,?,?,?)");
-
 				while (tids.hasNext()) {
 					TxnPeerID tid = tids.next();
-					String pid = tid.getPeerID().serialize();
-					int epoch = d.getTxnEpoch(tid);
-					List<Update> contents = d.getTxnContents(tid);
-
-					int serialno = 0;
-					for (Update u : contents) {
-						int rel = u.getRelationID();
-						PreparedStatement ps = insertUpdate.get(rel);
-						ps.setString(1, pid);
-						ps.setInt(2, tid.getTid());
-						ps.setInt(3, serialno);
-						ps.setInt(4, epoch);
-
-						Relation rs = s.getRelationSchema(rel);
-						final int numCols = rs.getNumCols();
-						for (int i = 0; i < numCols; ++i) {
-							Type t = rs.getColType(i);
-							Tuple oldVal = u.getOldVal();
-							Tuple newVal = u.getNewVal();
-							if (u.isDeletion() || u.isUpdate()) {
-								if (oldVal.isLabeledNull(i)) {
-									ps.setNull(4 + 4*i + 1, t.getSqlTypeCode());
-									ps.setInt(4 + 4*i + 2, oldVal.getLabeledNull(i));
-								} else {
-									Object val = oldVal.get(i);
-									if (val == null) {
-										ps.setNull(4 + 4*i + 1, t.getSqlTypeCode());
-									} else {
-										ps.setObject(4 + 4*i + 1, val, t.getSqlTypeCode());
-									}
-									ps.setNull(4 + 4 * i + 2, Types.INTEGER);
-								}
-							} else {
-								// Actual data
-								ps.setNull(4 + 4 * i + 1, t.getSqlTypeCode());
-								// Labeled null
-								ps.setNull(4 + 4 * i + 2, Types.INTEGER);
-							}
-							if (u.isInsertion() || u.isUpdate()) {
-								if (newVal.isLabeledNull(i)) {
-									ps.setNull(4 + 4*i + 3, t.getSqlTypeCode());
-									ps.setInt(4 + 4*i + 4, newVal.getLabeledNull(i));
-								} else {
-									Object val = newVal.get(i);
-									if (val == null) {
-										ps.setNull(4 + 4*i + 3, t.getSqlTypeCode());
-									} else {
-										ps.setObject(4 + 4*i + 3, val, t.getSqlTypeCode());
-									}
-									ps.setNull(4 + 4 * i + 4, Types.INTEGER);
-								}
-							} else {
-								// Actual data
-								ps.setNull(4 + 4 * i + 3, t.getSqlTypeCode());
-								// Labeled null
-								ps.setNull(4 + 4 * i + 4, Types.INTEGER);
-							}
-						}
-						ps.addBatch();
-
-						addAntecedent.setString(1, pid);
-						addAntecedent.setInt(2, tid.getTid());
-						addAntecedent.setInt(3, serialno);
-						for (TxnPeerID ante : u.getPrevTids()) {
-							addAntecedent.setString(4, ante.getPeerID().serialize());
-							addAntecedent.setInt(5, ante.getTid());
-							addAntecedent.addBatch();
-						}
-
-						++serialno;
-					}
+					r.txn(tid, d.getTxnEpoch(tid), d.getTxnContents(tid));
 				}
-				addAntecedent.executeBatch();
-				for (PreparedStatement ps : insertUpdate) {
-					ps.executeBatch();
-				}
-				Statement stmt = conn.createStatement();
-				stmt.executeUpdate("INSERT INTO publishEpochs SELECT DISTINCT peer, epoch, 1 AS finished FROM tids");
-				int lastEpoch = -1;
-				ResultSet rs = stmt.executeQuery("SELECT MAX(epoch) FROM publishEpochs");
-				while (rs.next()) {
-					lastEpoch = rs.getInt(1);
-					if (rs.wasNull()) {
-						lastEpoch = -1;
+				r.endOfChunk();
+				r.finish();
+			} catch (ClassNotFoundException c) {
+				throw new USException("Error connecting to SQL database", c);
+			} catch (SQLException e) {
+				throw new USException("Error restoring SQL database", e);
+			} finally {
+				try {
+					if (conn != null) {
+						conn.commit();
+						conn.close();
 					}
+				} catch (SQLException e) {
+					throw new USException("Error restoring SQL database", e);
 				}
-				rs.close();
-				if (lastEpoch == -1) {
-					stmt.execute("ALTER SEQUENCE epochNum RESTART");
-				} else {
-					stmt.execute("ALTER SEQUENCE epochNum RESTART WITH " + (lastEpoch + 1));
-				}
+			}
 
+		}
+		public void restoreUpdateStore(ISchemaIDBinding binding, InputStream in) throws USException {
+			Connection conn = null;
+			File dump = null;
+			boolean committed = false;
+			try {
+				// The store is only reset once the whole dump has been read
+				dump = USDumpReader.verifiedCopy(in, binding);
+				USDumpReader reader = new USDumpReader(new FileInputStream(dump), binding);
+				Schema s = getSingleSchema(reader.getSchemas());
+				resetStore(s);
+				Class.forName(Config.getUSJDBCDriver());
+				conn = DriverManager.getConnection(dbUrl, username, password);
+				conn.setAutoCommit(false);
+				conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+
+				// Each chunk's inserts are sent as it is read
+				Restorer r = new Restorer(conn, s);
+				reader.read(r);
+				r.finish();
+				conn.commit();
+				committed = true;
 			} catch (ClassNotFoundException c) {
 				throw new USException("Error connecting to SQL database", c);
 			} catch (SQLException e) {
 				throw new USException("Error restoring SQL database", e);
+			} catch (IOException e) {
+				throw new USException("Error reading SQL database dump", e);
 			} finally {
+				if (dump != null) {
+					dump.delete();
+				}
 				try {
 					if (conn != null) {
-						conn.commit();
+						if (!committed) {
+							conn.rollback();
+						}
 						conn.close();
 					}
 				} catch (SQLException e) {
 					throw new USException("Error restoring SQL database", e);
 				}
 			}
-
+		}
+		private static Schema getSingleSchema(Map<AbstractPeerID,Schema> schemas) throws USException {
+			Schema s = null;
+			for (Schema ss : schemas.values()) {
+				if (s == null) {
+					s = ss;
+				} else if (! s.equals(ss)) {
+					throw new USException("SqlUpdateStore does not support multiple schemas");
+				}
+			}
+			return s;
 		}
 		/* (non-Javadoc)
 		 * @see edu.upenn.cis.orchestra.reconciliation.UpdateStore.Factory#getSchemaIDBindingClient(edu.upenn.cis.orchestra.datamodel.AbstractPeerID, edu.upenn.cis.orchestra.reconciliation.SchemaIDBinding)
@@ -473,13 +498,191 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 		}
 	}
 
+	/**
+	 * Batches the inserts that restore a dump into the SQL database.
+	 */
+	private static class Restorer implements USDumpReader.Handler {
+		private final Connection conn;
+		private final Schema s;
+		private final PreparedStatement addRecon;
+		private final PreparedStatement addAccept;
+		private final PreparedStatement addReject;
+		private final PreparedStatement addAntecedent;
+		private final List<PreparedStatement> insertUpdate;
+
+		Restorer(Connection conn, Schema s) throws SQLException {
+			this.conn = conn;
+			this.s = s;
+			addRecon = conn.prepareStatement("INSERT INTO recnos VALUES(?,?,?,0)");
+			addAccept = conn.prepareStatement("INSERT INTO accepted VALUES(?,?,?,?)");
+			addReject = conn.prepareStatement("INSERT INTO rejected VALUES(?,?,?,?)");
+			addAntecedent = conn.prepareStatement("INSERT INTO immediateAntecedents VALUES(?,?,?,?,?)");
+			final int numRel = s.getNumRelations();
+			insertUpdate = new ArrayList<PreparedStatement>(numRel);
+			for (int i = 0; i < numRel; ++i) {
+				StringBuilder sb = new StringBuilder("INSERT INTO updates_" + s.getNameForID(i) + " VALUES(?,?,?,?");
+				int numCols = s.getRelationSchema(i).getNumCols();
+				while (numCols > 0) {
+					sb.append(",?,?,?,?");
+					--numCols;
+				}
+				sb.append(")");
+				insertUpdate.add(conn.prepareStatement(sb.toString()));
+			}
+		}
+
+		public void decision(AbstractPeerID pid, Decision dec) throws USException {
+			try {
+				PreparedStatement ps;
+				if (dec.accepted) {
+					ps = addAccept;
+				} else {
+					ps = addReject;
+				}
+				ps.setString(1, pid.serialize());
+				ps.setInt(2, dec.recno);
+				ps.setString(3, dec.tpi.getPeerID().serialize());
+				ps.setInt(4, dec.tpi.getTid());
+				ps.addBatch();
+			} catch (SQLException e) {
+				throw new USException("Error restoring SQL database", e);
+			}
+		}
+
+		public void recnoEpoch(AbstractPeerID pid, int recno, int epoch) throws USException {
+			try {
+				addRecon.setString(1, pid.serialize());
+				addRecon.setInt(2, recno);
+				addRecon.setInt(3, epoch);
+				addRecon.addBatch();
+			} catch (SQLException e) {
+				throw new USException("Error restoring SQL database", e);
+			}
+		}
+
+		public void txn(TxnPeerID tid, int epoch, List<Update> contents) throws USException {
+			try {
+				String pid = tid.getPeerID().serialize();
+				int serialno = 0;
+				for (Update u : contents) {
+					int rel = u.getRelationID();
+					PreparedStatement ps = insertUpdate.get(rel);
+					ps.setString(1, pid);
+					ps.setInt(2, tid.getTid());
+					ps.setInt(3, serialno);
+					ps.setInt(4, epoch);
+
+					Relation rs = s.getRelationSchema(rel);
+					final int numCols = rs.getNumCols();
+					for (int i = 0; i < numCols; ++i) {
+						Type t = rs.getColType(i);
+						Tuple oldVal = u.getOldVal();
+						Tuple newVal = u.getNewVal();
+						if (u.isDeletion() || u.isUpdate()) {
+							if (oldVal.isLabeledNull(i)) {
+								ps.setNull(4 + 4*i + 1, t.getSqlTypeCode());
+								ps.setInt(4 + 4*i + 2, oldVal.getLabeledNull(i));
+							} else {
+								Object val = oldVal.get(i);
+								if (val == null) {
+									ps.setNull(4 + 4*i + 1, t.getSqlTypeCode());
+								} else {
+									ps.setObject(4 + 4*i + 1, val, t.getSqlTypeCode());
+								}
+								ps.setNull(4 + 4 * i + 2, Types.INTEGER);
+							}
+						} else {
+							// Actual data
+							ps.setNull(4 + 4 * i + 1, t.getSqlTypeCode());
+							// Labeled null
+							ps.setNull(4 + 4 * i + 2, Types.INTEGER);
+						}
+						if (u.isInsertion() || u.isUpdate()) {
+							if (newVal.isLabeledNull(i)) {
+								ps.setNull(4 + 4*i + 3, t.getSqlTypeCode());
+								ps.setInt(4 + 4*i + 4, newVal.getLabeledNull(i));
+							} else {
+								Object val = newVal.get(i);
+								if (val == null) {
+									ps.setNull(4 + 4*i + 3, t.getSqlTypeCode());
+								} else {
+									ps.setObject(4 + 4*i + 3, val, t.getSqlTypeCode());
+								}
+								ps.setNull(4 + 4 * i + 4, Types.INTEGER);
+							}
+						} else {
+							// Actual data
+							ps.setNull(4 + 4 * i + 3, t.getSqlTypeCode());
+							// Labeled null
+							ps.setNull(4 + 4 * i + 4, Types.INTEGER);
+						}
+					}
+					ps.addBatch();
+
+					addAntecedent.setString(1, pid);
+					addAntecedent.setInt(2, tid.getTid());
+					addAntecedent.setInt(3, serialno);
+					for (TxnPeerID ante : u.getPrevTids()) {
+						addAntecedent.setString(4, ante.getPeerID().serialize());
+						addAntecedent.setInt(5, ante.getTid());
+						addAntecedent.addBatch();
+					}
+
+					++serialno;
+				}
+			} catch (SQLException e) {
+				throw new USException("Error restoring SQL database", e);
+			}
+		}
+
+		public void endOfChunk() throws USException {
+			try {
+				addRecon.executeBatch();
+				addAccept.executeBatch();
+				addReject.executeBatch();
+				addAntecedent.executeBatch();
+				for (PreparedStatement ps : insertUpdate) {
+					ps.executeBatch();
+				}
+			} catch (SQLException e) {
+				throw new USException("Error restoring SQL database", e);
+			}
+		}
+
+		/**
+		 * Records the publishing epochs of the restored transactions and
+		 * restarts the epoch sequence after them.
+		 * 
+		 * @throws SQLException
+		 */
+		void finish() throws SQLException {
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate("INSERT INTO publishEpochs SELECT DISTINCT peer, epoch, 1 AS finished FROM tids");
+			int lastEpoch = -1;
+			ResultSet rs = stmt.executeQuery("SELECT MAX(epoch) FROM publishEpochs");
+			while (rs.next()) {
+				lastEpoch = rs.getInt(1);
+				if (rs.wasNull()) {
+					lastEpoch = -1;
+				}
+			}
+			rs.close();
+			if (lastEpoch == -1) {
+				stmt.execute("ALTER SEQUENCE epochNum RESTART");
+			} else {
+				stmt.execute("ALTER SEQUENCE epochNum RESTART WITH " + (lastEpoch + 1));
+			}
+		}
+	}
+
 	private static final int pidLength = 32;
 	private static final String[] nonUpdateTables = {"recnos", "accepted", "rejected", "publishEpochs",
 		"immediateAntecedents", "relevantTxns", "trustedTxns"};
 	private static final String[] sequences = {"epochNum"};
 
 
-	// Database connections
+	// Database connections; requests are synchronized because they share
+	// these and the statements prepared on them
 	Connection conn;
 	Connection cursorConn;
 	Connection benchConn;
@@ -541,7 +744,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public void disconnect() throws USException {
+	public synchronized void disconnect() throws USException {
 		if (conn == null) {
 			return;
 		}
@@ -580,7 +783,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public void reconnect() throws USException {
+	public synchronized void reconnect() throws USException {
 		try {
 			Class.forName(Config.getUSJDBCDriver());
 			conn = DriverManager.getConnection(dbUrl, connProp);
@@ -940,7 +1143,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public void publish(List<List<Update>> txns) throws USException {
+	public synchronized void publish(List<List<Update>> txns) throws USException {
 		try {
 			if (benchmark != null) {
 				getExecTime();
@@ -1068,7 +1271,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public void recordTxnDecisionsImpl(Iterable<Decision> decisions) throws USException {
+	public synchronized void recordTxnDecisionsImpl(Iterable<Decision> decisions) throws USException {
 		try {
 			if (benchmark != null) {
 				resetElapsedTime();
@@ -1127,7 +1330,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public void recordReconcile(boolean empty) throws USException {
+	public synchronized void recordReconcile(boolean empty) throws USException {
 		try {
 			if (benchmark != null) {
 				getExecTime();
@@ -1155,7 +1358,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public void getReconciliationData(int recno, final Set<TxnPeerID> alreadyAccepted,
+	public synchronized void getReconciliationData(int recno, final Set<TxnPeerID> alreadyAccepted,
 			Map<Integer, List<TxnChain>> trustedTxns, final Set<TxnPeerID> mustReject)
 	throws USException {
 		if (trustConds.isEmpty()) {
@@ -1449,7 +1652,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public int getCurrentRecno() throws USException {
+	public synchronized int getCurrentRecno() throws USException {
 		try {
 			if (benchmark != null) {
 				getExecTime();
@@ -1545,7 +1748,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 		return retval;
 	}
 
-	public void setBenchmark(Benchmark b) throws USException {
+	public synchronized void setBenchmark(Benchmark b) throws USException {
 //		boolean hadBenchmark = (benchmark != null);
 		benchmark = b;
 		/*
@@ -1577,7 +1780,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	protected TxnStatus getTxnStatus(TxnPeerID tpi) throws USException {
+	protected synchronized TxnStatus getTxnStatus(TxnPeerID tpi) throws USException {
 		try {
 			TxnStatus retval = null;
 			txnAcceptedStmt.setString(1, tpi.getPeerID().serialize());
@@ -1615,7 +1818,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public List<Decision> getDecisions(int recno) throws USException {
+	public synchronized List<Decision> getDecisions(int recno) throws USException {
 		List<Decision> retval = new ArrayList<Decision>();
 		try {
 			decisionsStmt.setInt(1, recno);
@@ -1636,7 +1839,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public ResultSetIterator<ReconciliationEpoch> getReconciliations() throws USException {
+	public synchronized ResultSetIterator<ReconciliationEpoch> getReconciliations() throws USException {
 		final ResultSet rs;
 		try {
 			rs = reconciliationsStmt.executeQuery();
@@ -1662,7 +1865,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public ResultSetIterator<Update> getPublishedUpdatesForRelation(String relname) throws USException {
+	public synchronized ResultSetIterator<Update> getPublishedUpdatesForRelation(String relname) throws USException {
 		final Relation s = schema.getRelationSchema(relname);
 		int relNum = s.getRelationID();
 		if (s == null) {
@@ -1692,7 +1895,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public List<Update> getTransaction(TxnPeerID txn) throws USException {
+	public synchronized List<Update> getTransaction(TxnPeerID txn) throws USException {
 		HashMap<TxnPeerID,List<Update>> txns = new HashMap<TxnPeerID,List<Update>>();
 
 		final int numRelations = schema.getNumRelations();
@@ -1742,7 +1945,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public ResultSetIterator<TxnPeerID> getTransactionsForReconciliation(int recno) throws USException {
+	public synchronized ResultSetIterator<TxnPeerID> getTransactionsForReconciliation(int recno) throws USException {
 		try {
 			final ResultSet rs;
 			int currentRecno = getCurrentRecno();
@@ -1792,7 +1995,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public Map<TxnPeerID, List<Update>> getTransactionsAcceptedAtRecno(int recno) throws USException {
+	public synchronized Map<TxnPeerID, List<Update>> getTransactionsAcceptedAtRecno(int recno) throws USException {
 		HashMap<TxnPeerID,List<Update>> retval = new HashMap<TxnPeerID,List<Update>>();
 
 		try {
@@ -1826,7 +2029,7 @@ public class SqlUpdateStore extends UpdateStore implements TransactionDecisions
 	}
 
 	@Override
-	public int getLargestTidForPeer() throws USException {
+	public synchronized int getLargestTidForPeer() throws USException {
 		try {
 			ResultSet rs = getMaxTidStmt.executeQuery();
 			try {
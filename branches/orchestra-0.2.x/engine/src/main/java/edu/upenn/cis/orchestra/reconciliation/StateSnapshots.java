@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.Debug;
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.reconciliation.StateStore.SSException;
+import edu.upenn.cis.orchestra.reconciliation.UpdateStore.USException;
+
+/**
+ * Periodic snapshots of a peer's {@link StateStore}, each tagged with the
+ * reconciliation it was taken at, so that resetting the peer only has to
+ * replay the reconciliations after the latest snapshot instead of all of
+ * them. The snapshots of a peer are files in a directory of their own; only
+ * the most recent few are kept.
+ * <p>
+ * Each snapshot records an identifier of the update store history it was
+ * taken from, so that a snapshot is never restored on top of a different
+ * history that happens to have reached the same reconciliation, e.g. after
+ * the update store was reset or replaced.
+ * 
+ */
+public class StateSnapshots {
+	/** Changes whenever the format of the snapshot files changes */
+	static final int FORMAT_VERSION = 2;
+	/** Number of snapshots to keep, in case the latest one is unreadable */
+	static final int RETAINED = 2;
+
+	private static final String PREFIX = "state-";
+	private static final String SUFFIX = ".snap";
+
+	private final File dir;
+	private final int interval;
+
+	/**
+	 * The history of reconciliations in an update store.
+	 */
+	public interface History {
+		/**
+		 * Returns an identifier of a reconciliation, which differs between
+		 * update store histories that both reached it.
+		 * 
+		 * @param recno		The reconciliation
+		 * @return			The identifier
+		 * @throws SSException
+		 */
+		long getId(int recno) throws SSException;
+	}
+
+	/**
+	 * Creates snapshots in <code>dir</code>.
+	 * 
+	 * @param dir		The directory to keep the snapshots of a single peer in
+	 * @param interval	The number of reconciliations between snapshots
+	 */
+	public StateSnapshots(File dir, int interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Snapshot interval must be positive");
+		}
+		this.dir = dir;
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns the snapshots of <code>pid</code> set up by
+	 * {@link Config#getStateSnapshotDir()} and
+	 * {@link Config#getStateSnapshotInterval()}. They are kept in a
+	 * directory named by the system and the peer, so that peers of
+	 * different systems with the same name do not share snapshots.
+	 * 
+	 * @param system	The name of the system the peer belongs to, or
+	 * 					<code>null</code> if it is not known
+	 * @param pid		The peer whose state is being snapshotted
+	 * @return			The snapshots, or <code>null</code> if they are disabled
+	 */
+	public static StateSnapshots fromConfig(String system, AbstractPeerID pid) {
+		String dirName = Config.getStateSnapshotDir();
+		int interval = Config.getStateSnapshotInterval();
+		if (dirName == null || dirName.length() == 0 || interval <= 0) {
+			return null;
+		}
+		File systemDir = (system == null) ? new File(dirName) : new File(dirName, toFileName(system));
+		return new StateSnapshots(new File(systemDir, toFileName(pid.toString())), interval);
+	}
+
+	private static String toFileName(String name) {
+		return name.replaceAll("[^A-Za-z0-9_\\-]", "_");
+	}
+
+	/**
+	 * Returns the history of the reconciliations in <code>us</code>. A
+	 * reconciliation is identified by the epoch it was recorded at and the
+	 * decisions made in it.
+	 * 
+	 * @param us		The update store
+	 * @return			Its history
+	 */
+	public static History historyOf(final UpdateStore us) {
+		return new History() {
+			public long getId(int recno) throws SSException {
+				try {
+					long id = -1;
+					ResultIterator<ReconciliationEpoch> recs = us.getReconciliations();
+					try {
+						while (recs.hasNext()) {
+							ReconciliationEpoch re = recs.next();
+							if (re.recno == recno) {
+								id = re.epoch;
+								break;
+							}
+						}
+					} finally {
+						recs.close();
+					}
+					List<String> decisions = new ArrayList<String>();
+					for (Decision d : us.getDecisions(recno)) {
+						decisions.add(d.tpi + (d.accepted ? "+" : "-"));
+					}
+					Collections.sort(decisions);
+					for (String d : decisions) {
+						id = 31 * id + d.hashCode();
+					}
+					return id;
+				} catch (USException e) {
+					throw new SSException("Could not read reconciliation " + recno, e);
+				} catch (IteratorException e) {
+					throw new SSException("Could not read reconciliation " + recno, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Determines if a snapshot should be taken once a state store has reached
+	 * the supplied reconciliation.
+	 * 
+	 * @param recno		The current reconciliation of the state store
+	 * @return			<code>true</code> if a snapshot is due
+	 */
+	public boolean isDue(int recno) {
+		return recno > StateStore.FIRST_RECNO && recno % interval == 0;
+	}
+
+	/**
+	 * Writes a snapshot of the current state of <code>ss</code>, then removes
+	 * all but the latest {@link #RETAINED} snapshots. The snapshot is written
+	 * to a temporary file first so an interrupted write never replaces a good
+	 * snapshot.
+	 * 
+	 * @param ss		The state store to snapshot
+	 * @param relnames	The names of the relations in the state store
+	 * @param history	The history of the update store <code>ss</code> follows
+	 * @throws SSException
+	 */
+	public void save(StateStore ss, Collection<String> relnames, History history) throws SSException {
+		int recno = ss.getCurrentRecno();
+		long historyId = history.getId(recno - 1);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new SSException("Could not create snapshot directory " + dir);
+		}
+		File tmp = new File(dir, PREFIX + recno + SUFFIX + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(historyId);
+				ss.writeSnapshot(relnames, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw new SSException("Could not write state snapshot " + tmp, e);
+		}
+		File file = getFile(recno);
+		file.delete();
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new SSException("Could not move state snapshot to " + file);
+		}
+		List<Integer> recnos = getRecnos();
+		for (int i = RETAINED; i < recnos.size(); ++i) {
+			getFile(recnos.get(i)).delete();
+		}
+	}
+
+	/**
+	 * Restores the latest readable snapshot taken at or before
+	 * <code>maxRecno</code> into <code>ss</code>. Unreadable snapshots,
+	 * snapshots of later reconciliations, and snapshots taken from another
+	 * history than <code>history</code> are deleted.
+	 * 
+	 * @param ss		The state store to restore, which should already have
+	 * 					been reset
+	 * @param maxRecno	The latest reconciliation that may be restored
+	 * @param history	The history of the update store <code>ss</code> is
+	 * 					being brought up to date with
+	 * @return			The reconciliation that was restored, or
+	 * 					{@link StateStore#FIRST_RECNO} if there was no usable
+	 * 					snapshot
+	 * @throws SSException
+	 */
+	public int restore(StateStore ss, int maxRecno, History history) throws SSException {
+		for (int recno : getRecnos()) {
+			File file = getFile(recno);
+			if (recno > maxRecno) {
+				file.delete();
+				continue;
+			}
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				try {
+					if (in.readInt() != FORMAT_VERSION) {
+						throw new IOException("Unexpected contents");
+					}
+					if (in.readLong() != history.getId(recno - 1)) {
+						throw new IOException("Taken from another update store history");
+					}
+					if (ss.readSnapshot(in) != recno) {
+						throw new IOException("Unexpected contents");
+					}
+				} finally {
+					in.close();
+				}
+				Debug.println("Restored state snapshot " + file);
+				return recno;
+			} catch (IOException e) {
+				Debug.println("Discarding state snapshot " + file + ": " + e.getMessage());
+			} catch (SSException e) {
+				Debug.println("Discarding state snapshot " + file + ": " + e.getMessage());
+			}
+			file.delete();
+			ss.reset();
+		}
+		return StateStore.FIRST_RECNO;
+	}
+
+	/**
+	 * Deletes all of the snapshots, e.g. because the update store they were
+	 * taken from has been reset.
+	 */
+	public void clear() {
+		for (int recno : getRecnos()) {
+			getFile(recno).delete();
+		}
+	}
+
+	private File getFile(int recno) {
+		return new File(dir, PREFIX + recno + SUFFIX);
+	}
+
+	/**
+	 * Returns the reconciliations there are snapshots for, latest first.
+	 */
+	private List<Integer> getRecnos() {
+		List<Integer> recnos = new ArrayList<Integer>();
+		String[] names = dir.list();
+		if (names == null) {
+			return recnos;
+		}
+		for (String name : names) {
+			if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+				try {
+					recnos.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+		Collections.sort(recnos, Collections.reverseOrder());
+		return recnos;
+	}
+}
@@ -15,6 +15,10 @@
  */
 package edu.upenn.cis.orchestra.reconciliation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 import org.w3c.dom.Document;
@@ -157,6 +161,16 @@ public abstract class StateStore {
 	 */
 	abstract int getCurrentRecno() throws SSException;
 
+	/**
+	 * Get the first reconciliation whose state is still recorded in this
+	 * state store
+	 * 
+	 * @return			The number of the earliest reconciliation that
+	 * 					can still be read
+	 * @throws SSException
+	 */
+	abstract int getFirstRecno() throws SSException;
+
 	/**
 	 * Add a new reconciliation, with the same content as the final state
 	 * of the current reconciliation 
@@ -185,6 +199,38 @@ public abstract class StateStore {
 		return retval;
 	}
 
+	/**
+	 * Get the state of the specified relation immediately after the
+	 * specified reconciliation, by undoing the changes made since then
+	 * 
+	 * @param recno		The reconciliation of interest
+	 * @param relname	The name of the relation of interest
+	 * @return			The state as a map, this allows lookup by key
+	 * @throws SSException
+	 */
+	TupleSet getState(int recno, String relname) throws SSException {
+		TupleSet retval = getState(relname);
+		final int currRecno = getCurrentRecno();
+		if (recno < currRecno) {
+			for (Update u : getChanges(recno, currRecno)) {
+				if (! u.getRelationName().equals(relname)) {
+					continue;
+				}
+				if (u.getNewVal() != null) {
+					retval.remove(u.getNewVal());
+				}
+				Tuple before = u.getOldVal();
+				if (before != null) {
+					if (! before.isReadOnly()) {
+						before.setReadOnly();
+					}
+					retval.add(before);
+				}
+			}
+		}
+		return retval;
+	}
+
 	/**
 	 * Get the current state of the specified relation
 	 * 
@@ -194,10 +240,53 @@ public abstract class StateStore {
 	 */
 	abstract ResultIterator<Tuple> getStateIterator(String relname) throws SSException;
 
+	/**
+	 * Get the changes that turn the state after one reconciliation into
+	 * the state after a later one, so that a caller holding the earlier
+	 * state need not read all of the later one.
+	 * 
+	 * @param fromRecno	The reconciliation whose state the changes start from
+	 * @param toRecno	The reconciliation whose state the changes lead to
+	 * @return			One update for each key whose value differs, with a
+	 * 					<code>null</code> old value if the key was added and
+	 * 					a <code>null</code> new value if it was removed
+	 * @throws SSException
+	 */
+	abstract List<Update> getChanges(int fromRecno, int toRecno) throws SSException;
+
+	/**
+	 * Write the current state of the specified relations, tagged with the
+	 * current reconciliation, to a snapshot. The history of earlier
+	 * reconciliations is not included.
+	 * 
+	 * @param relnames	The names of the relations to write
+	 * @param out		The stream to write the snapshot to
+	 * @throws SSException
+	 * @throws IOException
+	 */
+	abstract void writeSnapshot(Collection<String> relnames, DataOutputStream out) throws SSException, IOException;
+
+	/**
+	 * Replace the contents of this state store with a snapshot written by
+	 * {@link #writeSnapshot(Collection, DataOutputStream)}. Afterwards the
+	 * snapshot's reconciliation is both the first and the current
+	 * reconciliation of the store.
+	 * 
+	 * @param in		The stream to read the snapshot from
+	 * @return			The reconciliation the snapshot was taken at
+	 * @throws SSException
+	 * @throws IOException
+	 */
+	abstract int readSnapshot(DataInputStream in) throws SSException, IOException;
+
 	static public StateStore.Factory deserialize(Element store) throws XMLParseException {
 		String type = store.getAttribute("type");
 		if (type.compareToIgnoreCase("hash") == 0) {
 			return HashTableStore.Factory.deserialize(store);
+		} else if (type.compareToIgnoreCase("compact") == 0) {
+			return CompactHashTableStore.Factory.deserialize(store);
+		} else if (type.compareToIgnoreCase("mapped") == 0) {
+			return MappedFileStore.Factory.deserialize(store);
 		} else if (type.compareToIgnoreCase("bdb") == 0) {
 			try {
 				return BerkeleyDBStore.Factory.deserialize(store);
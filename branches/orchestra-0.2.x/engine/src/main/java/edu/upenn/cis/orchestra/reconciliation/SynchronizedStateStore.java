@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.TupleSet;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+
+/**
+ * A {@link StateStore} that makes each call to another state store atomic,
+ * so that a peer can read earlier reconciliations while a reconciliation
+ * is changing the store. Iterators returned by the store are not covered.
+ * 
+ */
+class SynchronizedStateStore extends StateStore {
+	private final StateStore ss;
+
+	SynchronizedStateStore(StateStore ss) {
+		this.ss = ss;
+	}
+
+	synchronized void close() throws SSException {
+		ss.close();
+	}
+
+	synchronized void reopen() throws SSException {
+		ss.reopen();
+	}
+
+	synchronized void clearStateBefore(int recno) throws SSException {
+		ss.clearStateBefore(recno);
+	}
+
+	synchronized boolean containsTuple(int recno, Tuple t) throws SSException {
+		return ss.containsTuple(recno, t);
+	}
+
+	synchronized Tuple getTupleWithKey(int recno, Tuple t) throws SSException {
+		return ss.getTupleWithKey(recno, t);
+	}
+
+	synchronized TxnPeerID prepareTransaction(List<Update> txn) throws SSException {
+		return ss.prepareTransaction(txn);
+	}
+
+	synchronized void applyTransaction(int recno, List<Update> txn) throws SSException {
+		ss.applyTransaction(recno, txn);
+	}
+
+	synchronized int getCurrentRecno() throws SSException {
+		return ss.getCurrentRecno();
+	}
+
+	synchronized int getFirstRecno() throws SSException {
+		return ss.getFirstRecno();
+	}
+
+	synchronized void advanceRecno() throws SSException, Db.InconsistentUpdates {
+		ss.advanceRecno();
+	}
+
+	@Override
+	synchronized TupleSet getState(int recno, String relname) throws SSException {
+		return ss.getState(recno, relname);
+	}
+
+	synchronized ResultIterator<Tuple> getStateIterator(String relname) throws SSException {
+		return ss.getStateIterator(relname);
+	}
+
+	synchronized List<Update> getChanges(int fromRecno, int toRecno) throws SSException {
+		return ss.getChanges(fromRecno, toRecno);
+	}
+
+	synchronized void writeSnapshot(Collection<String> relnames, DataOutputStream out) throws SSException, IOException {
+		ss.writeSnapshot(relnames, out);
+	}
+
+	synchronized int readSnapshot(DataInputStream in) throws SSException, IOException {
+		return ss.readSnapshot(in);
+	}
+
+	public synchronized void reset() throws SSException {
+		ss.reset();
+	}
+}
@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -83,6 +84,16 @@ public class USDump implements Serializable {
 	public Iterator<TxnPeerID> getTids() {
 		return Collections.unmodifiableMap(txns).keySet().iterator();
 	}
+	public List<TxnPeerID> getTidsByEpoch() {
+		List<TxnPeerID> tids = new ArrayList<TxnPeerID>(txns.keySet());
+		Collections.sort(tids, new Comparator<TxnPeerID>() {
+			public int compare(TxnPeerID t1, TxnPeerID t2) {
+				int e1 = getTxnEpoch(t1), e2 = getTxnEpoch(t2);
+				return e1 < e2 ? -1 : (e1 == e2 ? 0 : 1);
+			}
+		});
+		return tids;
+	}
 	public int getTxnEpoch(TxnPeerID tpi) {
 		Integer epoch = txnEpochs.get(tpi);
 		if (epoch != null) {
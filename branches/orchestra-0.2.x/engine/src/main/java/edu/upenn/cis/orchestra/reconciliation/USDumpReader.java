@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.ByteBufferReader;
+import edu.upenn.cis.orchestra.datamodel.ByteBufferWriter;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+import edu.upenn.cis.orchestra.reconciliation.UpdateStore.USException;
+
+/**
+ * Reads a dump written by {@link USDumpWriter}, one chunk at a time, passing
+ * its records to a {@link Handler}. Only a single chunk is held in memory,
+ * and each chunk's checksum is verified before any of its records are used.
+ * 
+ */
+public class USDumpReader {
+	/**
+	 * Receives the records of a dump.
+	 */
+	public interface Handler {
+		public void txn(TxnPeerID tid, int epoch, List<Update> txn) throws USException;
+		public void decision(AbstractPeerID pid, Decision d) throws USException;
+		public void recnoEpoch(AbstractPeerID pid, int recno, int epoch) throws USException;
+
+		/**
+		 * Called after all of the records of a chunk have been handled, which
+		 * is a good point to write out any batched work.
+		 * 
+		 * @throws USException
+		 */
+		public void endOfChunk() throws USException;
+	}
+
+	/**
+	 * A {@link Handler} that takes the updates of each transaction as they
+	 * are encoded in the dump, so that they do not have to be decoded (or
+	 * their schemas be known) just to be stored again.
+	 */
+	public interface EncodedTxnHandler extends Handler {
+		/**
+		 * Handles a transaction.
+		 * 
+		 * @param tid		The transaction ID
+		 * @param epoch		The epoch the transaction was published in
+		 * @param updates	The updates of the transaction, each written by
+		 * 					{@link ByteBufferWriter#addToBuffer(Update, Update.SerializationLevel)}
+		 * 					with {@link Update.SerializationLevel#VALUES_AND_TIDS}
+		 * @throws USException
+		 */
+		public void txn(TxnPeerID tid, int epoch, byte[] updates) throws USException;
+	}
+
+	private final DataInputStream in;
+	private final ISchemaIDBinding binding;
+	private final Map<AbstractPeerID,Schema> schemas;
+	private final Inflater inflater = new Inflater();
+	private final CRC32 crc = new CRC32();
+	private byte[] compressed = new byte[0];
+	private byte[] bytes;
+	private int length;
+
+	/**
+	 * Starts reading a dump, up to and including the peer schemas.
+	 * 
+	 * @param in		The stream to read the dump from
+	 * @param binding	The binding used to decode the updates in the dump
+	 * @throws IOException	If the stream is not a dump or is corrupt
+	 */
+	@SuppressWarnings("unchecked")
+	public USDumpReader(InputStream in, ISchemaIDBinding binding) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.binding = binding;
+		if (this.in.readInt() != USDumpWriter.MAGIC) {
+			throw new IOException("Not an update store dump");
+		}
+		int version = this.in.readInt();
+		if (version != USDumpWriter.FORMAT_VERSION) {
+			throw new IOException("Unsupported update store dump version " + version);
+		}
+		if (readChunk() != USDumpWriter.SCHEMAS) {
+			throw new IOException("Update store dump does not start with the peer schemas");
+		}
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes, 0, length));
+		try {
+			schemas = (Map<AbstractPeerID,Schema>) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Could not read peer schemas from update store dump: " + e.getMessage());
+		}
+		ois.close();
+	}
+
+	/**
+	 * Returns the schemas of the peers in the dump.
+	 * 
+	 * @return			The peer schemas
+	 */
+	public Map<AbstractPeerID,Schema> getSchemas() {
+		return schemas;
+	}
+
+	/**
+	 * Reads the rest of the dump, passing each of its records to
+	 * <code>h</code>, and closes the underlying stream.
+	 * 
+	 * @param h			The handler for the records
+	 * @throws IOException	If the dump is truncated or corrupt
+	 * @throws USException	If <code>h</code> fails
+	 */
+	public void read(Handler h) throws IOException, USException {
+		try {
+			ByteBufferReader bbr = new ByteBufferReader(binding);
+			for (byte type = readChunk(); type != USDumpWriter.END; type = readChunk()) {
+				bbr.reset(bytes, 0, length);
+				while (!bbr.hasFinished()) {
+					if (type == USDumpWriter.TXNS) {
+						TxnPeerID tid = bbr.readTxnPeerID();
+						int epoch = bbr.readInt();
+						int numUpdates = bbr.readInt();
+						if (h instanceof EncodedTxnHandler) {
+							int start = bbr.getCurrentOffset();
+							for (int i = 0; i < numUpdates; ++i) {
+								bbr.readByteArray();
+							}
+							byte[] updates = new byte[bbr.getCurrentOffset() - start];
+							System.arraycopy(bytes, start, updates, 0, updates.length);
+							((EncodedTxnHandler) h).txn(tid, epoch, updates);
+						} else {
+							List<Update> txn = new ArrayList<Update>(numUpdates);
+							for (int i = 0; i < numUpdates; ++i) {
+								txn.add(bbr.readUpdate());
+							}
+							h.txn(tid, epoch, txn);
+						}
+					} else if (type == USDumpWriter.DECISIONS) {
+						AbstractPeerID pid = bbr.readPeerID();
+						TxnPeerID tid = bbr.readTxnPeerID();
+						int recno = bbr.readInt();
+						boolean accepted = bbr.readBoolean();
+						h.decision(pid, new Decision(tid, recno, accepted));
+					} else if (type == USDumpWriter.RECNO_EPOCHS) {
+						AbstractPeerID pid = bbr.readPeerID();
+						int recno = bbr.readInt();
+						int epoch = bbr.readInt();
+						h.recnoEpoch(pid, recno, epoch);
+					} else {
+						throw new IOException("Unexpected chunk of type " + type + " in update store dump");
+					}
+				}
+				h.endOfChunk();
+			}
+		} finally {
+			in.close();
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Copies a dump to a temporary file and reads all of it, so that a store
+	 * is only wiped once the whole dump is known to be intact. The updates
+	 * are not decoded, but every chunk's checksum is verified.
+	 * 
+	 * @param in		The stream to read the dump from, which is closed
+	 * 					afterwards
+	 * @param binding	The binding used to decode the updates in the dump
+	 * @return			The copy, which the caller has to delete
+	 * @throws IOException	If the dump is truncated or corrupt
+	 */
+	public static File verifiedCopy(InputStream in, ISchemaIDBinding binding) throws IOException {
+		File copy = File.createTempFile("usdump", ".tmp");
+		boolean verified = false;
+		try {
+			OutputStream out = new FileOutputStream(copy);
+			try {
+				byte[] buffer = new byte[8192];
+				for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				out.close();
+				in.close();
+			}
+			new USDumpReader(new FileInputStream(copy), binding).read(new EncodedTxnHandler() {
+				public void txn(TxnPeerID tid, int epoch, byte[] updates) {
+				}
+				public void txn(TxnPeerID tid, int epoch, List<Update> txn) {
+				}
+				public void decision(AbstractPeerID pid, Decision d) {
+				}
+				public void recnoEpoch(AbstractPeerID pid, int recno, int epoch) {
+				}
+				public void endOfChunk() {
+				}
+			});
+			verified = true;
+			return copy;
+		} catch (USException e) {
+			// Not thrown by the handler above
+			throw new IOException(e.getMessage());
+		} finally {
+			if (!verified) {
+				copy.delete();
+			}
+		}
+	}
+
+	/**
+	 * Determines if a file starts like a dump written by {@link USDumpWriter}.
+	 * 
+	 * @param f			The file to check
+	 * @return			<code>true</code> if it does
+	 * @throws IOException
+	 */
+	public static boolean isDump(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			return in.readInt() == USDumpWriter.MAGIC;
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads, decompresses and verifies the next chunk into {@link #bytes}.
+	 * 
+	 * @return			The type of the chunk
+	 * @throws IOException
+	 */
+	private byte readChunk() throws IOException {
+		byte type = in.readByte();
+		if (type == USDumpWriter.END) {
+			return type;
+		}
+		length = in.readInt();
+		int compressedLength = in.readInt();
+		long checksum = in.readLong();
+		if (length < 0 || compressedLength < 0) {
+			throw new IOException("Corrupt chunk header in update store dump");
+		}
+		if (compressed.length < compressedLength) {
+			compressed = new byte[compressedLength];
+		}
+		// Not reused, since decoded records may still refer to it
+		bytes = new byte[length];
+		in.readFully(compressed, 0, compressedLength);
+		inflater.reset();
+		inflater.setInput(compressed, 0, compressedLength);
+		try {
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(bytes, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != length) {
+				throw new IOException("Truncated chunk in update store dump");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt chunk in update store dump: " + e.getMessage());
+		}
+		crc.reset();
+		crc.update(bytes, 0, length);
+		if (crc.getValue() != checksum) {
+			throw new IOException("Checksum mismatch in update store dump");
+		}
+		return type;
+	}
+}
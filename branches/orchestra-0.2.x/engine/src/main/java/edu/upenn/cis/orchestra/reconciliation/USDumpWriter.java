@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.ByteBufferWriter;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+
+/**
+ * Writes an update store dump as a stream of compressed, checksummed chunks,
+ * so that neither dumping nor restoring a store needs to hold all of it in
+ * memory at once, unlike a serialized {@link USDump}. The stream starts with
+ * the peer schemas, followed by chunks of transactions, decisions and
+ * reconciliation epochs, and is read back by {@link USDumpReader}.
+ * <p>
+ * The stores write transactions in epoch order, which lets
+ * {@link USDumpReader} consumers index each epoch as soon as it is complete.
+ * 
+ */
+public class USDumpWriter {
+	static final int MAGIC = 0x4F555344;
+	/** Changes whenever the format of the dump changes */
+	static final int FORMAT_VERSION = 1;
+
+	static final byte END = 0;
+	static final byte SCHEMAS = 1;
+	static final byte TXNS = 2;
+	static final byte DECISIONS = 3;
+	static final byte RECNO_EPOCHS = 4;
+
+	/** Uncompressed size at which a chunk is written out */
+	static final int CHUNK_SIZE = 1 << 20;
+
+	private final DataOutputStream out;
+	private final ByteBufferWriter txns = new ByteBufferWriter();
+	private final ByteBufferWriter decisions = new ByteBufferWriter();
+	private final ByteBufferWriter recnoEpochs = new ByteBufferWriter();
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final CRC32 crc = new CRC32();
+	private byte[] compressed = new byte[CHUNK_SIZE];
+
+	/**
+	 * Starts a dump of an update store.
+	 * 
+	 * @param out		The stream to write the dump to
+	 * @param schemas	The schemas of the peers in the update store
+	 * @throws IOException
+	 */
+	public USDumpWriter(OutputStream out, Map<AbstractPeerID,Schema> schemas) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(FORMAT_VERSION);
+		ByteArrayOutputStream schemaBytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(schemaBytes);
+		oos.writeObject(new HashMap<AbstractPeerID,Schema>(schemas));
+		oos.close();
+		byte[] bytes = schemaBytes.toByteArray();
+		writeChunk(SCHEMAS, bytes, bytes.length);
+	}
+
+	public void addTxn(TxnPeerID tid, int epoch, List<Update> txn) throws IOException {
+		txns.addToBuffer(tid);
+		txns.addToBuffer(epoch);
+		txns.addToBuffer(txn.size());
+		for (Update u : txn) {
+			txns.addToBuffer(u, Update.SerializationLevel.VALUES_AND_TIDS);
+		}
+		flushIfFull(TXNS, txns);
+	}
+
+	public void addDecision(AbstractPeerID pid, Decision d) throws IOException {
+		decisions.addToBuffer(pid);
+		decisions.addToBuffer(d.tpi);
+		decisions.addToBuffer(d.recno);
+		decisions.addToBuffer(d.accepted);
+		flushIfFull(DECISIONS, decisions);
+	}
+
+	public void addRecnoEpoch(AbstractPeerID pid, int recno, int epoch) throws IOException {
+		recnoEpochs.addToBuffer(pid);
+		recnoEpochs.addToBuffer(recno);
+		recnoEpochs.addToBuffer(epoch);
+		flushIfFull(RECNO_EPOCHS, recnoEpochs);
+	}
+
+	/**
+	 * Writes out any buffered records and the end of the dump, and closes the
+	 * underlying stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		flush(TXNS, txns);
+		flush(DECISIONS, decisions);
+		flush(RECNO_EPOCHS, recnoEpochs);
+		out.writeByte(END);
+		out.close();
+		deflater.end();
+	}
+
+	private void flushIfFull(byte type, ByteBufferWriter records) throws IOException {
+		if (records.getCurrentLength() >= CHUNK_SIZE) {
+			flush(type, records);
+		}
+	}
+
+	private void flush(byte type, ByteBufferWriter records) throws IOException {
+		if (records.getCurrentLength() == 0) {
+			return;
+		}
+		byte[] bytes = records.getByteArray();
+		writeChunk(type, bytes, bytes.length);
+		records.clear();
+	}
+
+	private void writeChunk(byte type, byte[] bytes, int length) throws IOException {
+		crc.reset();
+		crc.update(bytes, 0, length);
+		deflater.reset();
+		deflater.setInput(bytes, 0, length);
+		deflater.finish();
+		int compressedLength = 0;
+		while (!deflater.finished()) {
+			if (compressedLength == compressed.length) {
+				byte[] larger = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, larger, 0, compressedLength);
+				compressed = larger;
+			}
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+		}
+		out.writeByte(type);
+		out.writeInt(length);
+		out.writeInt(compressedLength);
+		out.writeLong(crc.getValue());
+		out.write(compressed, 0, compressedLength);
+	}
+}
@@ -15,6 +15,8 @@
  */
 package edu.upenn.cis.orchestra.reconciliation;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.HashMap;
@@ -77,6 +79,30 @@ public abstract class UpdateStore implements TransactionDecisions {
 		public void resetStore(Schema s) throws USException;
 		USDump dumpUpdateStore(ISchemaIDBinding binding, Schema schema) throws USException;
 		void restoreUpdateStore(USDump d) throws USException;
+
+		/**
+		 * Writes a dump of the update store to {@code out} in the chunked
+		 * format of {@link USDumpWriter}, without holding the whole store in
+		 * memory. {@code out} is closed afterwards.
+		 * 
+		 * @param binding the binding used to encode the updates
+		 * @param schema the schema of the update store
+		 * @param out the stream to write the dump to
+		 * @throws USException
+		 */
+		void dumpUpdateStore(ISchemaIDBinding binding, Schema schema, OutputStream out) throws USException;
+
+		/**
+		 * Replaces the contents of the update store with a dump written by
+		 * {@link #dumpUpdateStore(ISchemaIDBinding, Schema, OutputStream)},
+		 * reading and applying it a chunk at a time. {@code in} is closed
+		 * afterwards.
+		 * 
+		 * @param binding the binding used to decode the updates
+		 * @param in the stream to read the dump from
+		 * @throws USException
+		 */
+		void restoreUpdateStore(ISchemaIDBinding binding, InputStream in) throws USException;
 		public boolean isLocal();
 	}
 	public static class USException extends DbException {
@@ -20,9 +20,11 @@ import static edu.upenn.cis.orchestra.OrchestraUtil.newArrayList;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -51,6 +53,8 @@ import edu.upenn.cis.orchestra.datamodel.iterators.IntegerIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.IteratorException;
 import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
 import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 import edu.upenn.cis.orchestra.reconciliation.Benchmark;
 import edu.upenn.cis.orchestra.reconciliation.Decision;
 import edu.upenn.cis.orchestra.reconciliation.ISchemaIDBinding;
@@ -62,6 +66,8 @@ import edu.upenn.cis.orchestra.reconciliation.USDump;
 import edu.upenn.cis.orchestra.reconciliation.UpdateStore;
 
 public class BerkeleyDBStoreClient extends UpdateStore {
+	private static final Timer REQUEST_TIMER = MetricsRegistry.getDefault().timer("bdbstore.client.request");
+
 	private InetSocketAddress host;
 	private Socket socket;
 	private ObjectOutputStream oos;
@@ -192,6 +198,89 @@ public class BerkeleyDBStoreClient extends UpdateStore {
 			}
 		}
 
+		public void dumpUpdateStore(ISchemaIDBinding binding, Schema schema,
+				OutputStream out) throws USException {
+			try {
+				Socket socket = new Socket(host.getAddress(), host.getPort());
+				ObjectOutputStream oos = new ObjectOutputStream(socket
+						.getOutputStream());
+				ObjectInputStream ois = new ObjectInputStream(socket
+						.getInputStream());
+				oos.writeObject(new DumpMsg(schema, true));
+				oos.writeObject(new EndOfStreamMsg());
+				oos.flush();
+
+				// The server sends the dump a block at a time, followed by
+				// its usual response
+				InputStream blocks = new BlockInputStream(ois);
+				byte[] buffer = new byte[BlockOutputStream.BLOCK_SIZE];
+				for (int n = blocks.read(buffer); n >= 0; n = blocks
+						.read(buffer)) {
+					out.write(buffer, 0, n);
+				}
+				out.close();
+
+				Object response = ois.readObject();
+				ois.close();
+				oos.close();
+				socket.close();
+				if (response instanceof Ack) {
+					return;
+				} else if (response instanceof Exception) {
+					throw new USException("Error dumping BDB store",
+							(Exception) response);
+				} else {
+					throw new USException("Recevied unexpected reply of type "
+							+ response.getClass().getName() + ": " + response);
+				}
+			} catch (IOException ioe) {
+				throw new USException("Error dumping BDB store", ioe);
+			} catch (ClassNotFoundException e) {
+				throw new USException(
+						"Could not deserialize response from BDB store", e);
+			}
+		}
+
+		public void restoreUpdateStore(ISchemaIDBinding binding,
+				InputStream in) throws USException {
+			try {
+				Socket socket = new Socket(host.getAddress(), host.getPort());
+				ObjectOutputStream oos = new ObjectOutputStream(socket
+						.getOutputStream());
+				ObjectInputStream ois = new ObjectInputStream(socket
+						.getInputStream());
+				oos.writeObject(new Reset(true));
+				OutputStream blocks = new BlockOutputStream(oos);
+				byte[] buffer = new byte[BlockOutputStream.BLOCK_SIZE];
+				for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+					blocks.write(buffer, 0, n);
+				}
+				in.close();
+				blocks.close();
+
+				Object response = ois.readObject();
+				oos.close();
+				ois.close();
+				socket.close();
+				if (response instanceof Ack) {
+					return;
+				} else if (response instanceof Exception) {
+					throw new USException(
+							"Error restoring BDB store from dump",
+							(Exception) response);
+				} else {
+					throw new USException("Recevied unexpected reply of type "
+							+ response.getClass().getName() + ": " + response);
+				}
+			} catch (IOException ioe) {
+				throw new USException("Error restoring BDB store from Dump",
+						ioe);
+			} catch (ClassNotFoundException e) {
+				throw new USException(
+						"Could not deserialize response from BDB store", e);
+			}
+		}
+
 		public void restoreUpdateStore(USDump d) throws USException {
 			try {
 				Socket socket = new Socket(host.getAddress(), host.getPort());
@@ -347,6 +436,7 @@ public class BerkeleyDBStoreClient extends UpdateStore {
 	private synchronized Object sendRequest(Object o, Class<?>... classes)
 			throws USException {
 		Object reply;
+		long start = System.nanoTime();
 		try {
 			oos.writeObject(o);
 			oos.flush();
@@ -354,6 +444,9 @@ public class BerkeleyDBStoreClient extends UpdateStore {
 		} catch (Exception e) {
 			throw new USException(e);
 		}
+		long nanos = REQUEST_TIMER.updateSince(start);
+		// Also time each kind of request on its own
+		MetricsRegistry.getDefault().timer("bdbstore.client.request." + o.getClass().getSimpleName()).update(nanos);
 
 		if (reply instanceof Exception) {
 			throw new USException((Exception) reply);
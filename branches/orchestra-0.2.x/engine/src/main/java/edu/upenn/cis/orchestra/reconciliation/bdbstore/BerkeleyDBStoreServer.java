@@ -16,9 +16,11 @@
 package edu.upenn.cis.orchestra.reconciliation.bdbstore;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
@@ -69,6 +71,8 @@ import edu.upenn.cis.orchestra.reconciliation.TransactionDecisions;
 import edu.upenn.cis.orchestra.reconciliation.TxnChain;
 import edu.upenn.cis.orchestra.reconciliation.USDump;
 import edu.upenn.cis.orchestra.reconciliation.USDump.RecnoEpoch;
+import edu.upenn.cis.orchestra.reconciliation.USDumpReader;
+import edu.upenn.cis.orchestra.reconciliation.USDumpWriter;
 import edu.upenn.cis.orchestra.reconciliation.UpdateStore.AlreadyRejectedAntecedent;
 import edu.upenn.cis.orchestra.reconciliation.UpdateStore.TransactionSource;
 import edu.upenn.cis.orchestra.reconciliation.UpdateStore.TxnStatus;
@@ -117,7 +121,8 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 	
 	private SchemaIDBinding _mapStore;
 	
-	private final int port;
+	// The port to listen on; 0 picks a free one, which is then kept
+	private int port;
 
 	private DatabaseConfig dc, reconTxnsDc;
 
@@ -177,6 +182,13 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 		listener = new ListenerThread();
 	}
 
+	/**
+	 * @return the port the server is listening on
+	 */
+	public int getPort() {
+		return port;
+	}
+
 	public void quit() throws IOException, DatabaseException, InterruptedException {
 		quit(null);
 	}
@@ -594,16 +606,23 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 						} else if (o instanceof Reset) {
 							logger.debug("Handling Reset");
 							final Reset r = (Reset) o;
+							final ObjectInputStream in = r.chunked ? ois : null;
 							final ObjectOutputStream out = oos;
 							final Socket s = socket;
 							new Thread() {
 								public void run() {
-									reset(r.dump, out, s);
+									reset(r.dump, in, out, s);
 								}
 							}.start();
 							response = null;
 							oos = null;
 							socket = null;
+							if (r.chunked) {
+								// The rest of the input is the dump, which
+								// the reset thread reads
+								ois = null;
+								requestExit();
+							}
 						} else {
 							try {
 								if (o instanceof Ping) {
@@ -639,6 +658,9 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 									response = new LoadSchemasResponse(map);
 								} else if (o instanceof GetHostedSystems) {
 									response = new GetHostedSystemsResponse(_mapStore.getSystems());
+								} else if (o instanceof DumpMsg && ((DumpMsg) o).chunked) {
+									dumpChunked(new BlockOutputStream(oos));
+									response = new Ack();
 								} else if (o instanceof StopUpdateStore) {
 									//requestExit();
 									//workers.remove(this);
@@ -788,6 +810,8 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 		ListenerThread() throws IOException {
 			super(tg, "ListenerThread");
 			ss = new ServerSocket(port);
+			// Listen on the same port if the listener is restarted
+			port = ss.getLocalPort();
 			ss.setSoTimeout(500);
 			start();
 			logger.debug("New ListenerThread created and started.");
@@ -1008,10 +1032,17 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 		return txn;
 	}
 
-	private void reset(USDump dump, ObjectOutputStream oos, Socket socket) {
+	private void reset(USDump dump, ObjectInputStream dumpStream, ObjectOutputStream oos, Socket socket) {
 		logger.debug("Reseting Update Store");
 		Object response = null;
+		File dumpFile = null;
 		try {
+			if (dumpStream != null) {
+				// The client may take a while between blocks
+				socket.setSoTimeout(0);
+				// The store is only truncated once the whole dump has arrived intact
+				dumpFile = USDumpReader.verifiedCopy(new BlockInputStream(dumpStream), _mapStore);
+			}
 			listener.interrupt();
 			listener.join();
 			listener = null;
@@ -1049,99 +1080,29 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 			txns = env.openDatabase(null, txnsName, dc);
 			schemas.clear();
 
-			Map<Integer,List<TxnPeerID>> epochContents = new HashMap<Integer,List<TxnPeerID>>();
-
+			StoreLoader loader = new StoreLoader();
 			if (dump != null) {
 				schemas.putAll(dump.getSchemas());
-				Iterator<TxnPeerID> tids = dump.getTids();
-
-				ByteBufferWriter bbw = new ByteBufferWriter();
-				DatabaseEntry key = new DatabaseEntry(), value = new DatabaseEntry();
-
-				while (tids.hasNext()) {
-					bbw.clear();
-					TxnPeerID tid = tids.next();
-
-					List<Update> txn = dump.getTxnContents(tid);
-
-					for (Update u : txn) {
-						bbw.addToBuffer(u, Update.SerializationLevel.VALUES_AND_TIDS);
-					}
-					key.setData(tid.getBytes());
-					value.setData(bbw.getByteArray());
-					txns.put(null, key, value);
-					int epoch = dump.getTxnEpoch(tid);
-					List<TxnPeerID> txnsForEpoch = epochContents.get(epoch);
-					if (txnsForEpoch == null) {
-						txnsForEpoch = new ArrayList<TxnPeerID>();
-						epochContents.put(epoch, txnsForEpoch);
-					}
-					txnsForEpoch.add(tid);
-				}
-
-				for (Map.Entry<Integer, List<TxnPeerID>> me : epochContents.entrySet()) {
-					int epoch = me.getKey();
-					List<TxnPeerID> contents = me.getValue();
-
-					bbw.clear();
-					for (TxnPeerID tpi : contents) {
-						bbw.addToBuffer(tpi);
-					}
-					key.setData(IntType.getBytes(epoch));
-					value.setData(bbw.getByteArray());
-					this.epochContents.put(null, key, value);
+				for (TxnPeerID tid : dump.getTidsByEpoch()) {
+					loader.txn(tid, dump.getTxnEpoch(tid), dump.getTxnContents(tid));
 				}
-
 				for (AbstractPeerID pid : dump.getPeers()) {
-					int lastRecno = Integer.MIN_VALUE;
-
 					Iterator<Decision> decs = dump.getPeerDecisions(pid);
-
 					while (decs.hasNext()) {
-						Decision dec = decs.next();
-						bbw.clear();
-						bbw.addToBuffer(pid);
-						bbw.addToBuffer(dec.tpi);
-						key.setData(bbw.getByteArray());
-						bbw.clear();
-						bbw.addToBuffer(dec.recno);
-						bbw.addToBuffer(dec.recno);
-						value.setData(bbw.getByteArray());
-						decisions.put(null, key, value);
-
-						bbw.clear();
-						bbw.addToBuffer(pid);
-						bbw.addToBuffer(dec.recno);
-						key.setData(bbw.getByteArray());
-						value.setData(dec.tpi.getBytes());
-						if (dec.accepted) {
-							reconAcceptedTxns.put(null, key, value);
-						} else {
-							reconRejectedTxns.put(null, key, value);
-						}
+						loader.decision(pid, decs.next());
 					}
-
 					Iterator<RecnoEpoch> recons = dump.getPeerRecons(pid);
 					while (recons.hasNext()) {
 						RecnoEpoch recon = recons.next();
-
-						if (recon.recno > lastRecno) {
-							lastRecno = recon.recno;
-						}
-
-						bbw.clear();
-						bbw.addToBuffer(pid);
-						bbw.addToBuffer(recon.recno);
-						key.setData(bbw.getByteArray());
-						value.setData(IntType.getBytes(recon.epoch));
-
-						recnoEpochs.put(null, key, value);
+						loader.recnoEpoch(pid, recon.recno, recon.epoch);
 					}
-
-					key.setData(pid.getBytes());
-					value.setData(IntType.getBytes(lastRecno));
-					this.lastRecno.put(null, key, value);
 				}
+				loader.finish();
+			} else if (dumpFile != null) {
+				USDumpReader reader = new USDumpReader(new FileInputStream(dumpFile), _mapStore);
+				schemas.putAll(reader.getSchemas());
+				reader.read(loader);
+				loader.finish();
 			}
 			logger.debug("Restarting Listener");
 			listener = new ListenerThread();
@@ -1149,6 +1110,9 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 		} catch (Exception e) {
 			response = e;
 		} finally {
+			if (dumpFile != null) {
+				dumpFile.delete();
+			}
 			try {
 				logger.debug("Returning response {}", response);
 				oos.writeObject(response);
@@ -1161,6 +1125,196 @@ public class BerkeleyDBStoreServer implements TransactionSource {
 
 	}
 
+	/**
+	 * Writes the records of a dump into the (just truncated) store.
+	 * Transactions are expected in epoch order, so each epoch's contents are
+	 * written out when the next epoch starts; an epoch that shows up again
+	 * later is appended to.
+	 */
+	private class StoreLoader implements USDumpReader.EncodedTxnHandler {
+		private final ByteBufferWriter bbw = new ByteBufferWriter();
+		private final DatabaseEntry key = new DatabaseEntry(), value = new DatabaseEntry();
+		// peer -> largest recno seen
+		private final Map<AbstractPeerID,Integer> lastRecnos = new HashMap<AbstractPeerID,Integer>();
+		private final ByteBufferWriter epochTids = new ByteBufferWriter();
+		private int epoch;
+
+		public void txn(TxnPeerID tid, int epoch, List<Update> txn) throws USException {
+			ByteBufferWriter updates = new ByteBufferWriter();
+			for (Update u : txn) {
+				updates.addToBuffer(u, Update.SerializationLevel.VALUES_AND_TIDS);
+			}
+			txn(tid, epoch, updates.getByteArray());
+		}
+
+		public void txn(TxnPeerID tid, int epoch, byte[] updates) throws USException {
+			try {
+				key.setData(tid.getBytes());
+				value.setData(updates);
+				txns.put(null, key, value);
+				if (epoch != this.epoch) {
+					writeEpoch();
+					this.epoch = epoch;
+				}
+				epochTids.addToBuffer(tid);
+			} catch (DatabaseException e) {
+				throw new USException(e);
+			}
+		}
+
+		public void decision(AbstractPeerID pid, Decision dec) throws USException {
+			try {
+				bbw.clear();
+				bbw.addToBuffer(pid);
+				bbw.addToBuffer(dec.tpi);
+				key.setData(bbw.getByteArray());
+				bbw.clear();
+				bbw.addToBuffer(dec.accepted);
+				bbw.addToBuffer(dec.recno);
+				value.setData(bbw.getByteArray());
+				decisions.put(null, key, value);
+
+				bbw.clear();
+				bbw.addToBuffer(pid);
+				bbw.addToBuffer(dec.recno);
+				key.setData(bbw.getByteArray());
+				value.setData(dec.tpi.getBytes());
+				if (dec.accepted) {
+					reconAcceptedTxns.put(null, key, value);
+				} else {
+					reconRejectedTxns.put(null, key, value);
+				}
+				if (! lastRecnos.containsKey(pid)) {
+					lastRecnos.put(pid, Integer.MIN_VALUE);
+				}
+			} catch (DatabaseException e) {
+				throw new USException(e);
+			}
+		}
+
+		public void recnoEpoch(AbstractPeerID pid, int recno, int epoch) throws USException {
+			try {
+				bbw.clear();
+				bbw.addToBuffer(pid);
+				bbw.addToBuffer(recno);
+				key.setData(bbw.getByteArray());
+				value.setData(IntType.getBytes(epoch));
+				recnoEpochs.put(null, key, value);
+				Integer lastRecno = lastRecnos.get(pid);
+				if (lastRecno == null || recno > lastRecno) {
+					lastRecnos.put(pid, recno);
+				}
+			} catch (DatabaseException e) {
+				throw new USException(e);
+			}
+		}
+
+		public void endOfChunk() {
+		}
+
+		void finish() throws DatabaseException {
+			writeEpoch();
+			for (Map.Entry<AbstractPeerID,Integer> me : lastRecnos.entrySet()) {
+				key.setData(me.getKey().getBytes());
+				value.setData(IntType.getBytes(me.getValue().intValue()));
+				lastRecno.put(null, key, value);
+			}
+		}
+
+		private void writeEpoch() throws DatabaseException {
+			if (epochTids.getCurrentLength() == 0) {
+				return;
+			}
+			key.setData(IntType.getBytes(epoch));
+			if (epochContents.get(null, key, value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+				ByteBufferWriter merged = new ByteBufferWriter(value.getData());
+				merged.addToBufferNoLength(epochTids.getByteArray());
+				value.setData(merged.getByteArray());
+			} else {
+				value.setData(epochTids.getByteArray());
+			}
+			epochContents.put(null, key, value);
+			epochTids.clear();
+		}
+	}
+
+	/**
+	 * Writes a dump of the store to <code>out</code> in the format of
+	 * {@link USDumpWriter}, reading the transactions an epoch at a time.
+	 * 
+	 * @param out		The stream to write to, which is closed afterwards
+	 * @throws DatabaseException
+	 * @throws USException
+	 * @throws IOException
+	 */
+	private void dumpChunked(OutputStream out) throws DatabaseException, USException, IOException {
+		USDumpWriter w;
+		synchronized (schemas) {
+			w = new USDumpWriter(out, schemas);
+		}
+
+		Transaction t = env.beginTransaction(null, null);
+		Cursor c = null;
+		try {
+			DatabaseEntry key = new DatabaseEntry(), value = new DatabaseEntry();
+			ByteBufferReader bbr = new ByteBufferReader(_mapStore);
+			// Epochs are non-negative, so their keys sort in numerical order
+			c = epochContents.openCursor(t, null);
+			OperationStatus os = c.getFirst(key, value, null);
+			while (os != OperationStatus.NOTFOUND) {
+				int epoch = IntType.getValFromBytes(key.getData());
+				bbr.reset(value.getData());
+				while (! bbr.hasFinished()) {
+					TxnPeerID tpi = bbr.readTxnPeerID();
+					List<Update> txn = getTxn(tpi);
+					if (txn == null) {
+						throw new USException("Could not find transaction " + tpi + " from epoch " + epoch);
+					}
+					w.addTxn(tpi, epoch, txn);
+				}
+				os = c.getNext(key, value, null);
+			}
+			c.close();
+			c = null;
+			c = recnoEpochs.openCursor(t, null);
+			os = c.getFirst(key, value, null);
+			while (os != OperationStatus.NOTFOUND) {
+				bbr.reset(key.getData());
+				AbstractPeerID pid = bbr.readPeerID();
+				int recno = bbr.readInt();
+				int epoch = IntType.getValFromBytes(value.getData());
+				w.addRecnoEpoch(pid, recno, epoch);
+				os = c.getNext(key, value, null);
+			}
+			c.close();
+			c = null;
+			c = decisions.openCursor(t, null);
+			os = c.getFirst(key, value, null);
+			while (os != OperationStatus.NOTFOUND) {
+				bbr.reset(key.getData());
+				AbstractPeerID pid = bbr.readPeerID();
+				TxnPeerID tpi = bbr.readTxnPeerID();
+				bbr.reset(value.getData());
+				boolean accepted = bbr.readBoolean();
+				int recno = bbr.readInt();
+				w.addDecision(pid, new Decision(tpi, recno, accepted));
+				os = c.getNext(key, value, null);
+			}
+			c.close();
+			c = null;
+			w.close();
+			t.commit();
+			t = null;
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+			if (t != null) {
+				t.abort();
+			}
+		}
+	}
+
 	private USDump dump(Transaction t) throws DatabaseException, USException {
 		USDump dump;
 		synchronized (schemas) {
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation.bdbstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+/**
+ * Reads a byte stream sent by {@link BlockOutputStream}. If an exception is
+ * received instead of a block, it is rethrown as an {@link IOException}.
+ * Closing this stream does not close the object stream.
+ * 
+ */
+class BlockInputStream extends InputStream {
+	private final ObjectInputStream ois;
+	private byte[] block = new byte[0];
+	private int pos = 0;
+	private boolean atEnd = false;
+
+	BlockInputStream(ObjectInputStream ois) {
+		this.ois = ois;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return block[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, block.length - pos);
+		System.arraycopy(block, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Makes sure there is data left in the current block.
+	 * 
+	 * @return <code>false</code> if the end of the stream has been reached
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		while (pos == block.length) {
+			if (atEnd) {
+				return false;
+			}
+			Object o;
+			try {
+				o = ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Could not deserialize block: " + e.getMessage());
+			}
+			if (o instanceof byte[]) {
+				block = (byte[]) o;
+				pos = 0;
+			} else if (o instanceof EndOfStreamMsg) {
+				atEnd = true;
+			} else if (o instanceof Exception) {
+				IOException ioe = new IOException("Error at other end of stream: " + ((Exception) o).getMessage());
+				ioe.initCause((Exception) o);
+				throw ioe;
+			} else {
+				throw new IOException("Received unexpected object of type " + o.getClass().getName() + " in block stream");
+			}
+		}
+		return true;
+	}
+}
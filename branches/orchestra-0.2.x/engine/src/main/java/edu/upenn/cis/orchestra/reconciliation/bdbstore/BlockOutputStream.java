@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation.bdbstore;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Sends a byte stream over an object stream as a sequence of
+ * <code>byte[]</code> blocks, terminated by an {@link EndOfStreamMsg}, so
+ * that it can share a connection with other messages. Closing this stream
+ * does not close the object stream. Read by {@link BlockInputStream}.
+ * 
+ */
+class BlockOutputStream extends OutputStream {
+	static final int BLOCK_SIZE = 1 << 16;
+
+	private final ObjectOutputStream oos;
+	private final byte[] block = new byte[BLOCK_SIZE];
+	private int length = 0;
+	private boolean closed = false;
+
+	BlockOutputStream(ObjectOutputStream oos) {
+		this.oos = oos;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (length == BLOCK_SIZE) {
+			sendBlock();
+		}
+		block[length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (length == BLOCK_SIZE) {
+				sendBlock();
+			}
+			int n = Math.min(len, BLOCK_SIZE - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		sendBlock();
+		oos.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		sendBlock();
+		oos.writeObject(new EndOfStreamMsg());
+		oos.flush();
+		closed = true;
+	}
+
+	private void sendBlock() throws IOException {
+		if (length == 0) {
+			return;
+		}
+		byte[] data = new byte[length];
+		System.arraycopy(block, 0, data, 0, length);
+		oos.writeObject(data);
+		// Otherwise the object stream keeps a reference to every block
+		oos.reset();
+		length = 0;
+	}
+}
@@ -23,8 +23,16 @@ class DumpMsg implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	final Schema schema;
+	// If true, the dump is sent as a stream of blocks in the format of
+	// USDumpWriter instead of as a single USDump
+	final boolean chunked;
 	
 	DumpMsg(Schema schema) {
+		this(schema, false);
+	}
+
+	DumpMsg(Schema schema, boolean chunked) {
 		this.schema = schema;
+		this.chunked = chunked;
 	}
 }
@@ -22,12 +22,22 @@ import edu.upenn.cis.orchestra.reconciliation.USDump;
 class Reset implements Serializable {
 	private static final long serialVersionUID = 1L;
 	public final USDump dump;
+	// If true, the dump follows this message as a stream of blocks in the
+	// format of USDumpWriter
+	public final boolean chunked;
 	
 	Reset() {
 		dump = null;
+		chunked = false;
 	}
 	
 	Reset(USDump dump) {
 		this.dump = dump;
+		chunked = false;
+	}
+
+	Reset(boolean chunked) {
+		dump = null;
+		this.chunked = chunked;
 	}
 }
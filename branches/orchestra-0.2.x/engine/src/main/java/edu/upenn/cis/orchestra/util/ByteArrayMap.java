@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from byte arrays to byte arrays using open addressing. Each entry is
+ * kept in a single array holding the key followed by the value, so an entry
+ * costs one object rather than the several of a {@code HashMap} from wrapped
+ * arrays to wrapped arrays. Values are handed to a
+ * {@link ByteArraySet.Deserializer} as slices of that array rather than being
+ * copied out.
+ */
+public class ByteArrayMap implements IByteArrayMap {
+	// Marks a slot whose entry has been removed
+	private static final byte[] REMOVED = new byte[0];
+	private static final int MIN_CAPACITY = 16;
+
+	private byte[][] entries;
+	private int[] keyLengths;
+	private int[] hashes;
+	private int size;
+	// Number of slots that hold an entry or REMOVED
+	private int used;
+
+	public ByteArrayMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public ByteArrayMap(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	private static int capacityFor(int size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < size * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		entries = new byte[capacity][];
+		keyLengths = new int[capacity];
+		hashes = new int[capacity];
+		size = 0;
+		used = 0;
+	}
+
+	static int hashCode(byte[] array) {
+		int h = 1;
+		for (byte b : array) {
+			h = 31 * h + b;
+		}
+		// Spread the bits, since slots are chosen from the low bits
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Find the slot holding a key.
+	 * 
+	 * @param key		The key to look for
+	 * @param hash		The hash code of <code>key</code>
+	 * @return			The slot holding the key if it is present, or
+	 * 					<code>-(slot + 1)</code> for the slot it should be
+	 * 					inserted into if it is not
+	 */
+	private int find(byte[] key, int hash) {
+		final int mask = entries.length - 1;
+		int slot = hash & mask;
+		int firstRemoved = -1;
+		for (;;) {
+			byte[] entry = entries[slot];
+			if (entry == null) {
+				return -((firstRemoved >= 0 ? firstRemoved : slot) + 1);
+			} else if (entry == REMOVED) {
+				if (firstRemoved < 0) {
+					firstRemoved = slot;
+				}
+			} else if (hashes[slot] == hash && keyLengths[slot] == key.length
+					&& keyEquals(entry, key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static boolean keyEquals(byte[] entry, byte[] key) {
+		for (int i = 0; i < key.length; ++i) {
+			if (entry[i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void put(byte[] key, byte[] value) {
+		put(key, value, 0, value.length);
+	}
+
+	public void put(byte[] key, byte[] value, int offset, int length) {
+		final int hash = hashCode(key);
+		int slot = find(key, hash);
+		byte[] entry = new byte[key.length + length];
+		System.arraycopy(key, 0, entry, 0, key.length);
+		System.arraycopy(value, offset, entry, key.length, length);
+		if (slot >= 0) {
+			entries[slot] = entry;
+			return;
+		}
+		slot = -slot - 1;
+		if (entries[slot] == null) {
+			++used;
+		}
+		entries[slot] = entry;
+		keyLengths[slot] = key.length;
+		hashes[slot] = hash;
+		++size;
+		if (used * 2 > entries.length) {
+			rehash();
+		}
+	}
+
+	private void rehash() {
+		byte[][] oldEntries = entries;
+		int[] oldKeyLengths = keyLengths;
+		int[] oldHashes = hashes;
+		// Grow only if live entries, not removed ones, have filled the table
+		allocate(capacityFor(size * 2));
+		final int mask = entries.length - 1;
+		for (int i = 0; i < oldEntries.length; ++i) {
+			byte[] entry = oldEntries[i];
+			if (entry == null || entry == REMOVED) {
+				continue;
+			}
+			int slot = oldHashes[i] & mask;
+			while (entries[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			entries[slot] = entry;
+			keyLengths[slot] = oldKeyLengths[i];
+			hashes[slot] = oldHashes[i];
+			++size;
+			++used;
+		}
+	}
+
+	public <T> T get(byte[] key, ByteArraySet.Deserializer<T> deserializer) {
+		int slot = find(key, hashCode(key));
+		if (slot < 0) {
+			return null;
+		}
+		byte[] entry = entries[slot];
+		final int keyLength = keyLengths[slot];
+		return deserializer.fromBytes(entry, keyLength, entry.length - keyLength);
+	}
+
+	public boolean containsKey(byte[] key) {
+		return find(key, hashCode(key)) >= 0;
+	}
+
+	public boolean remove(byte[] key) {
+		int slot = find(key, hashCode(key));
+		if (slot < 0) {
+			return false;
+		}
+		entries[slot] = REMOVED;
+		--size;
+		return true;
+	}
+
+	public <T> Iterator<T> iterator(final ByteArraySet.Deserializer<T> deserializer) {
+		return new Iterator<T>() {
+			private int pos = advance(0);
+
+			private int advance(int from) {
+				while (from < entries.length
+						&& (entries[from] == null || entries[from] == REMOVED)) {
+					++from;
+				}
+				return from;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return pos < entries.length;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				byte[] entry = entries[pos];
+				final int keyLength = keyLengths[pos];
+				pos = advance(pos + 1);
+				return deserializer.fromBytes(entry, keyLength, entry.length
+						- keyLength);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		allocate(MIN_CAPACITY);
+	}
+}
@@ -15,6 +15,7 @@
  */
 package edu.upenn.cis.orchestra.util;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -181,6 +182,19 @@ public class ByteArraySet {
 	public interface Deserializer<T> {
 		T fromBytes(byte[] data, int offset, int length);
 	}
+
+	/**
+	 * A {@link Deserializer} that can also decode a value in place, for maps
+	 * whose entries are not kept in arrays.
+	 */
+	public interface BufferDeserializer<T> extends Deserializer<T> {
+		/**
+		 * @param data	A read-only buffer holding the value between its
+		 * 				position and its limit, which must not be used
+		 * 				after this method returns
+		 */
+		T fromBuffer(ByteBuffer data);
+	}
 	
 	public <T> Iterator<T> iterator(final Deserializer<T> deserializer) {
 		return new Iterator<T>() {
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.util;
+
+import java.util.Iterator;
+
+/**
+ * A map from byte arrays to byte arrays whose values are decoded in place
+ * by a {@link ByteArraySet.Deserializer} rather than handed out.
+ */
+public interface IByteArrayMap {
+	/**
+	 * Associate a value with a key, replacing any previous value. Neither
+	 * array is retained by the map.
+	 * 
+	 * @param key		The key
+	 * @param value		The value
+	 */
+	void put(byte[] key, byte[] value);
+
+	/**
+	 * Look up the value for a key.
+	 * 
+	 * @param key			The key
+	 * @param deserializer	Used to decode the value; the array it is given
+	 * 						may be reused once it returns
+	 * @return				The decoded value, or <code>null</code> if the key
+	 * 						is not present
+	 */
+	<T> T get(byte[] key, ByteArraySet.Deserializer<T> deserializer);
+
+	boolean containsKey(byte[] key);
+
+	/**
+	 * Remove a key and its value.
+	 * 
+	 * @param key		The key to remove
+	 * @return			<code>true</code> if the key was present
+	 */
+	boolean remove(byte[] key);
+
+	/**
+	 * Iterate over the values in the map, in no particular order. The map
+	 * must not be modified during the iteration.
+	 * 
+	 * @param deserializer	Used to decode each value
+	 * @return				An iterator over the decoded values
+	 */
+	<T> Iterator<T> iterator(ByteArraySet.Deserializer<T> deserializer);
+
+	int size();
+
+	boolean isEmpty();
+
+	void clear();
+}
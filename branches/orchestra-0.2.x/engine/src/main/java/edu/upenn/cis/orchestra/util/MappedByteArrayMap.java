@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An {@link IByteArrayMap} that keeps its entries outside the Java heap.
+ * Entries are appended to a memory-mapped file, and located through an
+ * open-addressing hash index held in direct buffers. Replaced and removed
+ * entries are left in the file until enough of it is garbage, at which point
+ * the live entries are copied to a new file.
+ * <p>
+ * The file is working storage only: it is created empty, and deleted when
+ * the map is closed. {@link #release()} unmaps it without losing the
+ * entries, for while the map is not in use.
+ */
+public class MappedByteArrayMap implements IByteArrayMap {
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	// Index slot values; any other value is a record address plus one
+	private static final long EMPTY = 0;
+	private static final long REMOVED = -1;
+	private static final int MIN_CAPACITY = 1024;
+	// Each record is key length, value length, key, value
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private final File baseFile;
+	private final int segmentSize;
+	// Incremented each time the entries are moved to a new file
+	private int generation = 0;
+	private File file;
+	private RandomAccessFile raf;
+	// The file is mapped in segments; a record address is the segment number
+	// in the upper 32 bits and the offset within it in the lower 32 bits
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	// The lengths of the segments, to map them again after release()
+	private final List<Integer> segmentLengths = new ArrayList<Integer>();
+	private long mappedLength;
+	private int writeOffset;
+
+	private LongBuffer slots;
+	private IntBuffer hashes;
+	private int size;
+	// Number of slots that hold an entry or REMOVED
+	private int used;
+	private long liveBytes;
+	private long garbageBytes;
+
+	// Values are copied here for deserializers that need an array
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Create an empty map.
+	 * 
+	 * @param file			The file to store the entries in; a generation
+	 * 						number is appended to its name
+	 * @param segmentSize	The size of each mapped region of the file
+	 * @throws IOException
+	 */
+	public MappedByteArrayMap(File file, int segmentSize) throws IOException {
+		this.baseFile = file;
+		this.segmentSize = segmentSize;
+		allocateIndex(MIN_CAPACITY);
+		openFile();
+	}
+
+	public MappedByteArrayMap(File file) throws IOException {
+		this(file, DEFAULT_SEGMENT_SIZE);
+	}
+
+	private void allocateIndex(int capacity) {
+		slots = ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+		hashes = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		size = 0;
+		used = 0;
+	}
+
+	private void openFile() throws IOException {
+		file = new File(baseFile.getPath() + "." + generation++);
+		// Left over if an earlier run did not close the map
+		file.delete();
+		raf = new RandomAccessFile(file, "rw");
+		segments.clear();
+		segmentLengths.clear();
+		mappedLength = 0;
+		writeOffset = 0;
+		liveBytes = 0;
+		garbageBytes = 0;
+	}
+
+	private void closeFile() throws IOException {
+		unmap(segments);
+		segments.clear();
+		raf.close();
+		raf = null;
+	}
+
+	/**
+	 * Close the map and delete its file.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (raf != null) {
+			closeFile();
+		}
+		deleteFile(file);
+	}
+
+	/**
+	 * Unmap the file and close it, but keep it and the index so that
+	 * {@link #reopen()} can restore the map. The map must not be used in
+	 * between.
+	 * 
+	 * @throws IOException
+	 */
+	public void release() throws IOException {
+		if (raf != null) {
+			closeFile();
+		}
+	}
+
+	/**
+	 * Map the file again after {@link #release()}.
+	 * 
+	 * @throws IOException
+	 */
+	public void reopen() throws IOException {
+		if (raf != null) {
+			return;
+		}
+		raf = new RandomAccessFile(file, "rw");
+		long position = 0;
+		for (int length : segmentLengths) {
+			segments.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, position, length));
+			position += length;
+		}
+	}
+
+	private static void deleteFile(File file) {
+		// The file can only fail to be deleted if it could not be unmapped
+		if (!file.delete() && file.exists()) {
+			file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Release the mappings of some buffers now rather than when they are
+	 * garbage collected, so that their file can be deleted and its address
+	 * space reused. If the JVM does not allow this they are left to the
+	 * garbage collector. The buffers, and any views of them, must not be
+	 * used afterwards.
+	 * 
+	 * @param buffers		The buffers to unmap
+	 */
+	private static void unmap(List<MappedByteBuffer> buffers) {
+		for (MappedByteBuffer buffer : buffers) {
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (Exception e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reserve space for a record at the end of the file.
+	 * 
+	 * @param recordLength	The length of the record
+	 * @return				The address of the space
+	 */
+	private long reserve(int recordLength) {
+		MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || segment.capacity() - writeOffset < recordLength) {
+			mapSegment(Math.max(segmentSize, recordLength));
+		}
+		long address = ((long) (segments.size() - 1) << 32) | writeOffset;
+		writeOffset += recordLength;
+		liveBytes += recordLength;
+		return address;
+	}
+
+	private long append(byte[] key, byte[] value, int offset, int length) {
+		long address = reserve(RECORD_HEADER_SIZE + key.length + length);
+		ByteBuffer bb = bufferAt(address);
+		bb.putInt(key.length);
+		bb.putInt(length);
+		bb.put(key);
+		bb.put(value, offset, length);
+		return address;
+	}
+
+	private void mapSegment(int length) {
+		try {
+			segments.add(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, mappedLength, length));
+			segmentLengths.add(length);
+			mappedLength += length;
+			writeOffset = 0;
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Could not extend " + file, ioe);
+		}
+	}
+
+	private MappedByteBuffer segmentFor(long address) {
+		return segments.get((int) (address >>> 32));
+	}
+
+	private static int offsetFor(long address) {
+		return (int) address;
+	}
+
+	private ByteBuffer bufferAt(long address) {
+		ByteBuffer bb = segmentFor(address).duplicate();
+		bb.position(offsetFor(address));
+		return bb;
+	}
+
+	private int recordLength(long address) {
+		MappedByteBuffer segment = segmentFor(address);
+		int offset = offsetFor(address);
+		return RECORD_HEADER_SIZE + segment.getInt(offset) + segment.getInt(offset + 4);
+	}
+
+	private boolean keyEquals(long address, byte[] key) {
+		MappedByteBuffer segment = segmentFor(address);
+		int offset = offsetFor(address);
+		if (segment.getInt(offset) != key.length) {
+			return false;
+		}
+		offset += RECORD_HEADER_SIZE;
+		for (int i = 0; i < key.length; ++i) {
+			if (segment.get(offset + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Decode a value. A {@link ByteArraySet.BufferDeserializer} is handed a
+	 * slice of the mapped file; any other deserializer needs an array, so
+	 * the value is copied for it.
+	 */
+	private <T> T readValue(long address, ByteArraySet.Deserializer<T> deserializer) {
+		MappedByteBuffer segment = segmentFor(address);
+		int offset = offsetFor(address);
+		int keyLength = segment.getInt(offset);
+		int valueLength = segment.getInt(offset + 4);
+		ByteBuffer bb = segment.asReadOnlyBuffer();
+		bb.position(offset + RECORD_HEADER_SIZE + keyLength);
+		bb.limit(bb.position() + valueLength);
+		if (deserializer instanceof ByteArraySet.BufferDeserializer) {
+			return ((ByteArraySet.BufferDeserializer<T>) deserializer).fromBuffer(bb.slice());
+		}
+		if (scratch.length < valueLength) {
+			scratch = new byte[Math.max(valueLength, scratch.length * 2)];
+		}
+		bb.get(scratch, 0, valueLength);
+		return deserializer.fromBytes(scratch, 0, valueLength);
+	}
+
+	/**
+	 * Find the slot holding a key.
+	 * 
+	 * @param key		The key to look for
+	 * @param hash		The hash code of <code>key</code>
+	 * @return			The slot holding the key if it is present, or
+	 * 					<code>-(slot + 1)</code> for the slot it should be
+	 * 					inserted into if it is not
+	 */
+	private int find(byte[] key, int hash) {
+		final int mask = slots.capacity() - 1;
+		int slot = hash & mask;
+		int firstRemoved = -1;
+		for (;;) {
+			long value = slots.get(slot);
+			if (value == EMPTY) {
+				return -((firstRemoved >= 0 ? firstRemoved : slot) + 1);
+			} else if (value == REMOVED) {
+				if (firstRemoved < 0) {
+					firstRemoved = slot;
+				}
+			} else if (hashes.get(slot) == hash && keyEquals(value - 1, key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public void put(byte[] key, byte[] value) {
+		final int hash = ByteArrayMap.hashCode(key);
+		int slot = find(key, hash);
+		long address = append(key, value, 0, value.length);
+		if (slot >= 0) {
+			discard(slots.get(slot) - 1);
+			slots.put(slot, address + 1);
+		} else {
+			slot = -slot - 1;
+			if (slots.get(slot) == EMPTY) {
+				++used;
+			}
+			slots.put(slot, address + 1);
+			hashes.put(slot, hash);
+			++size;
+			if (used * 2 > slots.capacity()) {
+				rehash();
+			}
+		}
+		if (garbageBytes > segmentSize && garbageBytes > liveBytes) {
+			compact();
+		}
+	}
+
+	private void discard(long address) {
+		int length = recordLength(address);
+		liveBytes -= length;
+		garbageBytes += length;
+	}
+
+	private void rehash() {
+		LongBuffer oldSlots = slots;
+		IntBuffer oldHashes = hashes;
+		int capacity = MIN_CAPACITY;
+		while (capacity < size * 4) {
+			capacity <<= 1;
+		}
+		allocateIndex(capacity);
+		final int mask = capacity - 1;
+		for (int i = 0; i < oldSlots.capacity(); ++i) {
+			long value = oldSlots.get(i);
+			if (value == EMPTY || value == REMOVED) {
+				continue;
+			}
+			int slot = oldHashes.get(i) & mask;
+			while (slots.get(slot) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			slots.put(slot, value);
+			hashes.put(slot, oldHashes.get(i));
+			++size;
+			++used;
+		}
+	}
+
+	/**
+	 * Copy the live entries to a new file, and unmap and delete the old one.
+	 */
+	private void compact() {
+		List<MappedByteBuffer> oldSegments = new ArrayList<MappedByteBuffer>(segments);
+		RandomAccessFile oldRaf = raf;
+		File oldFile = file;
+		try {
+			openFile();
+			byte[] record = scratch;
+			for (int i = 0; i < slots.capacity(); ++i) {
+				long value = slots.get(i);
+				if (value == EMPTY || value == REMOVED) {
+					continue;
+				}
+				long oldAddress = value - 1;
+				ByteBuffer from = oldSegments.get((int) (oldAddress >>> 32)).duplicate();
+				int offset = offsetFor(oldAddress);
+				int recordLength = RECORD_HEADER_SIZE + from.getInt(offset) + from.getInt(offset + 4);
+				if (record.length < recordLength) {
+					record = new byte[recordLength];
+				}
+				from.position(offset);
+				from.get(record, 0, recordLength);
+				long address = reserve(recordLength);
+				bufferAt(address).put(record, 0, recordLength);
+				slots.put(i, address + 1);
+			}
+			unmap(oldSegments);
+			oldRaf.close();
+			deleteFile(oldFile);
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Could not compact " + oldFile, ioe);
+		}
+	}
+
+	public <T> T get(byte[] key, ByteArraySet.Deserializer<T> deserializer) {
+		int slot = find(key, ByteArrayMap.hashCode(key));
+		if (slot < 0) {
+			return null;
+		}
+		return readValue(slots.get(slot) - 1, deserializer);
+	}
+
+	public boolean containsKey(byte[] key) {
+		return find(key, ByteArrayMap.hashCode(key)) >= 0;
+	}
+
+	public boolean remove(byte[] key) {
+		int slot = find(key, ByteArrayMap.hashCode(key));
+		if (slot < 0) {
+			return false;
+		}
+		discard(slots.get(slot) - 1);
+		slots.put(slot, REMOVED);
+		--size;
+		return true;
+	}
+
+	public <T> Iterator<T> iterator(final ByteArraySet.Deserializer<T> deserializer) {
+		return new Iterator<T>() {
+			private int pos = advance(0);
+
+			private int advance(int from) {
+				while (from < slots.capacity()
+						&& (slots.get(from) == EMPTY || slots.get(from) == REMOVED)) {
+					++from;
+				}
+				return from;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return pos < slots.capacity();
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				long address = slots.get(pos) - 1;
+				pos = advance(pos + 1);
+				return readValue(address, deserializer);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the number of bytes of the file holding live entries
+	 */
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * @return the number of bytes of the file holding replaced or removed
+	 *         entries
+	 */
+	public long getGarbageBytes() {
+		return garbageBytes;
+	}
+
+	public void clear() {
+		allocateIndex(MIN_CAPACITY);
+		try {
+			close();
+			openFile();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Could not recreate " + file, ioe);
+		}
+	}
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.workload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.IntPeerID;
+import edu.upenn.cis.orchestra.datamodel.PrimaryKey;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.StringType;
+import edu.upenn.cis.orchestra.datamodel.TrustConditions;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.reconciliation.ClientCentricDb;
+import edu.upenn.cis.orchestra.reconciliation.Db;
+import edu.upenn.cis.orchestra.reconciliation.HashTableStore;
+import edu.upenn.cis.orchestra.reconciliation.LocalSchemaIDBinding;
+import edu.upenn.cis.orchestra.reconciliation.SqlUpdateStore;
+import edu.upenn.cis.orchestra.reconciliation.UpdateStore;
+import edu.upenn.cis.orchestra.reconciliation.bdbstore.BerkeleyDBStoreClient;
+import edu.upenn.cis.orchestra.reconciliation.bdbstore.BerkeleyDBStoreServer;
+
+/**
+ * Runs a generated workload in a single process, with no lock manager and no
+ * workload file. Each peer runs in its own thread, choosing actions as a
+ * {@link WorkloadPeer} over keys drawn from a Zipfian distribution, against
+ * an update store: a Berkeley DB store server in the same process, or a SQL
+ * update store in an existing DB2 database given by <code>-jdbc</code>
+ * ({@link SqlUpdateStore} creates DB2-specific tables, so HSQLDB cannot be
+ * used). The latencies of each phase (adding transactions, publishing,
+ * reconciling or exchanging updates and resolving conflicts) are reported
+ * with their percentiles and throughput as CSV or JSON.
+ * <p>
+ * In <code>exchange</code> mode the peers run update exchange instead of
+ * reconciliation: each peer applies every transaction published by the
+ * others to its local state and records them as accepted, as
+ * {@link edu.upenn.cis.orchestra.datamodel.OrchestraSystem#translate()} does
+ * before the mappings are evaluated. There is no mapping database, so the
+ * delta rules themselves are not run. Update exchange has no conflict
+ * resolution, so each peer then updates only keys of its own.
+ * <p>
+ * The Berkeley DB environment is created in a new temporary directory that
+ * is removed after the run, unless one is given with <code>-env</code>; a
+ * directory given that way must be empty or not yet exist.
+ * 
+ */
+public class EmbeddedWorkload {
+	enum Store { BDB, SQL }
+	enum Format { CSV, JSON }
+	enum Mode { RECONCILE, EXCHANGE }
+
+	public static final String TRANSACTION = "transaction";
+	public static final String PUBLISH = "publish";
+	public static final String RECONCILE = "reconcile";
+	public static final String RESOLVE = "resolve";
+	public static final String EXCHANGE = "exchange";
+
+	Store store = Store.BDB;
+	Format format = Format.CSV;
+	Mode mode = Mode.RECONCILE;
+	String outputFile = null;
+	String envdir = null;
+	int port = 0;
+	String jdbcUrl = null;
+	String username = Config.getUser();
+	String password = Config.getPassword();
+	long seed = 0;
+
+	int numPeers = 4;
+	int numCycles = 100;
+	int txnSize = 5;
+	int numKeys = 1000;
+	int numValues = 100;
+	double zipfian = 1.0;
+
+	double reconcileProb = 0.2;
+	double resolveProb = 0.1;
+	double txnProb = 0.5;
+
+	private Schema schema;
+	private Relation funcSchema;
+	private final PhaseLatencies latencies = new PhaseLatencies();
+	private volatile Throwable failure = null;
+
+	public static void main(String[] args) throws Exception {
+		EmbeddedWorkload ew = new EmbeddedWorkload();
+		ew.parseOpts(args);
+		long elapsed = ew.run();
+
+		PrintStream out = System.out;
+		if (ew.outputFile != null) {
+			out = new PrintStream(new FileOutputStream(ew.outputFile));
+		}
+		if (ew.format == Format.JSON) {
+			ew.latencies.writeJson(out, elapsed);
+		} else {
+			ew.latencies.writeCsv(out, elapsed);
+		}
+		if (out != System.out) {
+			out.close();
+		}
+	}
+
+	/**
+	 * Run the workload, recording the latency of each action
+	 * 
+	 * @return			The wall time of the run, in nanoseconds
+	 * @throws Exception
+	 */
+	public long run() throws Exception {
+		schema = new Schema(getClass().getSimpleName() + "_schema");
+		funcSchema = schema.addRelation("func");
+		funcSchema.addCol("protein", new StringType(false, false, true, 11));
+		funcSchema.addCol("function", new StringType(false, false, true, 80));
+		funcSchema.setPrimaryKey(new PrimaryKey("pk", funcSchema, Collections.singleton("protein")));
+		schema.markFinished();
+
+		List<AbstractPeerID> peers = new ArrayList<AbstractPeerID>(numPeers);
+		Map<AbstractPeerID,Schema> peerIDToSchema = new HashMap<AbstractPeerID,Schema>();
+		Map<AbstractPeerID,Integer> peerMap = new HashMap<AbstractPeerID,Integer>();
+		for (int i = 0; i < numPeers; ++i) {
+			AbstractPeerID pid = new IntPeerID(i);
+			peers.add(pid);
+			peerIDToSchema.put(pid, schema);
+			peerMap.put(pid, 0);
+		}
+		LocalSchemaIDBinding binding = new LocalSchemaIDBinding(peerIDToSchema);
+
+		File envDir = null;
+		boolean tempEnv = false;
+		Environment e = null;
+		BerkeleyDBStoreServer server = null;
+		UpdateStore.Factory usf;
+		if (store == Store.BDB) {
+			if (envdir == null) {
+				envDir = File.createTempFile("ewstore", "");
+				if (! (envDir.delete() && envDir.mkdir())) {
+					throw new IOException("Could not create temporary directory " + envDir);
+				}
+				tempEnv = true;
+			} else {
+				envDir = new File(envdir);
+				if (envDir.isDirectory()) {
+					String[] contents = envDir.list();
+					if (contents == null || contents.length != 0) {
+						throw new IOException("Directory " + envDir + " is not empty, refusing to overwrite it");
+					}
+				} else if (! envDir.mkdirs()) {
+					throw new IOException("Could not create directory " + envDir);
+				}
+			}
+			EnvironmentConfig ec = new EnvironmentConfig();
+			ec.setAllowCreate(true);
+			ec.setTransactional(true);
+			e = new Environment(envDir, ec);
+			server = new BerkeleyDBStoreServer(e, port);
+			server.registerAllSchemas(schema.getSchemaId(), Collections.singletonList(schema), peerMap);
+			usf = new BerkeleyDBStoreClient.Factory(new InetSocketAddress(InetAddress.getLocalHost(), server.getPort()), null);
+		} else {
+			if (jdbcUrl == null) {
+				throw new IllegalArgumentException("The SQL update store needs a DB2 database given with -jdbc");
+			}
+			if (! jdbcUrl.startsWith("jdbc:db2:")) {
+				throw new IllegalArgumentException("The SQL update store only supports DB2, not " + jdbcUrl);
+			}
+			usf = new SqlUpdateStore.Factory(jdbcUrl, username, password);
+			usf.resetStore(schema);
+		}
+
+		final Map<Integer,Db> dbs = new HashMap<Integer,Db>();
+		final List<WorkloadPeer> wps = new ArrayList<WorkloadPeer>(numPeers);
+		long elapsed;
+		try {
+			for (int i = 0; i < numPeers; ++i) {
+				// Every peer trusts every other peer equally
+				TrustConditions tc = new TrustConditions(peers.get(i));
+				for (AbstractPeerID pid : peers) {
+					if (! pid.equals(peers.get(i))) {
+						tc.addTrustCondition(pid, schema, funcSchema.getName(), null, 1);
+					}
+				}
+				dbs.put(i, new ClientCentricDb(binding, schema, peers.get(i), tc, usf, HashTableStore.FACTORY));
+				Random random = new Random(seed + i);
+				wps.add(new WorkloadPeer(i, dbs.get(i), random, reconcileProb, resolveProb, txnProb,
+						txnSize, new ZipfianTuples(random, mode == Mode.EXCHANGE ? i + "." : "")));
+			}
+
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Thread> threads = new ArrayList<Thread>(numPeers);
+			for (final WorkloadPeer wp : wps) {
+				Thread t = new Thread("Workload peer " + wp.peerNum) {
+					public void run() {
+						try {
+							start.await();
+							for (int i = 0; i < numCycles && failure == null; ++i) {
+								doAction(wp, dbs);
+							}
+						} catch (Throwable err) {
+							failure = err;
+						}
+					}
+				};
+				threads.add(t);
+				t.start();
+			}
+
+			long startTime = System.nanoTime();
+			start.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+			elapsed = System.nanoTime() - startTime;
+		} finally {
+			for (Db db : dbs.values()) {
+				db.disconnect();
+			}
+			if (server != null) {
+				server.quit();
+			}
+			if (e != null) {
+				e.close();
+			}
+			if (tempEnv) {
+				for (File f : envDir.listFiles()) {
+					f.delete();
+				}
+				envDir.delete();
+			}
+		}
+
+		if (failure != null) {
+			throw new Exception("Error running workload", failure);
+		}
+		return elapsed;
+	}
+
+	/**
+	 * @return			The latencies recorded by {@link #run()}
+	 */
+	public PhaseLatencies getLatencies() {
+		return latencies;
+	}
+
+	private void doAction(WorkloadPeer wp, Map<Integer,Db> dbs) throws Exception {
+		WorkloadAction wa = wp.chooseAction();
+		if (wa == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		if (wa instanceof ReconcileAction) {
+			// Time the two halves of a ReconcileAction separately
+			wp.db.publish();
+			long published = System.nanoTime();
+			latencies.record(PUBLISH, published - start);
+			if (mode == Mode.EXCHANGE) {
+				exchange((ClientCentricDb) wp.db);
+				latencies.record(EXCHANGE, System.nanoTime() - published);
+			} else {
+				wp.db.reconcile();
+				latencies.record(RECONCILE, System.nanoTime() - published);
+			}
+		} else {
+			wa.doAction(dbs, null);
+			latencies.record(wa instanceof ResolveAction ? RESOLVE : TRANSACTION, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Apply the transactions published by the other peers since the last
+	 * reconciliation to a peer's state and record them as accepted, as
+	 * update exchange does before evaluating the mappings. The peer's own
+	 * transactions are already part of its state.
+	 * 
+	 * @param db		The peer's database
+	 * @throws Exception
+	 */
+	private void exchange(ClientCentricDb db) throws Exception {
+		int lastrec = db.getCurrentRecno();
+		int recno = db.getRecNo();
+		List<TxnPeerID> accepted = new ArrayList<TxnPeerID>();
+		for (int rec = lastrec; rec <= recno; ++rec) {
+			ResultIterator<TxnPeerID> txns = db.getTransactionsForReconciliation(rec);
+			try {
+				while (txns.hasNext()) {
+					TxnPeerID txn = txns.next();
+					if (! txn.getPeerID().equals(db.getID())) {
+						db.applyTransToState(recno, db.getTransaction(txn));
+					}
+					accepted.add(txn);
+				}
+			} finally {
+				txns.close();
+			}
+		}
+		db.recordAcceptedTrans(recno, accepted);
+		db.setRecDone();
+	}
+
+	private void parseOpts(String args[]) {
+		int numOpts = args.length;
+		boolean bad = false;
+		for (int i = 0; i < numOpts; ++i) {
+			if (i == (numOpts - 1)) {
+				// All of the following arguments need a value following them
+				bad = true;
+				break;
+			}
+			if (args[i].equals("-output")) {
+				outputFile = args[i+1];
+			} else if (args[i].equals("-format")) {
+				if (args[i+1].equals("csv")) {
+					format = Format.CSV;
+				} else if (args[i+1].equals("json")) {
+					format = Format.JSON;
+				} else {
+					System.err.println("Unknown output format: " + args[i+1]);
+					bad = true;
+					break;
+				}
+			} else if (args[i].equals("-mode")) {
+				if (args[i+1].equals("reconcile")) {
+					mode = Mode.RECONCILE;
+				} else if (args[i+1].equals("exchange")) {
+					mode = Mode.EXCHANGE;
+				} else {
+					System.err.println("Unknown mode: " + args[i+1]);
+					bad = true;
+					break;
+				}
+			} else if (args[i].equals("-store")) {
+				if (args[i+1].equals("bdb")) {
+					store = Store.BDB;
+				} else if (args[i+1].equals("sql")) {
+					store = Store.SQL;
+				} else {
+					System.err.println("Unknown update store: " + args[i+1]);
+					bad = true;
+					break;
+				}
+			} else if (args[i].equals("-env")) {
+				envdir = args[i+1];
+			} else if (args[i].equals("-port")) {
+				port = Integer.parseInt(args[i+1]);
+			} else if (args[i].equals("-jdbc")) {
+				jdbcUrl = args[i+1];
+			} else if (args[i].equals("-username")) {
+				username = args[i+1];
+			} else if (args[i].equals("-password")) {
+				password = args[i+1];
+			} else if (args[i].equals("-random")) {
+				seed = Long.parseLong(args[i+1]);
+			} else if (args[i].equals("-numpeers")) {
+				numPeers = Integer.parseInt(args[i+1]);
+			} else if (args[i].equals("-numcycles")) {
+				numCycles = Integer.parseInt(args[i+1]);
+			} else if (args[i].equals("-txnsize")) {
+				txnSize = Integer.parseInt(args[i+1]);
+			} else if (args[i].equals("-numkeys")) {
+				numKeys = Integer.parseInt(args[i+1]);
+			} else if (args[i].equals("-numvalues")) {
+				numValues = Integer.parseInt(args[i+1]);
+			} else if (args[i].equals("-zipfian")) {
+				zipfian = Double.parseDouble(args[i+1]);
+			} else if (args[i].equals("-resolveprob")) {
+				resolveProb = Double.parseDouble(args[i+1]);
+			} else if (args[i].equals("-reconcileprob")) {
+				reconcileProb = Double.parseDouble(args[i+1]);
+			} else if (args[i].equals("-txnprob")) {
+				txnProb = Double.parseDouble(args[i+1]);
+			} else {
+				bad = true;
+				break;
+			}
+			++i;
+		}
+		if (bad) {
+			System.err.println("Command line options: -output file -format [csv|json] -mode [reconcile|exchange] -store [bdb|sql] -env dir -port n -jdbc url -username user -password pw -random seed -numpeers n -numcycles n -txnsize n -numkeys n -numvalues n -zipfian f -reconcileprob p -resolveprob p -txnprob p");
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Creates tuples whose keys are drawn from a Zipfian distribution and
+	 * whose values are drawn uniformly
+	 */
+	private class ZipfianTuples implements TupleGenerator {
+		private final RandomizedSet keys;
+		private final RandomizedSet values;
+
+		private final String keyPrefix;
+
+		/**
+		 * @param random	The source of randomness
+		 * @param keyPrefix	The prefix of every key, to keep the keys of
+		 * 					different peers apart
+		 * @throws IOException
+		 */
+		ZipfianTuples(Random random, String keyPrefix) throws IOException {
+			this.keyPrefix = keyPrefix;
+			keys = PrintZipf.createZipfianSet(numKeys, zipfian, random);
+			values = new RandomizedSet(false, random);
+			for (int i = 0; i < numValues; ++i) {
+				values.addElement("function " + i);
+			}
+		}
+
+		public Tuple getTuple() throws Exception {
+			Tuple t = new Tuple(funcSchema);
+			t.set(0, keyPrefix + keys.chooseElement());
+			t.set(1, values.chooseElement());
+			return t;
+		}
+
+		public List<Tuple> getSupportingTuples(Tuple t) {
+			return Collections.emptyList();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.workload;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The latencies of the operations of each phase of a workload run, such as
+ * publishing or reconciling, and their percentiles and throughput. Safe
+ * for use by several peer threads at once.
+ * 
+ */
+public class PhaseLatencies {
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	private final Map<String,List<Long>> latencies = new LinkedHashMap<String,List<Long>>();
+
+	/**
+	 * Record the latency of one operation
+	 * 
+	 * @param phase		The phase the operation belongs to
+	 * @param nanos		The latency, in nanoseconds
+	 */
+	public synchronized void record(String phase, long nanos) {
+		List<Long> l = latencies.get(phase);
+		if (l == null) {
+			l = new ArrayList<Long>();
+			latencies.put(phase, l);
+		}
+		l.add(nanos);
+	}
+
+	/**
+	 * Get the latencies recorded for a phase, sorted in increasing order
+	 * 
+	 * @param phase		The phase
+	 * @return			The latencies, in nanoseconds
+	 */
+	public synchronized long[] getSorted(String phase) {
+		List<Long> l = latencies.get(phase);
+		if (l == null) {
+			return new long[0];
+		}
+		long[] sorted = new long[l.size()];
+		for (int i = 0; i < sorted.length; ++i) {
+			sorted[i] = l.get(i);
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Get a percentile of sorted latencies, by the nearest rank method
+	 * 
+	 * @param sorted		The latencies, sorted in increasing order
+	 * @param percentile	The percentile, between <code>0</code> and <code>100</code>
+	 * @return				The latency at that percentile, or <code>0</code>
+	 * 						if there are none
+	 */
+	static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	private synchronized List<String> getPhases() {
+		return new ArrayList<String>(latencies.keySet());
+	}
+
+	/**
+	 * Write a summary of each phase as CSV, one line per phase, with
+	 * latencies in milliseconds
+	 * 
+	 * @param out			Where to write the summary
+	 * @param elapsedNanos	The wall time of the run, in nanoseconds
+	 */
+	public void writeCsv(PrintStream out, long elapsedNanos) {
+		StringBuilder header = new StringBuilder("phase,count,mean_ms");
+		for (double p : PERCENTILES) {
+			header.append(",p" + (int) p + "_ms");
+		}
+		header.append(",max_ms,ops_per_sec");
+		out.println(header);
+		for (String phase : getPhases()) {
+			long[] sorted = getSorted(phase);
+			StringBuilder sb = new StringBuilder(phase);
+			sb.append(',').append(sorted.length);
+			sb.append(',').append(millis(mean(sorted)));
+			for (double p : PERCENTILES) {
+				sb.append(',').append(millis(percentile(sorted, p)));
+			}
+			sb.append(',').append(millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+			sb.append(',').append(throughput(sorted.length, elapsedNanos));
+			out.println(sb);
+		}
+	}
+
+	/**
+	 * Write a summary of each phase as a JSON object, keyed by phase, with
+	 * latencies in milliseconds
+	 * 
+	 * @param out			Where to write the summary
+	 * @param elapsedNanos	The wall time of the run, in nanoseconds
+	 */
+	public void writeJson(PrintStream out, long elapsedNanos) {
+		StringBuilder sb = new StringBuilder("{\"elapsed_sec\": ");
+		sb.append(elapsedNanos / 1000000000.0);
+		sb.append(", \"phases\": {");
+		boolean first = true;
+		for (String phase : getPhases()) {
+			long[] sorted = getSorted(phase);
+			if (! first) {
+				sb.append(", ");
+			}
+			first = false;
+			sb.append('"').append(phase).append("\": {");
+			sb.append("\"count\": ").append(sorted.length);
+			sb.append(", \"mean_ms\": ").append(millis(mean(sorted)));
+			for (double p : PERCENTILES) {
+				sb.append(", \"p" + (int) p + "_ms\": ").append(millis(percentile(sorted, p)));
+			}
+			sb.append(", \"max_ms\": ").append(millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+			sb.append(", \"ops_per_sec\": ").append(throughput(sorted.length, elapsedNanos));
+			sb.append('}');
+		}
+		sb.append("}}");
+		out.println(sb);
+	}
+
+	private static long mean(long[] values) {
+		if (values.length == 0) {
+			return 0;
+		}
+		long sum = 0;
+		for (long v : values) {
+			sum += v;
+		}
+		return sum / values.length;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	private static double throughput(int count, long elapsedNanos) {
+		if (elapsedNanos <= 0) {
+			return 0;
+		}
+		return count / (elapsedNanos / 1000000000.0);
+	}
+}
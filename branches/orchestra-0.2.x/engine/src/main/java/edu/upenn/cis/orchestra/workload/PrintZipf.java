@@ -16,7 +16,9 @@
 package edu.upenn.cis.orchestra.workload;
 
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Random;
 
 public class PrintZipf {
 
@@ -30,7 +32,23 @@ public class PrintZipf {
 		int n = Integer.parseInt(args[1]);
 		PrintWriter pw = new PrintWriter(new FileOutputStream(args[2]));
 		
-		RandomizedSet rs = new RandomizedSet(false);
+		RandomizedSet rs = createZipfianSet(n, s, new Random());
+		
+		pw.print(rs.toString());
+		pw.close();
+	}
+
+	/**
+	 * Create a set of the numbers <code>0</code> to <code>n - 1</code>, as
+	 * strings, weighted by a Zipfian distribution in that order
+	 * 
+	 * @param n			The number of elements
+	 * @param s			The Zipfian exponent
+	 * @param random	The source of randomness for choosing elements
+	 * @return			The weighted set
+	 */
+	static RandomizedSet createZipfianSet(int n, double s, Random random) throws IOException {
+		RandomizedSet rs = new RandomizedSet(false, random);
 		
 		for (int i = 0; i < n; ++i) {
 			rs.addElement(Integer.toString(i));
@@ -38,8 +56,7 @@ public class PrintZipf {
 		
 		rs.makeWeightedZipfian(s);
 		
-		pw.print(rs.toString());
-		pw.close();
+		return rs;
 	}
 
 }
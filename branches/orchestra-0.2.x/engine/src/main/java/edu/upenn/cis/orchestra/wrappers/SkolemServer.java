@@ -38,6 +38,9 @@ import java.net.SocketTimeoutException;
 
 import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.dbms.sql.vendors.GenerateDB2SkolemUDFs;
+import edu.upenn.cis.orchestra.metrics.Counter;
+import edu.upenn.cis.orchestra.metrics.MetricsRegistry;
+import edu.upenn.cis.orchestra.metrics.Timer;
 
 public class SkolemServer extends Thread {
 	private static int _newSkVal = -2;
@@ -48,6 +51,9 @@ public class SkolemServer extends Thread {
 	
 	private static Connection db;
 
+	private static final Timer LOOKUP_TIMER = MetricsRegistry.getDefault().timer("skolem.lookup");
+	private static final Counter CREATED = MetricsRegistry.getDefault().counter("skolem.created");
+
 	private static synchronized int getNextSkolem() {
 		return _newSkVal--;
 	}
@@ -84,6 +90,7 @@ public class SkolemServer extends Thread {
 	public void run() {
 		try {
 			isActive = true;
+			MetricsRegistry.startFromConfig();
 			System.out.println("Server daemon initializing...");
 			ServerSocket s = new ServerSocket(PORT);
 			try {
@@ -235,6 +242,7 @@ public class SkolemServer extends Thread {
 		}
 		
 		public static int skolem(String nam, Object[] parms) throws SQLException {
+			long start = System.nanoTime();
 			int skVal;
 			String stmt = "SELECT * FROM Skolems." + nam + " WHERE Func = ?";//AND StrVal0 = ?";
 			
@@ -281,6 +289,7 @@ public class SkolemServer extends Thread {
 				skVal = rs.getInt(parms.length+1);
 			} else {
 				skVal = getNextSkolem();
+				CREATED.inc();
 	
 				String upd = "INSERT INTO Skolems." + nam + " VALUES (?";//?,?,?)";
 				
@@ -305,6 +314,7 @@ public class SkolemServer extends Thread {
 			}
 			if (rs != null) rs.close();
 			if (ps != null) ps.close();
+			LOOKUP_TIMER.updateSince(start);
 			return skVal;
 		}
 	}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.datalog;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.Peer;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationContext;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.StringType;
+import edu.upenn.cis.orchestra.mappings.Rule;
+
+/**
+ * Test the join signatures of {@code SharedJoinRewriter}, and that the
+ * rewritten programs compute the same relations as the original ones.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestSharedJoinRewriter {
+	private final Schema schema = new Schema("SJTEST");
+	private final Peer peer = new Peer("SJPEER", "", "Shared join test peer");
+
+	public void signatureIgnoresVariableNames() {
+		String sig1 = SharedJoinRewriter.signature("R", Arrays.asList("x", "y"), "S", Arrays.asList("y", "z"));
+		String sig2 = SharedJoinRewriter.signature("R", Arrays.asList("a", "b"), "S", Arrays.asList("b", "c"));
+		assertEquals(sig1, sig2);
+	}
+
+	public void signatureIgnoresAtomOrder() {
+		String sig1 = SharedJoinRewriter.signature("R", Arrays.asList("x", "y"), "S", Arrays.asList("y", "=1"));
+		String sig2 = SharedJoinRewriter.signature("S", Arrays.asList("b", "=1"), "R", Arrays.asList("a", "b"));
+		assertEquals(sig1, sig2);
+	}
+
+	public void signatureDistinguishesJoinColumns() {
+		String sig1 = SharedJoinRewriter.signature("R", Arrays.asList("x", "y"), "S", Arrays.asList("y", "z"));
+		String sig2 = SharedJoinRewriter.signature("R", Arrays.asList("x", "y"), "S", Arrays.asList("z", "y"));
+		String sig3 = SharedJoinRewriter.signature("R", Arrays.asList("x", "y"), "S", Arrays.asList("y", "=2"));
+		assertFalse(sig1.equals(sig2));
+		assertFalse(sig1.equals(sig3));
+	}
+
+	public void noSignatureWithoutSharedVariable() {
+		assertNull(SharedJoinRewriter.signature("R", Arrays.asList("x", "=1"), "S", Arrays.asList("=1", "z")));
+	}
+
+	/**
+	 * Evaluates a program with and without its shared joins, in memory, and
+	 * compares the relations it writes.
+	 * 
+	 * @throws Exception
+	 */
+	public void rewriteComputesSameResult() throws Exception {
+		RelationContext r = relation("R", 2);
+		RelationContext s = relation("S", 2);
+		RelationContext u = relation("U", 2);
+		List<RelationContext> heads = new ArrayList<RelationContext>();
+		for (int i = 1; i <= 4; ++i) {
+			heads.add(relation("H" + i, (i == 2) ? 2 : 1));
+		}
+
+		List<Rule> rules = new ArrayList<Rule>();
+		// H1(x) :- R(x,y), S(y,z)
+		rules.add(rule(atom(heads.get(0), "x"), atom(r, "x", "y"), atom(s, "y", "z")));
+		// H2(x,w) :- R(x,y), S(y,z), U(z,w)
+		rules.add(rule(atom(heads.get(1), "x", "w"), atom(r, "x", "y"), atom(s, "y", "z"), atom(u, "z", "w")));
+		// H3(a) :- R(a,b), S(b,'c1')
+		rules.add(rule(atom(heads.get(2), "a"), atom(r, "a", "b"), atom(s, "b", "'c1")));
+		// H4(b) :- S(b,'c1'), R(a,b)
+		rules.add(rule(atom(heads.get(3), "b"), atom(s, "b", "'c1"), atom(r, "a", "b")));
+		DatalogProgram prog = new NonRecursiveDatalogProgram(rules, false, "shared join test");
+
+		Map<String, Set<List<Object>>> data = new HashMap<String, Set<List<Object>>>();
+		insert(data, r, "1", "a", "2", "b", "3", "c", "4", "a");
+		insert(data, s, "a", "c1", "b", "c2", "c", "c1", "d", "c1");
+		insert(data, u, "c1", "u1", "c2", "u2", "c1", "u3");
+
+		boolean apply = Config.getApply();
+		boolean stratified = Config.getStratified();
+		try {
+			Config.setApply(false);
+			Config.setStratified(false);
+			compareRewrite(prog, heads, data);
+		} finally {
+			Config.setApply(apply);
+			Config.setStratified(stratified);
+		}
+	}
+
+	private void compareRewrite(DatalogProgram prog, List<RelationContext> heads,
+			Map<String, Set<List<Object>>> data) {
+		List<DatalogProgram> rewritten = new SharedJoinRewriter(null).rewrite(prog);
+		assertEquals(rewritten.size(), 2);
+		assertEquals(rewritten.get(0).getRules().size(), 4, "Two shared joins, cleared and filled");
+		for (Rule fill : rewritten.get(0).getRules()) {
+			Relation table = fill.getHead().getRelation();
+			assertEquals(table.getPrimaryKey().getFields(), table.getFields(), "Every column in the key");
+		}
+
+		Map<String, Set<List<Object>>> expected = copy(data);
+		evaluate(prog.getRules(), expected);
+		Map<String, Set<List<Object>>> actual = copy(data);
+		// Leave something in the shared tables, as an earlier run would
+		for (Rule fill : rewritten.get(0).getRules()) {
+			table(actual, fill.getHead()).add(Collections.<Object> nCopies(fill.getHead().getValues().size(), "stale"));
+		}
+		for (DatalogProgram p : rewritten) {
+			evaluate(p.getRules(), actual);
+		}
+		for (RelationContext head : heads) {
+			String name = head.getRelation().getFullQualifiedDbId();
+			assertFalse(expected.get(name).isEmpty(), name);
+			assertEquals(actual.get(name), expected.get(name), name);
+		}
+
+		SharedJoinRewriter.release(prog);
+		assertEquals(SharedJoinRewriter.getRewritten(prog).size(), 0);
+	}
+
+	private RelationContext relation(String name, int arity) throws Exception {
+		List<RelationField> fields = new ArrayList<RelationField>();
+		for (int i = 0; i < arity; ++i) {
+			fields.add(new RelationField("F" + i, "", new StringType(false, false, true, 10)));
+		}
+		Relation rel = new Relation(null, schema.getSchemaId(), name, name, "", true, true, fields, name + "_PK",
+				Collections.singletonList("F0"));
+		return new RelationContext(rel, schema, peer, false);
+	}
+
+	/**
+	 * @param args variable names, or constants starting with a quote
+	 */
+	private static Atom atom(RelationContext rel, String... args) {
+		List<AtomArgument> values = new ArrayList<AtomArgument>();
+		for (String a : args) {
+			values.add(a.startsWith("'") ? new AtomConst(a.substring(1)) : new AtomVariable(a));
+		}
+		return new Atom(rel, values);
+	}
+
+	private static Rule rule(Atom head, Atom... body) {
+		return new Rule(head, Arrays.asList(body), null, new HashMap<String, Schema>());
+	}
+
+	private static void insert(Map<String, Set<List<Object>>> data, RelationContext rel, String... values) {
+		Set<List<Object>> t = data.get(rel.getRelation().getFullQualifiedDbId());
+		if (t == null) {
+			t = new HashSet<List<Object>>();
+			data.put(rel.getRelation().getFullQualifiedDbId(), t);
+		}
+		int arity = rel.getRelation().getFields().size();
+		for (int i = 0; i < values.length; i += arity) {
+			t.add(new ArrayList<Object>(Arrays.asList(values).subList(i, i + arity)));
+		}
+	}
+
+	private static Map<String, Set<List<Object>>> copy(Map<String, Set<List<Object>>> data) {
+		Map<String, Set<List<Object>>> res = new HashMap<String, Set<List<Object>>>();
+		for (Map.Entry<String, Set<List<Object>>> e : data.entrySet()) {
+			res.put(e.getKey(), new HashSet<List<Object>>(e.getValue()));
+		}
+		return res;
+	}
+
+	private static Set<List<Object>> table(Map<String, Set<List<Object>>> data, Atom a) {
+		Set<List<Object>> t = data.get(a.toString3());
+		if (t == null) {
+			t = new HashSet<List<Object>>();
+			data.put(a.toString3(), t);
+		}
+		return t;
+	}
+
+	/**
+	 * Runs the rules of a non-recursive program in order, a negated head
+	 * with an empty body clearing its table.
+	 */
+	private static void evaluate(List<Rule> rules, Map<String, Set<List<Object>>> data) {
+		for (Rule rule : rules) {
+			Set<List<Object>> head = table(data, rule.getHead());
+			if (rule.getHead().isNeg()) {
+				head.clear();
+				continue;
+			}
+			List<Map<String, Object>> bindings = new ArrayList<Map<String, Object>>();
+			bind(rule.getBody(), 0, new HashMap<String, Object>(), data, bindings);
+			for (Map<String, Object> b : bindings) {
+				List<Object> tuple = new ArrayList<Object>();
+				for (AtomArgument arg : rule.getHead().getValues()) {
+					tuple.add((arg instanceof AtomConst) ? ((AtomConst) arg).getValue() : b.get(arg.toString()));
+				}
+				head.add(tuple);
+			}
+		}
+	}
+
+	private static void bind(List<Atom> body, int i, Map<String, Object> binding,
+			Map<String, Set<List<Object>>> data, List<Map<String, Object>> res) {
+		if (i == body.size()) {
+			res.add(binding);
+			return;
+		}
+		List<AtomArgument> args = body.get(i).getValues();
+		tuples: for (List<Object> tuple : table(data, body.get(i))) {
+			Map<String, Object> b = new HashMap<String, Object>(binding);
+			for (int j = 0; j < args.size(); ++j) {
+				AtomArgument arg = args.get(j);
+				Object bound = (arg instanceof AtomConst) ? ((AtomConst) arg).getValue() : b.get(arg.toString());
+				if (bound == null) {
+					b.put(arg.toString(), tuple.get(j));
+				} else if (!bound.equals(tuple.get(j))) {
+					continue tuples;
+				}
+			}
+			bind(body, i + 1, b, data, res);
+		}
+	}
+}
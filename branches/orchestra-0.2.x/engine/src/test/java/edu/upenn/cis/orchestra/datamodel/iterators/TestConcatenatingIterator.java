@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.datamodel.iterators;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.testng.annotations.Test;
+
+/**
+ * Testing {@code ConcatenatingIterator}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestConcatenatingIterator {
+
+	/**
+	 * Concatenates the given lists, recording which ones were opened and
+	 * closed and the limits that were pushed down.
+	 */
+	private static class ListConcatenation extends ConcatenatingIterator<Integer> {
+		private final List<List<Integer>> lists;
+		final List<Integer> remainingAtOpen = new ArrayList<Integer>();
+		int opened = 0;
+		int closed = 0;
+
+		ListConcatenation(int limit, List<List<Integer>> lists) {
+			super(limit);
+			this.lists = lists;
+		}
+
+		@Override
+		protected ResultIterator<Integer> openNext(int remaining) {
+			if (opened >= lists.size()) {
+				return null;
+			}
+			remainingAtOpen.add(remaining);
+			return new ListIteratorResultIterator<Integer>(lists.get(opened++)
+					.listIterator()) {
+				@Override
+				public void close() {
+					closed++;
+					super.close();
+				}
+			};
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<List<Integer>> lists(List<?>... lists) {
+		List<List<Integer>> ret = new ArrayList<List<Integer>>();
+		for (List<?> l : lists) {
+			ret.add((List<Integer>) l);
+		}
+		return ret;
+	}
+
+	private static List<Integer> drain(ResultIterator<Integer> it)
+			throws IteratorException {
+		List<Integer> ret = new ArrayList<Integer>();
+		while (it.hasNext()) {
+			ret.add(it.next());
+		}
+		return ret;
+	}
+
+	public void concatenatesAll() throws Exception {
+		ListConcatenation it = new ListConcatenation(0, lists(Arrays.asList(1,
+				2), Arrays.asList(), Arrays.asList(3), Arrays.asList(4, 5)));
+		assertEquals(drain(it), Arrays.asList(1, 2, 3, 4, 5));
+		assertEquals(it.opened, 4);
+		assertEquals(it.closed, 4);
+		assertEquals(it.getReturnedCount(), 5);
+		assertFalse(it.hasPrev());
+		it.close();
+	}
+
+	public void opensLazily() throws Exception {
+		ListConcatenation it = new ListConcatenation(0, lists(Arrays.asList(1,
+				2), Arrays.asList(3)));
+		assertEquals(it.opened, 0);
+		assertTrue(it.hasNext());
+		assertEquals(it.next(), Integer.valueOf(1));
+		assertEquals(it.next(), Integer.valueOf(2));
+		assertEquals(it.opened, 1);
+		it.close();
+		assertEquals(it.closed, 1);
+		assertFalse(it.hasNext());
+		assertEquals(it.opened, 1);
+	}
+
+	public void stopsAtLimit() throws Exception {
+		ListConcatenation it = new ListConcatenation(3, lists(Arrays.asList(1,
+				2), Arrays.asList(3, 4), Arrays.asList(5)));
+		assertEquals(drain(it), Arrays.asList(1, 2, 3));
+		assertEquals(it.remainingAtOpen, Arrays.asList(3, 1));
+		assertEquals(it.opened, 2);
+		assertEquals(it.closed, 2);
+	}
+
+	@Test(expectedExceptions = NoSuchElementException.class)
+	public void nextPastEnd() throws Exception {
+		ListConcatenation it = new ListConcatenation(0, lists(Arrays.asList(1)));
+		it.next();
+		it.next();
+	}
+}
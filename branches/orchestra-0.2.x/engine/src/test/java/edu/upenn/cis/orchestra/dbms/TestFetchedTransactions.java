@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.datamodel.IntType;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.datamodel.StringPeerID;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+
+/**
+ * Testing {@code FetchedTransactions}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestFetchedTransactions {
+
+	/**
+	 * The updates of the first transactions are kept, in order, and the
+	 * kind of updates is tracked for all of them.
+	 * 
+	 * @throws Exception
+	 */
+	public void keepsFirstUpdates() throws Exception {
+		Relation rel = new Relation(null, null, "R", "R", "R", true, true,
+				Collections.singletonList(new RelationField("ID", "ID", IntType.INT)));
+		Tuple t = new Tuple(rel);
+		t.set("ID", Integer.valueOf(1));
+		List<Update> first = Arrays.asList(new Update(null, t), new Update(null, t));
+		List<Update> second = Collections.singletonList(new Update(null, t));
+		List<Update> third = Collections.singletonList(new Update(t, null));
+
+		FetchedTransactions fetched = new FetchedTransactions(2);
+		TxnPeerID txn1 = new TxnPeerID(1, new StringPeerID("P"));
+		TxnPeerID txn2 = new TxnPeerID(2, new StringPeerID("P"));
+		TxnPeerID txn3 = new TxnPeerID(3, new StringPeerID("P"));
+		fetched.add(txn1, first);
+		fetched.add(txn2, second);
+		assertTrue(fetched.onlyInsertions());
+		fetched.add(txn3, third);
+		assertFalse(fetched.onlyInsertions());
+
+		assertEquals(fetched.getTransactions(), Arrays.asList(txn1, txn2, txn3));
+		assertSame(fetched.getUpdates(txn1, null), first);
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test {@code RuleProfiler}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestRuleProfiler {
+
+	public void dropsOldestExecutions() {
+		RuleProfiler profiler = new RuleProfiler(2, 0);
+		profiler.record("m1", "a", 1, 1);
+		profiler.record("m2", "b", 2, 2);
+		profiler.record("m3", "c", 3, 3);
+		List<RuleProfiler.Execution> executions = profiler.getExecutions();
+		assertEquals(executions.size(), 2);
+		assertEquals(executions.get(0).getMappingId(), "m2");
+		assertEquals(executions.get(1).getSql(), "c");
+		profiler.clear();
+		assertTrue(profiler.getExecutions().isEmpty());
+	}
+
+	public void summarizesByStatement() {
+		RuleProfiler profiler = new RuleProfiler(10, 0);
+		profiler.record("m1", "a", 5, 1);
+		profiler.record("m2", "b", 20, 4);
+		profiler.record("m1", "a", 30, 2);
+		List<RuleProfiler.Summary> summaries = profiler.summarize();
+		assertEquals(summaries.size(), 2);
+		RuleProfiler.Summary a = summaries.get(0);
+		assertEquals(a.getSql(), "a");
+		assertEquals(a.getCount(), 2);
+		assertEquals(a.getTotalNanos(), 35);
+		assertEquals(a.getMaxNanos(), 30);
+		assertEquals(a.getRows(), 3);
+		assertTrue(profiler.format(1).contains("m1"));
+		assertFalse(profiler.format(1).contains("m2"));
+	}
+
+	public void flagsSlowExecutions() {
+		RuleProfiler profiler = new RuleProfiler(10, 100);
+		assertFalse(profiler.record("m1", "a", 99999999L, 1));
+		assertTrue(profiler.record("m1", "a", 100000000L, 1));
+		assertFalse(new RuleProfiler(10, 0).isSlow(Long.MAX_VALUE));
+	}
+}
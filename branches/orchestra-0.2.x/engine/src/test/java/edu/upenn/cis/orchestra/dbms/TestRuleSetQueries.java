@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.Peer;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationContext;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.StringType;
+import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.provenance.ProvenanceNode;
+
+/**
+ * Testing the SQL generated for a set of rules with a common head by
+ * {@code SqlDb}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestRuleSetQueries {
+	private final Schema schema = new Schema("RSTEST");
+	private final Peer peer = new Peer("RSPEER", "", "Rule set test peer");
+
+	/**
+	 * With value provenance, a tuple derived by more rules than are unioned
+	 * in one query still gets a single, combined annotation, so all of the
+	 * rules go into one grouped query.
+	 * 
+	 * @throws Exception
+	 */
+	public void combinesAllRulesInOneQuery() throws Exception {
+		List<Rule> rules = threeRules();
+		boolean valueProvenance = Config.getValueProvenance();
+		int unioned = SqlDb.numUnionedQueries;
+		try {
+			Config.setValueProvenance(true);
+			SqlDb.numUnionedQueries = 1;
+			List<String> queries = db().getRuleSetQueries(rules, ProvenanceNode.BAG_SEMIRING, false);
+			assertEquals(queries.size(), 1);
+			assertEquals(count(queries.get(0), " UNION ALL "), 2);
+			assertEquals(count(queries.get(0), " GROUP BY "), 1);
+		} finally {
+			Config.setValueProvenance(valueProvenance);
+			SqlDb.numUnionedQueries = unioned;
+		}
+	}
+
+	/**
+	 * Without value provenance, the rules are split into separate queries.
+	 * 
+	 * @throws Exception
+	 */
+	public void splitsRulesWithoutValueProvenance() throws Exception {
+		List<Rule> rules = threeRules();
+		boolean valueProvenance = Config.getValueProvenance();
+		int unioned = SqlDb.numUnionedQueries;
+		try {
+			Config.setValueProvenance(false);
+			SqlDb.numUnionedQueries = 2;
+			List<String> queries = db().getRuleSetQueries(rules, ProvenanceNode.BAG_SEMIRING, false);
+			assertEquals(queries.size(), 2);
+			assertEquals(count(queries.get(0), " UNION ALL "), 1);
+			assertEquals(count(queries.get(1), " UNION ALL "), 0);
+		} finally {
+			Config.setValueProvenance(valueProvenance);
+			SqlDb.numUnionedQueries = unioned;
+		}
+	}
+
+	private SqlDb db() {
+		return new SqlDb(null, null, null, new ArrayList<String>(), new ArrayList<Schema>(), null,
+				new HashMap<String, Schema>());
+	}
+
+	/**
+	 * H(x) :- R(x,y); H(x) :- S(x,y); H(x) :- U(x,y)
+	 */
+	private List<Rule> threeRules() throws Exception {
+		RelationContext head = relation("H", 1);
+		List<Rule> rules = new ArrayList<Rule>();
+		for (String body : Arrays.asList("R", "S", "U")) {
+			rules.add(new Rule(atom(head, "x"), Collections.singletonList(atom(relation(body, 2), "x", "y")), null,
+					new HashMap<String, Schema>()));
+		}
+		return rules;
+	}
+
+	private RelationContext relation(String name, int arity) throws Exception {
+		List<RelationField> fields = new ArrayList<RelationField>();
+		for (int i = 0; i < arity; ++i) {
+			fields.add(new RelationField("F" + i, "", new StringType(false, false, true, 10)));
+		}
+		Relation rel = new Relation(null, schema.getSchemaId(), name, name, "", true, true, fields, name + "_PK",
+				Collections.singletonList("F0"));
+		return new RelationContext(rel, schema, peer, false);
+	}
+
+	private static Atom atom(RelationContext rel, String... vars) {
+		List<AtomArgument> values = new ArrayList<AtomArgument>();
+		for (String v : vars) {
+			values.add(new AtomVariable(v));
+		}
+		return new Atom(rel, values);
+	}
+
+	private static int count(String s, String sub) {
+		int n = 0;
+		for (int i = s.indexOf(sub); i >= 0; i = s.indexOf(sub, i + sub.length())) {
+			++n;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.Atom.AtomType;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.Peer;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationContext;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.StringType;
+import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
+import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.provenance.ProvenanceNode;
+
+/**
+ * Testing {@code SemiringAnnotationCache}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestSemiringAnnotationCache {
+	private static final List<String> QUERIES = Collections.singletonList("SELECT ...");
+	private final Schema schema = new Schema("ACTEST");
+	private final Peer peer = new Peer("ACPEER", "", "Annotation cache test peer");
+	private RelationContext head;
+
+	/**
+	 * Results are passed through as they are read, and cached once all of
+	 * them have been read.
+	 * 
+	 * @throws Exception
+	 */
+	public void cachesCompleteResults() throws Exception {
+		SemiringAnnotationCache cache = new SemiringAnnotationCache(4, 100);
+		ResultIterator<Tuple> it = cache.put(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, rules(1),
+				results("1", "2", "2", "5"), 0);
+		assertEquals(it.next().getProvenance(), "2");
+		assertNull(cache.get(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, 0), "Not read completely");
+		assertEquals(it.next().getProvenance(), "5");
+		assertFalse(it.hasNext());
+		it.close();
+
+		ResultIterator<Tuple> cached = cache.get(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, 1);
+		assertNotNull(cached);
+		assertEquals(cached.next().getProvenance(), "2");
+		assertFalse(cached.hasNext(), "Limit");
+		assertNull(cache.get(ProvenanceNode.RANK_SEMIRING, false, QUERIES, 0), "Other semiring");
+	}
+
+	/**
+	 * Results cut off by the limit, or with more tuples than the cache keeps
+	 * for a query, are not cached.
+	 * 
+	 * @throws Exception
+	 */
+	public void skipsPartialAndLargeResults() throws Exception {
+		SemiringAnnotationCache cache = new SemiringAnnotationCache(4, 1);
+		readAll(cache.put(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, rules(1), results("1", "2"), 1));
+		assertNull(cache.get(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, 0));
+		readAll(cache.put(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, rules(1),
+				results("1", "2", "2", "3"), 0));
+		assertNull(cache.get(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, 0));
+	}
+
+	/**
+	 * Results computed before an invalidation are not cached.
+	 * 
+	 * @throws Exception
+	 */
+	public void skipsResultsFromBeforeInvalidation() throws Exception {
+		SemiringAnnotationCache cache = new SemiringAnnotationCache(4, 100);
+		ResultIterator<Tuple> it = cache.put(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, rules(1),
+				results("1", "2"), 0);
+		cache.invalidate();
+		readAll(it);
+		assertNull(cache.get(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, 0));
+	}
+
+	/**
+	 * New derivations are added to the annotations of tuples that were
+	 * already derived, and new tuples are added.
+	 * 
+	 * @throws Exception
+	 */
+	public void maintainsIdempotentAnnotations() throws Exception {
+		SemiringAnnotationCache cache = new SemiringAnnotationCache(4, 100);
+		readAll(cache.put(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, rules(2), results("1", "2"), 0));
+		final List<Integer> deltaRules = new ArrayList<Integer>();
+		cache.applyInsertions(new SemiringAnnotationCache.DeltaEvaluator() {
+			public ResultIterator<Tuple> evaluate(List<Rule> rules, String semiringName, boolean provenanceQuery)
+					throws Exception {
+				deltaRules.add(Integer.valueOf(rules.size()));
+				return results("1", "7", "3", "1");
+			}
+		});
+		assertEquals(deltaRules, Collections.singletonList(Integer.valueOf(3)));
+		ResultIterator<Tuple> cached = cache.get(ProvenanceNode.TRUST_SEMIRING, false, QUERIES, 0);
+		assertNotNull(cached);
+		assertEquals(cached.next().getProvenance(), "7");
+		assertEquals(cached.next().getProvenance(), "1");
+		assertFalse(cached.hasNext());
+	}
+
+	/**
+	 * Annotations that are summed are discarded rather than maintained.
+	 * 
+	 * @throws Exception
+	 */
+	public void discardsSummedAnnotations() throws Exception {
+		SemiringAnnotationCache cache = new SemiringAnnotationCache(4, 100);
+		readAll(cache.put(ProvenanceNode.BAG_SEMIRING, false, QUERIES, rules(1), results("1", "2"), 0));
+		cache.applyInsertions(new SemiringAnnotationCache.DeltaEvaluator() {
+			public ResultIterator<Tuple> evaluate(List<Rule> rules, String semiringName, boolean provenanceQuery) {
+				throw new AssertionError("Not maintained");
+			}
+		});
+		assertNull(cache.get(ProvenanceNode.BAG_SEMIRING, false, QUERIES, 0));
+	}
+
+	/**
+	 * Each non-empty subset of the body atoms reads the delta relations.
+	 * 
+	 * @throws Exception
+	 */
+	public void insertionRules() throws Exception {
+		List<Rule> deltas = SemiringAnnotationCache.insertionRules(rules(2));
+		assertEquals(deltas.size(), 3);
+		for (Rule delta : deltas) {
+			int ins = 0;
+			for (Atom a : delta.getBody()) {
+				if (a.getType() == AtomType.INS) {
+					++ins;
+				}
+			}
+			assertTrue(ins > 0);
+		}
+		assertNull(SemiringAnnotationCache.insertionRules(rules(SemiringAnnotationCache.MAX_DELTA_ATOMS + 1)));
+	}
+
+	private static void readAll(ResultIterator<Tuple> it) throws Exception {
+		while (it.hasNext()) {
+			it.next();
+		}
+		it.close();
+	}
+
+	/**
+	 * @param values pairs of the value of a tuple and its annotation
+	 */
+	private ResultIterator<Tuple> results(String... values) throws Exception {
+		Relation rel = head().getRelation();
+		List<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < values.length; i += 2) {
+			Tuple t = new Tuple(rel);
+			t.set("F0", values[i]);
+			t.setProvenance(values[i + 1]);
+			tuples.add(t);
+		}
+		return new ListIteratorResultIterator<Tuple>(tuples.listIterator());
+	}
+
+	/**
+	 * H(x) :- B0(x,y), B1(y,z), ...
+	 */
+	private List<Rule> rules(int bodyAtoms) throws Exception {
+		List<Atom> body = new ArrayList<Atom>();
+		for (int i = 0; i < bodyAtoms; ++i) {
+			body.add(atom(relation("B" + i, 2), "v" + i, "v" + (i + 1)));
+		}
+		return Collections.singletonList(new Rule(atom(head(), "v0"), body, null,
+				new HashMap<String, Schema>()));
+	}
+
+	private RelationContext head() throws Exception {
+		if (head == null) {
+			head = relation("H", 1);
+		}
+		return head;
+	}
+
+	private RelationContext relation(String name, int arity) throws Exception {
+		List<RelationField> fields = new ArrayList<RelationField>();
+		for (int i = 0; i < arity; ++i) {
+			fields.add(new RelationField("F" + i, "", new StringType(false, false, true, 10)));
+		}
+		Relation rel = new Relation(null, schema.getSchemaId(), name, name, "", true, true, fields, name + "_PK",
+				Collections.singletonList("F0"));
+		return new RelationContext(rel, schema, peer, false);
+	}
+
+	private static Atom atom(RelationContext rel, String... vars) {
+		List<AtomArgument> values = new ArrayList<AtomArgument>();
+		for (String v : vars) {
+			values.add(new AtomVariable(v));
+		}
+		return new Atom(rel, values);
+	}
+}
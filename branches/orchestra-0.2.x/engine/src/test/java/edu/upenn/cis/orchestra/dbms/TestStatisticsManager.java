@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * Testing when {@code StatisticsManager} asks for statistics to be
+ * refreshed.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestStatisticsManager {
+
+	private static final List<String> R = Collections.singletonList("S.R_INS");
+
+	public void refreshesNewTables() {
+		StatisticsManager stats = new StatisticsManager(0.1f, 10);
+		assertEquals(stats.tablesToRefresh(R), R);
+		stats.refreshed("S.R_INS");
+		assertTrue(stats.tablesToRefresh(R).isEmpty());
+		assertEquals(stats.getSkippedCount(), 1);
+	}
+
+	public void refreshesAfterEnoughChanges() {
+		StatisticsManager stats = new StatisticsManager(0.1f, 10);
+		stats.recordChange("S.R_INS", 1000);
+		stats.refreshed("s.r_ins");
+		stats.recordChange("S.R_INS", 50);
+		assertTrue(stats.tablesToRefresh(R).isEmpty());
+		stats.recordChange("S.R_INS", 50);
+		assertEquals(stats.tablesToRefresh(R), R);
+	}
+
+	public void keepsChangesDuringRefresh() {
+		StatisticsManager stats = new StatisticsManager(0.1f, 10);
+		stats.recordChange("S.R_INS", 1000);
+		long changes = stats.startRefresh("S.R_INS");
+		stats.recordChange("S.R_INS", 200);
+		stats.refreshed("S.R_INS", changes);
+		assertEquals(stats.tablesToRefresh(R), R);
+	}
+
+	public void refreshesAfterPlanRegression() {
+		StatisticsManager stats = new StatisticsManager(0.1f, 10);
+		stats.refreshed("S.R_INS");
+		stats.recordExecution("q", R, 10, 100);
+		stats.recordExecution("q", R, 1000, 100);
+		assertEquals(stats.tablesToRefresh(Arrays.asList("S.R_INS", "S.T")),
+				Arrays.asList("S.R_INS", "S.T"));
+		stats.refreshed("S.R_INS");
+		assertTrue(stats.tablesToRefresh(R).isEmpty());
+	}
+
+	public void resetRefreshesEverything() {
+		StatisticsManager stats = new StatisticsManager(0.1f, 10);
+		stats.refreshed("S.R_INS");
+		stats.reset();
+		assertEquals(stats.tablesToRefresh(R), R);
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms.sql.generation;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+
+/**
+ * Testing the choice of index columns of {@code IndexAdvisor}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestIndexAdvisor {
+
+	public void indexesConstantsThenJoinColumns() {
+		// R(x,y,'a',z) where y and z are shared with other atoms
+		List<AtomArgument> args = Arrays.<AtomArgument> asList(new AtomVariable("x"),
+				new AtomVariable("y"), new AtomConst("a"), new AtomVariable("z"));
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		occurrences.put("x", 1);
+		occurrences.put("y", 2);
+		occurrences.put("z", 3);
+		assertEquals(IndexAdvisor.columnsToIndex(args, occurrences), Arrays.asList(2, 1, 3));
+	}
+
+	public void indexesRepeatedVariableOnce() {
+		List<AtomArgument> args = Arrays.<AtomArgument> asList(new AtomVariable("x"),
+				new AtomVariable("x"));
+		Map<String, Integer> occurrences = new HashMap<String, Integer>();
+		occurrences.put("x", 2);
+		assertEquals(IndexAdvisor.columnsToIndex(args, occurrences), Arrays.asList(0));
+	}
+
+	public void skipsLookupsServedByKey() {
+		List<String> key = Arrays.asList("ID", "NAME");
+		assertTrue(IndexAdvisor.isCoveredBy(Arrays.asList("id"), key));
+		assertTrue(IndexAdvisor.isCoveredBy(Arrays.asList("NAME", "ID"), key));
+		assertFalse(IndexAdvisor.isCoveredBy(Arrays.asList("NAME"), key));
+		assertFalse(IndexAdvisor.isCoveredBy(Arrays.asList("ID", "NAME", "X"), key));
+	}
+
+	public void readsTablesFromFromItems() {
+		Set<String> tables = IndexAdvisor.readTables("INSERT INTO S.R_INS (A) SELECT R0.A FROM S.R_L_INS R0, "
+				+ "\"S\".\"T\" AS R1 JOIN U ON R1.A = U.A WHERE NOT EXISTS "
+				+ "(SELECT 1 FROM S.R_L R2 WHERE R2.A = 'FROM S.X')");
+		Set<String> expected = new HashSet<String>(Arrays.asList("S.R_L_INS", "S.T", "U", "S.R_L"));
+		assertEquals(tables, expected);
+
+		tables = IndexAdvisor.readTables("DELETE FROM A WHERE EXISTS (SELECT * FROM (SELECT X FROM C) T, D)");
+		expected = new HashSet<String>(Arrays.asList("A", "C", "D"));
+		assertEquals(tables, expected);
+	}
+
+	public void matchesWholeTableNames() {
+		Set<String> tables = IndexAdvisor.readTables("SELECT * FROM S.R_L_INS, V");
+		assertTrue(IndexAdvisor.readsTable(tables, "s.r_l_ins"));
+		assertFalse(IndexAdvisor.readsTable(tables, "S.R_L"));
+		assertFalse(IndexAdvisor.readsTable(tables, "S.R_INS"));
+		assertTrue(IndexAdvisor.readsTable(tables, "S.V"));
+	}
+}
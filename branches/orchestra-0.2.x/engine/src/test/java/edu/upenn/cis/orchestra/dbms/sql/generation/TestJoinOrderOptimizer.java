@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.dbms.sql.generation;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.dbms.sql.vendors.DB2SqlStatementGen;
+import edu.upenn.cis.orchestra.dbms.sql.vendors.OracleSqlStatementGen;
+
+/**
+ * Testing the greedy join ordering of {@code JoinOrderOptimizer}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestJoinOrderOptimizer {
+
+	private static Map<String, Double> vars(Object... varsAndDistinct) {
+		Map<String, Double> vars = new HashMap<String, Double>();
+		for (int i = 0; i < varsAndDistinct.length; i += 2) {
+			vars.put((String) varsAndDistinct[i],
+					((Number) varsAndDistinct[i + 1]).doubleValue());
+		}
+		return vars;
+	}
+
+	private static void assertOrder(int[] actual, int... expected) {
+		assertEquals(actual.length, expected.length);
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(actual[i], expected[i], "Position " + i);
+		}
+	}
+
+	public void startsWithSmallestInput() {
+		List<Map<String, Double>> distinct = new ArrayList<Map<String, Double>>();
+		distinct.add(vars("x", 10000));
+		distinct.add(vars("x", 10));
+		int[] order = JoinOrderOptimizer.order(new double[] { 10000, 10 },
+				distinct);
+		assertOrder(order, 1, 0);
+	}
+
+	public void avoidsCrossProducts() {
+		// R(x,y), S(z), T(y,z): S and R are smallest but not connected
+		List<Map<String, Double>> distinct = new ArrayList<Map<String, Double>>();
+		distinct.add(vars("x", 100, "y", 100));
+		distinct.add(vars("z", 50));
+		distinct.add(vars("y", 1000, "z", 1000));
+		int[] order = JoinOrderOptimizer.order(new double[] { 100, 50, 1000 },
+				distinct);
+		assertOrder(order, 1, 2, 0);
+	}
+
+	public void prefersSelectiveJoins() {
+		// Joining on a key of S keeps the result small, joining T does not
+		List<Map<String, Double>> distinct = new ArrayList<Map<String, Double>>();
+		distinct.add(vars("x", 10, "y", 10));
+		distinct.add(vars("x", 2, "z", 1000));
+		distinct.add(vars("y", 1000));
+		int[] order = JoinOrderOptimizer.order(
+				new double[] { 10, 1000, 1000 }, distinct);
+		assertOrder(order, 0, 2, 1);
+	}
+
+	public void keepsOrderOnTies() {
+		List<Map<String, Double>> distinct = new ArrayList<Map<String, Double>>();
+		distinct.add(vars("x", 100));
+		distinct.add(vars("x", 100));
+		distinct.add(vars("x", 100));
+		int[] order = JoinOrderOptimizer.order(new double[] { 100, 100, 100 },
+				distinct);
+		assertOrder(order, 0, 1, 2);
+	}
+
+	public void replansOnlyOnLargeChanges() {
+		assertFalse(TableStatistics.changesPlans(-1, 10));
+		assertFalse(TableStatistics.changesPlans(10, 500));
+		assertTrue(TableStatistics.changesPlans(-1, 5000));
+		assertTrue(TableStatistics.changesPlans(0, 5000));
+		assertFalse(TableStatistics.changesPlans(5000, 8000));
+		assertTrue(TableStatistics.changesPlans(5000, 20000));
+		assertTrue(TableStatistics.changesPlans(20000, 5000));
+	}
+
+	public void keepsStatisticsPerDatabase() {
+		TableStatistics first = new TableStatistics();
+		TableStatistics second = new TableStatistics();
+		first.setCardinality("S.R", 5000);
+		first.setDistinctCount("S.R", "A", 10);
+		assertEquals(first.getCardinality("s.r"), 5000);
+		assertEquals(first.getDistinctCount("S.R", "a"), 10);
+		assertEquals(second.getCardinality("S.R"), -1);
+		assertEquals(second.getDistinctCount("S.R", "A"), -1);
+		assertTrue(first.getPlanGeneration() > second.getPlanGeneration());
+	}
+
+	public void hintsOracleToJoinInFromOrder() {
+		String hinted = new OracleSqlStatementGen().hintJoinOrder(
+				"INSERT INTO S.T (A) SELECT R1.A FROM S.U R1, S.V R0 WHERE R1.A = R0.A",
+				Arrays.asList("R1", "R0"));
+		assertEquals(hinted,
+				"INSERT INTO S.T (A) SELECT /*+ ORDERED */ R1.A FROM S.U R1, S.V R0 WHERE R1.A = R0.A");
+	}
+
+	public void givesDb2JoinOrderGuideline() {
+		boolean union = Config.getUnion();
+		Config.setUnion(false);
+		try {
+			String hinted = new DB2SqlStatementGen().hintJoinOrder(
+					"SELECT R2.A FROM S.U R2, S.V R0, S.W R1",
+					Arrays.asList("R2", "R0", "R1"));
+			assertEquals(hinted, "SELECT R2.A FROM S.U R2, S.V R0, S.W R1 /* <OPTGUIDELINES>"
+					+ "<JOIN><JOIN><ACCESS TABLE='R2'/><ACCESS TABLE='R0'/></JOIN>"
+					+ "<ACCESS TABLE='R1'/></JOIN></OPTGUIDELINES> */");
+		} finally {
+			Config.setUnion(union);
+		}
+	}
+}
@@ -17,10 +17,17 @@ package edu.upenn.cis.orchestra.deltaRules;
 
 import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
 import static edu.upenn.cis.orchestra.util.DomUtils.createDocument;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.custommonkey.xmlunit.Diff;
 import org.testng.annotations.BeforeClass;
@@ -31,7 +38,12 @@ import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.IgnoreWhitespaceTextNodesDiff;
 import edu.upenn.cis.orchestra.OrchestraDifferenceListener;
 import edu.upenn.cis.orchestra.TestUtil;
+import edu.upenn.cis.orchestra.datalog.Datalog;
+import edu.upenn.cis.orchestra.datalog.DatalogProgram;
+import edu.upenn.cis.orchestra.datalog.DatalogSequence;
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
+import edu.upenn.cis.orchestra.mappings.Rule;
 import edu.upenn.cis.orchestra.reconciliation.StubSchemaIDBindingClient;
 import edu.upenn.cis.orchestra.util.XMLParseException;
 
@@ -100,6 +112,34 @@ public class DeltaRuleGenTest {
 		assertTrue(diff.similar(), diff.toString());
 	}
 
+	/**
+	 * Test that deletion rules counting derivations replace the reachability
+	 * test of the (non-recursive) mappings.
+	 * 
+	 * @throws XMLParseException
+	 */
+	public void countingDeletionRulesTest() throws XMLParseException {
+		IDeltaRuleGen delRuleGen = new DeletionDeltaRuleGen(
+				translationRulesDoc, builtInSchemas, system, true);
+		List<String> programs = new ArrayList<String>();
+		for (DatalogSequence seq : delRuleGen.getDeltaRules().getCode()) {
+			addDescriptions(seq, programs);
+		}
+		assertTrue(programs.contains("RemainingDerivations"), programs.toString());
+		assertFalse(programs.contains("Derivability"), programs.toString());
+		assertFalse(programs.contains("ReachabilityTest"), programs.toString());
+	}
+
+	private static void addDescriptions(DatalogSequence seq, List<String> programs) {
+		for (Datalog d : seq.getSequence()) {
+			if (d instanceof DatalogSequence) {
+				addDescriptions((DatalogSequence) d, programs);
+			} else if (d instanceof DatalogProgram) {
+				programs.add(((DatalogProgram) d).getDescription());
+			}
+		}
+	}
+
 	/**
 	 * Test insertion rule generation.
 	 * 
@@ -122,4 +162,93 @@ public class DeltaRuleGenTest {
 		diff.overrideDifferenceListener(new OrchestraDifferenceListener());
 		assertTrue(diff.similar(), diff.toString());
 	}
+
+	/**
+	 * Test that regenerating the insertion rules from unchanged translation
+	 * rules reuses every program of the previous rules.
+	 * 
+	 * @throws XMLParseException
+	 */
+	public void reuseUnchangedRulesTest() throws XMLParseException {
+		IDeltaRules previous = new InsertionDeltaRuleGen(
+				translationRulesDoc, builtInSchemas, system).getDeltaRules();
+		IDeltaRules rules = new InsertionDeltaRuleGen(
+				translationRulesDoc, builtInSchemas, system).getDeltaRules();
+		List<String> programs = new ArrayList<String>();
+		for (DatalogSequence seq : rules.getCode()) {
+			addDescriptions(seq, programs);
+		}
+		assertEquals(DeltaRules.reuseUnchanged(rules, previous), programs.size());
+		assertTrue(rules.getCode().get(0).get(0) == previous.getCode().get(0).get(0));
+	}
+
+	/**
+	 * Test that a program is only compiled again if it reads or writes an
+	 * affected relation and its rules changed, by dropping a rule of a newly
+	 * generated program.
+	 * 
+	 * @throws XMLParseException
+	 */
+	public void reuseUnaffectedRulesTest() throws XMLParseException {
+		List<DatalogProgram> programs = new ArrayList<DatalogProgram>();
+		IDeltaRules rules = changedInsertionRules(programs);
+		DatalogProgram changed = programs.get(0);
+		Set<String> all = new HashSet<String>();
+		for (DatalogProgram dp : programs) {
+			for (Rule r : dp.getRules()) {
+				all.add(r.getHead().getRelationContext().toString());
+				for (Atom a : r.getBody()) {
+					all.add(a.getRelationContext().toString());
+				}
+			}
+		}
+		IDeltaRules previous = new InsertionDeltaRuleGen(
+				translationRulesDoc, builtInSchemas, system).getDeltaRules();
+		assertEquals(DeltaRules.reuseUnaffected(rules, previous, all), programs.size() - 1);
+		programs.clear();
+		addPrograms(rules.getCode(), programs);
+		assertTrue(programs.contains(changed));
+
+		// Without affected relations, every program is kept
+		programs.clear();
+		rules = changedInsertionRules(programs);
+		changed = programs.get(0);
+		previous = new InsertionDeltaRuleGen(
+				translationRulesDoc, builtInSchemas, system).getDeltaRules();
+		assertEquals(DeltaRules.reuseUnaffected(rules, previous, Collections.<String> emptySet()),
+				programs.size());
+		programs.clear();
+		addPrograms(rules.getCode(), programs);
+		assertFalse(programs.contains(changed));
+	}
+
+	/**
+	 * @param programs filled with the programs of the rules, the first being
+	 *            one which lost its last rule
+	 */
+	private IDeltaRules changedInsertionRules(List<DatalogProgram> programs) throws XMLParseException {
+		IDeltaRules rules = new InsertionDeltaRuleGen(
+				translationRulesDoc, builtInSchemas, system).getDeltaRules();
+		addPrograms(rules.getCode(), programs);
+		for (int i = 0; i < programs.size(); i++) {
+			DatalogProgram dp = programs.get(i);
+			if (dp.getRules().size() > 1) {
+				dp.getRules().remove(dp.getRules().size() - 1);
+				programs.remove(i);
+				programs.add(0, dp);
+				return rules;
+			}
+		}
+		throw new AssertionError("No program with several rules");
+	}
+
+	private static void addPrograms(List<? extends Datalog> code, List<DatalogProgram> programs) {
+		for (Datalog d : code) {
+			if (d instanceof DatalogSequence) {
+				addPrograms(((DatalogSequence) d).getSequence(), programs);
+			} else if (d instanceof DatalogProgram) {
+				programs.add((DatalogProgram) d);
+			}
+		}
+	}
 }
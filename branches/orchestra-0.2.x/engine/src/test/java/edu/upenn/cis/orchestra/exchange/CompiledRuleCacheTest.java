@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.exchange;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static edu.upenn.cis.orchestra.util.DomUtils.createDocument;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.custommonkey.xmlunit.Diff;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import edu.upenn.cis.orchestra.Config;
+import edu.upenn.cis.orchestra.IgnoreWhitespaceTextNodesDiff;
+import edu.upenn.cis.orchestra.OrchestraDifferenceListener;
+import edu.upenn.cis.orchestra.TestUtil;
+import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
+import edu.upenn.cis.orchestra.datamodel.RelationContext;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.reconciliation.StubSchemaIDBindingClient;
+
+/**
+ * Testing {@code CompiledRuleCache}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class CompiledRuleCacheTest {
+	private File cacheDir;
+	private String oldCacheDir;
+
+	/**
+	 * Points the cache at an empty directory.
+	 * 
+	 * @throws Exception
+	 */
+	@BeforeClass
+	public void setup() throws Exception {
+		cacheDir = File.createTempFile("compiledRules", "");
+		cacheDir.delete();
+		oldCacheDir = Config.getCompiledRuleCacheDir();
+		Config.setCompiledRuleCacheDir(cacheDir.getPath());
+	}
+
+	/**
+	 * Restores the configuration and removes the cache.
+	 */
+	@AfterClass
+	public void cleanup() {
+		Config.setCompiledRuleCacheDir(oldCacheDir == null ? "" : oldCacheDir);
+		delete(cacheDir);
+	}
+
+	/**
+	 * An engine whose rules are loaded from the cache should have the same
+	 * mapping relations, including their labeled null columns, and the same
+	 * delta rules as one which computed them.
+	 * 
+	 * @throws Exception
+	 */
+	public void roundTripMatchesColdStart() throws Exception {
+		OrchestraSystem cold = createSystem();
+		File[] entries = cacheDir.listFiles();
+		assertNotNull(entries);
+		assertEquals(entries.length, 1);
+		// Storing the entry again would replace the directory with this file
+		File marker = new File(entries[0], "marker");
+		assertTrue(marker.createNewFile());
+
+		OrchestraSystem cached = createSystem();
+		assertTrue(marker.exists(), "Rules were not loaded from the cache");
+
+		BasicEngine coldEngine = cold.getMappingEngine();
+		BasicEngine cachedEngine = cached.getMappingEngine();
+		assertEquals(describe(cachedEngine.getMappingRelations()),
+				describe(coldEngine.getMappingRelations()));
+		assertEquals(cachedEngine.getState().getRealMappingRelations().size(),
+				coldEngine.getState().getRealMappingRelations().size());
+		assertRulesSimilar(coldEngine.serializeIncrementalInsertionProgram(),
+				cachedEngine.serializeIncrementalInsertionProgram());
+		assertRulesSimilar(coldEngine.serializeIncrementalDeletionProgram(),
+				cachedEngine.serializeIncrementalDeletionProgram());
+	}
+
+	private static OrchestraSystem createSystem() throws Exception {
+		InputStream in = Config.class
+				.getResourceAsStream("ppodLN/ppodLNHash.schema");
+		Document schema = TestUtil.setLocalPeer(createDocument(in), "pPODPeer2");
+		in.close();
+		return new OrchestraSystem(schema,
+				new StubSchemaIDBindingClient.StubFactory(schema));
+	}
+
+	/**
+	 * Returns the names of the relations and of their columns, so that
+	 * missing labeled null columns show up.
+	 */
+	private static List<String> describe(List<RelationContext> relations) {
+		assertNotNull(relations);
+		List<String> result = new ArrayList<String>();
+		for (RelationContext rc : relations) {
+			StringBuffer buf = new StringBuffer(rc.toString());
+			for (RelationField f : rc.getRelation().getFields()) {
+				buf.append(' ').append(f.getName());
+			}
+			result.add(buf.toString());
+		}
+		return result;
+	}
+
+	private static void assertRulesSimilar(Document expected, Document actual) {
+		Diff diff = new IgnoreWhitespaceTextNodesDiff(expected, actual);
+		diff.overrideDifferenceListener(new OrchestraDifferenceListener());
+		assertTrue(diff.similar(), diff.toString());
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
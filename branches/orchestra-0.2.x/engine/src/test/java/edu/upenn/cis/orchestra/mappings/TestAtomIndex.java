@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.mappings;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.datalog.atom.Atom;
+import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
+import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
+import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.Mapping;
+import edu.upenn.cis.orchestra.datamodel.Peer;
+import edu.upenn.cis.orchestra.datamodel.Relation;
+import edu.upenn.cis.orchestra.datamodel.RelationContext;
+import edu.upenn.cis.orchestra.datamodel.RelationField;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.StringType;
+import edu.upenn.cis.orchestra.mappings.exceptions.CompositionException;
+
+/**
+ * Test {@code AtomIndex} and the minimization and composition which use it.
+ *
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestAtomIndex {
+	private final Schema schema = new Schema("AITEST");
+	private final Peer peer = new Peer("AIPEER", "", "Atom index test peer");
+	private final Map<String, Schema> builtIns = new HashMap<String, Schema>();
+
+	/**
+	 * Only atoms of the same relation, without a different constant, are
+	 * candidates, in the order they were added.
+	 *
+	 * @throws Exception
+	 */
+	public void indexSkipsOtherConstants() throws Exception {
+		RelationContext r = relation("R", 2, true);
+		RelationContext s = relation("S", 2, true);
+		Atom ra = atom(r, "'a", "x");
+		Atom rb = atom(r, "'b", "x");
+		Atom ry = atom(r, "y", "x");
+		Atom rac = atom(r, "'a", "'c");
+		Atom sa = atom(s, "'a", "x");
+		AtomIndex<Atom> index = AtomIndex.of(Arrays.asList(ra, rb, ry, rac, sa));
+
+		assertEquals(index.size(), 5);
+		assertEquals(index.get(atom(r, "'a", "z")), Arrays.asList(ra, ry, rac));
+		assertEquals(index.get(atom(r, "'a", "'d")), Arrays.asList(ra, ry));
+		assertEquals(index.get(atom(r, "w", "z")), Arrays.asList(ra, rb, ry, rac));
+		assertEquals(index.get(atom(s, "'b", "z")), Collections.emptyList());
+		assertEquals(index.get(atom(relation("T", 2, true), "w", "z")), Collections.emptyList());
+	}
+
+	/**
+	 * Minimization drops repeated body atoms.
+	 *
+	 * @throws Exception
+	 */
+	public void minimizeDropsRepeatedAtoms() throws Exception {
+		RelationContext h = relation("H", 1, true);
+		RelationContext r = relation("R", 2, true);
+		RelationContext s = relation("S", 2, true);
+		Rule rule = new Rule(atom(h, "x"), Arrays.asList(atom(r, "x", "y"), atom(s, "y", "'c")), null, builtIns);
+		List<Atom> body = new ArrayList<Atom>(rule.getBody());
+		body.add(body.get(0).deepCopy());
+		body.add(atom(r, "x", "'c"));
+		Rule dup = new Rule(rule.getHead(), body, null, builtIns);
+		assertEquals(AtomIndex.of(dup.getBody()).get(body.get(0)).size(), 3);
+
+		dup.minimize();
+		assertEquals(dup.getBody().size(), 3);
+		body.remove(body.size() - 1);
+		Rule same = new Rule(rule.getHead(), body, null, builtIns);
+		same.minimize();
+		assertEquals(same.getBody().size(), 2);
+		assertTrue(same.equivalent(rule));
+	}
+
+	/**
+	 * Composes a mapping with two head atoms with definitions which have
+	 * constants in their heads, and compares the result with composing every
+	 * head atom's rule with every definition, as was done before the
+	 * definitions were indexed.
+	 *
+	 * @throws Exception
+	 */
+	public void compositionMatchesUnindexed() throws Exception {
+		List<Mapping> mappings = compositionMappings();
+		// The definition of V('b',y) is never tried for V('a',x)
+		List<Rule> defs = MappingsInversionMgt.splitMappingsHeads(mappings.subList(1, 4), builtIns);
+		assertEquals(AtomIndex.byHead(defs).get(mappings.get(0).getBody().get(0)),
+				Arrays.asList(defs.get(0), defs.get(2)));
+
+		MappingsCompositionMgt.composeMappings(mappings, builtIns);
+		List<String> composed = new ArrayList<String>();
+		for (Mapping m : mappings) {
+			composed.add(canonical(m));
+		}
+
+		List<Mapping> unindexed = composeUnindexed(compositionMappings());
+		List<String> expected = new ArrayList<String>();
+		for (Mapping m : unindexed) {
+			expected.add(canonical(m));
+		}
+		// Every head atom's rule used to compose the whole mapping again
+		assertEquals(unindexed.size(), 2 * composed.size());
+		assertEquals(composed, new ArrayList<String>(new LinkedHashSet<String>(expected)));
+		assertEquals(composed.size(), 2, composed.toString());
+	}
+
+	/**
+	 * @return {@code H1(x), H2(x,w) :- V('a',x), W(x,w)} and the definitions
+	 *         {@code V('a',y) :- A(y)}, {@code V('b',y) :- B(y)} and
+	 *         {@code V(z,y) :- C(z,y)} of the virtual relation {@code V}
+	 */
+	private List<Mapping> compositionMappings() throws Exception {
+		RelationContext v = relation("V", 2, false);
+		List<Mapping> mappings = new ArrayList<Mapping>();
+		mappings.add(new Mapping(Arrays.asList(atom(relation("H1", 1, true), "x"), atom(relation("H2", 2, true),
+				"x", "w")), Arrays.asList(atom(v, "'a", "x"), atom(relation("W", 2, true), "x", "w"))));
+		mappings.add(new Mapping(atom(v, "'a", "y"), atom(relation("A", 1, true), "y")));
+		mappings.add(new Mapping(atom(v, "'b", "y"), atom(relation("B", 1, true), "y")));
+		mappings.add(new Mapping(atom(v, "z", "y"), atom(relation("C", 2, true), "z", "y")));
+		return mappings;
+	}
+
+	/**
+	 * Composes the rules of the mappings with every definition of their
+	 * single virtual relation, once per rule.
+	 */
+	private List<Mapping> composeUnindexed(List<Mapping> mappings) {
+		List<Rule> rules = MappingsInversionMgt.splitMappingsHeads(mappings, builtIns);
+		List<Rule> defs = new ArrayList<Rule>();
+		List<Rule> tgds = new ArrayList<Rule>();
+		for (Rule rule : rules) {
+			if (rule.getHead().getRelation().isMaterialized()) {
+				tgds.add(rule);
+			} else {
+				defs.add(rule);
+			}
+		}
+		List<Mapping> res = new ArrayList<Mapping>();
+		for (Rule rule : tgds) {
+			composeUnindexed(rule.getParentMapping(), 0, defs, res);
+		}
+		for (Mapping m : res) {
+			m.eliminateEqualities();
+		}
+		return res;
+	}
+
+	private static void composeUnindexed(Mapping m, int indAtom, List<Rule> defs, List<Mapping> res) {
+		if (indAtom == m.getBody().size()) {
+			res.add(m);
+		} else if (m.getBody().get(indAtom).getRelation().isMaterialized()) {
+			composeUnindexed(m, indAtom + 1, defs, res);
+		} else {
+			for (Rule def : defs) {
+				try {
+					composeUnindexed(m.composeWith(indAtom, def), indAtom + 1, defs, res);
+				} catch (CompositionException ex) {
+					// Incompatible constants, as with the original composition
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the atoms of a mapping, with its variables numbered by first
+	 *         appearance
+	 */
+	private static String canonical(Mapping m) {
+		Map<String, String> vars = new HashMap<String, String>();
+		StringBuffer buff = new StringBuffer();
+		appendAtoms(buff, m.getMappingHead(), vars);
+		buff.append(" :- ");
+		appendAtoms(buff, m.getBody(), vars);
+		return buff.toString();
+	}
+
+	private static void appendAtoms(StringBuffer buff, List<Atom> atoms, Map<String, String> vars) {
+		for (Atom a : atoms) {
+			buff.append(a.getRelation().getName()).append('(');
+			for (AtomArgument arg : a.getValues()) {
+				if (arg instanceof AtomVariable) {
+					String v = vars.get(arg.toString());
+					if (v == null) {
+						v = "$" + vars.size();
+						vars.put(arg.toString(), v);
+					}
+					buff.append(v);
+				} else {
+					buff.append(arg.toString());
+				}
+				buff.append(',');
+			}
+			buff.append(')');
+		}
+	}
+
+	private RelationContext relation(String name, int arity, boolean materialized) throws Exception {
+		List<RelationField> fields = new ArrayList<RelationField>();
+		for (int i = 0; i < arity; ++i) {
+			fields.add(new RelationField("F" + i, "", new StringType(false, false, true, 10)));
+		}
+		Relation rel = new Relation(null, schema.getSchemaId(), name, name, "", materialized, true, fields,
+				name + "_PK", Collections.singletonList("F0"));
+		return new RelationContext(rel, schema, peer, false);
+	}
+
+	/**
+	 * @param args variable names, or constants starting with a quote
+	 */
+	private static Atom atom(RelationContext rel, String... args) {
+		List<AtomArgument> values = new ArrayList<AtomArgument>();
+		for (String a : args) {
+			values.add(a.startsWith("'") ? new AtomConst(a.substring(1)) : new AtomVariable(a));
+		}
+		return new Atom(rel, values);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.metrics;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@code MetricsRegistry} and its metrics.
+ * 
+ */
+@Test(groups = FAST_TESTNG_GROUP)
+public class TestMetricsRegistry {
+	@Test
+	public void testTimerPercentiles() {
+		Timer t = new Timer();
+		Assert.assertEquals(t.getPercentileNanos(50), 0L);
+		// 90 fast operations and 10 slow ones
+		for (int i = 0; i < 90; ++i) {
+			t.update(1500000L);
+		}
+		for (int i = 0; i < 10; ++i) {
+			t.update(100000000L);
+		}
+		Assert.assertEquals(t.getCount(), 100L);
+		Assert.assertEquals(t.getMaxNanos(), 100000000L);
+		Assert.assertEquals(t.getTotalNanos(), 90 * 1500000L + 10 * 100000000L);
+		long p50 = t.getPercentileNanos(50);
+		Assert.assertTrue(p50 >= 1500000L && p50 < 2 * 1500000L, "p50 is " + p50);
+		long p90 = t.getPercentileNanos(90);
+		Assert.assertTrue(p90 >= 1500000L && p90 < 2 * 1500000L, "p90 is " + p90);
+		Assert.assertEquals(t.getPercentileNanos(99), 100000000L);
+	}
+
+	@Test
+	public void testBuckets() {
+		Assert.assertEquals(Timer.getBucket(0), 0);
+		Assert.assertEquals(Timer.getBucket(999), 0);
+		Assert.assertEquals(Timer.getBucket(1000), 1);
+		Assert.assertEquals(Timer.getBucket(3999), 2);
+		Assert.assertEquals(Timer.getBucket(4000), 3);
+		Assert.assertEquals(Timer.getBucket(Long.MAX_VALUE), Timer.NUM_BUCKETS - 1);
+	}
+
+	@Test
+	public void testRegistry() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter c = registry.counter("test.counter");
+		Assert.assertSame(registry.counter("test.counter"), c);
+		c.inc();
+		c.add(2);
+		Assert.assertEquals(c.getCount(), 3L);
+		registry.timer("test.timer").update(2000000L);
+		registry.register("test.gauge", new Gauge() {
+			public long getValue() {
+				return 42;
+			}
+		});
+		try {
+			registry.timer("test.counter");
+			Assert.fail("Got a timer for the name of a counter");
+		} catch (IllegalArgumentException expected) {
+		}
+
+		String snapshot = registry.snapshot();
+		Assert.assertTrue(snapshot.contains("test.counter count=3\n"), snapshot);
+		Assert.assertTrue(snapshot.contains("test.gauge value=42\n"), snapshot);
+		Assert.assertTrue(snapshot.contains("test.timer count=1 "), snapshot);
+	}
+
+	@Test
+	public void testJmx() throws Exception {
+		MBeanServer server = MBeanServerFactory.newMBeanServer();
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("test.before").add(5);
+		registry.enableJmx(server);
+		registry.timer("test.after").update(1000000L);
+
+		Assert.assertEquals(server.getAttribute(MetricsRegistry.getObjectName("test.before"), "count"), 5L);
+		Assert.assertEquals(server.getAttribute(MetricsRegistry.getObjectName("test.after"), "count"), 1L);
+		Assert.assertEquals(server.getAttribute(MetricsRegistry.getObjectName("test.after"), "maxMillis"), 1.0);
+
+		registry.remove("test.before");
+		Assert.assertFalse(server.isRegistered(MetricsRegistry.getObjectName("test.before")));
+	}
+}
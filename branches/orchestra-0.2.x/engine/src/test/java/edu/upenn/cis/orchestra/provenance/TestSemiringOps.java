@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.provenance;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import org.testng.annotations.Test;
+
+/**
+ * Testing the semiring operations of {@code ProvenanceNode}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestSemiringOps {
+
+	public void plusOps() {
+		assertEquals(ProvenanceNode.plusOp(ProvenanceNode.TRUST_SEMIRING), "MAX");
+		assertEquals(ProvenanceNode.plusOp(ProvenanceNode.RANK_SEMIRING), "MIN");
+		assertEquals(ProvenanceNode.plusOp(ProvenanceNode.BAG_SEMIRING), "SUM");
+	}
+
+	public void integerAnnotations() {
+		assertEquals(ProvenanceNode.plus("MAX", "3", " 7"), "7");
+		assertEquals(ProvenanceNode.plus("MIN", "3", "7"), "3");
+		assertEquals(ProvenanceNode.plus("SUM", "3", "7"), "10");
+	}
+
+	public void realAnnotations() {
+		assertEquals(ProvenanceNode.plus("MAX", "0.5", "1"), "1.0");
+		assertEquals(ProvenanceNode.plus("SUM", "0.25", "0.5"), "0.75");
+	}
+
+	public void nullAnnotations() {
+		assertNull(ProvenanceNode.plus("SUM", null, "1"));
+	}
+}
@@ -20,6 +20,8 @@ import static edu.upenn.cis.orchestra.OrchestraUtil.newArrayList;
 import static edu.upenn.cis.orchestra.OrchestraUtil.newHashMap;
 import static edu.upenn.cis.orchestra.util.DomUtils.getChildElementsByName;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -88,6 +90,30 @@ public class StubSchemaIDBindingClient implements ISchemaIDBindingClient {
 			throw new UnsupportedOperationException();//return null;
 		}
 
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see edu.upenn.cis.orchestra.reconciliation.UpdateStore.Factory#dumpUpdateStore(edu.upenn.cis.orchestra.reconciliation.ISchemaIDBinding,
+		 *      edu.upenn.cis.orchestra.datamodel.Schema, java.io.OutputStream)
+		 */
+		@Override
+		public void dumpUpdateStore(ISchemaIDBinding binding, Schema schema,
+				OutputStream out) throws USException {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * 
+		 * @see edu.upenn.cis.orchestra.reconciliation.UpdateStore.Factory#restoreUpdateStore(edu.upenn.cis.orchestra.reconciliation.ISchemaIDBinding,
+		 *      java.io.InputStream)
+		 */
+		@Override
+		public void restoreUpdateStore(ISchemaIDBinding binding, InputStream in)
+				throws USException {
+			throw new UnsupportedOperationException();
+		}
+
 		/**
 		 * {@inheritDoc}
 		 * 
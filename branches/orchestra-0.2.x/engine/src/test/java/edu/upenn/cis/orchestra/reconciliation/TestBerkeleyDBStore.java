@@ -16,21 +16,29 @@
 package edu.upenn.cis.orchestra.reconciliation;
 
 import java.io.File;
+import java.util.List;
 
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 
 import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.ByteBufferWriter;
 import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.Update;
 
 @Test
 public class TestBerkeleyDBStore extends TestStore {
 	private Environment e;
+	private AbstractPeerID pid;
 	@Override
 	StateStore getStore(AbstractPeerID pi, ISchemaIDBinding scm, Schema s) throws Exception {
+		pid = pi;
 		EnvironmentConfig ec = new EnvironmentConfig();
 		ec.setAllowCreate(true);
 		ec.setTransactional(true);
@@ -48,6 +56,87 @@ public class TestBerkeleyDBStore extends TestStore {
 
 	}
 	
+	public void testClearStateBefore() throws Exception {
+		BerkeleyDBStore bdbs = (BerkeleyDBStore) ss;
+		ss.prepareTransaction(insN1t);
+		ss.applyTransaction(r0, insN1t);
+		ss.advanceRecno();
+		int r1 = ss.getCurrentRecno();
+		ss.prepareTransaction(modN1N3t);
+		ss.applyTransaction(r1, modN1N3t);
+		ss.advanceRecno();
+		assertEquals(2, bdbs.getUpdateList(tN1, r0).size());
+
+		ss.clearStateBefore(r1);
+		List<Update> updates = bdbs.getUpdateList(tN1, r0);
+		assertEquals(1, updates.size());
+		assertEquals(tN3, updates.get(0).getNewVal());
+		assertEquals(tN1, ss.getTupleWithKey(r1, tN1));
+	}
+
+	public void testUpdateListSpansWrittenAndPending() throws Exception {
+		BerkeleyDBStore bdbs = (BerkeleyDBStore) ss;
+		ss.prepareTransaction(insN1t);
+		ss.applyTransaction(r0, insN1t);
+		ss.prepareTransaction(insS1t);
+		ss.applyTransaction(r0, insS1t);
+		ss.advanceRecno();
+		int r1 = ss.getCurrentRecno();
+		ss.prepareTransaction(modN1N3t);
+		ss.applyTransaction(r1, modN1N3t);
+
+		// The first list comes from the index, the second is not written yet
+		List<Update> updates = bdbs.getUpdateList(tN1, r0);
+		assertEquals(2, updates.size());
+		assertEquals(tN1, updates.get(0).getNewVal());
+		assertEquals(tN3, updates.get(1).getNewVal());
+		assertEquals(1, bdbs.getUpdateList(tN1, r1).size());
+		assertEquals(1, bdbs.getUpdateList(tS1, r0).size());
+
+		ss.advanceRecno();
+		assertEquals(updates, bdbs.getUpdateList(tN1, r0));
+	}
+
+	public void testBatchedWrites() throws Exception {
+		BerkeleyDBStore bdbs = (BerkeleyDBStore) ss;
+		bdbs.resetCounters();
+		ss.prepareTransaction(insN1t);
+		ss.applyTransaction(r0, insN1t);
+		ss.prepareTransaction(insS1t);
+		ss.applyTransaction(r0, insS1t);
+		assertEquals(0, bdbs.getBatchesWritten());
+		assertTrue(ss.containsTuple(r0, tN1));
+
+		ss.advanceRecno();
+		assertEquals(1, bdbs.getBatchesWritten());
+		// Two state entries and two update list entries
+		assertEquals(4, bdbs.getEntriesWritten());
+		assertTrue(bdbs.getBytesWritten() > 0);
+		assertTrue(ss.containsTuple(ss.getCurrentRecno(), tS1));
+	}
+
+	public void testConvertLegacyUpdates() throws Exception {
+		((BerkeleyDBStore) ss).close();
+		DatabaseConfig dbc = new DatabaseConfig();
+		dbc.setAllowCreate(true);
+		Database legacy = e.openDatabase(null, "updates", dbc);
+		ByteBufferWriter bbw = new ByteBufferWriter();
+		bbw.addToBuffer(tN1.getKeyColumnBytes());
+		bbw.addToBuffer(r0);
+		DatabaseEntry key = new DatabaseEntry(bbw.getByteArray());
+		bbw.clear();
+		bbw.addToBuffer(insN1, Update.SerializationLevel.VALUES_ONLY);
+		bbw.addToBuffer((Update) null, Update.SerializationLevel.VALUES_ONLY);
+		legacy.put(null, key, new DatabaseEntry(bbw.getByteArray()));
+		legacy.close();
+
+		ss = new BerkeleyDBStore(e, "state", "updates", pid, schMap, -1);
+		assertFalse(e.getDatabaseNames().contains("updates"));
+		List<Update> updates = ((BerkeleyDBStore) ss).getUpdateList(tN1, r0);
+		assertEquals(1, updates.size());
+		assertEquals(tN1, updates.get(0).getNewVal());
+	}
+
 	@AfterMethod
 	public void tearDown() throws Exception {
 		super.tearDown();
@@ -198,6 +198,71 @@ abstract public class TestStore extends TestCase {
 		assertFalse(ss.containsTuple(r1,tN6));
 	}
 
+	public void testGetChanges() throws Exception {
+		ss.prepareTransaction(insN1t);
+		ss.applyTransaction(r0,insN1t);
+		ss.prepareTransaction(insS1t);
+		ss.applyTransaction(r0,insS1t);
+		ss.advanceRecno();
+		int r1 = ss.getCurrentRecno();
+		ss.prepareTransaction(modN1N3t);
+		ss.applyTransaction(r1,modN1N3t);
+		ss.prepareTransaction(insM4t);
+		ss.applyTransaction(r1,insM4t);
+		ss.advanceRecno();
+		int r2 = ss.getCurrentRecno();
+		ss.prepareTransaction(modN3N6t);
+		ss.applyTransaction(r2,modN3N6t);
+
+		List<Update> changes = ss.getChanges(r0, r2);
+		assertEquals(2, changes.size());
+		for (Update u : changes) {
+			if (u.isInsertion()) {
+				assertEquals(tM4, u.getNewVal());
+			} else {
+				assertEquals(tN1, u.getOldVal());
+				assertEquals(tN6, u.getNewVal());
+			}
+		}
+
+		changes = ss.getChanges(r2, r2);
+		assertTrue(changes.isEmpty());
+	}
+
+	public void testStateAtRecno() throws Exception {
+		ss.prepareTransaction(insN1t);
+		ss.applyTransaction(r0,insN1t);
+		ss.advanceRecno();
+		int r1 = ss.getCurrentRecno();
+		ss.prepareTransaction(modN1N3t);
+		ss.applyTransaction(r1,modN1N3t);
+		ss.prepareTransaction(insM4t);
+		ss.applyTransaction(r1,insM4t);
+		ss.prepareTransaction(insS1t);
+		ss.applyTransaction(r1,insS1t);
+		ss.advanceRecno();
+		int r2 = ss.getCurrentRecno();
+		ss.prepareTransaction(modN3N6t);
+		ss.applyTransaction(r2,modN3N6t);
+
+		// Read through the lock that peers put around their state store
+		StateStore locked = new SynchronizedStateStore(ss);
+		assertEquals(r0, locked.getFirstRecno());
+
+		TupleSet atR0 = locked.getState(r0, "R");
+		assertEquals(1, atR0.size());
+		assertTrue(atR0.contains(tN1));
+		assertTrue(locked.getState(r0, "S").isEmpty());
+
+		TupleSet atR1 = locked.getState(r1, "R");
+		assertEquals(2, atR1.size());
+		assertTrue(atR1.contains(tN3));
+		assertTrue(atR1.contains(tM4));
+		assertTrue(locked.getState(r1, "S").contains(tS1));
+
+		assertEquals(locked.getState("R"), locked.getState(r2, "R"));
+	}
+
 	public void testSecondaryInsertion() throws Exception {
 		insN1.addTid(0, new IntPeerID(1));
 		ss.advanceRecno();
@@ -302,5 +367,62 @@ abstract public class TestStore extends TestCase {
 		
 		ri.close();
 	}
+
+	private static StateSnapshots.History history(final long id) {
+		return new StateSnapshots.History() {
+			public long getId(int recno) {
+				return id + recno;
+			}
+		};
+	}
+
+	public void testSnapshot() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), getClass().getSimpleName() + "_snapshots");
+		StateSnapshots snapshots = new StateSnapshots(dir, 1);
+		snapshots.clear();
+		List<String> relnames = schema.getRelationNames();
+		StateSnapshots.History history = history(1);
+
+		ss.prepareTransaction(insN1t);
+		ss.applyTransaction(r0, insN1t);
+		ss.prepareTransaction(insS1t);
+		ss.applyTransaction(r0, insS1t);
+		ss.advanceRecno();
+		int r1 = ss.getCurrentRecno();
+		assertTrue(snapshots.isDue(r1));
+		snapshots.save(ss, relnames, history);
+
+		ss.prepareTransaction(modN1N3t);
+		ss.applyTransaction(r1, modN1N3t);
+		ss.advanceRecno();
+
+		ss.reset();
+		assertEquals(r1, snapshots.restore(ss, r1 + 1, history));
+		assertEquals(r1, ss.getCurrentRecno());
+		assertTrue(ss.containsTuple(r1, tN1));
+		assertTrue(ss.containsTuple(r1, tS1));
+		assertFalse(ss.containsTuple(r1, tN3));
+		
+		// The antecedents are restored along with the values
+		Update mod = new Update(tN1, tN3);
+		ss.prepareTransaction(Collections.singletonList(mod));
+		assertEquals(Collections.singleton(insN1.getLastTid()), mod.getPrevTids());
+
+		// A snapshot newer than the update store's history is discarded
+		ss.reset();
+		assertEquals(StateStore.FIRST_RECNO, snapshots.restore(ss, r0, history));
+		assertEquals(StateStore.FIRST_RECNO, snapshots.restore(ss, r1, history));
+
+		// So is a snapshot of another history which reached the same reconciliation
+		ss.prepareTransaction(insN1t);
+		ss.applyTransaction(r0, insN1t);
+		ss.advanceRecno();
+		snapshots.save(ss, relnames, history);
+		ss.reset();
+		assertEquals(StateStore.FIRST_RECNO, snapshots.restore(ss, r1 + 1, history(2)));
+		assertEquals(StateStore.FIRST_RECNO, snapshots.restore(ss, r1 + 1, history));
+		snapshots.clear();
+		dir.delete();
+	}
 	
 }
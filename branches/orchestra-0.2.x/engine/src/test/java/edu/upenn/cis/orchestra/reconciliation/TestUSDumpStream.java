@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.reconciliation;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import edu.upenn.cis.orchestra.datamodel.AbstractPeerID;
+import edu.upenn.cis.orchestra.datamodel.IntPeerID;
+import edu.upenn.cis.orchestra.datamodel.Schema;
+import edu.upenn.cis.orchestra.datamodel.TxnPeerID;
+import edu.upenn.cis.orchestra.datamodel.Update;
+
+/**
+ * Testing the chunked update store dump format of {@code USDumpWriter} and
+ * {@code USDumpReader}.
+ * 
+ */
+@Test(groups = { FAST_TESTNG_GROUP })
+public class TestUSDumpStream {
+
+	private static final AbstractPeerID P1 = new IntPeerID(1);
+	private static final AbstractPeerID P2 = new IntPeerID(2);
+
+	/** Enough transactions to need several chunks */
+	private static final int NUM_TXNS = 200000;
+
+	private static class Recorder implements USDumpReader.Handler {
+		final List<String> records = new ArrayList<String>();
+		int chunks = 0;
+
+		public void txn(TxnPeerID tid, int epoch, List<Update> txn) {
+			records.add("txn " + tid + " " + epoch + " " + txn.size());
+		}
+
+		public void decision(AbstractPeerID pid, Decision d) {
+			records.add("decision " + pid + " " + d);
+		}
+
+		public void recnoEpoch(AbstractPeerID pid, int recno, int epoch) {
+			records.add("recno " + pid + " " + recno + " " + epoch);
+		}
+
+		public void endOfChunk() {
+			++chunks;
+		}
+	}
+
+	private byte[] writeDump(List<String> expected) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Map<AbstractPeerID,Schema> schemas = Collections.emptyMap();
+		USDumpWriter w = new USDumpWriter(out, schemas);
+		List<Update> empty = Collections.emptyList();
+		for (int i = 0; i < NUM_TXNS; ++i) {
+			TxnPeerID tid = new TxnPeerID(i, i % 2 == 0 ? P1 : P2);
+			w.addTxn(tid, i / 10, empty);
+			expected.add("txn " + tid + " " + (i / 10) + " 0");
+		}
+		for (int recno = 0; recno < 3; ++recno) {
+			Decision d = new Decision(new TxnPeerID(recno, P2), recno, recno != 1);
+			w.addDecision(P1, d);
+			expected.add("decision " + P1 + " " + d);
+		}
+		w.addRecnoEpoch(P1, 0, 5);
+		expected.add("recno " + P1 + " 0 5");
+		w.close();
+		return out.toByteArray();
+	}
+
+	public void roundTrip() throws Exception {
+		List<String> expected = new ArrayList<String>();
+		byte[] dump = writeDump(expected);
+
+		USDumpReader r = new USDumpReader(new ByteArrayInputStream(dump), null);
+		assertTrue(r.getSchemas().isEmpty());
+		Recorder rec = new Recorder();
+		r.read(rec);
+		assertEquals(rec.records, expected);
+		assertTrue(rec.chunks > 2, "Expected the transactions to span several chunks");
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void detectsCorruption() throws Exception {
+		byte[] dump = writeDump(new ArrayList<String>());
+		// Somewhere in the compressed data of the first transaction chunk
+		dump[dump.length / 2] ^= 0x5A;
+		new USDumpReader(new ByteArrayInputStream(dump), null).read(new Recorder());
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void detectsTruncation() throws Exception {
+		byte[] dump = writeDump(new ArrayList<String>());
+		byte[] truncated = new byte[dump.length - 10];
+		System.arraycopy(dump, 0, truncated, 0, truncated.length);
+		new USDumpReader(new ByteArrayInputStream(truncated), null).read(new Recorder());
+	}
+
+	public void verifiedCopy() throws Exception {
+		List<String> expected = new ArrayList<String>();
+		byte[] dump = writeDump(expected);
+
+		File copy = USDumpReader.verifiedCopy(new ByteArrayInputStream(dump), null);
+		try {
+			Recorder rec = new Recorder();
+			new USDumpReader(new FileInputStream(copy), null).read(rec);
+			assertEquals(rec.records, expected);
+		} finally {
+			copy.delete();
+		}
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void verifiedCopyDetectsTruncation() throws Exception {
+		byte[] dump = writeDump(new ArrayList<String>());
+		byte[] truncated = new byte[dump.length - 10];
+		System.arraycopy(dump, 0, truncated, 0, truncated.length);
+		USDumpReader.verifiedCopy(new ByteArrayInputStream(truncated), null);
+	}
+}
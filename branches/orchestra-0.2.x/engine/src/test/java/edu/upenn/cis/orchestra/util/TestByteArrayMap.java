@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.util;
+
+import static edu.upenn.cis.orchestra.TestUtil.JUNIT4_TESTNG_GROUP;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.upenn.cis.orchestra.TestUtil;
+import edu.upenn.cis.orchestra.datamodel.IntType;
+import static org.testng.AssertJUnit.*;
+
+@org.testng.annotations.Test(groups = { TestUtil.FAST_TESTNG_GROUP })
+public class TestByteArrayMap {
+	byte[] one = IntType.getBytes(1), two = IntType.getBytes(2), three = IntType.getBytes(3);
+
+	ByteArraySet.Deserializer<Integer> d = new ByteArraySet.Deserializer<Integer>() {
+
+		@Override
+		public Integer fromBytes(byte[] data, int offset, int length) {
+			return IntType.getValFromBytes(data, offset);
+		}
+
+	};
+
+	@Test
+  @org.testng.annotations.Test(groups = JUNIT4_TESTNG_GROUP)
+	public void testEmpty() {
+		ByteArrayMap bam = new ByteArrayMap();
+		assertEquals(0, bam.size());
+		assertNull(bam.get(one, d));
+		assertFalse(bam.iterator(d).hasNext());
+	}
+
+	@Test
+  @org.testng.annotations.Test(groups = JUNIT4_TESTNG_GROUP)
+	public void testPut() {
+		ByteArrayMap bam = new ByteArrayMap();
+		bam.put(one, two);
+		bam.put(two, three);
+		assertEquals(2, bam.size());
+		assertEquals(Integer.valueOf(2), bam.get(one, d));
+		assertEquals(Integer.valueOf(3), bam.get(two, d));
+		bam.put(one, three);
+		assertEquals(2, bam.size());
+		assertEquals(Integer.valueOf(3), bam.get(one, d));
+		assertFalse(bam.containsKey(three));
+	}
+
+	@Test
+  @org.testng.annotations.Test(groups = JUNIT4_TESTNG_GROUP)
+	public void testRemove() {
+		ByteArrayMap bam = new ByteArrayMap();
+		bam.put(one, one);
+		bam.put(two, two);
+		assertTrue(bam.remove(one));
+		assertFalse(bam.remove(one));
+		assertEquals(1, bam.size());
+		assertNull(bam.get(one, d));
+		assertEquals(Integer.valueOf(2), bam.get(two, d));
+		bam.put(one, three);
+		assertEquals(Integer.valueOf(3), bam.get(one, d));
+		assertEquals(2, bam.size());
+	}
+
+	@Test
+  @org.testng.annotations.Test(groups = JUNIT4_TESTNG_GROUP)
+	public void testGrowth() {
+		ByteArrayMap bam = new ByteArrayMap();
+		final int count = 10000;
+		for (int i = 0; i < count; ++i) {
+			bam.put(IntType.getBytes(i), IntType.getBytes(-i));
+		}
+		for (int i = 0; i < count; i += 2) {
+			assertTrue(bam.remove(IntType.getBytes(i)));
+		}
+		assertEquals(count / 2, bam.size());
+		Set<Integer> values = new HashSet<Integer>();
+		Iterator<Integer> it = bam.iterator(d);
+		while (it.hasNext()) {
+			values.add(it.next());
+		}
+		assertEquals(count / 2, values.size());
+		for (int i = 0; i < count; ++i) {
+			Integer value = bam.get(IntType.getBytes(i), d);
+			if (i % 2 == 0) {
+				assertNull(value);
+			} else {
+				assertEquals(Integer.valueOf(-i), value);
+				assertTrue(values.contains(-i));
+			}
+		}
+	}
+}
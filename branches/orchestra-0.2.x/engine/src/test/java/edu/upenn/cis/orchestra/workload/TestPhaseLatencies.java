@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2010 Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS of ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.cis.orchestra.workload;
+
+import static edu.upenn.cis.orchestra.TestUtil.FAST_TESTNG_GROUP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@code PhaseLatencies}.
+ * 
+ */
+@Test(groups = FAST_TESTNG_GROUP)
+public class TestPhaseLatencies {
+	@Test
+	public void testPercentiles() {
+		PhaseLatencies pl = new PhaseLatencies();
+		for (int i = 100; i >= 1; --i) {
+			pl.record("reconcile", i * 1000000L);
+		}
+		long[] sorted = pl.getSorted("reconcile");
+		Assert.assertEquals(sorted.length, 100);
+		Assert.assertEquals(PhaseLatencies.percentile(sorted, 50), 50000000L);
+		Assert.assertEquals(PhaseLatencies.percentile(sorted, 99), 99000000L);
+		Assert.assertEquals(PhaseLatencies.percentile(sorted, 100), 100000000L);
+		Assert.assertEquals(PhaseLatencies.percentile(new long[0], 50), 0L);
+		Assert.assertEquals(pl.getSorted("publish").length, 0);
+	}
+
+	@Test
+	public void testCsv() {
+		PhaseLatencies pl = new PhaseLatencies();
+		pl.record("publish", 2000000L);
+		pl.record("publish", 4000000L);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		pl.writeCsv(out, 1000000000L);
+		out.close();
+		String[] lines = bytes.toString().split("\r?\n");
+		Assert.assertEquals(lines.length, 2);
+		Assert.assertEquals(lines[0], "phase,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms,ops_per_sec");
+		Assert.assertEquals(lines[1], "publish,2,3.0,2.0,4.0,4.0,4.0,2.0");
+	}
+}
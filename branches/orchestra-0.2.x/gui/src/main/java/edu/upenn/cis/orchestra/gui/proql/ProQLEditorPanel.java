@@ -41,6 +41,7 @@ import edu.upenn.cis.orchestra.datalog.atom.Atom;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
 import edu.upenn.cis.orchestra.datamodel.RelationContext;
 import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.datalog.atom.Atom.AtomType;
 import edu.upenn.cis.orchestra.deltaRules.DeltaRuleGen;
 import edu.upenn.cis.orchestra.exchange.sql.SqlEngine;
@@ -271,14 +272,17 @@ public class ProQLEditorPanel extends JPanel {
 	 * @throws Exception
 	 */
 	private void runQuery(String q, boolean printResults) throws Exception {
-		List<Tuple> queryResults = ProQL.runProvenanceQuery(q, printResults, true, _system);
+		ResultIterator<Tuple> queryResults = ProQL.runProvenanceQueryIterator(q, true, _system,
+				Config.getQueryFetchSize(), Config.getQueryResultLimit());
 		//			List<Tuple> queryResults = _system.runUnfoldedQuery(programWithASRs, false);
 
-		if(printResults){
-			for (Tuple tuple : queryResults) {
+		try {
+			while (printResults && queryResults.hasNext()) {
 				//_results.append(tuple.toString() + "\n");
-				_data.addElement(tuple);
+				_data.addElement(queryResults.next());
 			}
+		} finally {
+			queryResults.close();
 		}
 		System.out.println("DONE");
 		//			DatalogSequence ds = new DatalogSequence(false, false);
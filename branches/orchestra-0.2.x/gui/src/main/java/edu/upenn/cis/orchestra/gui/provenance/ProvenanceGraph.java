@@ -21,10 +21,12 @@ import java.awt.Dimension;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
 
 import org.jgraph.graph.CellView;
 import org.jgraph.graph.DefaultEdge;
@@ -37,13 +39,16 @@ import edu.upenn.cis.orchestra.datalog.atom.Atom;
 import edu.upenn.cis.orchestra.datalog.atom.AtomArgument;
 import edu.upenn.cis.orchestra.datalog.atom.AtomConst;
 import edu.upenn.cis.orchestra.datalog.atom.AtomVariable;
+import edu.upenn.cis.orchestra.datamodel.AbstractTuple.LabeledNull;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
 import edu.upenn.cis.orchestra.datamodel.Peer;
 import edu.upenn.cis.orchestra.datamodel.Relation;
 import edu.upenn.cis.orchestra.datamodel.RelationContext;
 import edu.upenn.cis.orchestra.datamodel.Schema;
 import edu.upenn.cis.orchestra.datamodel.Tuple;
-import edu.upenn.cis.orchestra.datamodel.iterators.ResultSetIterator;
+import edu.upenn.cis.orchestra.datamodel.Type;
+import edu.upenn.cis.orchestra.datamodel.exceptions.ValueMismatchException;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.gui.graphs.BasicGraph;
 import edu.upenn.cis.orchestra.gui.graphs.GuiGraphConstants;
 import edu.upenn.cis.orchestra.gui.graphs.ILayoutHelper;
@@ -51,6 +56,7 @@ import edu.upenn.cis.orchestra.gui.graphs.LayoutHelperBuilder;
 import edu.upenn.cis.orchestra.gui.graphs.LegendGraph;
 import edu.upenn.cis.orchestra.gui.graphs.LayoutHelperBuilder.LayoutAlgorithmType;
 import edu.upenn.cis.orchestra.mappings.Rule;
+import edu.upenn.cis.orchestra.util.XMLParseException;
 
 /**
  * The visualization of transactions, dependencies, and conflicts
@@ -106,6 +112,12 @@ public class ProvenanceGraph extends BasicGraph {
 	
 	private static final int DEPTH = 4;
 
+	/** Horizontal distance between the levels of the graph */
+	private static final double COLUMN_WIDTH = 200;
+	/** Vertical distance between the vertices of a level */
+	private static final double ROW_HEIGHT = 40;
+	private static final double MARGIN = 20;
+
 	/**
 	 * 
 	 */
@@ -120,6 +132,10 @@ public class ProvenanceGraph extends BasicGraph {
 	
 	private Map<TupleContext,DefaultGraphCell> _tupleNodes;
 	private Map<TupleContext,DefaultGraphCell> _oldTupleNodes;
+	/** The next free vertical position of each level */
+	private final Map<Integer,Double> _columnBottoms = new HashMap<Integer,Double>();
+	/** The exploration in progress, if any */
+	private Explorer _explorer;
 
 	public ProvenanceGraph(Peer p, Schema s, OrchestraSystem sys) {
 		super(true);
@@ -143,31 +159,36 @@ public class ProvenanceGraph extends BasicGraph {
 	}
 	
 	public void clearGraph() {
+		if (_explorer != null) {
+			_explorer.cancel(false);
+			_explorer = null;
+			setCursor(Cursor.getDefaultCursor());
+		}
 		// Cannot just use remove(Object[]), since this will not get rid of ports.
 		getGraphLayoutCache().remove(_cells.toArray(), true, true);
 		_root = null;
 		_cells.clear();
+		_columnBottoms.clear();
 		_oldTupleNodes = _tupleNodes;
 		_tupleNodes = new HashMap<TupleContext,DefaultGraphCell>();
 		
 		//_tuplesVisited.clear();
 	}
 	
+	/**
+	 * Shows the provenance of a tuple. The tuple is shown right away, and its
+	 * neighbors are explored in the background, each level being added to the
+	 * graph as soon as it is known.
+	 * 
+	 * @param t
+	 */
 	public void setRoot(Tuple t) {
 		//setVisible(false);
 		clearGraph();
 		
 		_root = t;
 		
-		String nam = t.toString();
-		if (nam.length() > 20)
-			nam = nam.substring(0, 20) + "...)";
-		//else
-		//	nam = nam.substring(0, 20);
-		
-		if (nam.charAt(0) == ' ')
-			nam = nam.substring(1);
-		TupleVertex root = new TupleVertex(nam, t);
+		TupleVertex root = new TupleVertex(getLabel(t), t);
 		root.setRoot();
 
 		TupleContext cont = new TupleContext(_root, _root.getOrigin()); 
@@ -176,230 +197,391 @@ public class ProvenanceGraph extends BasicGraph {
 		_tupleNodes.put(cont, root);
 		_rootNode = root;
 		
-		try {
-			setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-			exploreNeighbors(cont, true, 1);
-		} catch (Exception e) {
-			e.printStackTrace();
-			JOptionPane.showMessageDialog(this, e.getMessage(), "Error exploring provenance", JOptionPane.ERROR_MESSAGE);
-		} finally {
-			setCursor(Cursor.getDefaultCursor());
-		}
+		GuiGraphConstants.setBounds(root.getAttributes(), new Rectangle2D.Double(MARGIN, MARGIN, 0, 0));
+		getGraphLayoutCache().insert(new Object[] { root });
 		
-		// We can now add all the cells to the graph model
-		getGraphLayoutCache().insert(_cells.toArray());
+		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		_explorer = new Explorer(cont, _tupleNodes);
+		_explorer.execute();
+	}
+	
+	private static String getLabel(Tuple t) {
+		String nam = t.toString();
+		if (nam.length() > 20)
+			nam = nam.substring(0, 20) + "...)";
+		//else
+		//	nam = nam.substring(0, 20);
 		
-				
-		applyLayout();
-		//setVisible(true);
+		if (nam.charAt(0) == ' ')
+			nam = nam.substring(1);
+		return nam;
+	}
+	
+	/**
+	 * The vertices and edges found at one distance from the root, along with
+	 * the vertex from which each new vertex was first reached.
+	 */
+	private static class Level {
+		final int dist;
+		final List<DefaultGraphCell> cells = new ArrayList<DefaultGraphCell>();
+		final Map<DefaultGraphCell,DefaultGraphCell> parents = new HashMap<DefaultGraphCell,DefaultGraphCell>();
 		
+		Level(int dist) {
+			this.dist = dist;
+		}
+		
+		void addVertex(DefaultGraphCell vertex, DefaultGraphCell parent) {
+			cells.add(vertex);
+			parents.put(vertex, parent);
+		}
 	}
-
+	
 	/**
-	 * Explore the frontier of neighbors, breadth-first-style
-	 * 
-	 * @param t
-	 * @param mapping
-	 * @return
-	 * @throws Exception
+	 * Explores the provenance of the root breadth-first, off the event
+	 * dispatch thread. The neighbors of the whole frontier are found with one
+	 * query per neighboring mapping atom, and each level is published to the
+	 * graph once explored.
 	 */
-	private void exploreNeighbors(TupleContext t, boolean mapping, int dist) throws Exception {
-			if (dist > DEPTH)
+	private class Explorer extends SwingWorker<Void,Level> {
+		private final TupleContext _start;
+		private final Map<TupleContext,DefaultGraphCell> _nodes;
+		private Exception _error;
+		
+		Explorer(TupleContext start, Map<TupleContext,DefaultGraphCell> nodes) {
+			_start = start;
+			_nodes = nodes;
+		}
+		
+		@Override
+		protected Void doInBackground() throws Exception {
+			List<TupleContext> frontier = new ArrayList<TupleContext>();
+			frontier.add(_start);
+			boolean mapping = true;
+			for (int dist = 1; dist <= DEPTH && !frontier.isEmpty() && !isCancelled(); dist++) {
+				Level level = new Level(dist);
+				frontier = exploreFrontier(frontier, mapping, level);
+				publish(level);
+				mapping = !mapping;
+			}
+			
+			// Mark the tuples whose provenance is not shown
+			if (!frontier.isEmpty() && !isCancelled()) {
+				Level level = new Level(DEPTH + 1);
+				for (TupleContext next : frontier) {
+					if (!next.getContext().getRelation().getName().endsWith("_L")) {
+						MappingVertex map = new MappingVertex("...", "...");
+						map.setBorderless();
+						level.addVertex(map, _nodes.get(next));
+						DefaultEdge e = new DefaultEdge(/*String.valueOf(dist)*/);
+						setMappingTupleEdge(e, _nodes.get(next), map);
+						level.cells.add(e);
+					}
+				}
+				publish(level);
+			}
+			return null;
+		}
+		
+		@Override
+		protected void process(List<Level> levels) {
+			if (_explorer != this)
+				return;
+			for (Level level : levels) {
+				placeVertices(level);
+				_cells.addAll(level.cells);
+				getGraphLayoutCache().insert(level.cells.toArray());
+			}
+		}
+		
+		@Override
+		protected void done() {
+			if (_explorer != this)
 				return;
+			_explorer = null;
+			setCursor(Cursor.getDefaultCursor());
+			Exception error = _error;
+			try {
+				get();
+			} catch (Exception e) {
+				error = e;
+			}
+			if (error != null) {
+				JOptionPane.showMessageDialog(ProvenanceGraph.this, error.getMessage(), "Error exploring provenance", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+		
+		/**
+		 * Finds the neighbors of the tuples of a frontier, adding their
+		 * vertices and edges to {@code level}.
+		 * 
+		 * @return the neighbors whose own neighbors remain to be explored
+		 */
+		private List<TupleContext> exploreFrontier(List<TupleContext> frontier, boolean mapping, Level level) {
+			List<TupleContext> nextList = new ArrayList<TupleContext>();
 			
+			Map<RelationContext,List<TupleContext>> byOrigin = new LinkedHashMap<RelationContext,List<TupleContext>>();
+			for (TupleContext t : frontier) {
+				List<TupleContext> tuples = byOrigin.get(t.getTuple().getOrigin());
+				if (tuples == null) {
+					tuples = new ArrayList<TupleContext>();
+					byOrigin.put(t.getTuple().getOrigin(), tuples);
+				}
+				tuples.add(t);
+			}
 			
-			List<TupleContext> nextList = new ArrayList<TupleContext>();
+			for (Map.Entry<RelationContext,List<TupleContext>> entry : byOrigin.entrySet()) {
+				Map<Atom,Rule> atomsFor = _system.getMappingEngine().getMappingAtomsFor(entry.getKey());
+				for (Atom sourceAtom : atomsFor.keySet()) {
+					if (isCancelled())
+						return nextList;
+					if (!sourceAtom.isSkolem())
+						exploreAtom(sourceAtom, atomsFor.get(sourceAtom).getHead(), entry.getValue(), 
+								mapping, level, nextList);
+				}
+			}
+			return nextList;
+		}
+		
+		/**
+		 * Finds the tuples of a "neighbor" atom that derive, or are derived
+		 * from, some tuples with a single query.
+		 */
+		private void exploreAtom(Atom sourceAtom, Atom originalHead, List<TupleContext> tuples, 
+				boolean mapping, Level level, List<TupleContext> nextList) {
+			Relation outputRelation = getOutputRelation(sourceAtom);
+			List<Integer> bound = getBoundPositions(sourceAtom, originalHead);
 			
-			List<Rule> ruleList = getMappingRelationRulesFor(t.getTuple());
-			int count = 0;
-			for (Rule m : ruleList) {
-				count++;
-				//_tupleMappings.put(_root, new HashSet<MappingVertex>());
+			// Tuples with the same values in the bound positions share a rule
+			Map<List<Object>,List<TupleContext>> bindings = new HashMap<List<Object>,List<TupleContext>>();
+			List<Rule> rules = new ArrayList<Rule>();
+			for (TupleContext t : tuples) {
+				List<AtomArgument> values = getBoundValues(t.getTuple(), sourceAtom, originalHead);
+				List<Object> key = new ArrayList<Object>();
+				for (int i : bound) {
+					int pos = originalHead.getValues().indexOf(sourceAtom.getValues().get(i));
+					key.add(normalize(outputRelation.getColType(i), t.getTuple().getValueOrLabeledNull(pos)));
+				}
 				
-	//			System.out.println(dist + " " + m.getHead().toString());
-				ResultSetIterator<Tuple> neighborList = null;
-				try {
-					Debug.println(m.toString());
-					neighborList = _system.getMappingEngine().evalQueryRule(m);
-				} catch (Exception e) {
-					e.printStackTrace();
-					JOptionPane.showMessageDialog(this, e.getMessage(), "Error exploring provenance", JOptionPane.ERROR_MESSAGE);
+				List<TupleContext> sources = bindings.get(key);
+				if (sources == null) {
+					sources = new ArrayList<TupleContext>();
+					bindings.put(key, sources);
+					rules.add(getMappingRelationRule(t.getTuple(), sourceAtom, outputRelation, values));
 				}
+				sources.add(t);
+			}
+			
+			ResultIterator<Tuple> neighborList = null;
+			try {
+				Debug.println(rules.size() + " rules for " + sourceAtom);
+				neighborList = _system.getMappingEngine().evalQueryRules(rules);
 				
-				try {
 				while (neighborList != null && neighborList.hasNext()) {
 					Tuple tn = neighborList.next();
-					tn.setOrigin(new RelationContext(m.getBody().get(0).getPeer(), m.getBody().get(0).getSchema(),
-							m.getBody().get(0).getRelation()));
+					tn.setOrigin(new RelationContext(sourceAtom.getPeer(), sourceAtom.getSchema(),
+							sourceAtom.getRelation()));
 					
-					TupleContext next = new TupleContext(tn);
-					boolean visited = _tupleNodes.keySet().contains(next); 
-					if (mapping) {
-						MappingVertex map;
-						
-						if (!visited) {
-							map = new MappingVertex(m.getHead().getRelation().getDescription(), tn.toString());
-							_cells.add(map);
-							
-							//_tupleMappings.get(t).add(map);
-							_tupleNodes.put(next, map);
-						} else
-							map = (MappingVertex)_tupleNodes.get(next);
-						
-						DefaultEdge e = new DefaultEdge(/*String.valueOf(dist)*/);
-						setMappingTupleEdge(e, _tupleNodes.get(t), map);
-						_cells.add(e);
-					} else if (!next.getContext().getRelation().isInternalRelation()) {//.getName().endsWith("_L")) {
-						TupleVertex tup;
-						if (!visited) {
-							String nam = tn.toString();
-							if (nam.length() > 20)
-								nam = nam.substring(0, 20) + "...)";
-//							else
-//								nam = nam.substring(0, 20);
-							
-							if (nam.charAt(0) == ' ')
-								nam = nam.substring(1);
-							
-							tup = new TupleVertex(nam, tn);
-							_cells.add(tup);
-							
-							if (next.getContext().getRelation().isInternalRelation())//.getName().endsWith("_L"))
-								tup.setEdb();
-						
-							_tupleNodes.put(next, tup);
-						} else {
-							tup = (TupleVertex)_tupleNodes.get(next);
-						}
-						
-						DefaultEdge e = new DefaultEdge(/*String.valueOf(dist)*/);
-						setTupleMappingEdge(e, _tupleNodes.get(t), tup);
-						_cells.add(e);						
-					}
-						
-					if (!visited && !next.getContext().getRelation().isInternalRelation()) {//.getName().endsWith("_L")) {
-						// Now recursively query the sources of the mapping
-						nextList.add(next);
-					}
+					List<Object> key = new ArrayList<Object>();
+					for (int i : bound)
+						key.add(normalize(outputRelation.getColType(i), tn.getValueOrLabeledNull(i)));
+					List<TupleContext> sources = bindings.get(key);
+					if (sources != null)
+						for (TupleContext t : sources)
+							addNeighbor(t, tn, outputRelation, mapping, level, nextList);
 				}
-				} catch (StringIndexOutOfBoundsException e) {
-					e.printStackTrace();
-				}//} catch (IllegalStateException se) {
-					// Should trap end-of-relation exception
-					//System.err.println(se);
-					//se.printStackTrace();
-				//}
-				finally {
-					if (neighborList != null) {
-						neighborList.close();
-					}
+			} catch (Exception e) {
+				e.printStackTrace();
+				if (_error == null)
+					_error = e;
+			} finally {
+				if (neighborList != null) {
+					neighborList.close();
+				}
+			}
+		}
+		
+		private void addNeighbor(TupleContext t, Tuple tn, Relation outputRelation, boolean mapping, 
+				Level level, List<TupleContext> nextList) {
+			TupleContext next = new TupleContext(tn);
+			boolean visited = _nodes.containsKey(next);
+			DefaultGraphCell parent = _nodes.get(t);
+			if (mapping) {
+				DefaultGraphCell map;
+				
+				if (!visited) {
+					map = new MappingVertex(outputRelation.getDescription(), tn.toString());
+					level.addVertex(map, parent);
+					_nodes.put(next, map);
+				} else
+					map = _nodes.get(next);
+				
+				DefaultEdge e = new DefaultEdge(/*String.valueOf(dist)*/);
+				setMappingTupleEdge(e, parent, map);
+				level.cells.add(e);
+			} else if (!next.getContext().getRelation().isInternalRelation()) {//.getName().endsWith("_L")) {
+				DefaultGraphCell tup;
+				if (!visited) {
+					tup = new TupleVertex(getLabel(tn), tn);
+					level.addVertex(tup, parent);
+					_nodes.put(next, tup);
+				} else {
+					tup = _nodes.get(next);
 				}
+				
+				DefaultEdge e = new DefaultEdge(/*String.valueOf(dist)*/);
+				setTupleMappingEdge(e, parent, tup);
+				level.cells.add(e);
 			}
 			
-			++dist;
+			if (!visited && !next.getContext().getRelation().isInternalRelation()) {//.getName().endsWith("_L")) {
+				// Now query the sources of the mapping
+				nextList.add(next);
+			}
+		}
+	}
 	
-			if (dist <= DEPTH) {
-				for (TupleContext next : nextList)
-					exploreNeighbors(next, !mapping, dist);
-			} else {
-				// Non-leaf node
-				//if (count != 0) {
-					//GraphConstants.setBackground(_tupleNodes.get(t).getAttributes(), Color.GRAY);
+	/**
+	 * Places the new vertices of a level in the column for their distance
+	 * from the root, each as close as possible to the vertex it was reached
+	 * from, leaving the vertices already in the graph where they are.
+	 * 
+	 * @param level
+	 */
+	private void placeVertices(Level level) {
+		double x = MARGIN + level.dist * COLUMN_WIDTH;
+		Double bottom = _columnBottoms.get(level.dist);
+		double next = (bottom == null) ? MARGIN : bottom.doubleValue();
+		
+		for (DefaultGraphCell cell : level.cells) {
+			if (!level.parents.containsKey(cell))
+				continue;
+			double y = next;
+			CellView parentView = getGraphLayoutCache().getMapping(level.parents.get(cell), false);
+			if (parentView != null)
+				y = Math.max(y, parentView.getBounds().getY());
+			GuiGraphConstants.setBounds(cell.getAttributes(), new Rectangle2D.Double(x, y, 0, 0));
+			next = y + ROW_HEIGHT;
+		}
+		_columnBottoms.put(level.dist, next);
+	}
 	
-					for (TupleContext next : nextList) {
-						if (!next.getContext().getRelation().getName().endsWith("_L")) {
-							MappingVertex map = new MappingVertex("...", "...");
-							map.setBorderless();
-							_cells.add(map);
-							DefaultEdge e = new DefaultEdge(/*String.valueOf(dist)*/);
-							setMappingTupleEdge(e, _tupleNodes.get(next), map);
-							_cells.add(e);
-						}
-					}
-				//}
-			}
+	/**
+	 * The relation of the tuples of a "neighbor" atom, as they are shown.
+	 * 
+	 * @param sourceAtom
+	 * @return
+	 */
+	private Relation getOutputRelation(Atom sourceAtom) {
+		String dispName = sourceAtom.getRelation().getDescription();
+		
+		Map<Atom,Rule> mappingDerivedFrom = _system.getMappingEngine().getMappingAtomsFor(sourceAtom.getRelationContext());
+		if (mappingDerivedFrom.size() == 1 && mappingDerivedFrom.keySet().iterator().next().getRelation().getName().endsWith("_L"))
+			dispName = "+";
+		
+		Relation outputRelation = new Relation(null, null, " " + sourceAtom.getRelation().getName(), " " + sourceAtom.getRelation().getName(), 
+				dispName, false, false, sourceAtom.getRelation().getFields());
+		outputRelation.setPrimaryKey(sourceAtom.getRelation().getPrimaryKey());
+		outputRelation.setSchema(sourceAtom.getSchema(), Relation.NO_ID);
+		outputRelation.markFinished();
+		return outputRelation;
+	}
+	
+	/**
+	 * Converts a value to the representation of a column type, so that
+	 * values read from different relations, or padded by the database,
+	 * compare equal when they would in the column. Labeled nulls are
+	 * returned unchanged.
+	 */
+	private static Object normalize(Type type, Object value) {
+		if (value == null || value instanceof LabeledNull)
+			return value;
+		try {
+			if (type.getClassObj().isInstance(value))
+				return type.fromStringRep(type.getStringRep(value));
+			else
+				return type.fromStringRep(value.toString());
+		} catch (ValueMismatchException e) {
+			return value;
+		} catch (XMLParseException e) {
+			return value;
+		}
+	}
+	
+	/**
+	 * The positions of a "neighbor" atom bound to values of the tuple of
+	 * {@code originalHead}.
+	 */
+	private static List<Integer> getBoundPositions(Atom sourceAtom, Atom originalHead) {
+		List<Integer> bound = new ArrayList<Integer>();
+		for (int i = 0; i < sourceAtom.getValues().size(); i++) {
+			AtomArgument arg = sourceAtom.getValues().get(i);
+			if (!(arg instanceof AtomConst) && originalHead.getValues().indexOf(arg) != -1)
+				bound.add(i);
+		}
+		return bound;
 	}
 	
 	/**
-	 * Given a tuple and its schema, find the "neighboring" relations and
-	 * create a set of rules to query for them.  Should bind the constants
-	 * in the body to the values of t.
+	 * Given a tuple and a "neighbor" atom, binds the values of the atom
+	 * to the values of t.
 	 * 
 	 * @param t
+	 * @param sourceAtom
+	 * @param originalHead the head of the rule {@code sourceAtom} belongs to
 	 * @return
 	 */
-	private List<Rule> getMappingRelationRulesFor(Tuple t) {
-		Map<Atom,Rule> atomsFor = _system.getMappingEngine().getMappingAtomsFor(t.getOrigin());
+	private static List<AtomArgument> getBoundValues(Tuple t, Atom sourceAtom, Atom originalHead) {
+		List<AtomArgument> values = new ArrayList<AtomArgument>();
 		
-		List<Rule> rules = new ArrayList<Rule>();
-		
-		// Iterate through each "neighbor" atom and create an inverse rule
-		int id = 0;
-		for (Atom sourceAtom : atomsFor.keySet()) {
+		// Iterate through the mapping relation, finding the vars in the head (original relation)
+		// that are mapped into it.
+		for (int i = 0; i < sourceAtom.getValues().size(); i++) {
 			
-			if (!sourceAtom.isSkolem())
-			{
-				// Head should mirror the source atom, in terms of the schema
-				List<AtomArgument> values = new ArrayList<AtomArgument>();
-				
-				String dispName = sourceAtom.getRelation().getDescription();
-				
-				Map<Atom,Rule> mappingDerivedFrom = _system.getMappingEngine().getMappingAtomsFor(sourceAtom.getRelationContext());
-				if (mappingDerivedFrom.size() == 1 && mappingDerivedFrom.keySet().iterator().next().getRelation().getName().endsWith("_L"))
-					dispName = "+";
-				
-				Relation outputRelation = new Relation(null, null, " " + sourceAtom.getRelation().getName(), " " + sourceAtom.getRelation().getName(), 
-						dispName, false, false, sourceAtom.getRelation().getFields());
-				outputRelation.setPrimaryKey(sourceAtom.getRelation().getPrimaryKey());
-				outputRelation.setSchema(sourceAtom.getSchema(), Relation.NO_ID);
-				outputRelation.markFinished();
-	
-				// Body should mirror the tuple, in terms of schema
-				List<Atom> body = new ArrayList<Atom>();
-				
-				Atom originalHead = atomsFor.get(sourceAtom).getHead();
-				
-				// Iterate through the mapping relation, finding the vars in the head (original relation)
-				// that are mapped into it.
-				for (int i = 0; i < sourceAtom.getValues().size(); i++) {
-					
-					// See if the variable/value shows up in the original relation
-					if(sourceAtom.getValues().get(i) instanceof AtomConst){
-						AtomConst c = (AtomConst)sourceAtom.getValues().get(i);
-						values.add(new AtomConst(c.getValue()));
-					}else{
-						int pos = originalHead.getValues().indexOf(sourceAtom.getValues().get(i));
+			// See if the variable/value shows up in the original relation
+			if(sourceAtom.getValues().get(i) instanceof AtomConst){
+				AtomConst c = (AtomConst)sourceAtom.getValues().get(i);
+				values.add(new AtomConst(c.getValue()));
+			}else{
+				int pos = originalHead.getValues().indexOf(sourceAtom.getValues().get(i));
 
-						if (pos != -1) {
-							Object obj = t.get(pos);
+				if (pos != -1) {
+					Object obj = t.get(pos);
 
-							if (obj != null){
-								values.add(new AtomConst(t.get(pos)));
-							}else{  // This doesn't work as it should for tuples with labeled nulls!!!
-//								values.add(new AtomConst((Object)null));
-								values.add(new AtomConst(t.getValueOrLabeledNull(pos).toString()));
-//								values.add(new AtomConst("NULL(" + + ")");
-							}
-						} else {
-							values.add(new AtomVariable("x" + i));//sourceAtom.getValues().get(i));
-						}
+					if (obj != null){
+						values.add(new AtomConst(t.get(pos)));
+					}else{  // This doesn't work as it should for tuples with labeled nulls!!!
+//						values.add(new AtomConst((Object)null));
+						values.add(new AtomConst(t.getValueOrLabeledNull(pos).toString()));
+//						values.add(new AtomConst("NULL(" + + ")");
 					}
+				} else {
+					values.add(new AtomVariable("x" + i));//sourceAtom.getValues().get(i));
 				}
-				Atom bodyAtom = new Atom(sourceAtom.getRelationContext(), values);
-				body.add(bodyAtom);
-				
-				Atom head = new Atom(t.getOriginatingPeer(), sourceAtom.getSchema(), 
-						outputRelation, values);
-				Rule inverseRule = new Rule(head, body, null, _system.getMappingDb().getBuiltInSchemas());
-				
-				//System.out.println(" " + sourceAtom.toString() + " " + atomsFor.get(sourceAtom).toString());
-	//			System.out.println(inverseRule);
-				rules.add(inverseRule);
-				id++;
 			}
 		}
-
-		return rules;
+		return values;
+	}
+	
+	/**
+	 * Creates the rule querying a "neighbor" atom for the tuples related to
+	 * t, whose values are bound in {@code values}.
+	 * 
+	 * @param t
+	 * @param sourceAtom
+	 * @param outputRelation
+	 * @param values
+	 * @return
+	 */
+	private Rule getMappingRelationRule(Tuple t, Atom sourceAtom, Relation outputRelation, List<AtomArgument> values) {
+		// Body should mirror the tuple, in terms of schema
+		List<Atom> body = new ArrayList<Atom>();
+		Atom bodyAtom = new Atom(sourceAtom.getRelationContext(), values);
+		body.add(bodyAtom);
+		
+		// Head should mirror the source atom, in terms of the schema
+		Atom head = new Atom(t.getOriginatingPeer(), sourceAtom.getSchema(), 
+				outputRelation, values);
+		return new Rule(head, body, null, _system.getMappingDb().getBuiltInSchemas());
 	}
 	
 	/**
@@ -27,7 +27,6 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.BorderFactory;
@@ -45,6 +44,8 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import edu.upenn.cis.orchestra.Config;
 import edu.upenn.cis.orchestra.datamodel.OrchestraSystem;
 import edu.upenn.cis.orchestra.datamodel.Tuple;
+import edu.upenn.cis.orchestra.datamodel.iterators.ListIteratorResultIterator;
+import edu.upenn.cis.orchestra.datamodel.iterators.ResultIterator;
 import edu.upenn.cis.orchestra.gui.schemas.RelationDataEditorIntf;
 import edu.upenn.cis.orchestra.gui.schemas.RelationDataModel;
 import edu.upenn.cis.orchestra.mappings.exceptions.RecursionException;
@@ -265,24 +266,30 @@ public class QueryEditorPanel extends JPanel {
 	private void runQuery() throws Exception {
 		StringReader sr = new StringReader(_query.getText());
 		
-		List<Tuple> results = new ArrayList<Tuple>();
+		ResultIterator<Tuple> results;
 		
 		// Try to run it as non-recursive: more efficient
 		try {
-			results = _system.runUnfoldedQuery(new BufferedReader(sr), false);
+			results = _system.runUnfoldedQueryIterator(new BufferedReader(sr), false,
+					Config.getQueryFetchSize(), Config.getQueryResultLimit());
 			
 		// If the program had recursion, we need to run it differently
 		} catch (RecursionException re) {
 			sr = new StringReader(_query.getText());
-			results = _system.runMaterializedQuery(new BufferedReader(sr));
+			List<Tuple> materialized = _system.runMaterializedQuery(new BufferedReader(sr));
+			results = new ListIteratorResultIterator<Tuple>(materialized.listIterator());
 		}
 		
 		_data.clear();
 		
 //		// TODO:  get the results!!!
-		for (Tuple tuple : results) {
-			//_results.append(tuple.toString() + "\n");
-			_data.addElement(tuple);
+		try {
+			while (results.hasNext()) {
+				//_results.append(tuple.toString() + "\n");
+				_data.addElement(results.next());
+			}
+		} finally {
+			results.close();
 		}
 	}
 }